@@ -0,0 +1,189 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A shared pool of reusable byte arrays for I/O buffers, such as those
+ * used to copy, compress, or hold document content. Pooling these
+ * buffers keeps large, short-lived arrays from being allocated for
+ * every document.
+ * <p>
+ * Buffers are pooled in power-of-two size classes. Each size class
+ * holds a small, fixed number of idle buffers in an array of slots that
+ * is accessed without locking. If no idle buffer is available, a new one
+ * is allocated, and if a size class is full when a buffer is released,
+ * the buffer is simply left for the garbage collector. Requests larger
+ * than the largest size class are always allocated, and never pooled.
+ * <p>
+ * A buffer must not be used after it has been released, and must not be
+ * released more than once.
+ *
+ * @since 3.3
+ */
+public class BufferPool {
+  /** The smallest size class, in bytes. */
+  public static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+  /** The largest size class, in bytes. */
+  public static final int MAX_BUFFER_SIZE = 8 * 1024 * 1024;
+
+  /** The maximum number of idle bytes held in each size class. */
+  private static final long MAX_POOLED_BYTES = 4L * 1024 * 1024;
+
+  /** The maximum number of idle buffers held in each size class. */
+  private static final int MAX_POOLED_BUFFERS = 8;
+
+  private static BufferPool instance;
+
+  private final int minShift;
+  private final int maxShift;
+
+  /** The idle buffers of each size class, indexed from minShift. */
+  private final List<AtomicReferenceArray<byte[]>> pools;
+
+  private final AtomicLong reuseCount = new AtomicLong();
+  private final AtomicLong allocationCount = new AtomicLong();
+  private final AtomicLong allocatedBytes = new AtomicLong();
+
+  /**
+   * Returns the shared {@code BufferPool}.
+   */
+  public static synchronized BufferPool getInstance() {
+    if (instance == null) {
+      instance = new BufferPool(MIN_BUFFER_SIZE, MAX_BUFFER_SIZE,
+          MAX_POOLED_BYTES, MAX_POOLED_BUFFERS);
+    }
+    return instance;
+  }
+
+  /**
+   * Constructs a {@code BufferPool}.
+   *
+   * @param minSize the smallest size class, which is rounded up to a
+   *        power of two
+   * @param maxSize the largest size class, which is rounded up to a
+   *        power of two
+   * @param maxPooledBytes the maximum number of idle bytes to hold in
+   *        each size class, although at least one buffer is always held
+   * @param maxPooledBuffers the maximum number of idle buffers to hold
+   *        in each size class
+   */
+  public BufferPool(int minSize, int maxSize, long maxPooledBytes,
+      int maxPooledBuffers) {
+    if (minSize <= 0 || maxSize < minSize || maxSize > (1 << 30)) {
+      throw new IllegalArgumentException("Invalid buffer sizes: "
+          + minSize + ", " + maxSize);
+    }
+    if (maxPooledBuffers <= 0) {
+      throw new IllegalArgumentException(
+          "maxPooledBuffers must be positive: " + maxPooledBuffers);
+    }
+    this.minShift = shift(minSize);
+    this.maxShift = shift(maxSize);
+    this.pools = new ArrayList<AtomicReferenceArray<byte[]>>();
+    for (int shift = minShift; shift <= maxShift; shift++) {
+      long buffers = Math.min(maxPooledBuffers, maxPooledBytes >> shift);
+      pools.add(new AtomicReferenceArray<byte[]>((int) Math.max(1, buffers)));
+    }
+  }
+
+  /**
+   * Returns a buffer of at least the requested size. The buffer may
+   * contain data left by a previous user.
+   *
+   * @param size the minimum size of the buffer, in bytes
+   * @return a byte array whose length is at least {@code size}
+   */
+  public byte[] acquire(int size) {
+    if (size > (1 << maxShift)) {
+      return allocate(size);
+    }
+    int shift = Math.max(minShift, shift(size));
+    AtomicReferenceArray<byte[]> pool = pools.get(shift - minShift);
+    for (int i = 0; i < pool.length(); i++) {
+      if (pool.get(i) != null) {
+        byte[] buffer = pool.getAndSet(i, null);
+        if (buffer != null) {
+          reuseCount.incrementAndGet();
+          return buffer;
+        }
+      }
+    }
+    return allocate(1 << shift);
+  }
+
+  /**
+   * Returns a buffer to the pool. A buffer is only pooled if its length
+   * is exactly one of the size classes; any other buffer is ignored. The
+   * pool cannot tell where a buffer came from, so a buffer of a size
+   * class length is pooled even if it was not returned by
+   * {@link #acquire}.
+   *
+   * @param buffer a buffer returned by {@link #acquire}, or {@code null}
+   */
+  public void release(byte[] buffer) {
+    if (buffer == null) {
+      return;
+    }
+    int length = buffer.length;
+    if (length < (1 << minShift) || length > (1 << maxShift)
+        || (length & (length - 1)) != 0) {
+      return;
+    }
+    AtomicReferenceArray<byte[]> pool = pools.get(shift(length) - minShift);
+    for (int i = 0; i < pool.length(); i++) {
+      if (pool.get(i) == null && pool.compareAndSet(i, null, buffer)) {
+        return;
+      }
+    }
+  }
+
+  /** Returns the number of buffers that were reused from the pool. */
+  public long getReuseCount() {
+    return reuseCount.get();
+  }
+
+  /** Returns the number of buffers that had to be allocated. */
+  public long getAllocationCount() {
+    return allocationCount.get();
+  }
+
+  /** Returns the total size of the buffers that had to be allocated. */
+  public long getAllocatedBytes() {
+    return allocatedBytes.get();
+  }
+
+  /** Returns a summary of the pool statistics, for logging. */
+  public String getStatistics() {
+    return String.format("reused=%d, allocated=%d, allocatedBytes=%d",
+        getReuseCount(), getAllocationCount(), getAllocatedBytes());
+  }
+
+  private byte[] allocate(int size) {
+    allocationCount.incrementAndGet();
+    allocatedBytes.addAndGet(size);
+    return new byte[size];
+  }
+
+  /** Returns the smallest shift such that {@code 1 << shift >= size}. */
+  private static int shift(int size) {
+    return (size <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+  }
+}
@@ -24,7 +24,9 @@ import java.util.zip.Deflater;
  */
 public class CompressedFilterInputStream extends FilterInputStream {
   private final Deflater deflater;
-  private final byte[] inputBuff;
+  private final int bufferSize;
+  private byte[] inputBuff;
+  private boolean closed = false;
   private final byte[] oneByte = new byte[1];
 
   /**
@@ -42,12 +44,15 @@ public class CompressedFilterInputStream extends FilterInputStream {
    * input stream using java.util.zip.Deflate.
    *
    * @param in an InputStream providing source data for compressing.
-   * @param bufferSize size in bytes of I/O buffer used.
+   * @param bufferSize size in bytes of I/O buffer used.  The buffer
+   *        is taken from the shared {@link BufferPool}, and returned to
+   *        it when this stream is closed.
    */
   public CompressedFilterInputStream(InputStream in, int bufferSize) {
     super(in);
     deflater = new Deflater();
-    inputBuff = new byte[bufferSize];
+    this.bufferSize = bufferSize;
+    inputBuff = BufferPool.getInstance().acquire(bufferSize);
   }
 
 
@@ -60,6 +65,9 @@ public class CompressedFilterInputStream extends FilterInputStream {
 
   @Override
   public int read(byte b[], int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
     if (deflater.finished()) {
       return -1;
     }
@@ -90,8 +98,8 @@ public class CompressedFilterInputStream extends FilterInputStream {
    */
   private int fillbuff(byte b[]) throws IOException {
     int bytesRead = 0;
-    while (bytesRead < b.length) {
-      int val = in.read(b, bytesRead, b.length - bytesRead);
+    while (bytesRead < bufferSize) {
+      int val = in.read(b, bytesRead, bufferSize - bytesRead);
       if (val == -1) {
         return (bytesRead > 0) ? bytesRead : val;
       }
@@ -102,7 +110,15 @@ public class CompressedFilterInputStream extends FilterInputStream {
 
   @Override
   public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
     deflater.end();
+    if (inputBuff != null) {
+      BufferPool.getInstance().release(inputBuff);
+      inputBuff = null;
+    }
     super.close();
   }
 
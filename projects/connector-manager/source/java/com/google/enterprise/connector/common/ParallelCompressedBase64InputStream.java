@@ -0,0 +1,583 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import com.google.enterprise.connector.util.Base64;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses an input stream into a single zlib stream, and Base64 encodes
+ * the result.  Like reading a {@link CompressedFilterInputStream}
+ * through a
+ * {@link com.google.enterprise.connector.util.Base64FilterInputStream},
+ * the output decodes to the same content, but large inputs are compressed
+ * in parallel, so the compressed bytes differ.
+ * <p>
+ * The input is read in blocks by the thread reading this stream.  Each
+ * block is compressed by its own {@code Deflater}, primed with the last
+ * 32 KB of the previous block, and ended with a sync flush, so the
+ * compressed blocks can be concatenated into one deflate stream.  Blocks
+ * that start within the first {@code threshold} bytes of the input are
+ * compressed by the reading thread; the rest are compressed by the
+ * supplied {@code Executor}, while the reading thread encodes the blocks
+ * that are done, in order.  If the {@code Executor} rejects a block,
+ * for example because it has been shut down, then the block is
+ * compressed by the reading thread.
+ * <p>
+ * Sync flushes require Java 7.  If they are not available, then
+ * {@link #isSupported} returns {@code false}, and this class must not be
+ * used.
+ *
+ * @since 3.3
+ */
+public class ParallelCompressedBase64InputStream extends FilterInputStream {
+  private static final Logger LOGGER =
+      Logger.getLogger(ParallelCompressedBase64InputStream.class.getName());
+
+  /** The size of the input blocks compressed by each task. */
+  static final int BLOCK_SIZE = 128 * 1024;
+
+  /** The size of the deflate window, used to prime the next block. */
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+
+  /** The length of the Base64 lines, if lines are broken. */
+  private static final int LINE_LENGTH = 76;
+
+  /** The zlib header for the default compression level. */
+  private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0x9c };
+
+  /** The {@code Deflater.SYNC_FLUSH} flush mode. */
+  private static final int SYNC_FLUSH = 2;
+
+  /** The Java 7 {@code Deflater.deflate(byte[], int, int, int)} method. */
+  private static final Method DEFLATE_WITH_FLUSH;
+
+  static {
+    Method method;
+    try {
+      method = Deflater.class.getMethod("deflate",
+          byte[].class, int.class, int.class, int.class);
+    } catch (NoSuchMethodException e) {
+      LOGGER.config("Parallel compression is not supported by this JVM.");
+      method = null;
+    }
+    DEFLATE_WITH_FLUSH = method;
+  }
+
+  /**
+   * The pair of Base64 characters for each 12-bit value, with the first
+   * character in the high byte.  Encoding 12 bits at a time halves the
+   * number of table lookups.
+   */
+  private static final short[] ENCODE_12 = new short[4096];
+
+  static {
+    for (int i = 0; i < ENCODE_12.length; i++) {
+      ENCODE_12[i] = (short) ((Base64.ALPHABET[i >>> 6] << 8)
+          | Base64.ALPHABET[i & 0x3f]);
+    }
+  }
+
+  /** The maximum number of idle Deflaters held for compression tasks. */
+  private static final int MAX_IDLE_DEFLATERS = 16;
+
+  /**
+   * The idle Deflaters shared by the compression tasks.  A Deflater
+   * that does not fit is ended, rather than left to hold native memory
+   * until it is finalized.
+   */
+  private static final BlockingQueue<Deflater> IDLE_DEFLATERS =
+      new ArrayBlockingQueue<Deflater>(MAX_IDLE_DEFLATERS);
+
+  private final Executor executor;
+  private final int maxPending;
+  private final long threshold;
+  private final boolean breakLines;
+  private final BufferPool pool = BufferPool.getInstance();
+
+  /** The blocks that have been read, in order, but not yet encoded. */
+  private final LinkedList<Block> pending = new LinkedList<Block>();
+
+  private final Adler32 adler = new Adler32();
+  private long bytesRead = 0L;
+  private boolean inputDone = false;
+
+  /** The most recently read block, which primes the next block. */
+  private Block previous = null;
+
+  /** The Deflater used to compress blocks on the reading thread. */
+  private Deflater deflater = null;
+
+  /** Compressed bytes that do not yet fill a Base64 quantum. */
+  private final byte[] carry = new byte[2];
+  private int carryLength = 0;
+  private int lineLength = 0;
+
+  /** The Base64 encoded output. */
+  private byte[] encoded = null;
+  private int encodedPos = 0;
+  private int encodedLimit = 0;
+  private boolean finished = false;
+  private boolean closed = false;
+
+  private final byte[] oneByte = new byte[1];
+
+  /**
+   * Returns {@code true} if this JVM supports parallel compression.
+   */
+  public static boolean isSupported() {
+    return DEFLATE_WITH_FLUSH != null;
+  }
+
+  /**
+   * Given some InputStream, create an InputStream that compresses the
+   * input stream using java.util.zip.Deflater, and Base64 encodes it.
+   *
+   * @param in an InputStream providing source data for compressing
+   * @param executor the {@code Executor} used to compress blocks of the
+   *        input in parallel
+   * @param maxPending the maximum number of blocks that may be read
+   *        ahead of the output
+   * @param threshold the number of bytes at the start of the input that
+   *        are compressed by the reading thread
+   * @param breakLines if true, add line breaks in the output
+   * @throws IllegalStateException if parallel compression is not supported
+   */
+  public ParallelCompressedBase64InputStream(InputStream in,
+      Executor executor, int maxPending, long threshold, boolean breakLines) {
+    super(in);
+    if (!isSupported()) {
+      throw new IllegalStateException(
+          "Parallel compression requires Java 7 or later.");
+    }
+    if (maxPending <= 0) {
+      throw new IllegalArgumentException("maxPending must be positive.");
+    }
+    this.executor = executor;
+    this.maxPending = maxPending;
+    this.threshold = threshold;
+    this.breakLines = breakLines;
+
+    System.arraycopy(ZLIB_HEADER, 0, carry, 0, ZLIB_HEADER.length);
+    carryLength = ZLIB_HEADER.length;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int rtn = read(oneByte, 0, 1);
+    return (rtn < 0) ? rtn : (oneByte[0] & 0xFF);
+  }
+
+  @Override
+  public int read(byte b[], int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (len == 0) {
+      return 0;
+    }
+    while (encodedPos >= encodedLimit) {
+      if (finished) {
+        return -1;
+      }
+      encodeNextBlock();
+    }
+    int count = Math.min(len, encodedLimit - encodedPos);
+    System.arraycopy(encoded, encodedPos, b, off, count);
+    encodedPos += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return encodedLimit - encodedPos;
+  }
+
+  /**
+   * Reads ahead and starts compressing the input, then encodes the next
+   * compressed block, waiting for it if necessary.
+   */
+  private void encodeNextBlock() throws IOException {
+    readBlocks();
+    Block block = pending.removeFirst();
+    byte[] compressed = block.get();
+
+    // This block has used the previous input for its dictionary.
+    if (block.dictionary != null) {
+      pool.release(block.dictionary.input);
+      block.dictionary = null;
+    }
+
+    encodedPos = 0;
+    encodedLimit = 0;
+    encode(compressed, 0, block.outputLength, false);
+    pool.release(compressed);
+
+    if (block.last) {
+      pool.release(block.input);
+      previous = null;
+      long checksum = adler.getValue();
+      byte[] trailer = { (byte) (checksum >>> 24), (byte) (checksum >>> 16),
+                         (byte) (checksum >>> 8), (byte) checksum };
+      encode(trailer, 0, trailer.length, true);
+      finished = true;
+    }
+  }
+
+  /** Reads input blocks until enough are pending, or the input ends. */
+  private void readBlocks() throws IOException {
+    while (!inputDone && pending.size() < maxPending) {
+      byte[] input = pool.acquire(BLOCK_SIZE);
+      int length = fillbuff(input, BLOCK_SIZE);
+      // If the input ends on a block boundary, the last block is empty.
+      boolean last = length < BLOCK_SIZE;
+      adler.update(input, 0, length);
+
+      Block block = new Block(input, length, previous, last);
+      if (bytesRead < threshold || executor == null) {
+        compressInline(block);
+      } else {
+        try {
+          executor.execute(block.future);
+        } catch (RejectedExecutionException e) {
+          // The executor has been shut down, perhaps replaced by a new
+          // one, so finish this stream on the reading thread.
+          LOGGER.finest("Compression task rejected; compressing inline.");
+          compressInline(block);
+        }
+      }
+      pending.addLast(block);
+      previous = block;
+      bytesRead += length;
+      inputDone = last;
+    }
+  }
+
+  /** Compresses a block on the reading thread. */
+  private void compressInline(Block block) {
+    if (deflater == null) {
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+    block.deflater = deflater;
+    block.future.run();
+  }
+
+  /**
+   * Try to fill up the buffer with data read from the input stream.
+   *
+   * @param b byte buffer to fill
+   * @param len the number of bytes to read
+   * @return number of bytes written to buffer b, which is less than
+   *         {@code len} only at the end of the input
+   */
+  private int fillbuff(byte b[], int len) throws IOException {
+    int bytesRead = 0;
+    while (bytesRead < len) {
+      int val = in.read(b, bytesRead, len - bytesRead);
+      if (val == -1) {
+        break;
+      }
+      bytesRead += val;
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Base64 encodes compressed data, following any previously carried
+   * bytes, and appends it to the encoded output.
+   *
+   * @param source the compressed data
+   * @param off the offset of the data in {@code source}
+   * @param len the length of the data
+   * @param end if {@code true}, pad and encode any remaining bytes
+   */
+  private void encode(byte[] source, int off, int len, boolean end) {
+    int total = carryLength + len;
+    int quanta = (end) ? (total + 2) / 3 : total / 3;
+    int chars = quanta * 4;
+    int size = (breakLines) ? chars + (lineLength + chars) / LINE_LENGTH : chars;
+    ensureCapacity(encodedLimit + size);
+
+    byte[] dest = encoded;
+    int d = encodedLimit;
+    int s = off;
+    int limit = off + len;
+
+    // Complete the quantum begun by the carried bytes.
+    if (carryLength > 0 && total >= 3) {
+      byte b0 = carry[0];
+      byte b1 = (carryLength > 1) ? carry[1] : source[s++];
+      byte b2 = source[s++];
+      d = encodeQuantum((b0 & 0xff) << 16 | (b1 & 0xff) << 8 | (b2 & 0xff),
+                        dest, d);
+      carryLength = 0;
+    }
+
+    // Encode whole quanta, 12 bits at a time.
+    int wholeLimit = s + ((limit - s) / 3) * 3;
+    if (carryLength == 0) {
+      if (breakLines) {
+        for (; s < wholeLimit; s += 3) {
+          int value = (source[s] & 0xff) << 16 | (source[s + 1] & 0xff) << 8
+              | (source[s + 2] & 0xff);
+          d = encodeQuantum(value, dest, d);
+        }
+      } else {
+        for (; s < wholeLimit; s += 3, d += 4) {
+          int value = (source[s] & 0xff) << 16 | (source[s + 1] & 0xff) << 8
+              | (source[s + 2] & 0xff);
+          short high = ENCODE_12[value >>> 12];
+          short low = ENCODE_12[value & 0xfff];
+          dest[d] = (byte) (high >>> 8);
+          dest[d + 1] = (byte) high;
+          dest[d + 2] = (byte) (low >>> 8);
+          dest[d + 3] = (byte) low;
+        }
+      }
+    }
+
+    // Carry the remaining bytes.
+    while (s < limit) {
+      carry[carryLength++] = source[s++];
+    }
+
+    // Pad the final quantum.
+    if (end && carryLength > 0) {
+      int value = (carry[0] & 0xff) << 16;
+      if (carryLength > 1) {
+        value |= (carry[1] & 0xff) << 8;
+      }
+      int start = d;
+      d = encodeQuantum(value, dest, d);
+      dest[start + 3] = (byte) '=';
+      if (carryLength == 1) {
+        dest[start + 2] = (byte) '=';
+      }
+      carryLength = 0;
+    }
+    encodedLimit = d;
+  }
+
+  /** Encodes three bytes as four Base64 characters, breaking lines. */
+  private int encodeQuantum(int value, byte[] dest, int d) {
+    short high = ENCODE_12[value >>> 12];
+    short low = ENCODE_12[value & 0xfff];
+    dest[d++] = (byte) (high >>> 8);
+    dest[d++] = (byte) high;
+    dest[d++] = (byte) (low >>> 8);
+    dest[d++] = (byte) low;
+    if (breakLines && (lineLength += 4) >= LINE_LENGTH) {
+      dest[d++] = (byte) '\n';
+      lineLength = 0;
+    }
+    return d;
+  }
+
+  /** Grows the encoded output buffer, keeping its contents. */
+  private void ensureCapacity(int capacity) {
+    if (encoded == null || encoded.length < capacity) {
+      byte[] newEncoded = pool.acquire(Math.max(capacity, BLOCK_SIZE));
+      if (encoded != null) {
+        System.arraycopy(encoded, 0, newEncoded, 0, encodedLimit);
+        pool.release(encoded);
+      }
+      encoded = newEncoded;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    // Blocks that are still being compressed may be using their inputs,
+    // or those of the blocks before them, so unfinished work is simply
+    // abandoned to the garbage collector.
+    for (Block block : pending) {
+      block.future.cancel(false);
+    }
+    pending.clear();
+    previous = null;
+    if (deflater != null) {
+      deflater.end();
+      deflater = null;
+    }
+    if (encoded != null) {
+      pool.release(encoded);
+      encoded = null;
+    }
+    encodedPos = encodedLimit = 0;
+    super.close();
+  }
+
+  // No support for mark() or reset().
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  // No support for skip().
+  @Override
+  public long skip(long n) {
+    return 0L;
+  }
+
+  /**
+   * A block of input, and the task that compresses it.  The task returns
+   * the compressed data, and sets {@link #outputLength}.
+   */
+  private class Block implements Callable<byte[]> {
+    final byte[] input;
+    final int length;
+    final boolean last;
+    final FutureTask<byte[]> future;
+
+    /** The previous block, whose input primes this one. */
+    Block dictionary;
+
+    /**
+     * The Deflater to use, or {@code null} to use an idle one from the
+     * shared pool.
+     */
+    Deflater deflater = null;
+
+    /** The length of the compressed output. */
+    int outputLength;
+
+    Block(byte[] input, int length, Block dictionary, boolean last) {
+      this.input = input;
+      this.length = length;
+      this.dictionary = dictionary;
+      this.last = last;
+      this.future = new FutureTask<byte[]>(this);
+    }
+
+    @Override
+    public byte[] call() throws Exception {
+      if (deflater != null) {
+        return compress(deflater);
+      }
+      Deflater pooled = IDLE_DEFLATERS.poll();
+      if (pooled == null) {
+        pooled = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      }
+      try {
+        return compress(pooled);
+      } finally {
+        if (!IDLE_DEFLATERS.offer(pooled)) {
+          pooled.end();
+        }
+      }
+    }
+
+    /**
+     * Compresses the input of this block.
+     *
+     * @param deflater a raw {@code Deflater}
+     * @return the compressed data
+     */
+    byte[] compress(Deflater deflater) throws IllegalAccessException,
+        InvocationTargetException {
+      deflater.reset();
+      if (dictionary != null && dictionary.length > 0) {
+        int size = Math.min(DICTIONARY_SIZE, dictionary.length);
+        deflater.setDictionary(dictionary.input, dictionary.length - size,
+            size);
+      }
+      deflater.setInput(input, 0, length);
+      if (last) {
+        deflater.finish();
+      }
+
+      // A sync flush ends a block with 5 bytes, and incompressible
+      // data grows by 5 bytes per 16 KB stored block.
+      byte[] out = pool.acquire(length + (length >>> 10) + 64);
+      int pos = 0;
+      while (true) {
+        if (pos == out.length) {
+          byte[] bigger = pool.acquire(2 * out.length);
+          System.arraycopy(out, 0, bigger, 0, pos);
+          pool.release(out);
+          out = bigger;
+        }
+        int space = out.length - pos;
+        if (last) {
+          pos += deflater.deflate(out, pos, space);
+          if (deflater.finished()) {
+            break;
+          }
+        } else {
+          int count = (Integer) DEFLATE_WITH_FLUSH.invoke(deflater, out, pos,
+              space, SYNC_FLUSH);
+          pos += count;
+          // The flush is complete once there is output space to spare.
+          if (count < space) {
+            break;
+          }
+        }
+      }
+      outputLength = pos;
+      return out;
+    }
+
+    /** Waits for the compressed data. */
+    byte[] get() throws IOException {
+      boolean interrupted = false;
+      try {
+        while (true) {
+          try {
+            return future.get();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof InvocationTargetException) {
+          cause = cause.getCause();
+        }
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        IOException ioe = new IOException("Compression failed");
+        ioe.initCause(cause);
+        throw ioe;
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
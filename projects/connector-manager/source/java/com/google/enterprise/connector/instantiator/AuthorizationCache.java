@@ -0,0 +1,483 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.instantiator;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationManager;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of authorization decisions, shared by all the connector
+ * instances.  Decisions are keyed by connector instance, identity and
+ * docid, and each decision is kept for the time-to-live configured for
+ * its status.  A time-to-live of zero does not cache decisions with that
+ * status.  When the cache is full, the least recently used decisions are
+ * evicted.
+ * <p>
+ * The default times-to-live may be overridden for a connector instance
+ * by the {@code googleAuthzCachePermitTtl}, {@code googleAuthzCacheDenyTtl}
+ * and {@code googleAuthzCacheIndeterminateTtl} properties of its
+ * configuration.
+ * <p>
+ * Connector instances get caching {@link AuthorizationManager} wrappers
+ * from {@link #newAuthorizationManager}.  A new connector instance,
+ * created when the connector is reconfigured, does not see the decisions
+ * made by the old one, and {@link #invalidate} discards them.
+ *
+ * @since 3.3
+ */
+public class AuthorizationCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(AuthorizationCache.class.getName());
+
+  /** Connector configuration properties that override the default TTLs. */
+  public static final String PERMIT_TTL_PROPERTY = "googleAuthzCachePermitTtl";
+  public static final String DENY_TTL_PROPERTY = "googleAuthzCacheDenyTtl";
+  public static final String INDETERMINATE_TTL_PROPERTY =
+      "googleAuthzCacheIndeterminateTtl";
+
+  /** The approximate size in bytes of an entry, excluding its strings. */
+  private static final int ENTRY_OVERHEAD = 128;
+
+  /** The digest used to key decisions by password. */
+  private static final String PASSWORD_DIGEST = "SHA-256";
+
+  private final long maxEntries;
+  private final long maxBytes;
+  private final Map<AuthorizationResponse.Status, Long> defaultTtls;
+  private final Cache<Key, Decision> cache;
+
+  /**
+   * A random salt for the password digests, so that the cache does not
+   * hold the passwords, nor digests that could be looked up elsewhere.
+   */
+  private final byte[] passwordSalt = new byte[16];
+
+  private Clock clock = SystemClock.INSTANCE;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Creates an {@code AuthorizationCache}.
+   *
+   * @param maxEntries the maximum number of decisions to cache, or zero to
+   *        disable the cache
+   * @param maxBytes the approximate maximum size of the cache in bytes, or
+   *        zero to limit the cache by {@code maxEntries} alone
+   * @param permitTtl the time in milliseconds to cache PERMIT decisions
+   * @param denyTtl the time in milliseconds to cache DENY decisions
+   * @param indeterminateTtl the time in milliseconds to cache
+   *        INDETERMINATE decisions
+   */
+  public AuthorizationCache(long maxEntries, long maxBytes, long permitTtl,
+      long denyTtl, long indeterminateTtl) {
+    if (maxEntries < 0) {
+      throw new IllegalArgumentException("maxEntries must not be negative.");
+    }
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes must not be negative.");
+    }
+    if (permitTtl < 0 || denyTtl < 0 || indeterminateTtl < 0) {
+      throw new IllegalArgumentException("TTLs must not be negative.");
+    }
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.defaultTtls = new EnumMap<AuthorizationResponse.Status, Long>(
+        AuthorizationResponse.Status.class);
+    defaultTtls.put(AuthorizationResponse.Status.PERMIT, permitTtl);
+    defaultTtls.put(AuthorizationResponse.Status.DENY, denyTtl);
+    defaultTtls.put(AuthorizationResponse.Status.INDETERMINATE,
+        indeterminateTtl);
+
+    new SecureRandom().nextBytes(passwordSalt);
+
+    if (isEnabled()) {
+      CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+      // The TTLs vary by status and connector, so expired decisions are
+      // dropped when they are next read, or evicted when the cache is full.
+      if (maxBytes > 0) {
+        cache = builder.maximumWeight(maxBytes)
+            .weigher(new Weigher<Key, Decision>() {
+                @Override
+                public int weigh(Key key, Decision decision) {
+                  return key.weight();
+                }
+              })
+            .build();
+      } else {
+        cache = builder.maximumSize(maxEntries).build();
+      }
+    } else {
+      cache = null;
+    }
+  }
+
+  @VisibleForTesting
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  @Override
+  public String toString() {
+    return "AuthorizationCache: maxEntries = " + maxEntries
+        + ", maxBytes = " + maxBytes + ", TTLs = " + defaultTtls;
+  }
+
+  /** Returns {@code true} if decisions are cached at all. */
+  public boolean isEnabled() {
+    return maxEntries > 0 || maxBytes > 0;
+  }
+
+  /**
+   * Returns an {@link AuthorizationManager} for a connector instance that
+   * answers from this cache where it can, and asks the supplied
+   * {@code AuthorizationManager} for the rest.
+   *
+   * @param connectorName the name of the connector instance
+   * @param instance identifies the connector instance; decisions are
+   *        shared only by wrappers created for the same instance
+   * @param authzManager the connector's {@code AuthorizationManager},
+   *        which may be {@code null}
+   * @param config the connector's configuration properties, which may
+   *        override the default TTLs; may be {@code null}
+   * @return a caching {@code AuthorizationManager}, or {@code authzManager}
+   *         itself if the cache is disabled or nothing would be cached
+   */
+  public AuthorizationManager newAuthorizationManager(String connectorName,
+      Object instance, AuthorizationManager authzManager,
+      Map<String, String> config) {
+    if (!isEnabled() || authzManager == null) {
+      return authzManager;
+    }
+    Map<AuthorizationResponse.Status, Long> ttls =
+        new EnumMap<AuthorizationResponse.Status, Long>(defaultTtls);
+    overrideTtl(connectorName, config, PERMIT_TTL_PROPERTY,
+        AuthorizationResponse.Status.PERMIT, ttls);
+    overrideTtl(connectorName, config, DENY_TTL_PROPERTY,
+        AuthorizationResponse.Status.DENY, ttls);
+    overrideTtl(connectorName, config, INDETERMINATE_TTL_PROPERTY,
+        AuthorizationResponse.Status.INDETERMINATE, ttls);
+    for (long ttl : ttls.values()) {
+      if (ttl > 0) {
+        return new CachingAuthorizationManager(connectorName, instance,
+            authzManager, ttls);
+      }
+    }
+    return authzManager;
+  }
+
+  private static void overrideTtl(String connectorName,
+      Map<String, String> config, String property,
+      AuthorizationResponse.Status status,
+      Map<AuthorizationResponse.Status, Long> ttls) {
+    String value = (config == null) ? null : config.get(property);
+    if (value == null || value.trim().length() == 0) {
+      return;
+    }
+    try {
+      long ttl = Long.parseLong(value.trim());
+      if (ttl >= 0) {
+        ttls.put(status, ttl);
+        return;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through.
+    }
+    LOGGER.warning("Ignoring invalid " + property + " for connector "
+        + connectorName + ": " + value);
+  }
+
+  /**
+   * Discards the cached decisions of the named connector.
+   *
+   * @param connectorName the name of the connector instance
+   */
+  public void invalidate(String connectorName) {
+    if (cache == null) {
+      return;
+    }
+    Iterator<Key> it = cache.asMap().keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().connectorName.equals(connectorName)) {
+        it.remove();
+      }
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Discarded cached authorization decisions for connector "
+          + connectorName + ": " + getStatistics());
+    }
+  }
+
+  /** Discards all the cached decisions. */
+  public void invalidateAll() {
+    if (cache != null) {
+      cache.invalidateAll();
+    }
+  }
+
+  /** Returns the number of decisions in the cache. */
+  public long size() {
+    return (cache == null) ? 0 : cache.size();
+  }
+
+  /** Returns the number of decisions answered from the cache. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of decisions that were not in the cache. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /** Returns the number of decisions evicted to make room for others. */
+  public long getEvictionCount() {
+    return (cache == null) ? 0 : cache.stats().evictionCount();
+  }
+
+  /** Returns a summary of the cache statistics, for logging. */
+  public String getStatistics() {
+    return String.format("size=%d, hits=%d, misses=%d, evictions=%d",
+        size(), getHitCount(), getMissCount(), getEvictionCount());
+  }
+
+  /**
+   * An {@link AuthorizationManager} for one connector instance that
+   * caches the decisions of the connector's {@code AuthorizationManager}.
+   */
+  private class CachingAuthorizationManager implements AuthorizationManager {
+    private final String connectorName;
+    private final Object instance;
+    private final AuthorizationManager delegate;
+    private final Map<AuthorizationResponse.Status, Long> ttls;
+
+    CachingAuthorizationManager(String connectorName, Object instance,
+        AuthorizationManager delegate,
+        Map<AuthorizationResponse.Status, Long> ttls) {
+      this.connectorName = connectorName;
+      this.instance = instance;
+      this.delegate = delegate;
+      this.ttls = ttls;
+    }
+
+    @Override
+    public Collection<AuthorizationResponse> authorizeDocids(
+        Collection<String> docids, AuthenticationIdentity identity)
+        throws RepositoryException {
+      IdentityKey identityKey = new IdentityKey(identity, passwordSalt);
+      long now = clock.getTimeMillis();
+      List<AuthorizationResponse> responses =
+          new ArrayList<AuthorizationResponse>(docids.size());
+      List<String> misses = new ArrayList<String>();
+      for (String docid : docids) {
+        Key key = new Key(connectorName, instance, identityKey, docid);
+        Decision decision = cache.getIfPresent(key);
+        if (decision != null && decision.expires > now) {
+          responses.add(new AuthorizationResponse(decision.status, docid));
+        } else {
+          if (decision != null) {
+            cache.invalidate(key);
+          }
+          misses.add(docid);
+        }
+      }
+      hitCount.addAndGet(responses.size());
+      missCount.addAndGet(misses.size());
+      if (misses.isEmpty()) {
+        return responses;
+      }
+
+      Collection<AuthorizationResponse> answers =
+          delegate.authorizeDocids(misses, identity);
+      if (answers == null) {
+        // Leave it to the caller to decide what no answer means.
+        return null;
+      }
+      now = clock.getTimeMillis();
+      Set<String> unanswered = new LinkedHashSet<String>(misses);
+      for (AuthorizationResponse answer : answers) {
+        responses.add(answer);
+        if (unanswered.remove(answer.getDocid())) {
+          put(identityKey, answer.getDocid(), answer.getStatus(), now);
+        }
+      }
+      // The connector may omit the documents that the user may not see.
+      for (String docid : unanswered) {
+        put(identityKey, docid, AuthorizationResponse.Status.DENY, now);
+      }
+      return responses;
+    }
+
+    private void put(IdentityKey identityKey, String docid,
+        AuthorizationResponse.Status status, long now) {
+      long ttl = ttls.get(status);
+      if (ttl > 0) {
+        cache.put(new Key(connectorName, instance, identityKey, docid),
+            new Decision(status, now + ttl));
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "CachingAuthorizationManager: " + connectorName;
+    }
+  }
+
+  /**
+   * The parts of an identity that may affect authorization.  The password
+   * is only kept as a salted digest.
+   */
+  private static class IdentityKey {
+    final String username;
+    final byte[] passwordDigest;
+    final String domain;
+    private final int hashCode;
+
+    IdentityKey(AuthenticationIdentity identity, byte[] salt) {
+      this.username = identity.getUsername();
+      this.passwordDigest = digest(identity.getPassword(), salt);
+      this.domain = identity.getDomain();
+      this.hashCode = 31 * Objects.hashCode(username, domain)
+          + Arrays.hashCode(passwordDigest);
+    }
+
+    private static byte[] digest(String password, byte[] salt) {
+      if (password == null) {
+        return null;
+      }
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance(PASSWORD_DIGEST);
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException("Failed to get a message digest for "
+                                   + PASSWORD_DIGEST);
+      }
+      digest.update(salt);
+      return digest.digest(password.getBytes(Charsets.UTF_8));
+    }
+
+    /** Returns the weight in chars, which are two bytes each. */
+    int weight() {
+      return length(username) + length(domain)
+          + ((passwordDigest == null) ? 0 : passwordDigest.length / 2);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof IdentityKey)) {
+        return false;
+      }
+      IdentityKey other = (IdentityKey) obj;
+      return Objects.equal(username, other.username)
+          && Arrays.equals(passwordDigest, other.passwordDigest)
+          && Objects.equal(domain, other.domain);
+    }
+  }
+
+  /**
+   * The key of a cached decision.  Keys compare the connector instance by
+   * identity, so decisions cached for an old instance are never returned
+   * for a new one.
+   */
+  private static class Key {
+    final String connectorName;
+    final Object instance;
+    final IdentityKey identity;
+    final String docid;
+
+    Key(String connectorName, Object instance, IdentityKey identity,
+        String docid) {
+      this.connectorName = connectorName;
+      this.instance = instance;
+      this.identity = identity;
+      this.docid = docid;
+    }
+
+    /** Returns the approximate size of the entry in bytes. */
+    int weight() {
+      return ENTRY_OVERHEAD
+          + 2 * (length(docid) + length(connectorName) + identity.weight());
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * System.identityHashCode(instance) + identity.hashCode())
+          + docid.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return instance == other.instance && identity.equals(other.identity)
+          && docid.equals(other.docid)
+          && connectorName.equals(other.connectorName);
+    }
+  }
+
+  /** A cached decision and the time at which it expires. */
+  private static class Decision {
+    final AuthorizationResponse.Status status;
+    final long expires;
+
+    Decision(AuthorizationResponse.Status status, long expires) {
+      this.status = status;
+      this.expires = expires;
+    }
+  }
+
+  private static int length(String s) {
+    return (s == null) ? 0 : s.length();
+  }
+}
@@ -28,7 +28,9 @@ import java.util.TreeSet;
 /**
  * Checks for changes in a persistent store. Intended to be run both
  * manually to handle local servlet changes, and periodically to check
- * for remote connector manager changes.
+ * for remote connector manager changes. If the store returns the same
+ * inventory as on the previous run, and no changes need to be retried,
+ * nothing is compared.
  *
  * @see com.google.enterprise.connector.persist.PersistentStore
  * @see ChangeListener
@@ -46,6 +48,15 @@ class ChangeDetectorImpl implements ChangeDetector {
   private SortedSet<StoreContext> inMemoryInstances =
       new TreeSet<StoreContext>();
 
+  /**
+   * The inventory from the persistent store on the previous run, or
+   * {@code null} if some changes from that run must be retried.
+   */
+  private ImmutableMap<StoreContext, ConnectorStamps> lastPersistentInventory;
+
+  /** Whether a change failed to apply during the current run. */
+  private boolean retryChanges;
+
   /**
    * Constructs the detector.
    *
@@ -63,6 +74,10 @@ class ChangeDetectorImpl implements ChangeDetector {
     try {
       ImmutableMap<StoreContext, ConnectorStamps> persistentInventory =
           store.getInventory();
+      if (persistentInventory == lastPersistentInventory) {
+        // The store has not changed since the previous run.
+        return;
+      }
       SortedSet<StoreContext> persistentInstances =
           new TreeSet<StoreContext>(persistentInventory.keySet());
 
@@ -70,10 +85,12 @@ class ChangeDetectorImpl implements ChangeDetector {
       // from the persistent store. Notify ChangeListeners of any differences.
       // Save in memory, the new inventory of unchanged items and successfully
       // applied changes.
+      retryChanges = false;
       inMemoryInventory = compareInventoriesAndNotifyListeners(
           inMemoryInstances.iterator(), persistentInstances.iterator(),
           persistentInventory);
       inMemoryInstances = persistentInstances;
+      lastPersistentInventory = retryChanges ? null : persistentInventory;
 
     } finally {
       NDC.pop();
@@ -144,6 +161,7 @@ class ChangeDetectorImpl implements ChangeDetector {
           } catch (InstantiatorException e) {
             // Forget about this one and retry on the next time around.
             pi.remove();
+            retryChanges = true;
           }
           p = getNext(pi);
         }
@@ -169,6 +187,7 @@ class ChangeDetectorImpl implements ChangeDetector {
       } catch (InstantiatorException e) {
         // Forget about this one and retry on the next time around.
         pi.remove();
+        retryChanges = true;
       } finally {
         NDC.pop();
       }
@@ -215,6 +234,7 @@ class ChangeDetectorImpl implements ChangeDetector {
         // stamp so we will try the new configuration again next time through.
         // This is an attempt to handle connectors that fail instantiation
         // due to transient causes (such as a server off-line).
+        retryChanges = true;
         return new ConnectorStamps(ps.getCheckpointStamp(),
             null, ps.getScheduleStamp());
       }
@@ -17,6 +17,7 @@ package com.google.enterprise.connector.instantiator;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.persist.ConnectorExistsException;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
+import com.google.enterprise.connector.scheduler.BatchScheduleListener;
 import com.google.enterprise.connector.scheduler.Schedule;
 import com.google.enterprise.connector.spi.AuthenticationManager;
 import com.google.enterprise.connector.spi.AuthorizationManager;
@@ -278,6 +279,25 @@ public interface ConnectorCoordinator {
    */
   public boolean startBatch() throws ConnectorNotFoundException;
 
+  /**
+   * Returns the time, in milliseconds, at which this connector may next be
+   * able to start a batch, or {@link Long#MAX_VALUE} if it cannot start a
+   * batch until something changes.  Such changes are reported to the
+   * {@link BatchScheduleListener}.
+   *
+   * @throws ConnectorNotFoundException if this {@link ConnectorCoordinator}
+   *         does not exist.
+   */
+  public long getNextBatchTime() throws ConnectorNotFoundException;
+
+  /**
+   * Sets the {@link BatchScheduleListener} that is notified when this
+   * connector may be able to start a batch sooner than previously reported.
+   *
+   * @param listener a BatchScheduleListener, may be {@code null}
+   */
+  public void setBatchScheduleListener(BatchScheduleListener listener);
+
   /**
    * Shuts down this {@link ConnectorCoordinator} if {@link #exists()}.
    */
@@ -27,6 +27,7 @@ import com.google.enterprise.connector.persist.ConnectorExistsException;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
 import com.google.enterprise.connector.pusher.DocumentAcceptorImpl;
 import com.google.enterprise.connector.pusher.PusherFactory;
+import com.google.enterprise.connector.scheduler.BatchScheduleListener;
 import com.google.enterprise.connector.scheduler.HostLoadManager;
 import com.google.enterprise.connector.scheduler.LoadManager;
 import com.google.enterprise.connector.scheduler.LoadManagerFactory;
@@ -60,12 +61,20 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * ConnectorCoordinator that supports Spring based connector instantiation and
  * persistent storage of connector configuration, schedule and traversal state.
+ * <p>
+ * The connector instance is held in an immutable {@link Instance} snapshot
+ * that is replaced whenever the instance is configured, reset, or removed.
+ * Serving requests, such as those for the {@link AuthorizationManager} or
+ * {@link Retriever}, read the current snapshot without locking, so they do
+ * not wait for scheduling or checkpoint operations.  The coordinator's
+ * monitor guards the lifecycle transitions and the traversal state.
  */
 // TODO (jlacey): Context and ConnectorCoordinatorImpl are dangerously close
 // to encountering deadlock issues, calling each other from synchronized 
@@ -90,19 +99,15 @@ class ConnectorCoordinatorImpl implements
   private final ThreadPool threadPool;
   private final ChangeDetector changeDetector;
   private final Clock clock;
+  private final AuthorizationCache authorizationCache;
 
   /**
    * Context set when an instance is created or configured and cleared when the
-   * instance is removed. It is an invariant that either both of these are null
-   * or neither is.
+   * instance is removed.  This is only replaced while holding the coordinator
+   * lock, but may be read without it.
    */
-  private TypeInfo typeInfo;
-  private InstanceInfo instanceInfo;
-
-  /**
-   * Context that is filled in on first use. Requires instanceInfo.
-   */
-  private ConnectorInterfaces interfaces;
+  private final AtomicReference<Instance> instance =
+      new AtomicReference<Instance>();
 
   /**
    * LoadManager controls throughput to avoid overtaxing the Repository
@@ -146,9 +151,9 @@ class ConnectorCoordinatorImpl implements
   private TaskHandle listerHandle;
 
   /**
-   * The cached Retriever.
+   * Notified when a batch may be started sooner than previously reported.
    */
-  private Retriever retriever;
+  private volatile BatchScheduleListener batchScheduleListener;
 
   /**
    * Constructs a ConnectorCoordinator for the named {@link Connector}.
@@ -166,11 +171,14 @@ class ConnectorCoordinatorImpl implements
    * @param threadPool the {@link ThreadPool} for running traversals.
    * @param changeDetector used to invoke the ChangeHandlers for changes
    *        originiting within this Manager instance (or from the Servlets).
+   * @param authorizationCache caches authorization decisions, or
+   *        {@code null} if they are not cached.
    */
   ConnectorCoordinatorImpl(String name, PusherFactory pusherFactory,
       LoadManagerFactory loadManagerFactory,
       ConnectorPersistentStoreFactory connectorPersistentStoreFactory,
-      ThreadPool threadPool, ChangeDetector changeDetector, Clock clock) {
+      ThreadPool threadPool, ChangeDetector changeDetector, Clock clock,
+      AuthorizationCache authorizationCache) {
     this.name = name;
     this.threadPool = threadPool;
     this.clock = clock;
@@ -178,6 +186,7 @@ class ConnectorCoordinatorImpl implements
     this.pusherFactory = pusherFactory;
     this.loadManager = loadManagerFactory.newLoadManager(name);
     this.connectorPersistentStoreFactory = connectorPersistentStoreFactory;
+    this.authorizationCache = authorizationCache;
     this.traversalEnabled = true;
   }
 
@@ -195,8 +204,8 @@ class ConnectorCoordinatorImpl implements
    * Returns {@code true} if an instance of this {@link Connector} exists.
    */
   @Override
-  public synchronized boolean exists() {
-    return (instanceInfo != null);
+  public boolean exists() {
+    return (instance.get() != null);
   }
 
   /**
@@ -208,8 +217,9 @@ class ConnectorCoordinatorImpl implements
   public void removeConnector() {
     synchronized(this) {
       resetBatch();
-      if (instanceInfo != null) {
-        instanceInfo.removeConnector();
+      Instance current = instance.get();
+      if (current != null) {
+        current.instanceInfo.removeConnector();
       }
     }
     // This must not be called while holding the lock.
@@ -226,16 +236,17 @@ class ConnectorCoordinatorImpl implements
     LOGGER.info("Dropping connector: " + name);
     try {
       resetBatch();
-      if (instanceInfo != null) {
-        File connectorDir = instanceInfo.getConnectorDir();
+      Instance current = instance.get();
+      if (current != null) {
+        File connectorDir = current.instanceInfo.getConnectorDir();
         shutdownConnector(true);
         removeConnectorDirectory(connectorDir);
       }
     } finally {
-      instanceInfo = null;
-      typeInfo = null;
+      instance.set(null);
       traversalSchedule = null;
       traversalDelayEnd = 0;
+      invalidateAuthorizationCache();
     }
   }
 
@@ -247,22 +258,30 @@ class ConnectorCoordinatorImpl implements
    * @throws InstantiatorException
    */
   @Override
-  public synchronized AuthenticationManager getAuthenticationManager()
+  public AuthenticationManager getAuthenticationManager()
       throws ConnectorNotFoundException, InstantiatorException {
     return getConnectorInterfaces().getAuthenticationManager();
   }
 
   /**
    * Returns the {@link AuthorizationManager} for the {@link Connector}
-   * instance.
+   * instance.  If authorization decisions are cached, the
+   * {@code AuthorizationManager} answers from the cache where it can.
    *
    * @return an AuthorizationManager
    * @throws InstantiatorException
    */
   @Override
-  public synchronized AuthorizationManager getAuthorizationManager()
+  public AuthorizationManager getAuthorizationManager()
       throws ConnectorNotFoundException, InstantiatorException {
-    return getConnectorInterfaces().getAuthorizationManager();
+    return getInstance().getAuthorizationManager(authorizationCache);
+  }
+
+  /** Discards any cached authorization decisions for this connector. */
+  private void invalidateAuthorizationCache() {
+    if (authorizationCache != null) {
+      authorizationCache.invalidate(name);
+    }
   }
 
   /**
@@ -289,7 +308,7 @@ class ConnectorCoordinatorImpl implements
   }
 
   /** If target is TraversalContextAware, set its traversalContext. */
-  private void setTraversalContext(Object target) {
+  private static void setTraversalContext(Object target) {
     if (target != null && target instanceof TraversalContextAware) {
       TraversalContext traversalContext =
           Context.getInstance().getTraversalContext();
@@ -375,11 +394,7 @@ class ConnectorCoordinatorImpl implements
   @Override
   public Retriever getRetriever()
       throws ConnectorNotFoundException, InstantiatorException {
-    if (retriever == null) {
-      retriever = getConnectorInterfaces().getRetriever();
-      setTraversalContext(retriever);
-    }
-    return retriever;
+    return getInstance().getRetriever();
   }
 
   /**
@@ -393,9 +408,11 @@ class ConnectorCoordinatorImpl implements
    * @see ConnectorType#getPopulatedConfigForm(Map, Locale)
    */
   @Override
-  public synchronized ConfigureResponse getConfigForm(Locale locale)
+  public ConfigureResponse getConfigForm(Locale locale)
       throws ConnectorNotFoundException, InstantiatorException {
-    Configuration config = getConnectorConfiguration();
+    Instance current = getInstance();
+    Configuration config = getConnectorConfiguration(current);
+    TypeInfo typeInfo = current.typeInfo;
     ConnectorType connectorType = typeInfo.getConnectorType();
     try {
       ConfigureResponse response;
@@ -601,7 +618,7 @@ class ConnectorCoordinatorImpl implements
    *         does not exist.
    */
   @Override
-  public synchronized String getConnectorState()
+  public String getConnectorState()
       throws ConnectorNotFoundException {
     return getInstanceInfo().getConnectorState();
   }
@@ -611,7 +628,7 @@ class ConnectorCoordinatorImpl implements
    * instance.
    */
   @Override
-  public synchronized String getConnectorTypeName()
+  public String getConnectorTypeName()
       throws ConnectorNotFoundException {
     return getInstanceInfo().getTypeInfo().getConnectorTypeName();
   }
@@ -633,15 +650,16 @@ class ConnectorCoordinatorImpl implements
     ConfigureResponse response = null;
     synchronized(this) {
       resetBatch();
-      if (instanceInfo != null) {
+      Instance current = instance.get();
+      if (current != null) {
         if (!update) {
           throw new ConnectorExistsException();
         }
-        if (typeName.equals(typeInfo.getConnectorTypeName())) {
-          configuration =
-              new Configuration(configuration, getConnectorConfiguration());
-          response = resetConfig(instanceInfo.getConnectorDir(), typeInfo,
-              configuration, locale);
+        if (typeName.equals(current.typeInfo.getConnectorTypeName())) {
+          configuration = new Configuration(configuration,
+              getConnectorConfiguration(current));
+          response = resetConfig(current.instanceInfo.getConnectorDir(),
+              current.typeInfo, configuration, locale);
         } else {
           // An existing connector is being given a new type - drop then add.
           // TODO: This shouldn't be called from within the synchronized block
@@ -675,16 +693,20 @@ class ConnectorCoordinatorImpl implements
   }
 
   @Override
-  public synchronized Configuration getConnectorConfiguration()
+  public Configuration getConnectorConfiguration()
       throws ConnectorNotFoundException {
-    Configuration config = getInstanceInfo().getConnectorConfiguration();
+    return getConnectorConfiguration(getInstance());
+  }
+
+  private Configuration getConnectorConfiguration(Instance current) {
+    Configuration config = current.instanceInfo.getConnectorConfiguration();
     if (config != null) {
       // Strip any "google*" properties that were saved by previous versions.
       config = removeGoogleProperties(config);
 
       if (config.getXml() == null) {
         return new Configuration(config,
-            getConnectorInstancePrototype(name, typeInfo));
+            getConnectorInstancePrototype(name, current.typeInfo));
       }
     }
     return config;
@@ -743,6 +765,7 @@ class ConnectorCoordinatorImpl implements
                     + " minutes after encountering an error.");
         break;
     }
+    notifyBatchScheduleListener();
   }
 
   /**
@@ -752,7 +775,7 @@ class ConnectorCoordinatorImpl implements
   @VisibleForTesting
   synchronized boolean shouldRun() {
     // If we do not have a traversing instance, don't run.
-    if (instanceInfo == null) {
+    if (instance.get() == null) {
       return false;
     }
 
@@ -782,7 +805,75 @@ class ConnectorCoordinatorImpl implements
     }
 
     // Run if we are within scheduled traversal interval.
-    return getSchedule().inScheduledInterval();
+    return getSchedule().inScheduledInterval(clock.getTimeMillis());
+  }
+
+  /**
+   * Returns the time at which this connector may next be able to start
+   * a batch.  This applies the same checks as {@link #shouldRun}, but
+   * returns the time at which the traversal delay, load window, or
+   * schedule interval ends, rather than just whether we should run now.
+   *
+   * @return the time, in milliseconds, or {@link Long#MAX_VALUE} if a
+   *         batch cannot be started until the connector's state changes
+   */
+  @Override
+  public synchronized long getNextBatchTime() {
+    if (instance.get() == null || !traversalEnabled) {
+      return Long.MAX_VALUE;
+    }
+
+    // A running batch will notify the listener when it finishes.
+    if (taskHandle != null && !taskHandle.isDone()) {
+      return Long.MAX_VALUE;
+    }
+
+    Schedule schedule = getSchedule();
+    if (schedule.isDisabled()) {
+      return Long.MAX_VALUE;
+    }
+
+    long now = clock.getTimeMillis();
+    long nextTime = Math.max(now, traversalDelayEnd);
+    nextTime = Math.max(nextTime, loadManager.getDelayEndTime());
+
+    // If no interval is left today, this is tomorrow's first interval.
+    long intervalStart = schedule.nextScheduledIntervalStart(now);
+    if (intervalStart == Long.MAX_VALUE) {
+      // The schedule has no traversal intervals at all.
+      return Long.MAX_VALUE;
+    }
+    return Math.max(nextTime, intervalStart);
+  }
+
+  @Override
+  public void setBatchScheduleListener(BatchScheduleListener listener) {
+    this.batchScheduleListener = listener;
+  }
+
+  /**
+   * Lets the {@link BatchScheduleListener} know that we may be able to
+   * start a batch sooner than previously reported.
+   */
+  private void notifyBatchScheduleListener() {
+    BatchScheduleListener listener = batchScheduleListener;
+    if (listener != null) {
+      listener.batchScheduleChanged(name);
+    }
+  }
+
+  /**
+   * Called when a batch has finished running, whether or not it
+   * completed normally.  If it is still the current batch, another
+   * batch may be started immediately.
+   *
+   * @param batchKey the key of the finished batch
+   */
+  private synchronized void batchFinished(Object batchKey) {
+    if (batchKey == currentBatchKey) {
+      taskHandle = null;
+    }
+    notifyBatchScheduleListener();
   }
 
   /**
@@ -807,14 +898,24 @@ class ConnectorCoordinatorImpl implements
       if (traversalManager == null) {
         return false;
       }
-      currentBatchKey = new Object();
+      final Object batchKey = new Object();
+      currentBatchKey = batchKey;
       BatchCoordinator batchCoordinator = new BatchCoordinator(this);
       Traverser traverser = new QueryTraverser(pusherFactory,
           traversalManager, batchCoordinator, name,
           Context.getInstance().getTraversalContext(), clock);
       TimedCancelable batch =  new CancelableBatch(traverser, name,
-          batchCoordinator, batchCoordinator, batchSize);
-      taskHandle = threadPool.submit(batch);
+          batchCoordinator, batchCoordinator, batchSize) {
+        @Override
+        public void run() {
+          try {
+            super.run();
+          } finally {
+            batchFinished(batchKey);
+          }
+        }
+      };
+      taskHandle = threadPool.submit(batch, name, getSchedule().getLoad());
       return true;
     } catch (ConnectorNotFoundException cnfe) {
       LOGGER.log(Level.WARNING, "Connector not found - this is normal if you "
@@ -850,7 +951,7 @@ class ConnectorCoordinatorImpl implements
   public synchronized void shutdown() {
     resetBatch();
     shutdownConnector(false);
-    instanceInfo = null;
+    instance.set(null);
   }
 
   /**
@@ -864,12 +965,16 @@ class ConnectorCoordinatorImpl implements
     }
     taskHandle = null;
     currentBatchKey = null;
-    interfaces = null;
 
     // Discard cached interface instances.
+    Instance current = instance.get();
+    if (current != null) {
+      instance.set(new Instance(name, current.typeInfo, current.instanceInfo));
+    }
     traversalManager = null;
-    retriever = null;
     traversalSchedule = null;
+
+    notifyBatchScheduleListener();
   }
 
   /**
@@ -881,17 +986,17 @@ class ConnectorCoordinatorImpl implements
   private void shutdownConnector(boolean delete) {
     // Discard cached instances.
     traversalManager = null;
-    retriever = null;
     traversalSchedule = null;
 
     // Shut down the Lister, if running.
     stopLister();
     lister = null;
 
-    if (instanceInfo != null
-        && instanceInfo.getConnector() instanceof ConnectorShutdownAware) {
-      ConnectorShutdownAware csa =
-          (ConnectorShutdownAware)(instanceInfo.getConnector());
+    Instance current = instance.get();
+    Connector connector =
+        (current == null) ? null : current.instanceInfo.getConnector();
+    if (connector instanceof ConnectorShutdownAware) {
+      ConnectorShutdownAware csa = (ConnectorShutdownAware) connector;
       try {
         LOGGER.fine("Shutting down connector " + name);
         csa.shutdown();
@@ -920,23 +1025,23 @@ class ConnectorCoordinatorImpl implements
    */
   @VisibleForTesting
   InstanceInfo getInstanceInfo() throws ConnectorNotFoundException {
-    verifyConnectorInstanceAvailable();
-    return instanceInfo;
+    return getInstance().instanceInfo;
   }
 
   /**
-   * Checks if this {@code ConnectorCoordinator} is associated
-   * with an active {@link Connector} instance.
+   * Returns the current {@link Instance} snapshot for the associated
+   * {@link Connector} instance.
    *
    * @throws ConnectorNotFoundException if there is no associated Connector
    *         instance.
    */
-  private void verifyConnectorInstanceAvailable()
-      throws ConnectorNotFoundException {
-    if (instanceInfo == null) {
+  private Instance getInstance() throws ConnectorNotFoundException {
+    Instance current = instance.get();
+    if (current == null) {
       throw new ConnectorNotFoundException("Connector instance " + name
           + " not available.");
     }
+    return current;
   }
 
   /**
@@ -948,11 +1053,7 @@ class ConnectorCoordinatorImpl implements
    */
   private ConnectorInterfaces getConnectorInterfaces()
       throws ConnectorNotFoundException {
-    if (interfaces == null) {
-      InstanceInfo info = getInstanceInfo();
-      interfaces = new ConnectorInterfaces(name, info.getConnector());
-    }
-    return interfaces;
+    return getInstance().interfaces;
   }
 
   private ConfigureResponse createNewConnector(TypeInfo newTypeInfo,
@@ -961,7 +1062,7 @@ class ConnectorCoordinatorImpl implements
       throw new IllegalStateException(
           "Create new connector with no type specified.");
     }
-    if (instanceInfo != null) {
+    if (instance.get() != null) {
       throw new IllegalStateException(
           "Create new connector when one already exists.");
     }
@@ -1002,7 +1103,7 @@ class ConnectorCoordinatorImpl implements
   @Override
   public void connectorAdded(TypeInfo newTypeInfo, Configuration configuration)
       throws InstantiatorException {
-    if (instanceInfo != null) {
+    if (instance.get() != null) {
       throw new IllegalStateException(
           "Create new connector when one already exists.");
     }
@@ -1102,8 +1203,10 @@ class ConnectorCoordinatorImpl implements
     shutdownConnector(false);
 
     setDatabaseAccess(newInstanceInfo);
-    instanceInfo = newInstanceInfo;
-    typeInfo = newTypeInfo;
+    instance.set(new Instance(name, newTypeInfo, newInstanceInfo));
+
+    // The old instance's decisions may no longer hold.
+    invalidateAuthorizationCache();
 
     // Prefetch an AuthorizationManager to avoid AuthZ time-outs
     // when logging in to repository at search time.
@@ -1289,4 +1392,66 @@ class ConnectorCoordinatorImpl implements
       }
     }
   }
+
+  /**
+   * An immutable snapshot of a configured {@link Connector} instance.
+   * The {@link ConnectorInterfaces} are fetched from the connector on
+   * first use, and may then be used concurrently without locking.
+   */
+  private static class Instance {
+    final String name;
+    final TypeInfo typeInfo;
+    final InstanceInfo instanceInfo;
+    final ConnectorInterfaces interfaces;
+
+    /** Set once the Retriever has been given its TraversalContext. */
+    private volatile boolean retrieverInitialized;
+
+    /** The AuthorizationManager, wrapped by the AuthorizationCache. */
+    private volatile AuthorizationManager authorizationManager;
+
+    Instance(String name, TypeInfo typeInfo, InstanceInfo instanceInfo) {
+      this.name = name;
+      this.typeInfo = typeInfo;
+      this.instanceInfo = instanceInfo;
+      this.interfaces =
+          new ConnectorInterfaces(name, instanceInfo.getConnector());
+    }
+
+    Retriever getRetriever() throws InstantiatorException {
+      if (!retrieverInitialized) {
+        synchronized (this) {
+          if (!retrieverInitialized) {
+            setTraversalContext(interfaces.getRetriever());
+            retrieverInitialized = true;
+          }
+        }
+      }
+      return interfaces.getRetriever();
+    }
+
+    /**
+     * Returns the connector's AuthorizationManager, wrapped by the
+     * supplied cache, if any.  Cached decisions are shared by all the
+     * snapshots of the same connector instance.
+     */
+    AuthorizationManager getAuthorizationManager(
+        AuthorizationCache authorizationCache) throws InstantiatorException {
+      AuthorizationManager authzManager = interfaces.getAuthorizationManager();
+      if (authorizationCache == null || authzManager == null) {
+        return authzManager;
+      }
+      if (authorizationManager == null) {
+        synchronized (this) {
+          if (authorizationManager == null) {
+            Configuration config = instanceInfo.getConnectorConfiguration();
+            authorizationManager = authorizationCache.newAuthorizationManager(
+                name, instanceInfo, authzManager,
+                (config == null) ? null : config.getMap());
+          }
+        }
+      }
+      return authorizationManager;
+    }
+  }
 }
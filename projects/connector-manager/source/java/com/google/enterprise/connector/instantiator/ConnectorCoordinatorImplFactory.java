@@ -33,6 +33,7 @@ public class ConnectorCoordinatorImplFactory
   private ThreadPool threadPool;
   private ChangeDetector changeDetector;
   private Clock clock;
+  private AuthorizationCache authorizationCache;
 
   /**
    * Sets the {@link PusherFactory} used to create instances of
@@ -87,6 +88,16 @@ public class ConnectorCoordinatorImplFactory
     this.clock = clock;
   }
 
+  /**
+   * Sets the {@link AuthorizationCache} used to cache the authorization
+   * decisions of the connectors.  If not set, decisions are not cached.
+   *
+   * @param authorizationCache an {@link AuthorizationCache}.
+   */
+  public void setAuthorizationCache(AuthorizationCache authorizationCache) {
+    this.authorizationCache = authorizationCache;
+  }
+
   /**
    * Sets the {@link ChangeDetector} used for invoking the local
    * {@link ChangeHandler} for connector configuration, schedule, and
@@ -118,6 +129,6 @@ public class ConnectorCoordinatorImplFactory
   public ConnectorCoordinator newConnectorCoordinator(String connectorName) {
     return new ConnectorCoordinatorImpl(connectorName,
         pusherFactory, loadManagerFactory, connectorPersistentStoreFactory,
-        threadPool, changeDetector, clock);
+        threadPool, changeDetector, clock, authorizationCache);
   }
 }
@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.instantiator;
 
+import com.google.enterprise.connector.scheduler.BatchScheduleListener;
+
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
@@ -27,6 +29,8 @@ public class ConnectorCoordinatorMap {
 
   private final ConcurrentMap<String, ConnectorCoordinator> coordinatorMap;
 
+  private volatile BatchScheduleListener batchScheduleListener;
+
   /** Constructor. */
   public ConnectorCoordinatorMap() {
     coordinatorMap = new ConcurrentHashMap<String, ConnectorCoordinator>();
@@ -37,6 +41,17 @@ public class ConnectorCoordinatorMap {
     connectorCoordinatorFactory = factory;
   }
 
+  /**
+   * Sets the {@link BatchScheduleListener} for all current and future
+   * {@link ConnectorCoordinator ConnectorCoordinators}.
+   */
+  public void setBatchScheduleListener(BatchScheduleListener listener) {
+    batchScheduleListener = listener;
+    for (ConnectorCoordinator cc : coordinatorMap.values()) {
+      cc.setBatchScheduleListener(listener);
+    }
+  }
+
   public void shutdown() {
     for (ConnectorCoordinator cc : coordinatorMap.values()) {
       cc.shutdown();
@@ -53,6 +68,7 @@ public class ConnectorCoordinatorMap {
     if (connectorCoordinator == null) {
       ConnectorCoordinator ci =
           connectorCoordinatorFactory.newConnectorCoordinator(connectorName);
+      ci.setBatchScheduleListener(batchScheduleListener);
       ConnectorCoordinator existing =
           coordinatorMap.putIfAbsent(connectorName, ci);
       connectorCoordinator = (existing == null) ? ci : existing;
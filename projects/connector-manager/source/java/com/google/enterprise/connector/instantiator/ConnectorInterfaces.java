@@ -31,6 +31,10 @@ import java.util.logging.Logger;
 /**
  * Access to the AuthenticationManager, AuthorizationManager, and
  * TraversalManagager for a Connector instance.
+ * <p>
+ * The interfaces are looked up on first use.  Once they have been
+ * fetched, they may be accessed concurrently without locking; only the
+ * first lookup of each interface is serialized.
  */
 public class ConnectorInterfaces {
   private static final Logger LOGGER =
@@ -40,13 +44,13 @@ public class ConnectorInterfaces {
   private final Connector connector;
 
   // these are lazily constructed
-  private TraversalManager traversalManager;
-  private AuthenticationManager authenticationManager;
-  private AuthorizationManager authorizationManager;
+  private volatile TraversalManager traversalManager;
+  private volatile AuthenticationManager authenticationManager;
+  private volatile AuthorizationManager authorizationManager;
   private Retriever retriever;
-  private boolean gotRetriever = false;
+  private volatile boolean gotRetriever = false;
   private Lister lister;
-  private boolean gotLister = false;
+  private volatile boolean gotLister = false;
 
   ConnectorInterfaces(String connectorName, Connector connector) {
     this.connectorName = connectorName;
@@ -73,40 +77,60 @@ public class ConnectorInterfaces {
    */
   AuthenticationManager getAuthenticationManager() throws InstantiatorException {
     if (authenticationManager == null) {
-      Session s = getSession();
-      try {
-        authenticationManager = s.getAuthenticationManager();
-        LOGGER.fine("Got AuthenticationManager " + authenticationManager);
-      } catch (RepositoryException e) {
-        // TODO(ziff): think about how this could be re-tried
-        throw new InstantiatorException(e);
-      } catch (Exception e) {
-        throw new InstantiatorException(e);
+      synchronized (this) {
+        if (authenticationManager == null) {
+          authenticationManager = fetchAuthenticationManager();
+        }
       }
     }
     return authenticationManager;
   }
 
+  private AuthenticationManager fetchAuthenticationManager()
+      throws InstantiatorException {
+    Session s = getSession();
+    try {
+      AuthenticationManager manager = s.getAuthenticationManager();
+      LOGGER.fine("Got AuthenticationManager " + manager);
+      return manager;
+    } catch (RepositoryException e) {
+      // TODO(ziff): think about how this could be re-tried
+      throw new InstantiatorException(e);
+    } catch (Exception e) {
+      throw new InstantiatorException(e);
+    }
+  }
+
   /**
    * @return the authorizationManager
    * @throws InstantiatorException
    */
   AuthorizationManager getAuthorizationManager() throws InstantiatorException {
     if (authorizationManager == null) {
-      Session s = getSession();
-      try {
-        authorizationManager = s.getAuthorizationManager();
-        LOGGER.fine("Got AuthorizationManager " + authorizationManager);
-      } catch (RepositoryException e) {
-        // TODO(ziff): think about how this could be re-tried
-        throw new InstantiatorException(e);
-      } catch (Exception e) {
-        throw new InstantiatorException(e);
+      synchronized (this) {
+        if (authorizationManager == null) {
+          authorizationManager = fetchAuthorizationManager();
+        }
       }
     }
     return authorizationManager;
   }
 
+  private AuthorizationManager fetchAuthorizationManager()
+      throws InstantiatorException {
+    Session s = getSession();
+    try {
+      AuthorizationManager manager = s.getAuthorizationManager();
+      LOGGER.fine("Got AuthorizationManager " + manager);
+      return manager;
+    } catch (RepositoryException e) {
+      // TODO(ziff): think about how this could be re-tried
+      throw new InstantiatorException(e);
+    } catch (Exception e) {
+      throw new InstantiatorException(e);
+    }
+  }
+
   /**
    * Return a {@link Lister} that may be used to feed documents to the GSA.
    * If the connector does not support the {@link Lister} interface,
@@ -147,18 +171,24 @@ public class ConnectorInterfaces {
    */
   Retriever getRetriever() throws InstantiatorException {
     if (!gotRetriever) {
-      Session s = getSession();
-      gotRetriever = true;
-      retriever = null;
-      if (s instanceof RetrieverAware) {
-        try {
-          retriever = ((RetrieverAware) s).getRetriever();
-          LOGGER.fine("Got Retriever " + retriever);
-        } catch (RepositoryException e) {
-          // TODO(ziff): think about how this could be re-tried
-          throw new InstantiatorException(e);
-        } catch (Exception e) {
-          throw new InstantiatorException(e);
+      synchronized (this) {
+        if (!gotRetriever) {
+          Session s = getSession();
+          retriever = null;
+          try {
+            if (s instanceof RetrieverAware) {
+              retriever = ((RetrieverAware) s).getRetriever();
+              LOGGER.fine("Got Retriever " + retriever);
+            }
+          } catch (RepositoryException e) {
+            // TODO(ziff): think about how this could be re-tried
+            throw new InstantiatorException(e);
+          } catch (Exception e) {
+            throw new InstantiatorException(e);
+          } finally {
+            // Set last, so that unsynchronized readers see the retriever.
+            gotRetriever = true;
+          }
         }
       }
     }
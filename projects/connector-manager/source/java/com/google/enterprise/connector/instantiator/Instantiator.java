@@ -17,6 +17,7 @@ package com.google.enterprise.connector.instantiator;
 import com.google.enterprise.connector.persist.ConnectorExistsException;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
 import com.google.enterprise.connector.persist.ConnectorTypeNotFoundException;
+import com.google.enterprise.connector.scheduler.BatchScheduleListener;
 import com.google.enterprise.connector.scheduler.Schedule;
 import com.google.enterprise.connector.spi.AuthenticationManager;
 import com.google.enterprise.connector.spi.AuthorizationManager;
@@ -236,6 +237,25 @@ public interface Instantiator {
   public void startBatch(String connectorName)
       throws ConnectorNotFoundException;
 
+  /**
+   * Returns the time, in milliseconds, at which the named connector may
+   * next be able to start a batch, or {@link Long#MAX_VALUE} if it cannot
+   * start a batch until something changes.  Such changes are reported to
+   * the {@link BatchScheduleListener}.
+   *
+   * @throws ConnectorNotFoundException if the named connector is not found
+   */
+  public long getNextBatchTime(String connectorName)
+      throws ConnectorNotFoundException;
+
+  /**
+   * Sets the {@link BatchScheduleListener} that is notified when a
+   * connector may be able to start a batch sooner than previously reported.
+   *
+   * @param listener a BatchScheduleListener, may be {@code null}
+   */
+  public void setBatchScheduleListener(BatchScheduleListener listener);
+
   /**
    * Shutdown all the Connector instances.
    */
@@ -20,6 +20,7 @@ import com.google.enterprise.connector.common.StringUtils;
 import com.google.enterprise.connector.persist.ConnectorExistsException;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
 import com.google.enterprise.connector.persist.ConnectorTypeNotFoundException;
+import com.google.enterprise.connector.scheduler.BatchScheduleListener;
 import com.google.enterprise.connector.scheduler.Schedule;
 import com.google.enterprise.connector.spi.AuthenticationManager;
 import com.google.enterprise.connector.spi.AuthorizationManager;
@@ -149,6 +150,17 @@ public class SpringInstantiator implements Instantiator {
     getConnectorCoordinator(connectorName).startBatch();
   }
 
+  @Override
+  public long getNextBatchTime(String connectorName)
+      throws ConnectorNotFoundException {
+    return getConnectorCoordinator(connectorName).getNextBatchTime();
+  }
+
+  @Override
+  public void setBatchScheduleListener(BatchScheduleListener listener) {
+    coordinatorMap.setBatchScheduleListener(listener);
+  }
+
   @VisibleForTesting
   ConnectorCoordinator getConnectorCoordinator(String connectorName)
       throws ConnectorNotFoundException {
@@ -16,13 +16,22 @@ package com.google.enterprise.connector.instantiator;
 
 import com.google.enterprise.connector.util.Clock;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
@@ -60,6 +69,19 @@ import java.util.logging.Logger;
  * <li>Cancel the <b>time out task</b> for the completed task.</li>
  * <li>Log exceptions that indicate the task did not complete normally.</li>
  * </ol>
+ * <p>
+ * Tasks submitted with {@link #submit(Cancelable, String, int)} are subject
+ * to admission control. At most {@link #setMaximumThreads maximumThreads}
+ * of them run at once, and the rest wait in per-connector queues. Waiting
+ * tasks are started in weighted fair order, using stride scheduling: each
+ * connector is charged in inverse proportion to its weight whenever one of
+ * its tasks starts, and the least charged connector goes next. A connector
+ * that was idle is charged no less than the connector that started last,
+ * so it cannot save up credit, and every waiting connector is eventually
+ * started. The time out for a {@link TimedCancelable} task starts when the
+ * task starts running, not while it waits. A running task keeps its
+ * thread until it actually returns, even if it has been canceled, so a
+ * task that ignores cancelation still counts against the maximum.
  */
 /* This class is a thin wrapper around a lazily constructed instance of a
  * LazyThreadPool implementation.  This was done to avoid Tomcat shutdown
@@ -90,6 +112,12 @@ public class ThreadPool {
    */
   private boolean isShutdown = false;
 
+  /**
+   * The maximum number of admission controlled tasks that run at once,
+   * or zero for no limit.
+   */
+  private int maximumThreads = 0;
+
   /**
    * The lazily constructed LazyThreadPool instance.
    */
@@ -113,6 +141,37 @@ public class ThreadPool {
     this.clock = clock;
   }
 
+  /**
+   * Sets the maximum number of tasks submitted with
+   * {@link #submit(Cancelable, String, int)} that may run at once.
+   * Additional tasks wait for a running task to complete. This must be
+   * set before the first task is submitted.
+   *
+   * @param maximumThreads the maximum number of concurrent tasks,
+   *        or zero for no limit
+   * @since 3.3
+   */
+  public synchronized void setMaximumThreads(int maximumThreads) {
+    if (maximumThreads < 0) {
+      throw new IllegalArgumentException(
+          "maximumThreads must not be negative: " + maximumThreads);
+    }
+    if (lazyThreadPool != null) {
+      throw new IllegalStateException("ThreadPool has already started.");
+    }
+    this.maximumThreads = maximumThreads;
+  }
+
+  /**
+   * Returns the maximum number of admission controlled tasks that run at
+   * once, or zero if there is no limit.
+   *
+   * @since 3.3
+   */
+  public synchronized int getMaximumThreads() {
+    return maximumThreads;
+  }
+
   /**
    * Shut down the {@link ThreadPool}. After this returns
    * {@link ThreadPool#submit(TimedCancelable)} will return null.
@@ -152,14 +211,128 @@ public class ThreadPool {
    * will always return null.
    */
   public TaskHandle submit(Cancelable cancelable) {
+    return submit(cancelable, null, 0);
+  }
+
+  /**
+   * Submit a {@link Cancelable} for execution, subject to the admission
+   * control of the {@link ThreadPool}, and return a {@link TaskHandle} for
+   * the task or null if the task has not been accepted. The task might not
+   * start running immediately, but the returned {@link TaskHandle} may be
+   * used to cancel it while it waits. After
+   * {@link ThreadPool#shutdown(boolean, long)} returns this will always
+   * return null.
+   *
+   * @param cancelable the task to run
+   * @param connectorName the name of the connector that owns the task,
+   *        or {@code null} to run the task without admission control
+   * @param weight the share of the threads that the connector's tasks
+   *        are entitled to, relative to other connectors; typically the
+   *        connector's {@code Schedule} load
+   * @since 3.3
+   */
+  public TaskHandle submit(Cancelable cancelable, String connectorName,
+      int weight) {
     if (isShutdown) {
       return null;
     }
-    if (cancelable instanceof TimedCancelable && maximumTaskLifeMillis != 0L) {
-      return getInstance().submit((TimedCancelable) cancelable);
-    } else {
-      return getInstance().submit(cancelable);
-    }
+    return getInstance().submit(cancelable, connectorName, weight);
+  }
+
+  /**
+   * Returns the number of admission controlled tasks that are running.
+   *
+   * @since 3.3
+   */
+  public int getActiveCount() {
+    LazyThreadPool pool = getStartedInstance();
+    return (pool == null) ? 0 : pool.admission.getActiveCount();
+  }
+
+  /**
+   * Returns the number of admission controlled tasks waiting to run.
+   *
+   * @since 3.3
+   */
+  public int getQueueDepth() {
+    LazyThreadPool pool = getStartedInstance();
+    return (pool == null) ? 0 : pool.admission.getQueueDepth();
+  }
+
+  /**
+   * Returns the number of admission controlled tasks that have been
+   * started, whether or not they had to wait.
+   *
+   * @since 3.3
+   */
+  public long getStartedCount() {
+    LazyThreadPool pool = getStartedInstance();
+    return (pool == null) ? 0 : pool.admission.getStartedCount();
+  }
+
+  /**
+   * Returns the number of admission controlled tasks that had to wait
+   * before they were started.
+   *
+   * @since 3.3
+   */
+  public long getWaitCount() {
+    LazyThreadPool pool = getStartedInstance();
+    return (pool == null) ? 0 : pool.admission.getWaitCount();
+  }
+
+  /**
+   * Returns the total number of milliseconds that started tasks spent
+   * waiting to run.
+   *
+   * @since 3.3
+   */
+  public long getWaitMillis() {
+    LazyThreadPool pool = getStartedInstance();
+    return (pool == null) ? 0 : pool.admission.getWaitMillis();
+  }
+
+  /**
+   * Returns the longest time, in milliseconds, that a started task spent
+   * waiting to run.
+   *
+   * @since 3.3
+   */
+  public long getMaximumWaitMillis() {
+    LazyThreadPool pool = getStartedInstance();
+    return (pool == null) ? 0 : pool.admission.getMaximumWaitMillis();
+  }
+
+  /**
+   * Returns the average time, in milliseconds, that started tasks spent
+   * waiting to run.
+   *
+   * @since 3.3
+   */
+  public double getAverageWaitMillis() {
+    long started = getStartedCount();
+    return (started == 0) ? 0.0 : (double) getWaitMillis() / started;
+  }
+
+  /**
+   * Returns a summary of the admission control metrics, suitable for
+   * logging.
+   *
+   * @since 3.3
+   */
+  public String getStatistics() {
+    return String.format("maximumThreads=%d, active=%d, queued=%d, "
+        + "started=%d, waits=%d, averageWaitMillis=%.3f, maximumWaitMillis=%d",
+        getMaximumThreads(), getActiveCount(), getQueueDepth(),
+        getStartedCount(), getWaitCount(), getAverageWaitMillis(),
+        getMaximumWaitMillis());
+  }
+
+  /**
+   * Returns the LazyThreadPool, or {@code null} if it has not been started.
+   */
+  private synchronized LazyThreadPool getStartedInstance() {
+    return lazyThreadPool;
   }
 
   /**
@@ -168,16 +341,17 @@ public class ThreadPool {
   private class LazyThreadPool {
     /**
      * ExecutorService for running submitted tasks. Tasks are only submitted
-     * through completionService.
+     * as {@link PoolTask PoolTasks}, which report their own completion.
      */
     private final ExecutorService executor;
 
     /**
-     * CompletionService for running submitted tasks. All tasks are submitted
-     * through this CompletionService to provide blocking, queued access to
-     * completion information.
+     * Completed tasks, in order of completion. Every {@link PoolTask} is
+     * added to this queue when it is done, to provide blocking, queued
+     * access to completion information.
      */
-    private final CompletionService<?> completionService;
+    private final BlockingQueue<Future<?>> completionQueue =
+        new LinkedBlockingQueue<Future<?>>();
 
     /**
      * Dedicated ExecutorService for running the CompletionTask. The completion
@@ -195,10 +369,14 @@ public class ThreadPool {
      */
     private final ScheduledThreadPoolExecutor timeoutService;
 
+    /**
+     * Admission control for tasks submitted with a connector name.
+     */
+    private final AdmissionQueue admission;
+
     LazyThreadPool() {
       executor = Executors.newCachedThreadPool(
           new ThreadNamingThreadFactory("ThreadPoolExecutor"));
-      completionService = new ExecutorCompletionService<Object>(executor);
       completionExecutor = Executors.newSingleThreadExecutor(
           new ThreadNamingThreadFactory("ThreadPoolCompletion"));
       if (maximumTaskLifeMillis != 0L) {
@@ -207,6 +385,7 @@ public class ThreadPool {
       } else {
         timeoutService = null;
       }
+      admission = new AdmissionQueue(maximumThreads);
       completionExecutor.execute(new CompletionTask());
     }
 
@@ -222,6 +401,10 @@ public class ThreadPool {
      */
     boolean shutdown(boolean interrupt, long waitMillis)
       throws InterruptedException {
+      // Tasks that are still waiting will never run.
+      for (PoolTask task : admission.shutdown()) {
+        task.cancel(false);
+      }
       if (interrupt) {
         executor.shutdownNow();
       } else {
@@ -237,95 +420,401 @@ public class ThreadPool {
         if (timeoutService != null) {
           timeoutService.shutdownNow();
         }
+        LOGGER.fine("Traversal thread pool shut down: "
+            + admission.getStatistics());
       }
     }
 
     /**
-     * Submit a {@link TimedCancelable} for execution and return a
-     * {@link TaskHandle} for the running task or null if the task has not been
+     * Submit a {@link Cancelable} for execution and return a
+     * {@link TaskHandle} for the task or null if the task has not been
      * accepted. After {@link LazyThreadPool#shutdown(boolean, long)} returns
      * this will always return null.
      */
-    TaskHandle submit(TimedCancelable cancelable) {
-      try {
+    TaskHandle submit(Cancelable cancelable, String connectorName,
+        int weight) {
+      Runnable runnable;
+      TimeoutTask timeoutTask;
+      if (cancelable instanceof TimedCancelable && timeoutService != null) {
         // When timeoutTask is run it will cancel 'cancelable'.
-        TimeoutTask timeoutTask = new TimeoutTask(cancelable);
-
-        // Schedule timeoutTask to run when 'cancelable's maximum run interval
-        // has expired.
-        // timeoutFuture will be used to cancel timeoutTask when 'cancelable'
-        // completes.
-        Future<?> timeoutFuture = timeoutService.schedule(timeoutTask,
-            maximumTaskLifeMillis, TimeUnit.MILLISECONDS);
-
-        // cancelTimeoutRunnable runs 'cancelable'. When 'cancelable' completes
-        // cancelTimeoutRunnable cancels 'timeoutTask'. This saves system
-        // resources. In addition it prevents timeout task from running and
-        // calling cancel after 'cancelable' completes successfully.
-        CancelTimeoutRunnable cancelTimeoutRunnable =
-            new CancelTimeoutRunnable(cancelable, timeoutFuture);
-
-        // taskFuture is used to cancel 'cancelable' and to determine if
-        // 'cancelable' is done.
-        Future<?> taskFuture =
-            completionService.submit(cancelTimeoutRunnable, null);
-        TaskHandle handle =
-            new TaskHandle(cancelable, taskFuture, clock.getTimeMillis());
-
-        // TODO(strellis): test/handle timer pop/cancel before submit. In
-        // production with a 30 minute timeout this should never happen.
+        timeoutTask = new TimeoutTask((TimedCancelable) cancelable);
+
+        // cancelTimeoutRunnable schedules timeoutTask to run when
+        // 'cancelable's maximum run interval has expired, then runs
+        // 'cancelable'. When 'cancelable' completes cancelTimeoutRunnable
+        // cancels 'timeoutTask'. This saves system resources. In addition
+        // it prevents timeout task from running and calling cancel after
+        // 'cancelable' completes successfully.
+        runnable = new CancelTimeoutRunnable(cancelable, timeoutTask);
+      } else {
+        timeoutTask = null;
+        runnable = cancelable;
+      }
+
+      // task is used to cancel 'cancelable' and to determine if
+      // 'cancelable' is done.
+      boolean admitted = (connectorName != null && admission.isBounded());
+      PoolTask task = new PoolTask(runnable, admitted);
+      TaskHandle handle =
+          new TaskHandle(cancelable, task, clock.getTimeMillis());
+
+      // TODO(strellis): test/handle timer pop/cancel before submit. In
+      // production with a 30 minute timeout this should never happen.
+      if (timeoutTask != null) {
         timeoutTask.setTaskHandle(handle);
-        return handle;
-      } catch (RejectedExecutionException re) {
-        if (!executor.isShutdown()) {
-          LOGGER.log(Level.SEVERE, "Unable to execute task", re);
+      }
+
+      if (admitted) {
+        if (!admission.submit(task, connectorName, weight)) {
+          return null;
         }
+      } else if (!execute(task)) {
         return null;
       }
+      return handle;
     }
 
     /**
-     * Submit a {@link Cancelable} for execution and return a
-     * {@link TaskHandle} for the running task or null if the task has not been
-     * accepted. After {@link LazyThreadPool#shutdown(boolean, long)} returns
-     * this will always return null.
+     * Starts running a task.
+     *
+     * @return {@code true} if the task was started, or {@code false}
+     *         if the executor did not accept it.
      */
-    TaskHandle submit(Cancelable cancelable) {
+    private boolean execute(PoolTask task) {
       try {
-        // taskFuture is used to cancel 'cancelable' and to determine if
-        // 'cancelable' is done.
-        Future<?> taskFuture = completionService.submit(cancelable, null);
-        return new TaskHandle(cancelable, taskFuture, clock.getTimeMillis());
+        executor.execute(task);
+        return true;
       } catch (RejectedExecutionException re) {
         if (!executor.isShutdown()) {
           LOGGER.log(Level.SEVERE, "Unable to execute task", re);
         }
-        return null;
+        return false;
+      }
+    }
+
+    /**
+     * A {@link FutureTask} for every task run by the pool. This adds itself
+     * to the {@code completionQueue} when it is done. A task that is done
+     * while waiting gives up its place in the queue, and a task that has
+     * started gives up its admission control slot when its runnable
+     * returns, which may be well after it has been canceled.
+     */
+    private class PoolTask extends FutureTask<Object> {
+      private final boolean admitted;
+
+      /** When the task started waiting; guarded by the AdmissionQueue. */
+      long queueTime;
+
+      /** The connector queue the task is waiting in, if any. */
+      ConnectorQueue queue;
+
+      /** True if the task holds a slot; guarded by the AdmissionQueue. */
+      boolean holdsSlot;
+
+      PoolTask(Runnable runnable, boolean admitted) {
+        super(runnable, null);
+        this.admitted = admitted;
+      }
+
+      @Override
+      public void run() {
+        try {
+          super.run();
+        } finally {
+          if (admitted) {
+            admission.finished(this);
+          }
+        }
+      }
+
+      @Override
+      protected void done() {
+        if (admitted) {
+          admission.canceled(this);
+        }
+        completionQueue.add(this);
+      }
+    }
+
+    /**
+     * The waiting tasks for one connector.
+     */
+    private class ConnectorQueue {
+      final String connectorName;
+      final LinkedList<PoolTask> tasks = new LinkedList<PoolTask>();
+
+      /** The share of the threads the connector is entitled to. */
+      int weight;
+
+      /** The virtual time at which the connector's next task may start. */
+      double pass;
+
+      ConnectorQueue(String connectorName) {
+        this.connectorName = connectorName;
+      }
+    }
+
+    /**
+     * Limits the number of admission controlled tasks running at once, and
+     * starts waiting tasks in weighted fair order.
+     */
+    private class AdmissionQueue {
+      /**
+       * The virtual time charged to a connector of weight 1 each time one
+       * of its tasks starts.
+       */
+      private static final double STRIDE = 1.0;
+
+      private final int maximumThreads;
+
+      /** The per-connector queues, by connector name. */
+      private final Map<String, ConnectorQueue> queues =
+          new HashMap<String, ConnectorQueue>();
+
+      /** The connector queues that have waiting tasks. */
+      private final Set<ConnectorQueue> backlogged =
+          new LinkedHashSet<ConnectorQueue>();
+
+      /** The pass of the connector whose task was started last. */
+      private double virtualTime = 0.0;
+
+      private boolean isShutdown = false;
+      private int activeCount = 0;
+      private int queueDepth = 0;
+      private long startedCount = 0;
+      private long waitCount = 0;
+      private long waitMillis = 0;
+      private long maximumWaitMillis = 0;
+
+      AdmissionQueue(int maximumThreads) {
+        this.maximumThreads = maximumThreads;
+      }
+
+      boolean isBounded() {
+        return maximumThreads > 0;
+      }
+
+      /**
+       * Starts the task if there is a free thread and nothing is waiting,
+       * otherwise adds it to the connector's queue.
+       *
+       * @return {@code true} if the task was accepted
+       */
+      synchronized boolean submit(PoolTask task, String connectorName,
+          int weight) {
+        if (isShutdown) {
+          return false;
+        }
+        if (queueDepth == 0 && activeCount < maximumThreads) {
+          activeCount++;
+          startedCount++;
+          task.holdsSlot = true;
+          if (!execute(task)) {
+            task.holdsSlot = false;
+            activeCount--;
+            startedCount--;
+            return false;
+          }
+          return true;
+        }
+
+        ConnectorQueue queue = queues.get(connectorName);
+        if (queue == null) {
+          queue = new ConnectorQueue(connectorName);
+          queues.put(connectorName, queue);
+        }
+        queue.weight = Math.max(1, weight);
+        if (queue.tasks.isEmpty()) {
+          // A connector that was idle may not bank credit.
+          queue.pass = Math.max(queue.pass, virtualTime);
+          backlogged.add(queue);
+        }
+        task.queue = queue;
+        task.queueTime = clock.getTimeMillis();
+        queue.tasks.add(task);
+        queueDepth++;
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("Traversal for connector " + connectorName
+              + " is waiting for one of " + maximumThreads
+              + " threads; " + queueDepth + " tasks are waiting.");
+        }
+        return true;
+      }
+
+      /**
+       * Releases the slot of a task that has stopped running, and starts
+       * waiting tasks.
+       */
+      synchronized void finished(PoolTask task) {
+        if (task.holdsSlot) {
+          task.holdsSlot = false;
+          activeCount--;
+          dispatch();
+        }
+      }
+
+      /**
+       * Removes a task that is done from its connector queue, if it was
+       * canceled while waiting.
+       */
+      synchronized void canceled(PoolTask task) {
+        ConnectorQueue queue = task.queue;
+        if (queue != null && queue.tasks.remove(task)) {
+          task.queue = null;
+          queueDepth--;
+          if (queue.tasks.isEmpty()) {
+            backlogged.remove(queue);
+          }
+        }
+      }
+
+      /**
+       * Stops admitting tasks, and returns the tasks that were waiting.
+       */
+      synchronized List<PoolTask> shutdown() {
+        isShutdown = true;
+        List<PoolTask> waiting = new ArrayList<PoolTask>();
+        for (ConnectorQueue queue : backlogged) {
+          for (PoolTask task : queue.tasks) {
+            task.queue = null;
+            waiting.add(task);
+          }
+          queue.tasks.clear();
+        }
+        backlogged.clear();
+        queues.clear();
+        queueDepth = 0;
+        return waiting;
+      }
+
+      /**
+       * Starts waiting tasks while there are free threads.
+       */
+      private void dispatch() {
+        while (!isShutdown && activeCount < maximumThreads) {
+          PoolTask task = next();
+          if (task == null) {
+            return;
+          }
+          long waited = clock.getTimeMillis() - task.queueTime;
+          activeCount++;
+          startedCount++;
+          waitCount++;
+          waitMillis += waited;
+          maximumWaitMillis = Math.max(maximumWaitMillis, waited);
+          if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Starting traversal for connector "
+                + task.queue.connectorName + " after waiting "
+                + waited + " ms.");
+          }
+          task.queue = null;
+          task.holdsSlot = true;
+          if (!execute(task)) {
+            task.holdsSlot = false;
+            activeCount--;
+            task.cancel(false);
+          }
+        }
+      }
+
+      /**
+       * Removes and returns the next waiting task, from the connector with
+       * the lowest pass, or returns {@code null} if no tasks are waiting.
+       */
+      private PoolTask next() {
+        ConnectorQueue next = null;
+        for (ConnectorQueue queue : backlogged) {
+          if (next == null || queue.pass < next.pass) {
+            next = queue;
+          }
+        }
+        if (next == null) {
+          return null;
+        }
+        PoolTask task = next.tasks.removeFirst();
+        queueDepth--;
+        virtualTime = next.pass;
+        next.pass += STRIDE / next.weight;
+        if (next.tasks.isEmpty()) {
+          backlogged.remove(next);
+          // Once virtual time catches up with an idle connector, it has
+          // no charge left to remember.
+          pruneIdleQueues();
+        }
+        return task;
+      }
+
+      private void pruneIdleQueues() {
+        if (queues.size() > 2 * backlogged.size() + maximumThreads) {
+          for (Iterator<ConnectorQueue> it =
+                   queues.values().iterator(); it.hasNext(); ) {
+            ConnectorQueue queue = it.next();
+            if (queue.tasks.isEmpty() && queue.pass <= virtualTime) {
+              it.remove();
+            }
+          }
+        }
+      }
+
+      synchronized int getActiveCount() {
+        return activeCount;
+      }
+
+      synchronized int getQueueDepth() {
+        return queueDepth;
+      }
+
+      synchronized long getStartedCount() {
+        return startedCount;
+      }
+
+      synchronized long getWaitCount() {
+        return waitCount;
+      }
+
+      synchronized long getWaitMillis() {
+        return waitMillis;
+      }
+
+      synchronized long getMaximumWaitMillis() {
+        return maximumWaitMillis;
+      }
+
+      synchronized String getStatistics() {
+        return String.format("maximumThreads=%d, active=%d, queued=%d, "
+            + "started=%d, waits=%d, waitMillis=%d, maximumWaitMillis=%d",
+            maximumThreads, activeCount, queueDepth, startedCount,
+            waitCount, waitMillis, maximumWaitMillis);
       }
     }
 
    /**
-    * A {@link Runnable} for running {@link TimedCancelable} that has been
-    * guarded by a timeout task. This will cancel the timeout task when the
+    * A {@link Runnable} for running {@link TimedCancelable} that is guarded
+    * by a timeout task. This schedules the timeout task when the
+    * {@link TimedCancelable} starts running, and cancels it when the
     * {@link TimedCancelable} completes. If the timeout task has already run,
     * then canceling it has no effect.
     */
    private class CancelTimeoutRunnable implements Runnable {
-     private final Future<?> timeoutFuture;
-     private final TimedCancelable cancelable;
+     private final TimeoutTask timeoutTask;
+     private final Cancelable cancelable;
 
      /**
       * Constructs a {@link CancelTimeoutRunnable}.
       *
       * @param cancelable the {@link TimedCancelable} this runs.
-      * @param timeoutFuture the {@link Future} for canceling the timeout task.
+      * @param timeoutTask the time out task that cancels it.
       */
-     CancelTimeoutRunnable(TimedCancelable cancelable, Future<?> timeoutFuture) {
-       this.timeoutFuture = timeoutFuture;
+     CancelTimeoutRunnable(Cancelable cancelable, TimeoutTask timeoutTask) {
+       this.timeoutTask = timeoutTask;
        this.cancelable = cancelable;
      }
 
      public void run() {
+       // timeoutFuture will be used to cancel timeoutTask when 'cancelable'
+       // completes.
+       Future<?> timeoutFuture = timeoutService.schedule(timeoutTask,
+           maximumTaskLifeMillis, TimeUnit.MILLISECONDS);
        try {
          cancelable.run();
        } finally {
@@ -336,13 +825,12 @@ public class ThreadPool {
    }
 
    /**
-    * A task that gets completion information from all the tasks that run in a
-    * {@link CompletionService} and logs uncaught exceptions that cause the
-    * tasks to fail.
+    * A task that gets completion information from all the tasks run by
+    * the pool and logs uncaught exceptions that cause the tasks to fail.
     */
    private class CompletionTask implements Runnable {
      private void completeTask() throws InterruptedException {
-       Future<?> future = completionService.take();
+       Future<?> future = completionQueue.take();
        try {
          future.get();
        } catch (CancellationException e) {
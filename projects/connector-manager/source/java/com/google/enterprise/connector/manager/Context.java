@@ -381,6 +381,9 @@ public class Context {
   private boolean isGsaFeedHostInitialized = false;
   private String gsaFeedHost = null;
 
+  /** Incremented whenever the GSA feed host is changed. */
+  private volatile int gsaFeedHostVersion = 0;
+
   /**
    * The prefix that will be used for contentUrl generation.
    * The prefix should include protocol, host and port, web app,
@@ -1117,6 +1120,9 @@ public class Context {
         + props.getProperty(MANAGER_LOCKED_PROPERTY_KEY));
 
     // Update our local cached feed host.
+    if (!isGsaFeedHostInitialized || !feederGateHost.equals(gsaFeedHost)) {
+      gsaFeedHostVersion++;
+    }
     gsaFeedHost = feederGateHost;
     isGsaFeedHostInitialized = true;
 
@@ -1170,6 +1176,18 @@ public class Context {
     return gsaFeedHost;
   }
 
+  /**
+   * Returns a number that changes whenever the GSA feed host is changed
+   * by {@link #setConnectorManagerConfig}. Unlike {@link #getGsaFeedHost},
+   * this does not lock the {@code Context}, so it may be used to check
+   * cheaply whether information derived from the feed host is current.
+   *
+   * @since 3.3
+   */
+  public int getGsaFeedHostVersion() {
+    return gsaFeedHostVersion;
+  }
+
   /**
    * Reads <code>feed.contenturl.prefix</code> from the application context
    * properties file.
@@ -0,0 +1,304 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SimpleDocument;
+import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.spiimpl.BinaryValue;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of the document metadata returned by the connectors'
+ * {@link com.google.enterprise.connector.spi.Retriever Retrievers},
+ * shared by all the content URL requests.  Metadata is keyed by
+ * connector name and docid, and is kept for a fixed time-to-live.  When
+ * the cache is full, the least recently used metadata is evicted.
+ * <p>
+ * The metadata is cached as returned by the connector, before any
+ * document filters are applied, since filtered properties may depend on
+ * the current configuration of the Connector Manager.
+ * <p>
+ * The cache holds an immutable copy of each {@link Document}, which may
+ * be read by any number of requests.  Metadata that includes binary
+ * values, which can only be read once, is not cached.
+ * <p>
+ * Metadata is cached for a connector instance, identified by its
+ * {@code Retriever}, so a reconfigured connector does not see the
+ * metadata returned by the old one.  The metadata of a document is
+ * discarded when the document is fed again by a traversal.  Metadata
+ * retrieved while the document is being fed may still be cached, but
+ * only for the time-to-live.
+ *
+ * @since 3.3
+ */
+public class MetadataCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(MetadataCache.class.getName());
+
+  private final long maxEntries;
+  private final long ttl;
+  private final Cache<Key, Entry> cache;
+
+  private Clock clock = SystemClock.INSTANCE;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Creates a {@code MetadataCache}.
+   *
+   * @param maxEntries the maximum number of documents to cache, or zero to
+   *        disable the cache
+   * @param ttl the time in milliseconds to cache the metadata of a
+   *        document, or zero to disable the cache
+   */
+  public MetadataCache(long maxEntries, long ttl) {
+    if (maxEntries < 0) {
+      throw new IllegalArgumentException("maxEntries must not be negative.");
+    }
+    if (ttl < 0) {
+      throw new IllegalArgumentException("ttl must not be negative.");
+    }
+    this.maxEntries = maxEntries;
+    this.ttl = ttl;
+    this.cache = isEnabled()
+        ? CacheBuilder.newBuilder().maximumSize(maxEntries).<Key, Entry>build()
+        : null;
+  }
+
+  @VisibleForTesting
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  @Override
+  public String toString() {
+    return "MetadataCache: maxEntries = " + maxEntries + ", ttl = " + ttl;
+  }
+
+  /** Returns {@code true} if metadata is cached at all. */
+  public boolean isEnabled() {
+    return maxEntries > 0 && ttl > 0;
+  }
+
+  /**
+   * Returns the cached metadata of a document.
+   *
+   * @param connectorName the name of the connector instance
+   * @param instance identifies the connector instance
+   * @param docid the document ID
+   * @return the cached metadata, or {@code null} if none is cached
+   */
+  public Document get(String connectorName, Object instance, String docid) {
+    if (cache == null) {
+      return null;
+    }
+    Key key = new Key(connectorName, docid);
+    Entry entry = cache.getIfPresent(key);
+    if (entry != null && entry.instance == instance
+        && entry.expires > clock.getTimeMillis()) {
+      hitCount.incrementAndGet();
+      return entry.metadata;
+    }
+    if (entry != null) {
+      // Expired, or from an old connector instance.
+      cache.asMap().remove(key, entry);
+    }
+    missCount.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Caches the metadata of a document.  The supplied {@code Document} is
+   * read in full, so the caller must use the returned {@code Document}
+   * instead.
+   *
+   * @param connectorName the name of the connector instance
+   * @param instance identifies the connector instance
+   * @param docid the document ID
+   * @param metadata the metadata of the document
+   * @return a {@code Document} holding the same metadata as the supplied
+   *         one, which is cached if the metadata could be copied
+   * @throws RepositoryException if the metadata could not be read
+   */
+  public Document put(String connectorName, Object instance, String docid,
+      Document metadata) throws RepositoryException {
+    if (cache == null || metadata == null) {
+      return metadata;
+    }
+    Map<String, List<Value>> properties =
+        new LinkedHashMap<String, List<Value>>();
+    for (String name : metadata.getPropertyNames()) {
+      Property property = metadata.findProperty(name);
+      if (property == null) {
+        continue;
+      }
+      List<Value> values = new ArrayList<Value>();
+      Value value;
+      while ((value = property.nextValue()) != null) {
+        values.add(value);
+      }
+      properties.put(name, Collections.unmodifiableList(values));
+    }
+    Document copy =
+        new SimpleDocument(Collections.unmodifiableMap(properties));
+    if (hasBinaryValues(properties)) {
+      // Binary values can only be read once, so they must not be shared.
+      return copy;
+    }
+    cache.put(new Key(connectorName, docid),
+        new Entry(instance, copy, clock.getTimeMillis() + ttl));
+    return copy;
+  }
+
+  private static boolean hasBinaryValues(Map<String, List<Value>> properties) {
+    for (List<Value> values : properties.values()) {
+      for (Value value : values) {
+        if (value instanceof BinaryValue) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Discards the cached metadata of a document.
+   *
+   * @param connectorName the name of the connector instance
+   * @param docid the document ID
+   */
+  public void invalidate(String connectorName, String docid) {
+    if (cache != null && docid != null) {
+      cache.invalidate(new Key(connectorName, docid));
+    }
+  }
+
+  /**
+   * Discards the cached metadata of the named connector.
+   *
+   * @param connectorName the name of the connector instance
+   */
+  public void invalidate(String connectorName) {
+    if (cache == null) {
+      return;
+    }
+    Iterator<Key> it = cache.asMap().keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().connectorName.equals(connectorName)) {
+        it.remove();
+      }
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Discarded cached metadata for connector "
+          + connectorName + ": " + getStatistics());
+    }
+  }
+
+  /** Discards all the cached metadata. */
+  public void invalidateAll() {
+    if (cache != null) {
+      cache.invalidateAll();
+    }
+  }
+
+  /** Returns the number of documents in the cache. */
+  public long size() {
+    return (cache == null) ? 0 : cache.size();
+  }
+
+  /** Returns the number of requests answered from the cache. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of requests that were not in the cache. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /** Returns the number of documents evicted to make room for others. */
+  public long getEvictionCount() {
+    return (cache == null) ? 0 : cache.stats().evictionCount();
+  }
+
+  /** Returns a summary of the cache statistics, for logging. */
+  public String getStatistics() {
+    return String.format("size=%d, hits=%d, misses=%d, evictions=%d",
+        size(), getHitCount(), getMissCount(), getEvictionCount());
+  }
+
+  /** The key of a cached document. */
+  private static class Key {
+    final String connectorName;
+    final String docid;
+
+    Key(String connectorName, String docid) {
+      this.connectorName = connectorName;
+      this.docid = docid;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * connectorName.hashCode() + docid.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return docid.equals(other.docid)
+          && connectorName.equals(other.connectorName);
+    }
+  }
+
+  /**
+   * The cached metadata, the connector instance that returned it, and the
+   * time at which it expires.
+   */
+  private static class Entry {
+    final Object instance;
+    final Document metadata;
+    final long expires;
+
+    Entry(Object instance, Document metadata, long expires) {
+      this.instance = instance;
+      this.metadata = metadata;
+      this.expires = expires;
+    }
+  }
+}
@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.manager;
 
+import com.google.common.base.Objects;
 import com.google.enterprise.connector.common.AlternateContentFilterInputStream;
 import com.google.enterprise.connector.common.BigEmptyDocumentFilterInputStream;
 import com.google.enterprise.connector.common.I18NUtil;
@@ -55,6 +56,8 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,9 +68,18 @@ public class ProductionManager implements Manager {
   private static final Logger LOGGER =
       Logger.getLogger(ProductionManager.class.getName());
 
+  private static final InheritFromExtractedAclDocumentFilter
+      INHERIT_FROM_EXTRACTED_ACL_FILTER =
+          new InheritFromExtractedAclDocumentFilter();
+
   Instantiator instantiator;
   private DocumentFilterFactoryFactory documentFilterFactoryFactory = null;
   private FeedConnection feedConnection;
+  private MetadataCache metadataCache = null;
+
+  /** The metadata filters of each connector, keyed by connector name. */
+  private final ConcurrentMap<String, MetadataFilters> metadataFilters =
+      new ConcurrentHashMap<String, MetadataFilters>();
 
   public ProductionManager() {
   }
@@ -97,6 +109,18 @@ public class ProductionManager implements Manager {
     this.feedConnection = feedConnection;
   }
 
+  /**
+   * Sets the cache of document metadata shared by the content URL
+   * requests.  If {@code null}, the metadata is retrieved from the
+   * connector for every request.
+   *
+   * @param metadataCache a {@link MetadataCache}, may be {@code null}
+   * @since 3.3
+   */
+  public void setMetadataCache(MetadataCache metadataCache) {
+    this.metadataCache = metadataCache;
+  }
+
   @Override
   public AuthenticationResponse authenticate(String connectorName,
       AuthenticationIdentity identity) {
@@ -223,14 +247,75 @@ public class ProductionManager implements Manager {
                      + " that does not support the Retriever interface.");
       return null;
     }
-    Document metaDoc = retriever.getMetaData(docid);
-    if (metaDoc == null) {
-      LOGGER.finer("RETRIEVER: Document has no metadata.");
-      // TODO: Create empty Document?
+    // The connector's metadata is cached, not the filtered metadata.
+    // Filters may compute their properties from the current configuration,
+    // and may fail, so they are applied to every request.
+    Document metaDoc = (metadataCache == null)
+        ? null : metadataCache.get(connectorName, retriever, docid);
+    if (metaDoc != null) {
+      LOGGER.finest("RETRIEVER: Using cached metadata.");
     } else {
-      if (documentFilterFactoryFactory != null) {
-        DocumentFilterFactory documentFilterFactory = 
-          documentFilterFactoryFactory.getDocumentFilterFactory(connectorName);
+      metaDoc = retriever.getMetaData(docid);
+      if (metaDoc == null) {
+        LOGGER.finer("RETRIEVER: Document has no metadata.");
+        // TODO: Create empty Document?
+        return null;
+      }
+      if (metadataCache != null) {
+        metaDoc = metadataCache.put(connectorName, retriever, docid, metaDoc);
+      }
+    }
+    return getMetadataFilters(connectorName, retriever)
+        .newDocumentFilter(metaDoc);
+  }
+
+  /**
+   * Returns the metadata filters for the named connector, creating them
+   * if the connector instance or the content URL prefix has changed since
+   * they were last used.
+   */
+  private MetadataFilters getMetadataFilters(String connectorName,
+      Retriever retriever) {
+    String contentUrlPrefix = Context.getInstance().getContentUrlPrefix();
+    MetadataFilters filters = metadataFilters.get(connectorName);
+    if (filters == null || filters.retriever != retriever
+        || !Objects.equal(filters.contentUrlPrefix, contentUrlPrefix)) {
+      filters = new MetadataFilters(connectorName, retriever,
+          contentUrlPrefix);
+      metadataFilters.put(connectorName, filters);
+    }
+    return filters;
+  }
+
+  /**
+   * The filters applied to the metadata returned by a connector instance.
+   * The filters are stateless, so they are created once per instance,
+   * rather than for every request.  The {@code UrlConstructor} reads the
+   * content URL prefix when it is created, so the filters are created
+   * again if the prefix changes.
+   */
+  private class MetadataFilters {
+    final Retriever retriever;
+    final String contentUrlPrefix;
+    private final DocumentFilterFactory documentFilterFactory;
+    private final AclTransformFilter aclTransformFilter;
+
+    MetadataFilters(String connectorName, Retriever retriever,
+        String contentUrlPrefix) {
+      this.retriever = retriever;
+      this.contentUrlPrefix = contentUrlPrefix;
+      this.documentFilterFactory = (documentFilterFactoryFactory == null)
+          ? null
+          : documentFilterFactoryFactory.getDocumentFilterFactory(connectorName);
+
+      // Configure the dynamic ACL transformation filters for the documents.
+      // TODO(bmj): Is FeedType.CONTENTURL a reasonable assumption here?
+      this.aclTransformFilter = new AclTransformFilter(feedConnection,
+          new UrlConstructor(connectorName, FeedType.CONTENTURL));
+    }
+
+    Document newDocumentFilter(Document metaDoc) throws RepositoryException {
+      if (documentFilterFactory != null) {
         metaDoc = documentFilterFactory.newDocumentFilter(metaDoc);
       }
 
@@ -242,18 +327,11 @@ public class ProductionManager implements Manager {
       // from the corresponding named resource ACL.
       if (feedConnection.supportsInheritedAcls()
           && DocUtils.hasAclProperties(metaDoc)) {
-        metaDoc = new InheritFromExtractedAclDocumentFilter()
-            .newDocumentFilter(metaDoc);
+        metaDoc = INHERIT_FROM_EXTRACTED_ACL_FILTER.newDocumentFilter(metaDoc);
       }
 
-      // Configure the dynamic ACL transformation filters for the documents.
-      // TODO(bmj): Is FeedType.CONTENTURL a reasonable assumption here?
-      AclTransformFilter aclTransformFilter = new AclTransformFilter(
-          feedConnection,
-          new UrlConstructor(connectorName, FeedType.CONTENTURL));
-      metaDoc = aclTransformFilter.newDocumentFilter(metaDoc);
+      return aclTransformFilter.newDocumentFilter(metaDoc);
     }
-    return metaDoc;
   }
 
   @Override
@@ -367,6 +445,8 @@ public class ProductionManager implements Manager {
     } catch (InstantiatorException e) {
       throw new PersistentStoreException(e);
     }
+    // The metadata filters construct URLs from the old configuration.
+    metadataFilters.clear();
   }
 
   @Override
@@ -379,6 +459,10 @@ public class ProductionManager implements Manager {
   public void removeConnector(String connectorName)
       throws InstantiatorException {
     instantiator.removeConnector(connectorName);
+    metadataFilters.remove(connectorName);
+    if (metadataCache != null) {
+      metadataCache.invalidate(connectorName);
+    }
   }
 
   @Override
@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.persist;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.enterprise.connector.common.PropertiesException;
@@ -28,7 +29,11 @@ import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,8 +51,29 @@ public class FileStore implements PersistentStore {
   private static final String stateName = "_state.txt";
   private static final String configName = ".properties";
 
+  /**
+   * How often the inventory examines every connector directory, rather
+   * than only those whose modification time has changed.
+   */
+  @VisibleForTesting
+  static final long FULL_INVENTORY_INTERVAL_MILLIS = 10 * 60 * 1000L;
+
+  /**
+   * The coarsest resolution of directory modification times expected
+   * from the file system.
+   */
+  private static final long MODIFICATION_TIME_RESOLUTION_MILLIS = 2000L;
+
   private TypeMap typeMap;
 
+  /* The cached inventory and directories. Guarded by this. */
+  private ImmutableMap<StoreContext, ConnectorStamps> inventory = null;
+  private Map<String, TypeDirectory> typeDirectories =
+      new TreeMap<String, TypeDirectory>();
+  private boolean inventoryChanged;
+  private long lastScan;
+  private long lastFullInventory;
+
   public void setTypeMap(TypeMap typeMap) {
     this.typeMap = typeMap;
   }
@@ -59,23 +85,57 @@ public class FileStore implements PersistentStore {
 
   /**
    * Gets the version stamps of all persistent objects.
+   * <p>
+   * Only the connector directories whose modification time has changed
+   * since the previous call are examined, and the same map as the
+   * previous call is returned if none of their stamps have changed.
+   * The store touches a connector's directory whenever it writes one of
+   * the connector's files.  Every {@link #FULL_INVENTORY_INTERVAL_MILLIS}
+   * all of the directories are examined, to pick up files edited in place
+   * by other means.
    *
    * @return an immutable map containing the version stamps; may be
    * empty but not {@code null}
    */
   @Override
-  public ImmutableMap<StoreContext, ConnectorStamps> getInventory() {
+  public synchronized ImmutableMap<StoreContext, ConnectorStamps>
+      getInventory() {
     Preconditions.checkNotNull(typeMap, "FileStore requires a TypeMap");
-    ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder =
-        new ImmutableMap.Builder<StoreContext, ConnectorStamps>();
+    long now = System.currentTimeMillis();
+    boolean full = (inventory == null
+        || now - lastFullInventory >= FULL_INVENTORY_INTERVAL_MILLIS);
+    if (full) {
+      typeDirectories.clear();
+      lastFullInventory = now;
+    }
+    // Directories modified this recently may since have been modified
+    // again without changing their modification time.
+    long racyTime = lastScan - MODIFICATION_TIME_RESOLUTION_MILLIS;
+    lastScan = now;
+    inventoryChanged = full;
+
+    Map<String, TypeDirectory> scanned = new TreeMap<String, TypeDirectory>();
     File[] directories =
         typeMap.getTypesDirectory().listFiles(CONNECTOR_TYPE_FILTER);
     if (directories != null) {
       for (File typeDirectory : directories) {
-        processTypeDir(typeDirectory, mapBuilder);
+        String typeName = typeDirectory.getName();
+        scanned.put(typeName, processTypeDir(typeDirectory,
+            typeDirectories.remove(typeName), racyTime));
       }
     }
-    return mapBuilder.build();
+    // Any remaining types have been removed.
+    for (TypeDirectory removed : typeDirectories.values()) {
+      for (InstanceDirectory instance : removed.instances.values()) {
+        inventoryChanged |= (instance.stamps != null);
+      }
+    }
+    typeDirectories = scanned;
+
+    if (inventoryChanged) {
+      inventory = buildInventory();
+    }
+    return inventory;
   }
 
   // Find the subdirectories.
@@ -85,41 +145,142 @@ public class FileStore implements PersistentStore {
     }
   };
 
-  private void processTypeDir(File typeDirectory,
-      ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder) {
+  /**
+   * Returns {@code true} if a directory is unchanged since it was
+   * cached.
+   */
+  private static boolean isCurrent(long cachedLastModified, long lastModified,
+      long racyTime) {
+    return cachedLastModified == lastModified && lastModified < racyTime;
+  }
+
+  private TypeDirectory processTypeDir(File typeDirectory,
+      TypeDirectory cached, long racyTime) {
     String typeName = typeDirectory.getName();
-    File[] directories = typeDirectory.listFiles(CONNECTOR_TYPE_FILTER);
-    if (directories == null) {
-      // This means the directory is empty - no connector instances.
-      LOGGER.fine("No connectors of type " + typeName + " found.");
-      return;
+    TypeDirectory current = new TypeDirectory(typeDirectory.lastModified());
+
+    // Only list the connector directories if some have been added or removed.
+    Collection<String> names;
+    if (cached != null
+        && isCurrent(cached.lastModified, current.lastModified, racyTime)) {
+      names = new ArrayList<String>(cached.instances.keySet());
+    } else {
+      names = new ArrayList<String>();
+      File[] directories = typeDirectory.listFiles(CONNECTOR_TYPE_FILTER);
+      if (directories == null || directories.length == 0) {
+        // This means the directory is empty - no connector instances.
+        LOGGER.fine("No connectors of type " + typeName + " found.");
+      } else {
+        for (File directory : directories) {
+          names.add(directory.getName());
+        }
+      }
     }
 
     // Process each connector store.
-    for (File directory : directories) {
-      String name = directory.getName();
+    for (String name : names) {
+      InstanceDirectory cachedInstance =
+          (cached == null) ? null : cached.instances.remove(name);
+      long lastModified = new File(typeDirectory, name).lastModified();
+      if (cachedInstance != null && isCurrent(cachedInstance.lastModified,
+          lastModified, racyTime)) {
+        current.instances.put(name, cachedInstance);
+        continue;
+      }
       StoreContext context = new StoreContext(name, typeName);
-      FileStamp checkpointStamp =
-          getStamp(context, getStoreFileName(context, stateName));
-      FileStamp scheduleStamp =
-          getStamp(context, getStoreFileName(context, schedName));
-      FileStamp configurationStamp = new FileStamp(
-          // ConfigurationStamp is the sum of the map and xml timestamps.
-          getStoreFile(context, TypeInfo.CONNECTOR_INSTANCE_XML).lastModified()
-          + getStoreFile(context, getStoreFileName(context, configName))
-                .lastModified()
-          );
-      if (checkpointStamp.version != 0L || scheduleStamp.version != 0L
-          || configurationStamp.version != 0L) {
-        ConnectorStamps stamps = new ConnectorStamps(
-            checkpointStamp, configurationStamp, scheduleStamp);
-        mapBuilder.put(context, stamps);
-        if (LOGGER.isLoggable(Level.FINE)) {
-          LOGGER.fine("Found connector: name = " + name + "  type = " + typeName
-                      + "  stamps = " + stamps);
+      ConnectorStamps stamps = getStamps(context);
+      current.instances.put(name, new InstanceDirectory(lastModified, stamps));
+      if (!sameStamps(stamps,
+              (cachedInstance == null) ? null : cachedInstance.stamps)) {
+        inventoryChanged = true;
+      }
+    }
+
+    // Any remaining connector directories have been removed.
+    if (cached != null) {
+      for (InstanceDirectory removed : cached.instances.values()) {
+        inventoryChanged |= (removed.stamps != null);
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Gets the stamps for a connector instance.
+   *
+   * @return the stamps, or {@code null} if the instance has no
+   *         persistent objects
+   */
+  private ConnectorStamps getStamps(StoreContext context) {
+    FileStamp checkpointStamp =
+        getStamp(context, getStoreFileName(context, stateName));
+    FileStamp scheduleStamp =
+        getStamp(context, getStoreFileName(context, schedName));
+    FileStamp configurationStamp = new FileStamp(
+        // ConfigurationStamp is the sum of the map and xml timestamps.
+        getStoreFile(context, TypeInfo.CONNECTOR_INSTANCE_XML).lastModified()
+        + getStoreFile(context, getStoreFileName(context, configName))
+              .lastModified()
+        );
+    if (checkpointStamp.version != 0L || scheduleStamp.version != 0L
+        || configurationStamp.version != 0L) {
+      return new ConnectorStamps(
+          checkpointStamp, configurationStamp, scheduleStamp);
+    } else {
+      return null;
+    }
+  }
+
+  private static boolean sameStamps(ConnectorStamps a, ConnectorStamps b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    return a.getCheckpointStamp().compareTo(b.getCheckpointStamp()) == 0
+        && a.getConfigurationStamp().compareTo(b.getConfigurationStamp()) == 0
+        && a.getScheduleStamp().compareTo(b.getScheduleStamp()) == 0;
+  }
+
+  private ImmutableMap<StoreContext, ConnectorStamps> buildInventory() {
+    ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder =
+        new ImmutableMap.Builder<StoreContext, ConnectorStamps>();
+    for (Map.Entry<String, TypeDirectory> type : typeDirectories.entrySet()) {
+      String typeName = type.getKey();
+      for (Map.Entry<String, InstanceDirectory> instance
+               : type.getValue().instances.entrySet()) {
+        ConnectorStamps stamps = instance.getValue().stamps;
+        if (stamps != null) {
+          String name = instance.getKey();
+          mapBuilder.put(new StoreContext(name, typeName), stamps);
+          if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Found connector: name = " + name + "  type = "
+                        + typeName + "  stamps = " + stamps);
+          }
         }
       }
     }
+    return mapBuilder.build();
+  }
+
+  /** The cached modification time and contents of a type directory. */
+  private static class TypeDirectory {
+    final long lastModified;
+    final Map<String, InstanceDirectory> instances =
+        new TreeMap<String, InstanceDirectory>();
+
+    TypeDirectory(long lastModified) {
+      this.lastModified = lastModified;
+    }
+  }
+
+  /** The cached modification time and stamps of a connector directory. */
+  private static class InstanceDirectory {
+    final long lastModified;
+    final ConnectorStamps stamps;
+
+    InstanceDirectory(long lastModified, ConnectorStamps stamps) {
+      this.lastModified = lastModified;
+      this.stamps = stamps;
+    }
   }
 
   private FileStamp getStamp(StoreContext context, String filename) {
@@ -293,6 +454,7 @@ public class FileStore implements PersistentStore {
           + context.getConnectorName();
       try {
         PropertiesUtils.storeToFile(properties, propFile, header);
+        touchStoreDirectory(propFile);
       } catch (PropertiesException e) {
         LOGGER.log(Level.WARNING, "Failed to store connector configuration for "
             + context.getConnectorName(), e);
@@ -355,7 +517,21 @@ public class FileStore implements PersistentStore {
    * @param filename Filename of the on-disk store file.
    */
   private void deleteStoreFile(StoreContext context, String filename) {
-    getStoreFile(context, filename).delete();
+    File storeFile = getStoreFile(context, filename);
+    if (storeFile.delete()) {
+      touchStoreDirectory(storeFile);
+    }
+  }
+
+  /**
+   * Updates the modification time of the connector directory containing
+   * a store file that has been written or deleted, so that
+   * {@link #getInventory} notices the change.
+   *
+   * @param storeFile the store file
+   */
+  private void touchStoreDirectory(File storeFile) {
+    storeFile.getParentFile().setLastModified(System.currentTimeMillis());
   }
 
   /**
@@ -377,6 +553,9 @@ public class FileStore implements PersistentStore {
       }
       fos = new FileOutputStream(storeFile);
       fos.write(data.getBytes());
+      fos.close();
+      fos = null;
+      touchStoreDirectory(storeFile);
     } catch (IOException e) {
       LOGGER.log(Level.WARNING, "Cannot write store file "
           + storeFile + " for connector " + context.getConnectorName(), e);
@@ -26,13 +26,18 @@ import com.google.enterprise.connector.util.database.DatabaseResourceBundleManag
 import com.google.enterprise.connector.util.database.JdbcDatabase;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.text.MessageFormat;
+import java.sql.Types;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +47,23 @@ import javax.sql.DataSource;
  * Manage persistence for schedule and state and configuration
  * for a named connector. The persistent store for these data items
  * are columns in a database table, accessed via JDBC.
+ * <p>
+ * The SQL is executed as {@link PreparedStatement PreparedStatements},
+ * which are cached for each pooled {@link Connection}.  Values are
+ * written with a single upsert statement if the database dialect
+ * supplies one, otherwise with an update, followed by an insert if
+ * the value was not yet stored.  The several values that make up a
+ * connector configuration are written in a single transaction.
+ * <p>
+ * Each transaction stamps the values it writes with one more than the
+ * largest MODIFY_STAMP in the table, so the stamps form a table-wide
+ * version, and the inventory can be updated by reading only the rows
+ * written since it was last read.  The MODIFY_STAMP column is indexed,
+ * so neither reading the version nor reading the recent rows scans the
+ * entire table.  The stamps given out by this store are also kept
+ * unique without holding a lock across the transactions, so writes for
+ * different connectors proceed concurrently; the few that commit out of
+ * order are read again by the next incremental inventory.
  */
 public class JdbcStore implements PersistentStore {
 
@@ -66,13 +88,66 @@ public class JdbcStore implements PersistentStore {
   /* Cached SQL Resources */
   private String inventoryStampsQuery;
   private String inventoryTypesQuery;
+  private String changedStampsQuery;
+  private String changedTypesQuery;
+  private String versionQuery;
   private String getValueQuery;
-  private String setValueQuery;
+  private String updateValueQuery;
+  private String insertValueQuery;
+  private String mergeValueQuery;
   private String connectorNameColumn;
   private String modifyStampColumn;
   private String propertyNameColumn;
   private String propertyValueColumn;
 
+  /**
+   * PreparedStatements, keyed by SQL, cached for each pooled Connection.
+   * The Connections are only used by the thread that borrowed them from
+   * the pool, so the statements themselves need no synchronization.
+   */
+  private final Map<Connection, Map<String, PreparedStatement>> statements =
+      new IdentityHashMap<Connection, Map<String, PreparedStatement>>();
+
+  /**
+   * The last stamp given to a write by this store.  Each write takes a
+   * stamp larger than both this and the table-wide version, so no two
+   * writes by this store get the same stamp, even when they read the
+   * same version concurrently.
+   */
+  private final AtomicLong lastStamp = new AtomicLong();
+
+  /**
+   * The number of stamps below the largest one previously seen that
+   * each incremental inventory reads again.  This recovers concurrent
+   * writes that commit out of order, and writes by Connector Managers
+   * sharing the table that commit with the same stamp.
+   */
+  @VisibleForTesting
+  static final long INVENTORY_RESCAN_STAMPS = 100L;
+
+  /**
+   * How often the inventory is read from the entire table, rather than
+   * incrementally.  This recovers writes by other Connector Managers
+   * that were committed too late to be read again by the incremental
+   * inventory.
+   */
+  @VisibleForTesting
+  static final long FULL_INVENTORY_INTERVAL_MILLIS = 10 * 60 * 1000L;
+
+  /*
+   * The inventory, maintained incrementally.  The stamps of the non-null
+   * values are keyed by connector name and property name.  The types are
+   * keyed by connector name.  Guarded by inventoryLock.
+   */
+  private final Object inventoryLock = new Object();
+  private final Map<String, Map<String, JdbcStamp>> inventoryStamps =
+      new HashMap<String, Map<String, JdbcStamp>>();
+  private final Map<String, String> inventoryTypes =
+      new TreeMap<String, String>();
+  private ImmutableMap<StoreContext, ConnectorStamps> inventory = null;
+  private long inventoryVersion;
+  private long lastFullInventory;
+
   private synchronized void init() {
     if (resourceBundle != null) {
       return;
@@ -100,12 +175,25 @@ public class JdbcStore implements PersistentStore {
                                  + tableName);
     }
 
+    // Tables created by earlier versions did not index the stamps.
+    if (!database.verifyIndexExists(tableName,
+         getResource("column.modify_stamp"),
+         resourceBundle.getStringArray("index.create.ddl"))) {
+      LOGGER.warning("Persistent Store Table " + tableName
+          + " has no index on its modification stamps");
+    }
+
     // Cache some SQL resources.
-    // TODO: These queries should really be PreparedStatements.
     inventoryStampsQuery = getResource("getinventory.stamps.query");
     inventoryTypesQuery = getResource("getinventory.types.query");
+    changedStampsQuery = getResource("getinventory.changed.stamps.query");
+    changedTypesQuery = getResource("getinventory.changed.types.query");
+    versionQuery = getResource("getversion.query");
     getValueQuery = getResource("getvalue.query");
-    setValueQuery = getResource("setvalue.query");
+    updateValueQuery = getResource("setvalue.update");
+    insertValueQuery = getResource("setvalue.insert");
+    // The upsert is optional.
+    mergeValueQuery = resourceBundle.getString("setvalue.merge");
 
     connectorNameColumn = getResource("column.connector_name");
     modifyStampColumn = getResource("column.modify_stamp");
@@ -157,90 +245,254 @@ public class JdbcStore implements PersistentStore {
   }
 
   /**
-   * Gets the version stamps of all persistent objects.  Reads the entire
-   * connector instance table and extracts the MODIFY_STAMPS for all peristed
-   * data.
+   * Gets the version stamps of all persistent objects.
+   * <p>
+   * The first call, and one every {@link #FULL_INVENTORY_INTERVAL_MILLIS}
+   * thereafter, reads the entire connector instance table.  The other
+   * calls read only the rows whose MODIFY_STAMP is at most
+   * {@link #INVENTORY_RESCAN_STAMPS} below the largest one previously
+   * seen, and return the same map as the previous call if none of
+   * those rows has changed.
    *
    * @return an immutable map containing the version stamps; may be
    * empty but not {@code null}
    */
   @Override
   public ImmutableMap<StoreContext, ConnectorStamps> getInventory() {
-    ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder =
-        new ImmutableMap.Builder<StoreContext, ConnectorStamps>();
-    try {
-      init();
-      Connection connection = database.getConnectionPool().getConnection();
+    synchronized (inventoryLock) {
+      long now = System.currentTimeMillis();
+      boolean full = (inventory == null
+          || now - lastFullInventory >= FULL_INVENTORY_INTERVAL_MILLIS);
       try {
-        // TODO: We should consider using a PreparedStatement - however this
-        // is non-trivial when using connection pools.  Try using
-        // MapMaker.makeComputingMap() to map connections to PreparedStatements.
-        Map<String, Map<String, JdbcStamp>> stampAlbum =
-            new HashMap<String, Map<String, JdbcStamp>>();
-
-        // Collect the Stamps for the various interesting properties.
-        Statement statement = connection.createStatement(
-            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        init();
+        Connection connection = database.getConnectionPool().getConnection();
         try {
-          ResultSet resultSet = statement.executeQuery(inventoryStampsQuery);
-          while (resultSet.next()) {
-            String connectorName = resultSet.getString(connectorNameColumn);
-            Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
-            if (stamps == null) {
-              stamps = new HashMap<String, JdbcStamp>();
-              stampAlbum.put(connectorName, stamps);
-            }
-            stamps.put(resultSet.getString(propertyNameColumn),
-                       new JdbcStamp(resultSet.getLong(modifyStampColumn)));
+          if (full) {
+            readInventory(connection);
+            lastFullInventory = now;
+          } else {
+            readInventoryChanges(connection);
           }
+        } catch (SQLException e) {
+          closeStatements(connection);
+          throw e;
         } finally {
-          statement.close();
+          database.getConnectionPool().releaseConnection(connection);
         }
+      } catch (SQLException e) {
+        LOGGER.log(Level.WARNING, "Failed to retrieve Connector Inventory", e);
+        if (full) {
+          inventory = null;
+          return ImmutableMap.of();
+        }
+        // Return the previous inventory, and read it all next time.
+        lastFullInventory = 0L;
+      }
+      return inventory;
+    }
+  }
 
-        // Find all connectors with non-null Type, construct a StoreContext
-        // for the connector+type, and build an inventory of that connector's
-        // stamps from the previous query.
-        // (Connectors with no Type have been deleted.)
-        statement = connection.createStatement(
-            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-        try {
-          Object[] params = { quoteValue(TYPE) };
-          String query = MessageFormat.format(inventoryTypesQuery, params);
-          ResultSet resultSet = statement.executeQuery(query);
-          while (resultSet.next()) {
-            String connectorName = resultSet.getString(connectorNameColumn);
-            StoreContext storeContext = new StoreContext(connectorName,
-                resultSet.getString(propertyValueColumn));
-            Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
-            ConnectorStamps connectorStamps;
-            if (stamps == null) {
-              connectorStamps = new ConnectorStamps(null, null, null);
-            } else {
-              JdbcStamp mapStamp = stamps.get(MAP);
-              JdbcStamp xmlStamp = stamps.get(XML);
-              JdbcStamp configStamp = new JdbcStamp(
-                  ((mapStamp == null) ? 0L : mapStamp.version) +
-                  ((xmlStamp == null) ? 0L : xmlStamp.version));
-              connectorStamps = new ConnectorStamps(
-                  stamps.get(STATE), configStamp, stamps.get(SCHEDULE));
-            }
-            mapBuilder.put(storeContext, connectorStamps);
-            if (LOGGER.isLoggable(Level.FINE)) {
-              LOGGER.fine("Found connector: name = " + connectorName
-                          + "  type = " + storeContext.getTypeName()
-                          + "  stamps = " + connectorStamps);
-            }
+  /**
+   * Reads the entire connector instance table and extracts the
+   * MODIFY_STAMPS for all persisted data.
+   */
+  private void readInventory(Connection connection) throws SQLException {
+    inventory = null;
+    inventoryStamps.clear();
+    inventoryTypes.clear();
+
+    // Read the version first, so that rows written during the following
+    // queries are read again by the next incremental inventory.
+    inventoryVersion = readVersion(connection);
+
+    // Collect the Stamps for the various interesting properties.
+    PreparedStatement statement =
+        prepareStatement(connection, inventoryStampsQuery);
+    ResultSet resultSet = statement.executeQuery();
+    try {
+      while (resultSet.next()) {
+        putStamp(resultSet.getString(connectorNameColumn),
+                 resultSet.getString(propertyNameColumn),
+                 resultSet.getLong(modifyStampColumn));
+      }
+    } finally {
+      resultSet.close();
+    }
+
+    // Find all connectors with non-null Type.
+    // (Connectors with no Type have been deleted.)
+    statement = prepareStatement(connection, inventoryTypesQuery);
+    statement.setString(1, TYPE);
+    resultSet = statement.executeQuery();
+    try {
+      while (resultSet.next()) {
+        inventoryTypes.put(resultSet.getString(connectorNameColumn),
+                           resultSet.getString(propertyValueColumn));
+      }
+    } finally {
+      resultSet.close();
+    }
+
+    inventory = buildInventory();
+  }
+
+  /**
+   * Reads the rows written since the previous inventory, along with
+   * those written just before it, and applies them to the stamps and
+   * types of the previous inventory.  Rows with NULL values are
+   * removals.
+   */
+  private void readInventoryChanges(Connection connection)
+      throws SQLException {
+    long since = Math.max(0L, inventoryVersion - INVENTORY_RESCAN_STAMPS);
+    long version = inventoryVersion;
+    boolean changed = false;
+    boolean typesChanged = false;
+
+    PreparedStatement statement =
+        prepareStatement(connection, changedStampsQuery);
+    statement.setLong(1, since);
+    ResultSet resultSet = statement.executeQuery();
+    try {
+      while (resultSet.next()) {
+        long stamp = resultSet.getLong(modifyStampColumn);
+        String connectorName = resultSet.getString(connectorNameColumn);
+        String propertyName = resultSet.getString(propertyNameColumn);
+        boolean rowChanged;
+        if (resultSet.getInt(4) != 0) {
+          rowChanged = putStamp(connectorName, propertyName, stamp);
+        } else {
+          rowChanged = removeStamp(connectorName, propertyName);
+        }
+        if (rowChanged) {
+          changed = true;
+          typesChanged |= TYPE.equals(propertyName);
+        }
+        version = Math.max(version, stamp);
+      }
+    } finally {
+      resultSet.close();
+    }
+    inventoryVersion = version;
+    if (!changed) {
+      // Nothing has changed.
+      return;
+    }
+
+    if (typesChanged) {
+      statement = prepareStatement(connection, changedTypesQuery);
+      statement.setString(1, TYPE);
+      statement.setLong(2, since);
+      resultSet = statement.executeQuery();
+      try {
+        while (resultSet.next()) {
+          String connectorName = resultSet.getString(connectorNameColumn);
+          String typeName = resultSet.getString(propertyValueColumn);
+          if (typeName == null) {
+            inventoryTypes.remove(connectorName);
+          } else {
+            inventoryTypes.put(connectorName, typeName);
           }
-        } finally {
-          statement.close();
         }
       } finally {
-        database.getConnectionPool().releaseConnection(connection);
+        resultSet.close();
+      }
+    }
+
+    inventory = buildInventory();
+  }
+
+  /** Reads the largest MODIFY_STAMP in the table. */
+  private long readVersion(Connection connection) throws SQLException {
+    PreparedStatement statement = prepareStatement(connection, versionQuery);
+    ResultSet resultSet = statement.executeQuery();
+    try {
+      // MAX of an empty table is NULL, which getLong returns as 0.
+      return resultSet.next() ? resultSet.getLong(1) : 0L;
+    } finally {
+      resultSet.close();
+    }
+  }
+
+  /**
+   * Returns the stamp for a write, one more than the larger of the
+   * table-wide version and the last stamp given out by this store.
+   */
+  private long nextStamp(long version) {
+    while (true) {
+      long last = lastStamp.get();
+      long next = Math.max(last, version) + 1;
+      if (lastStamp.compareAndSet(last, next)) {
+        return next;
+      }
+    }
+  }
+
+  /**
+   * Records the stamp of a non-null property value.
+   *
+   * @return {@code true} if the stamp was not already recorded
+   */
+  private boolean putStamp(String connectorName, String propertyName,
+      long stamp) {
+    Map<String, JdbcStamp> stamps = inventoryStamps.get(connectorName);
+    if (stamps == null) {
+      stamps = new HashMap<String, JdbcStamp>();
+      inventoryStamps.put(connectorName, stamps);
+    }
+    JdbcStamp previous = stamps.put(propertyName, new JdbcStamp(stamp));
+    return previous == null || previous.version != stamp;
+  }
+
+  /**
+   * Forgets the stamp of a NULL property value.
+   *
+   * @return {@code true} if a stamp was recorded
+   */
+  private boolean removeStamp(String connectorName, String propertyName) {
+    Map<String, JdbcStamp> stamps = inventoryStamps.get(connectorName);
+    if (stamps == null || stamps.remove(propertyName) == null) {
+      return false;
+    }
+    if (stamps.isEmpty()) {
+      inventoryStamps.remove(connectorName);
+    }
+    return true;
+  }
+
+  /**
+   * Constructs a StoreContext for each connector with a type, and
+   * builds an inventory of that connector's stamps.
+   */
+  private ImmutableMap<StoreContext, ConnectorStamps> buildInventory() {
+    ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder =
+        new ImmutableMap.Builder<StoreContext, ConnectorStamps>();
+    for (Map.Entry<String, String> entry : inventoryTypes.entrySet()) {
+      String connectorName = entry.getKey();
+      StoreContext storeContext =
+          new StoreContext(connectorName, entry.getValue());
+      Map<String, JdbcStamp> stamps = inventoryStamps.get(connectorName);
+      ConnectorStamps connectorStamps;
+      if (stamps == null) {
+        connectorStamps = new ConnectorStamps(null, null, null);
+      } else {
+        // The map and xml are written together, so the configuration
+        // stamp is the later of the two.
+        JdbcStamp mapStamp = stamps.get(MAP);
+        JdbcStamp xmlStamp = stamps.get(XML);
+        JdbcStamp configStamp = new JdbcStamp(Math.max(
+            (mapStamp == null) ? 0L : mapStamp.version,
+            (xmlStamp == null) ? 0L : xmlStamp.version));
+        connectorStamps = new ConnectorStamps(
+            stamps.get(STATE), configStamp, stamps.get(SCHEDULE));
+      }
+      mapBuilder.put(storeContext, connectorStamps);
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("Found connector: name = " + connectorName
+                    + "  type = " + storeContext.getTypeName()
+                    + "  stamps = " + connectorStamps);
       }
-    } catch (SQLException e) {
-      LOGGER.log(Level.WARNING, "Failed to retrieve Connector Inventory", e);
     }
-      // Finally, construct the inventory.
     return mapBuilder.build();
   }
 
@@ -343,9 +595,10 @@ public class JdbcStore implements PersistentStore {
    */
   @Override
   public Configuration getConnectorConfiguration(StoreContext context) {
-    String config = getField(context, MAP);
-    String configXml = getField(context, XML);
-    String type = getField(context, TYPE);
+    Map<String, String> fields = getFields(context, MAP, XML, TYPE);
+    String config = fields.get(MAP);
+    String configXml = fields.get(XML);
+    String type = fields.get(TYPE);
     if (type == null && config == null && configXml == null) {
       return null;
     }
@@ -369,6 +622,53 @@ public class JdbcStore implements PersistentStore {
   public void storeConnectorConfiguration(StoreContext context,
       Configuration configuration) {
     testStoreContext(context);
+    Map<String, String> fields = new LinkedHashMap<String, String>();
+    if (putConfigurationFields(context, configuration, fields)) {
+      // Store the configuration in a single transaction.
+      setFields(context, fields);
+    }
+  }
+
+  /**
+   * Stores the configuration, schedule, and state of a named connector
+   * together, in a single transaction.  Unlike the separate store
+   * methods, a {@code null} argument leaves the stored value unchanged,
+   * rather than removing it.
+   *
+   * @param context a StoreContext
+   * @param configuration map to store, or {@code null}
+   * @param connectorSchedule schedule to store, or {@code null}
+   * @param connectorState state to store, or {@code null}
+   * @since 3.3
+   */
+  public void storeConnector(StoreContext context, Configuration configuration,
+      Schedule connectorSchedule, String connectorState) {
+    testStoreContext(context);
+    Map<String, String> fields = new LinkedHashMap<String, String>();
+    if (configuration != null
+        && !putConfigurationFields(context, configuration, fields)) {
+      return;
+    }
+    if (connectorSchedule != null) {
+      fields.put(SCHEDULE, connectorSchedule.toString());
+    }
+    if (connectorState != null) {
+      fields.put(STATE, connectorState);
+    }
+    if (!fields.isEmpty()) {
+      setFields(context, fields);
+    }
+  }
+
+  /**
+   * Adds the fields that store a configuration to the supplied map.
+   * A {@code null} configuration is stored as {@code null} fields.
+   *
+   * @return {@code true} if the fields were added, or {@code false}
+   *         if the configuration could not be serialized
+   */
+  private boolean putConfigurationFields(StoreContext context,
+      Configuration configuration, Map<String, String> fields) {
     String configMap = null;
     String configXml = null;
     String type = null;
@@ -379,14 +679,15 @@ public class JdbcStore implements PersistentStore {
       } catch (PropertiesException e) {
         LOGGER.log(Level.WARNING, "Failed to store connector configuration for "
                    + context.getConnectorName(), e);
-        return;
+        return false;
       }
       configXml = configuration.getXml();
       type = configuration.getTypeName();
     }
-    setField(context, TYPE, type);
-    setField(context, XML, configXml);
-    setField(context, MAP, configMap);
+    fields.put(TYPE, type);
+    fields.put(XML, configXml);
+    fields.put(MAP, configMap);
+    return true;
   }
 
   /**
@@ -409,19 +710,65 @@ public class JdbcStore implements PersistentStore {
   }
 
   /**
-   * Quotes the supplied value using single qoutes.  MessageFormat
-   * considers embedded single-quotes special, and doesn't do
-   * substitutions within them.  Unfortunately, this is exactly
-   * where we want to use substitutions: in SQL queries like:
-   * {@code ... WHERE ( connector_name='{0}' ...}.
-   * <p>
-   * One solution is to add the quote characters to the value being
-   * substituted in (the purpose of this method).  Another solution would
-   * be to avoid MessageFormat, possibly trying PreparedStatement syntax.
+   * Returns a {@link PreparedStatement} for the supplied SQL on the
+   * supplied {@link Connection}, preparing it if it is not already cached.
+   *
+   * @param connection a Connection borrowed from the connection pool
+   * @param sql the SQL statement
+   * @return a PreparedStatement
    */
-  // TODO: Use PreparedStatements.
-  private String quoteValue(String value) {
-    return "'" + value.replace("'", "''") + "'";
+  private PreparedStatement prepareStatement(Connection connection,
+      String sql) throws SQLException {
+    Map<String, PreparedStatement> cache;
+    synchronized (statements) {
+      cache = statements.get(connection);
+      if (cache == null) {
+        // Discard the statements of Connections the pool has closed.
+        Iterator<Connection> it = statements.keySet().iterator();
+        while (it.hasNext()) {
+          if (it.next().isClosed()) {
+            it.remove();
+          }
+        }
+        cache = new HashMap<String, PreparedStatement>();
+        statements.put(connection, cache);
+      }
+    }
+    PreparedStatement statement = cache.get(sql);
+    if (statement == null) {
+      statement = connection.prepareStatement(sql);
+      cache.put(sql, statement);
+    }
+    return statement;
+  }
+
+  /**
+   * Closes and discards the cached statements for the supplied
+   * {@link Connection}.  This is called after an error, which may
+   * have left the statements, or the connection, unusable.
+   */
+  private void closeStatements(Connection connection) {
+    Map<String, PreparedStatement> cache;
+    synchronized (statements) {
+      cache = statements.remove(connection);
+    }
+    if (cache != null) {
+      for (PreparedStatement statement : cache.values()) {
+        try {
+          statement.close();
+        } catch (SQLException ignored) {}
+      }
+    }
+  }
+
+  /** Sets a possibly {@code null} String parameter. */
+  private static void setValue(PreparedStatement statement, int index,
+      String value) throws SQLException {
+    if (value == null) {
+      statement.setNull(index, Types.VARCHAR);
+    } else {
+      statement.setString(index, value);
+    }
   }
 
   /**
@@ -432,23 +779,43 @@ public class JdbcStore implements PersistentStore {
    * @return String value of the field, or {@code null} if not stored
    */
   private String getField(StoreContext context, String fieldName) {
+    return getFields(context, fieldName).get(fieldName);
+  }
+
+  /**
+   * Retrieve several database field values.
+   *
+   * @param context a StoreContext
+   * @param fieldNames the names of the fields
+   * @return a Map of field names to values; values that are not stored
+   *         are missing from the map
+   */
+  private Map<String, String> getFields(StoreContext context,
+      String... fieldNames) {
     testStoreContext(context);
+    Map<String, String> fields = new HashMap<String, String>();
+    String fieldName = null;
     try {
       init();
       Connection connection = database.getConnectionPool().getConnection();
       try {
-        Object[] params =
-            { quoteValue(context.getConnectorName()), quoteValue(fieldName) };
-        String query = MessageFormat.format(getValueQuery, params);
-        Statement stmt = connection.createStatement();
-        try {
-          ResultSet rs = stmt.executeQuery(query);
-          if (rs.next()) {
-            return rs.getString(propertyValueColumn);
+        PreparedStatement stmt = prepareStatement(connection, getValueQuery);
+        stmt.setString(1, context.getConnectorName());
+        for (int i = 0; i < fieldNames.length; i++) {
+          fieldName = fieldNames[i];
+          stmt.setString(2, fieldName);
+          ResultSet rs = stmt.executeQuery();
+          try {
+            if (rs.next()) {
+              fields.put(fieldName, rs.getString(propertyValueColumn));
+            }
+          } finally {
+            rs.close();
           }
-        } finally {
-          stmt.close();
         }
+      } catch (SQLException e) {
+        closeStatements(connection);
+        throw e;
       } finally {
         database.getConnectionPool().releaseConnection(connection);
       }
@@ -456,7 +823,7 @@ public class JdbcStore implements PersistentStore {
       LOGGER.log(Level.WARNING, "Failed to retrieve " + fieldName
           + " for connector " + context.getConnectorName(), e);
     }
-    return null;
+    return fields;
   }
 
   /**
@@ -468,7 +835,20 @@ public class JdbcStore implements PersistentStore {
    */
   private void setField(StoreContext context,
                         String fieldName, String fieldValue) {
+    Map<String, String> fields = new HashMap<String, String>(1);
+    fields.put(fieldName, fieldValue);
+    setFields(context, fields);
+  }
+
+  /**
+   * Update several database field values in a single transaction.
+   *
+   * @param context a StoreContext
+   * @param fields a Map of field names to field values
+   */
+  private void setFields(StoreContext context, Map<String, String> fields) {
     testStoreContext(context);
+    String connectorName = context.getConnectorName();
     Connection connection = null;
     boolean originalAutoCommit = true;
     try {
@@ -478,42 +858,49 @@ public class JdbcStore implements PersistentStore {
         originalAutoCommit = connection.getAutoCommit();
         connection.setAutoCommit(false);
 
-        Object[] params =
-            { quoteValue(context.getConnectorName()), quoteValue(fieldName) };
-        String query = MessageFormat.format(setValueQuery, params);
-        Statement stmt = connection.createStatement(
-            ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE);
-        try {
-          ResultSet rs = stmt.executeQuery(query);
-          if (rs.next()) {
-            // This connector property exists, update the property value.
-            if (fieldValue == null) {
-              rs.updateNull(propertyValueColumn);
-            } else {
-              rs.updateString(propertyValueColumn, fieldValue);
-            }
-            // Bump the ModifyStamp, so others may know the value has changed.
-            rs.updateInt(modifyStampColumn, rs.getInt(modifyStampColumn) + 1);
-            rs.updateRow();
-          } else {
-            // This connector property does not exist, insert it with new value.
-            rs.moveToInsertRow();
-            rs.updateInt(modifyStampColumn, 1); // Bootstrap the ModifyStamp
-            rs.updateString(connectorNameColumn, context.getConnectorName());
-            rs.updateString(propertyNameColumn, fieldName);
-            if (fieldValue == null) {
-              rs.updateNull(propertyValueColumn);
-            } else {
-              rs.updateString(propertyValueColumn, fieldValue);
+        // Stamp all the values with the next table-wide version.
+        long stamp = nextStamp(readVersion(connection));
+
+        if (mergeValueQuery != null) {
+          // Upsert all the values in a single batch.
+          PreparedStatement stmt =
+              prepareStatement(connection, mergeValueQuery);
+          for (Map.Entry<String, String> field : fields.entrySet()) {
+            stmt.setString(1, connectorName);
+            stmt.setString(2, field.getKey());
+            setValue(stmt, 3, field.getValue());
+            stmt.setLong(4, stamp);
+            stmt.addBatch();
+          }
+          stmt.executeBatch();
+        } else {
+          // Update the existing values, then insert the rest in a batch.
+          PreparedStatement update =
+              prepareStatement(connection, updateValueQuery);
+          PreparedStatement insert = null;
+          for (Map.Entry<String, String> field : fields.entrySet()) {
+            setValue(update, 1, field.getValue());
+            update.setLong(2, stamp);
+            update.setString(3, connectorName);
+            update.setString(4, field.getKey());
+            if (update.executeUpdate() == 0) {
+              if (insert == null) {
+                insert = prepareStatement(connection, insertValueQuery);
+              }
+              insert.setLong(1, stamp);
+              insert.setString(2, connectorName);
+              insert.setString(3, field.getKey());
+              setValue(insert, 4, field.getValue());
+              insert.addBatch();
             }
-            rs.insertRow();
           }
-          connection.commit();
-          rs.close();
-        } finally {
-          stmt.close();
+          if (insert != null) {
+            insert.executeBatch();
+          }
         }
+        connection.commit();
       } catch (SQLException e) {
+        closeStatements(connection);
         try {
           connection.rollback();
         } catch (SQLException ignored) {}
@@ -525,8 +912,8 @@ public class JdbcStore implements PersistentStore {
         database.getConnectionPool().releaseConnection(connection);
       }
     } catch (SQLException e) {
-      LOGGER.log(Level.WARNING, "Failed to store " + fieldName
-          + " for connector " + context.getConnectorName(), e);
+      LOGGER.log(Level.WARNING, "Failed to store " + fields.keySet()
+          + " for connector " + connectorName, e);
     }
   }
 }
@@ -232,8 +232,10 @@ public class MigrateStore extends AbstractCommandLineApp {
         Context.getInstance().getApplicationContext()
         .getBeansOfType(PersistentStore.class);
     for (Map.Entry<String, PersistentStore> entry : stores.entrySet()) {
-      // Only include PersistentStores that are not disabled.
-      if (!entry.getValue().isDisabled()) {
+      // Only include PersistentStores that are not disabled, and not
+      // wrappers of other PersistentStores.
+      if (!entry.getValue().isDisabled()
+          && !(entry.getValue() instanceof WriteBehindStore)) {
         names.add(entry.getKey());
       }
     }
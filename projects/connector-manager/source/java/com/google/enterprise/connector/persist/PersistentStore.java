@@ -39,7 +39,9 @@ public interface PersistentStore {
   boolean isDisabled();
 
   /**
-   * Gets the version stamps of all persistent objects.
+   * Gets the version stamps of all persistent objects. Implementations
+   * may return the same map instance as the previous call if nothing has
+   * changed since then, so that callers can cheaply skip comparing it.
    *
    * @return an immutable map containing the version stamps; may be
    * empty but not {@code null}
@@ -80,28 +80,46 @@ public class StoreMigrator {
         continue;
       }
       // This double assignment ensures that we check the same
-      // object type that we're storing.
+      // object type that we're storing.  A null object is not copied.
       Configuration config = destStore.getConnectorConfiguration(context);
       if (force || config == null) {
         config = sourceStore.getConnectorConfiguration(context);
         if (config != null) {
           logMigration(sourceStore, destStore, context, "configuration");
-          destStore.storeConnectorConfiguration(context, config);
         }
+      } else {
+        config = null;
       }
       Schedule sched = destStore.getConnectorSchedule(context);
       if (force || sched == null) {
         sched = sourceStore.getConnectorSchedule(context);
         if (sched != null) {
           logMigration(sourceStore, destStore, context, "traversal schedule");
-          destStore.storeConnectorSchedule(context, sched);
         }
+      } else {
+        sched = null;
       }
       String state = destStore.getConnectorState(context);
       if (force || state == null) {
         state = sourceStore.getConnectorState(context);
         if (state != null) {
           logMigration(sourceStore, destStore, context, "traversal state");
+        }
+      } else {
+        state = null;
+      }
+
+      if (destStore instanceof JdbcStore) {
+        // Write the objects in a single transaction.
+        ((JdbcStore) destStore).storeConnector(context, config, sched, state);
+      } else {
+        if (config != null) {
+          destStore.storeConnectorConfiguration(context, config);
+        }
+        if (sched != null) {
+          destStore.storeConnectorSchedule(context, sched);
+        }
+        if (state != null) {
           destStore.storeConnectorState(context, state);
         }
       }
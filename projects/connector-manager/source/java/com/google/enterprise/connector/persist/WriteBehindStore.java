@@ -0,0 +1,620 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.persist;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.instantiator.Configuration;
+import com.google.enterprise.connector.manager.ContextService;
+import com.google.enterprise.connector.scheduler.Schedule;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link PersistentStore} that writes connector checkpoints behind
+ * to another {@code PersistentStore}.  All other operations are passed
+ * through to the backing store.
+ * <p>
+ * A stored checkpoint is appended to a local journal file, which is
+ * forced to disk before returning, then written to the backing store
+ * by a background thread.  If several checkpoints are stored for a
+ * connector before they are written, only the most recent one is
+ * written.  This keeps the traversals of connectors with small batches
+ * from paying for a database round-trip per batch.
+ * <p>
+ * Checkpoints that had not been written to the backing store when the
+ * Connector Manager stopped are replayed from the journal the first time
+ * the store is used.  Removed checkpoints are written through to the
+ * backing store immediately, so that a retraversal starts from scratch.
+ * Checkpoints that the backing store fails to write are kept in the
+ * journal, and retried at increasing intervals.  The journal is
+ * compacted by writing a new one beside it and renaming it into place,
+ * so that a crash never leaves a truncated journal.
+ * <p>
+ * If no journal file is configured, checkpoints are written through to
+ * the backing store.
+ */
+public class WriteBehindStore implements PersistentStore, ContextService {
+  private static final Logger LOGGER =
+      Logger.getLogger(WriteBehindStore.class.getName());
+
+  /** The default interval at which checkpoints are written behind. */
+  public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 5 * 1000L;
+
+  /**
+   * The largest power of two by which the flush interval is multiplied
+   * while the backing store keeps failing.
+   */
+  private static final int MAX_BACKOFF_SHIFT = 6;
+
+  /* Journal record types. */
+  private static final byte STORE = 1;
+  private static final byte REMOVE = 2;
+
+  private final PersistentStore store;
+
+  private volatile File journalFile;
+  private volatile File compactFile;
+  private long flushInterval = DEFAULT_FLUSH_INTERVAL_MILLIS;
+
+  /** The open journal, or {@code null} if it has not yet been opened. */
+  private FileOutputStream journal;
+
+  /**
+   * Checkpoints waiting to be written to the backing store.  A
+   * {@code null} checkpoint is a removal that has yet to be written.
+   */
+  private Map<StoreContext, String> pending =
+      new LinkedHashMap<StoreContext, String>();
+
+  /** Checkpoints currently being written to the backing store. */
+  private Map<StoreContext, String> flushing =
+      new LinkedHashMap<StoreContext, String>();
+
+  /**
+   * Serializes writes of checkpoints to the backing store, so that a
+   * stale checkpoint may not overwrite a removal.
+   */
+  private final Object flushLock = new Object();
+
+  private Thread writer;
+  private boolean isShutdown = false;
+
+  /** The number of consecutive flushes that failed to write a checkpoint. */
+  private int flushFailures = 0;
+
+  /**
+   * Constructs a {@code WriteBehindStore}.
+   *
+   * @param store the backing {@link PersistentStore}
+   */
+  public WriteBehindStore(PersistentStore store) {
+    Preconditions.checkNotNull(store);
+    this.store = store;
+  }
+
+  /**
+   * Sets the journal file in which checkpoints are recorded until they
+   * are written to the backing store.  If {@code null} or empty,
+   * checkpoints are written through to the backing store.
+   *
+   * @param journalFileName the path of the journal file
+   */
+  public void setJournalFile(String journalFileName) {
+    if (Strings.isNullOrEmpty(journalFileName)) {
+      this.journalFile = null;
+      this.compactFile = null;
+    } else {
+      this.journalFile = new File(journalFileName);
+      this.compactFile = new File(journalFileName + ".new");
+    }
+  }
+
+  /**
+   * Sets the interval at which checkpoints are written to the backing
+   * store.
+   *
+   * @param flushInterval the interval, in milliseconds
+   */
+  public void setFlushInterval(long flushInterval) {
+    Preconditions.checkArgument(flushInterval > 0,
+        "flushInterval must be positive.");
+    this.flushInterval = flushInterval;
+  }
+
+  private boolean isWriteBehind() {
+    return journalFile != null;
+  }
+
+  /* ContextService methods. */
+
+  @Override
+  public void start() {
+    // The journal is replayed on first use, since the Instantiator may
+    // read checkpoints before the services are started.
+  }
+
+  /**
+   * Writes any pending checkpoints to the backing store and stops the
+   * background writer.  Checkpoints stored after this are written through.
+   */
+  @Override
+  public void stop(boolean force) {
+    Thread thread;
+    synchronized (this) {
+      isShutdown = true;
+      thread = writer;
+      writer = null;
+      notifyAll();
+    }
+    if (thread != null) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+    synchronized (this) {
+      if (journal != null) {
+        try {
+          journal.close();
+        } catch (IOException ignored) {
+        }
+        journal = null;
+      }
+      // Any further checkpoints are written through.
+      journalFile = null;
+    }
+  }
+
+  @Override
+  public synchronized boolean isRunning() {
+    return writer != null;
+  }
+
+  @Override
+  public String getName() {
+    return getClass().getName();
+  }
+
+  /* PersistentStore methods. */
+
+  @Override
+  public boolean isDisabled() {
+    return store.isDisabled();
+  }
+
+  @Override
+  public ImmutableMap<StoreContext, ConnectorStamps> getInventory() {
+    return store.getInventory();
+  }
+
+  @Override
+  public String getConnectorState(StoreContext context) {
+    if (isWriteBehind()) {
+      synchronized (this) {
+        openJournal();
+        if (pending.containsKey(context)) {
+          return pending.get(context);
+        }
+        if (flushing.containsKey(context)) {
+          return flushing.get(context);
+        }
+      }
+    }
+    return store.getConnectorState(context);
+  }
+
+  @Override
+  public void storeConnectorState(StoreContext context, String checkpoint) {
+    if (checkpoint == null) {
+      removeConnectorState(context);
+      return;
+    }
+    synchronized (this) {
+      if (isWriteBehind() && !isShutdown) {
+        openJournal();
+        if (journal != null) {
+          try {
+            appendRecord(journal, STORE, context, checkpoint);
+            pending.put(context, checkpoint);
+            startWriter();
+            return;
+          } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write checkpoint journal "
+                + journalFile + "; writing checkpoint through", e);
+            // Don't let an older pending checkpoint overwrite this one.
+            pending.remove(context);
+          }
+        }
+      }
+    }
+    synchronized (flushLock) {
+      store.storeConnectorState(context, checkpoint);
+    }
+  }
+
+  @Override
+  public void removeConnectorState(StoreContext context) {
+    synchronized (flushLock) {
+      if (isWriteBehind()) {
+        synchronized (this) {
+          openJournal();
+          pending.remove(context);
+          if (journal != null) {
+            try {
+              appendRecord(journal, REMOVE, context, null);
+            } catch (IOException e) {
+              LOGGER.log(Level.WARNING,
+                  "Failed to write checkpoint journal " + journalFile, e);
+            }
+          }
+        }
+      }
+      store.removeConnectorState(context);
+    }
+  }
+
+  @Override
+  public Configuration getConnectorConfiguration(StoreContext context) {
+    return store.getConnectorConfiguration(context);
+  }
+
+  @Override
+  public void storeConnectorConfiguration(StoreContext context,
+      Configuration configuration) {
+    store.storeConnectorConfiguration(context, configuration);
+  }
+
+  @Override
+  public void removeConnectorConfiguration(StoreContext context) {
+    store.removeConnectorConfiguration(context);
+  }
+
+  @Override
+  public Schedule getConnectorSchedule(StoreContext context) {
+    return store.getConnectorSchedule(context);
+  }
+
+  @Override
+  public void storeConnectorSchedule(StoreContext context,
+      Schedule schedule) {
+    store.storeConnectorSchedule(context, schedule);
+  }
+
+  @Override
+  public void removeConnectorSchedule(StoreContext context) {
+    store.removeConnectorSchedule(context);
+  }
+
+  /**
+   * Writes the pending checkpoints to the backing store, then compacts
+   * the journal to hold only those checkpoints stored in the meantime,
+   * and those that failed to be written.
+   */
+  @VisibleForTesting
+  void flush() {
+    synchronized (flushLock) {
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        Map<StoreContext, String> temp = flushing;
+        flushing = pending;
+        pending = temp;
+      }
+      Map<StoreContext, String> failed = writeCheckpoints(flushing);
+      synchronized (this) {
+        // Keep the failed checkpoints, unless newer ones have been stored.
+        for (Map.Entry<StoreContext, String> entry : failed.entrySet()) {
+          if (!pending.containsKey(entry.getKey())) {
+            pending.put(entry.getKey(), entry.getValue());
+          }
+        }
+        flushing.clear();
+        flushFailures = failed.isEmpty() ? 0 : flushFailures + 1;
+        compactJournal();
+      }
+    }
+  }
+
+  /**
+   * Writes the supplied checkpoints to the backing store.
+   *
+   * @return the checkpoints that the backing store failed to write
+   */
+  private Map<StoreContext, String> writeCheckpoints(
+      Map<StoreContext, String> checkpoints) {
+    Map<StoreContext, String> failed =
+        new LinkedHashMap<StoreContext, String>();
+    for (Map.Entry<StoreContext, String> entry : checkpoints.entrySet()) {
+      try {
+        if (entry.getValue() == null) {
+          store.removeConnectorState(entry.getKey());
+        } else {
+          store.storeConnectorState(entry.getKey(), entry.getValue());
+        }
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Failed to store checkpoint for connector "
+            + entry.getKey().getConnectorName() + "; will retry", e);
+        failed.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return failed;
+  }
+
+  /** Starts the background writer, if it is not already running. */
+  private synchronized void startWriter() {
+    if (writer == null && !isShutdown) {
+      writer = new Thread(new Runnable() {
+          public void run() {
+            runWriter();
+          }
+        }, "CheckpointWriter");
+      writer.setDaemon(true);
+      writer.start();
+    }
+  }
+
+  private void runWriter() {
+    while (true) {
+      synchronized (this) {
+        try {
+          if (!isShutdown) {
+            // Back off while the backing store is failing.
+            wait(flushInterval << Math.min(flushFailures, MAX_BACKOFF_SHIFT));
+          }
+        } catch (InterruptedException e) {
+          isShutdown = true;
+        }
+        if (isShutdown) {
+          return;
+        }
+      }
+      flush();
+    }
+  }
+
+  /**
+   * Opens the journal, replaying any checkpoints left in it by a
+   * previous run into the backing store.  Checkpoints that fail to be
+   * replayed are kept pending.  Must be called while holding the lock.
+   */
+  private void openJournal() {
+    if (journal != null || journalFile == null) {
+      return;
+    }
+    try {
+      if (!journalFile.exists() && compactFile.exists()) {
+        // We crashed while renaming a compacted journal into place.
+        renameCompactedJournal();
+      }
+      if (journalFile.exists()) {
+        pending.putAll(replayJournal());
+      } else {
+        File parent = journalFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+          throw new IOException("Failed to create directory " + parent);
+        }
+      }
+      // Any compacted journal left beside this one is incomplete.
+      writeJournal();
+      if (!pending.isEmpty()) {
+        startWriter();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to open checkpoint journal "
+          + journalFile + "; writing checkpoints through", e);
+      journalFile = null;
+    }
+  }
+
+  /**
+   * Writes the most recent checkpoint for each connector recorded in
+   * the journal to the backing store.  Records that were not completely
+   * written are ignored.
+   *
+   * @return the checkpoints that the backing store failed to write
+   */
+  private Map<StoreContext, String> replayJournal() throws IOException {
+    Map<StoreContext, String> checkpoints =
+        new LinkedHashMap<StoreContext, String>();
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(journalFile)));
+    int count = 0;
+    try {
+      while (true) {
+        Record record = readRecord(in);
+        if (record == null) {
+          break;
+        }
+        count++;
+        checkpoints.remove(record.context);
+        checkpoints.put(record.context, record.checkpoint);
+      }
+    } finally {
+      in.close();
+    }
+    if (count > 0) {
+      LOGGER.info("Replaying " + checkpoints.size() + " checkpoints from "
+          + count + " records in checkpoint journal " + journalFile);
+    }
+    return writeCheckpoints(checkpoints);
+  }
+
+  /**
+   * Rewrites the journal to hold only the pending checkpoints.  Must be
+   * called while holding the lock.
+   */
+  private void compactJournal() {
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.close();
+      journal = null;
+      writeJournal();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to compact checkpoint journal "
+          + journalFile + "; writing checkpoints through", e);
+      if (journal != null) {
+        try {
+          journal.close();
+        } catch (IOException ignored) {
+        }
+        journal = null;
+      }
+      journalFile = null;
+      // Write any pending checkpoints through, rather than lose them.
+      writeCheckpoints(pending);
+      pending.clear();
+    }
+  }
+
+  /**
+   * Writes the pending checkpoints to a new journal, forces it to disk,
+   * renames it over the current journal, and opens it for appending.
+   * Must be called while holding the lock.
+   */
+  private void writeJournal() throws IOException {
+    FileOutputStream out = new FileOutputStream(compactFile, false);
+    try {
+      for (Map.Entry<StoreContext, String> entry : pending.entrySet()) {
+        appendRecord(out, (entry.getValue() == null) ? REMOVE : STORE,
+            entry.getKey(), entry.getValue());
+      }
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    renameCompactedJournal();
+    journal = new FileOutputStream(journalFile, true);
+  }
+
+  /** Renames the compacted journal over the current journal. */
+  private void renameCompactedJournal() throws IOException {
+    if (!compactFile.renameTo(journalFile)) {
+      // Some platforms do not rename over an existing file.  The complete
+      // compacted journal is used if we crash before it is renamed.
+      if (!journalFile.delete() || !compactFile.renameTo(journalFile)) {
+        throw new IOException("Failed to rename " + compactFile + " to "
+            + journalFile);
+      }
+    }
+  }
+
+  /**
+   * Appends a record to the journal and forces it to disk.  A record
+   * consists of the length of its data, the data, and a CRC32 checksum
+   * of the data.
+   */
+  private static void appendRecord(FileOutputStream out, byte type,
+      StoreContext context, String checkpoint) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeByte(type);
+    writeString(data, context.getConnectorName());
+    writeString(data, context.getTypeName());
+    if (type == STORE) {
+      writeString(data, checkpoint);
+    }
+    data.flush();
+    byte[] payload = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+
+    bytes = new ByteArrayOutputStream(payload.length + 12);
+    data = new DataOutputStream(bytes);
+    data.writeInt(payload.length);
+    data.write(payload);
+    data.writeLong(crc.getValue());
+    data.flush();
+    out.write(bytes.toByteArray());
+    out.getFD().sync();
+  }
+
+  /**
+   * Reads a record from the journal.
+   *
+   * @return the record, or {@code null} at the end of the journal or at
+   *         the first incomplete or corrupt record
+   */
+  private static Record readRecord(DataInputStream in) throws IOException {
+    try {
+      int length = in.readInt();
+      if (length <= 0 || length > in.available()) {
+        return null;
+      }
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      long checksum = in.readLong();
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if (crc.getValue() != checksum) {
+        LOGGER.warning("Ignoring corrupt record in checkpoint journal.");
+        return null;
+      }
+      DataInputStream data =
+          new DataInputStream(new ByteArrayInputStream(payload));
+      byte type = data.readByte();
+      StoreContext context =
+          new StoreContext(readString(data), readString(data));
+      return new Record(context, (type == STORE) ? readString(data) : null);
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value)
+      throws IOException {
+    byte[] bytes = value.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /** A journal record. A {@code null} checkpoint records a removal. */
+  private static class Record {
+    final StoreContext context;
+    final String checkpoint;
+
+    Record(StoreContext context, String checkpoint) {
+      this.context = context;
+      this.checkpoint = checkpoint;
+    }
+  }
+}
@@ -17,6 +17,7 @@ package com.google.enterprise.connector.pusher;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.manager.MetadataCache;
 import com.google.enterprise.connector.spi.Document;
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
 import com.google.enterprise.connector.spi.RepositoryException;
@@ -25,18 +26,21 @@ import com.google.enterprise.connector.spi.SpiConstants.FeedType;
 import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
 import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -84,17 +88,48 @@ public class DocPusher implements Pusher {
   private final String connectorName;
 
   /**
-   * ExcecutorService that submits a Feed to the GSA in a separate thread.
+   * The directory in which feeds are spooled, or {@code null} if feeds
+   * are accumulated in memory.
+   */
+  private final File feedSpoolDirectory;
+
+  /**
+   * FeedSender that submits a Feed to the GSA in a separate thread.
    * This allows us to overlap I/O reading content from the Repository
    * in the traversal thread, and submitting content to the GSA in
-   * a submitFeed thread.
+   * a FeedSender thread.
+   */
+  private final FeedSender feedSender;
+
+  /**
+   * True if this DocPusher created its own FeedSender, rather than
+   * sharing one with other DocPushers.
+   */
+  private final boolean ownsFeedSender;
+
+  /**
+   * This is the set of outstanding asynchronous feed submissions.
+   * Submissions remove themselves from the set when they complete.
+   */
+  private final Set<FeedSubmission> submissions;
+
+  /**
+   * The first failure of an asynchronous feed submission that has not
+   * yet been reported.  Guarded by {@code submissions}.
    */
-  private final ExecutorService feedSender;
+  private Throwable submissionFailure = null;
 
   /**
-   * This is the list of outstanding asynchronous feed submissions.
+   * True once this Pusher has been flushed or canceled.
    */
-  private final LinkedList<FutureTask<String>> submissions;
+  private volatile boolean isShutdown = false;
+
+  /**
+   * Empty feeds of each FeedType, used to create record feeds for
+   * documents encoded concurrently.
+   */
+  private final Map<FeedType, XmlFeed> recordTemplates =
+      new EnumMap<FeedType, XmlFeed>(FeedType.class);
 
   /**
    * This is used to build up a multi-record feed.  Documents are added to the
@@ -114,7 +149,13 @@ public class DocPusher implements Pusher {
   private StringBuilder feedLog = null;
 
   // For use by unit tests.
-  private String gsaResponse;
+  private volatile String gsaResponse;
+
+  /**
+   * The cache of Retriever metadata, whose entries are discarded for the
+   * documents that are fed.  May be {@code null}.
+   */
+  private MetadataCache metadataCache = null;
 
   /**
    * Creates a {@code DocPusher} object from the specified
@@ -132,14 +173,80 @@ public class DocPusher implements Pusher {
   public DocPusher(FeedConnection feedConnection, String connectorName,
                    FileSizeLimitInfo fileSizeLimitInfo,
                    DocumentFilterFactory documentFilterFactory) {
+    this(feedConnection, connectorName, fileSizeLimitInfo,
+         documentFilterFactory, null);
+  }
+
+  /**
+   * Creates a {@code DocPusher} object from the specified
+   * {@code feedConnection} and {@code connectorName}.  The supplied
+   * {@link FileSizeLimitInfo} specifies constraints as to the size of a
+   * Document's content and the size of generated Feed files.
+   *
+   * @param feedConnection a FeedConnection
+   * @param connectorName The connector name that is the source of the feed
+   * @param fileSizeLimitInfo FileSizeLimitInfo constraints on document content
+   *        and feed size.
+   * @param documentFilterFactory a {@link DocumentFilterFactory} that creates
+   *        document processing filters.
+   * @param feedSpoolDirectory the directory in which to spool feed files,
+   *        or {@code null} to build feeds in memory.
+   */
+  public DocPusher(FeedConnection feedConnection, String connectorName,
+                   FileSizeLimitInfo fileSizeLimitInfo,
+                   DocumentFilterFactory documentFilterFactory,
+                   File feedSpoolDirectory) {
+    this(feedConnection, connectorName, fileSizeLimitInfo,
+         documentFilterFactory, feedSpoolDirectory, null);
+  }
+
+  /**
+   * Creates a {@code DocPusher} object from the specified
+   * {@code feedConnection} and {@code connectorName}.  The supplied
+   * {@link FileSizeLimitInfo} specifies constraints as to the size of a
+   * Document's content and the size of generated Feed files.
+   *
+   * @param feedConnection a FeedConnection
+   * @param connectorName The connector name that is the source of the feed
+   * @param fileSizeLimitInfo FileSizeLimitInfo constraints on document content
+   *        and feed size.
+   * @param documentFilterFactory a {@link DocumentFilterFactory} that creates
+   *        document processing filters.
+   * @param feedSpoolDirectory the directory in which to spool feed files,
+   *        or {@code null} to build feeds in memory.
+   * @param feedSender a {@link FeedSender} shared with other Pushers,
+   *        or {@code null} to send feeds using a dedicated thread.
+   */
+  public DocPusher(FeedConnection feedConnection, String connectorName,
+                   FileSizeLimitInfo fileSizeLimitInfo,
+                   DocumentFilterFactory documentFilterFactory,
+                   File feedSpoolDirectory, FeedSender feedSender) {
     this.feedConnection = feedConnection;
     this.connectorName = connectorName;
     this.fileSizeLimit = fileSizeLimitInfo;
     this.documentFilterFactory = documentFilterFactory;
+    this.feedSpoolDirectory = feedSpoolDirectory;
 
     // Initialize background feed submission.
-    this.submissions = new LinkedList<FutureTask<String>>();
-    this.feedSender = Executors.newSingleThreadExecutor();
+    this.submissions = new LinkedHashSet<FeedSubmission>();
+    if (feedSender == null) {
+      this.feedSender = new FeedSender(1, Integer.MAX_VALUE, 1);
+      this.ownsFeedSender = true;
+    } else {
+      this.feedSender = feedSender;
+      this.ownsFeedSender = false;
+    }
+  }
+
+  /**
+   * Sets the cache of Retriever metadata.  The cached metadata of each
+   * document added to the feed is discarded, so that content URL requests
+   * see the changes made since it was cached.
+   *
+   * @param metadataCache a {@link MetadataCache}, may be {@code null}
+   */
+  void setMetadataCache(MetadataCache metadataCache) {
+    this.metadataCache = metadataCache;
   }
 
   /**
@@ -187,7 +294,7 @@ public class DocPusher implements Pusher {
   @Override
   public PusherStatus take(Document document)
       throws PushException, FeedException, RepositoryException {
-    if (feedSender.isShutdown()) {
+    if (isShutdown) {
       return PusherStatus.DISABLED;
     }
     checkSubmissions();
@@ -195,15 +302,167 @@ public class DocPusher implements Pusher {
     // Apply any configured Document filters to the document.
     document = documentFilterFactory.newDocumentFilter(document);
 
-    FeedType feedType;
+    prepareFeed(getFeedType(document));
+
+    boolean isThrowing = false;
+    int resetPoint = xmlFeed.size();
+    int resetCount = xmlFeed.getRecordCount();
+    try {
+      logDocument(document);
+
+      // Add this document to the feed.
+      xmlFeed.addRecord(document);
+      invalidateMetadata(document);
+
+      return checkFeedFull();
+
+    } catch (OutOfMemoryError me) {
+      resetFeed(resetPoint, resetCount);
+      throw new PushException("Out of memory building feed, retrying.", me);
+    } catch (RuntimeException e) {
+      resetFeed(resetPoint, resetCount);
+      LOGGER.log(Level.WARNING,
+          "Rethrowing RuntimeException as RepositoryDocumentException", e);
+      throw new RepositoryDocumentException(e);
+    } catch (RepositoryDocumentException rde) {
+      // Skipping this document, remove it from the feed.
+      resetFeed(resetPoint, resetCount);
+      throw rde;
+    } catch (IOException ioe) {
+      LOGGER.log(Level.SEVERE, "IOException while reading: skipping", ioe);
+      resetFeed(resetPoint, resetCount);
+      Throwable t = ioe.getCause();
+      isThrowing = true;
+      if (t != null && (t instanceof RepositoryException)) {
+        throw (RepositoryException) t;
+      } else {
+        throw new RepositoryDocumentException("I/O error reading data", ioe);
+      }
+    }
+  }
+
+  /**
+   * Encodes a Document as feed records, without adding them to a feed.
+   * Documents may be encoded concurrently, from different threads.
+   * The returned records must later be passed to {@link #commit}, in the
+   * order that the documents were returned by the connector.
+   *
+   * @param document Document corresponding to the document.
+   * @return a record feed containing the encoded document
+   * @throws PushException if Pusher problem
+   * @throws RepositoryDocumentException if fatal Document problem
+   * @throws RepositoryException if transient Repository problem
+   */
+  XmlFeed encode(Document document)
+      throws PushException, RepositoryException {
+    // Apply any configured Document filters to the document.
+    document = documentFilterFactory.newDocumentFilter(document);
+
+    XmlFeed records = getRecordTemplate(getFeedType(document)).newRecordFeed(
+        FEED_LOGGER.isLoggable(FEED_LOG_LEVEL) ? new StringBuilder() : null);
+    try {
+      logDocument(document);
+      records.addRecord(document);
+      invalidateMetadata(document);
+      return records;
+    } catch (OutOfMemoryError me) {
+      throw new PushException("Out of memory building feed, retrying.", me);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING,
+          "Rethrowing RuntimeException as RepositoryDocumentException", e);
+      throw new RepositoryDocumentException(e);
+    } catch (IOException ioe) {
+      LOGGER.log(Level.SEVERE, "IOException while reading: skipping", ioe);
+      Throwable t = ioe.getCause();
+      if (t != null && (t instanceof RepositoryException)) {
+        throw (RepositoryException) t;
+      } else {
+        throw new RepositoryDocumentException("I/O error reading data", ioe);
+      }
+    }
+  }
+
+  /**
+   * Adds records returned by {@link #encode} to the feed, sending the feed
+   * to the GSA if it is full.  The records are released.
+   *
+   * @param records a record feed returned by {@link #encode}
+   * @return PusherStatus. If OK, Pusher may accept more documents.
+   * @throws PushException if Pusher problem
+   * @throws FeedException if transient Feed problem
+   * @throws RepositoryException if transient Repository problem
+   */
+  PusherStatus commit(XmlFeed records)
+      throws PushException, FeedException, RepositoryException {
+    try {
+      if (isShutdown) {
+        return PusherStatus.DISABLED;
+      }
+      checkSubmissions();
+      // Records are encoded according to their own FeedType, so they may
+      // only be appended to a feed of exactly that type.
+      if (xmlFeed != null && xmlFeed.getFeedType() != records.getFeedType()) {
+        submitFeed();
+      }
+      prepareFeed(records.getFeedType());
+
+      int resetPoint = xmlFeed.size();
+      int resetCount = xmlFeed.getRecordCount();
+      try {
+        xmlFeed.appendRecords(records);
+      } catch (IOException ioe) {
+        resetFeed(resetPoint, resetCount);
+        throw new FeedException("Error adding records to feed", ioe);
+      }
+      return checkFeedFull();
+    } finally {
+      records.release();
+    }
+  }
+
+  /**
+   * Returns the FeedType of the document.
+   *
+   * @throws RepositoryDocumentException if the FeedType is invalid
+   */
+  private static FeedType getFeedType(Document document)
+      throws RepositoryException {
     try {
-      feedType = DocUtils.getFeedType(document);
+      return DocUtils.getFeedType(document);
     } catch (RuntimeException e) {
       LOGGER.log(Level.WARNING,
           "Rethrowing RuntimeException as RepositoryDocumentException", e);
       throw new RepositoryDocumentException(e);
     }
+  }
+
+  /**
+   * Returns an empty feed of the specified type, used to create record
+   * feeds for {@link #encode}.
+   */
+  private XmlFeed getRecordTemplate(FeedType feedType) throws PushException {
+    synchronized (recordTemplates) {
+      XmlFeed template = recordTemplates.get(feedType);
+      if (template == null) {
+        try {
+          template = new XmlFeed(connectorName, feedType, fileSizeLimit, null,
+              feedConnection, new MemoryFeedBuffer(1024));
+        } catch (IOException e) {
+          throw new PushException("Error creating feed", e);
+        }
+        recordTemplates.put(feedType, template);
+      }
+      return template;
+    }
+  }
 
+  /**
+   * Makes sure that the current feed can accept records of the specified
+   * type, sending any incompatible feed off to the GSA and starting a new
+   * feed, if necessary.
+   */
+  private void prepareFeed(FeedType feedType)
+      throws PushException, FeedException, RepositoryException {
     // All feeds in a feed file must be of the same type.
     // If the feed would change type, send the feed off to the GSA
     // and start a new one.
@@ -228,58 +487,45 @@ public class DocPusher implements Pusher {
             + " intances, or adjusting the JVM heap size parameters.", me);
       }
     }
+  }
 
-    boolean isThrowing = false;
-    int resetPoint = xmlFeed.size();
-    int resetCount = xmlFeed.getRecordCount();
-    try {
-      if (LOGGER.isLoggable(Level.FINER)) {
-        LOGGER.log(Level.FINER, "DOCUMENT: Adding document with docid={0} and "
-            + "searchurl={1} from connector {2} to feed.", new Object[] {
-            DocUtils.getOptionalString(document, SpiConstants.PROPNAME_DOCID),
-            DocUtils.getOptionalString(document,
-              SpiConstants.PROPNAME_SEARCHURL),
-            connectorName});
+  /**
+   * If the feed is full, sends it off to the GSA.
+   *
+   * @return PusherStatus. If OK, Pusher may accept more documents.
+   */
+  private PusherStatus checkFeedFull()
+      throws PushException, FeedException, RepositoryException {
+    if (xmlFeed.isFull() || lowMemory()) {
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("Feed for " + connectorName + " has grown to "
+            + xmlFeed.size() + " bytes. Closing feed and sending to GSA.");
       }
+      submitFeed();
+      return getPusherStatus();
+    }
 
-      // Add this document to the feed.
-      xmlFeed.addRecord(document);
-
-      // If the feed is full, send it off to the GSA.
-      if (xmlFeed.isFull() || lowMemory()) {
-        if (LOGGER.isLoggable(Level.FINE)) {
-          LOGGER.fine("Feed for " + connectorName + " has grown to "
-              + xmlFeed.size() + " bytes. Closing feed and sending to GSA.");
-        }
-        submitFeed();
-        return getPusherStatus();
-      }
+    // Indicate that this Pusher may accept more documents.
+    return PusherStatus.OK;
+  }
 
-      // Indicate that this Pusher may accept more documents.
-      return PusherStatus.OK;
+  private void logDocument(Document document) throws RepositoryException {
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.log(Level.FINER, "DOCUMENT: Adding document with docid={0} and "
+          + "searchurl={1} from connector {2} to feed.", new Object[] {
+          DocUtils.getOptionalString(document, SpiConstants.PROPNAME_DOCID),
+          DocUtils.getOptionalString(document,
+            SpiConstants.PROPNAME_SEARCHURL),
+          connectorName});
+    }
+  }
 
-    } catch (OutOfMemoryError me) {
-      resetFeed(resetPoint, resetCount);
-      throw new PushException("Out of memory building feed, retrying.", me);
-    } catch (RuntimeException e) {
-      resetFeed(resetPoint, resetCount);
-      LOGGER.log(Level.WARNING,
-          "Rethrowing RuntimeException as RepositoryDocumentException", e);
-      throw new RepositoryDocumentException(e);
-    } catch (RepositoryDocumentException rde) {
-      // Skipping this document, remove it from the feed.
-      resetFeed(resetPoint, resetCount);
-      throw rde;
-    } catch (IOException ioe) {
-      LOGGER.log(Level.SEVERE, "IOException while reading: skipping", ioe);
-      resetFeed(resetPoint, resetCount);
-      Throwable t = ioe.getCause();
-      isThrowing = true;
-      if (t != null && (t instanceof RepositoryException)) {
-        throw (RepositoryException) t;
-      } else {
-        throw new RepositoryDocumentException("I/O error reading data", ioe);
-      }
+  /** Discards any cached Retriever metadata for the fed document. */
+  private void invalidateMetadata(Document document)
+      throws RepositoryException {
+    if (metadataCache != null && metadataCache.isEnabled()) {
+      metadataCache.invalidate(connectorName,
+          DocUtils.getOptionalString(document, SpiConstants.PROPNAME_DOCID));
     }
   }
 
@@ -300,23 +546,30 @@ public class DocPusher implements Pusher {
   @Override
   public void flush() throws PushException, FeedException, RepositoryException {
     checkSubmissions();
-    if (!feedSender.isShutdown()) {
+    if (!isShutdown) {
       if (xmlFeed != null) {
         LOGGER.fine("Flushing accumulated feed to GSA");
         submitFeed();
       }
-      feedSender.shutdown();
+      isShutdown = true;
     }
-    while (!feedSender.isTerminated()) {
-      try {
-        feedSender.awaitTermination(10, TimeUnit.SECONDS);
-      } catch (InterruptedException ie) {
-        if (checkSubmissions() > 0) {
-          throw new FeedException("Interrupted while waiting for feeds.");
+    try {
+      while (checkSubmissions() > 0) {
+        try {
+          synchronized(submissions) {
+            if (!submissions.isEmpty()) {
+              submissions.wait(10 * 1000L);
+            }
+          }
+        } catch (InterruptedException ie) {
+          if (checkSubmissions() > 0) {
+            throw new FeedException("Interrupted while waiting for feeds.");
+          }
         }
       }
+    } finally {
+      shutdownFeedSender(false);
     }
-    checkSubmissions();
   }
 
   /**
@@ -327,20 +580,43 @@ public class DocPusher implements Pusher {
     // Discard any feed under construction.
     if (xmlFeed != null) {
       LOGGER.fine("Discarding accumulated feed for " + connectorName);
+      xmlFeed.release();
       xmlFeed = null;
     }
     if (feedLog != null) {
       feedLog = null;
     }
-    // Cancel any feeds under asynchronous submission.
-    feedSender.shutdownNow();
+    isShutdown = true;
+    // Cancel any feeds under asynchronous submission.  Those that have
+    // not yet started are simply removed from the FeedSender's queue.
+    List<FeedSubmission> pending;
+    synchronized(submissions) {
+      pending = new ArrayList<FeedSubmission>(submissions);
+    }
+    for (FeedSubmission submission : pending) {
+      submission.cancel(!feedSender.remove(submission));
+    }
+    shutdownFeedSender(true);
+  }
+
+  /**
+   * Shuts down the FeedSender, if this Pusher owns it.
+   */
+  private void shutdownFeedSender(boolean interrupt) {
+    if (ownsFeedSender) {
+      try {
+        feedSender.shutdown(interrupt, 0L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
   }
 
   @Override
   public PusherStatus getPusherStatus()
       throws PushException, FeedException, RepositoryException {
     // Is Pusher shutdown?
-    if (feedSender.isShutdown()) {
+    if (isShutdown) {
       return PusherStatus.DISABLED;
     }
 
@@ -363,46 +639,30 @@ public class DocPusher implements Pusher {
   }
 
   /**
-   * Checks on asynchronously submitted feeds to see if they completed
-   * or failed.  If any of the submissions failed, throw an Exception.
+   * Checks on asynchronously submitted feeds to see if any of them
+   * failed.  If any of the submissions failed, throw an Exception.
    *
-   * @return number if items remaining in the submissions list
+   * @return number of submissions that have not yet completed
    */
   @VisibleForTesting
   int checkSubmissions()
       throws PushException, FeedException, RepositoryException {
-    int count = 0;  // Count of outstanding items in the list.
     synchronized(submissions) {
-      ListIterator<FutureTask<String>> iter = submissions.listIterator();
-      while (iter.hasNext()) {
-        FutureTask<String> future = iter.next();
-        if (future.isDone()) {
-          iter.remove();
-          try {
-            gsaResponse = future.get();
-          } catch (InterruptedException ie) {
-            // Shouldn't happen if isDone.
-          } catch (ExecutionException ee) {
-            Throwable cause = ee.getCause();
-            if (cause == null) {
-              cause = ee;
-            }
-            if (cause instanceof PushException) {
-              throw (PushException) cause;
-            } else if (cause instanceof FeedException) {
-              throw (FeedException) cause;
-            } else if (cause instanceof RepositoryException) {
-              throw (RepositoryException) cause;
-            } else {
-              throw new FeedException("Error submitting feed", cause);
-            }
-          }
+      if (submissionFailure != null) {
+        Throwable cause = submissionFailure;
+        submissionFailure = null;
+        if (cause instanceof PushException) {
+          throw (PushException) cause;
+        } else if (cause instanceof FeedException) {
+          throw (FeedException) cause;
+        } else if (cause instanceof RepositoryException) {
+          throw (RepositoryException) cause;
         } else {
-          count++;
+          throw new FeedException("Error submitting feed", cause);
         }
       }
+      return submissions.size();
     }
-    return count;
   }
 
   /**
@@ -411,7 +671,10 @@ public class DocPusher implements Pusher {
    * @return true if free memory is running low.
    */
   private boolean lowMemory() {
-    long threshold = ((fileSizeLimit.maxFeedSize() + fileSizeLimit.maxDocumentSize()) * 4) / 3;
+    // Spooled feeds do not consume heap proportional to the feed size.
+    long feedSize =
+        (feedSpoolDirectory == null) ? fileSizeLimit.maxFeedSize() : 0L;
+    long threshold = ((feedSize + fileSizeLimit.maxDocumentSize()) * 4) / 3;
     Runtime rt = Runtime.getRuntime();
     if ((rt.maxMemory() - (rt.totalMemory() - rt.freeMemory())) < threshold) {
       rt.gc();
@@ -445,7 +708,7 @@ public class DocPusher implements Pusher {
       try {
         // Allocate XmlFeed of the target size.
         xmlFeed = new XmlFeed(connectorName, feedType, fileSizeLimit, feedLog,
-            feedConnection);
+            feedConnection, feedSpoolDirectory);
       } catch (OutOfMemoryError me) {
         // We shouldn't even have gotten this far under a low memory condition.
         // However, try to allocate a tiny feed buffer.  It should fill up on
@@ -459,7 +722,7 @@ public class DocPusher implements Pusher {
         newLimit.setMaxDocumentSize(fileSizeLimit.maxDocumentSize());
         try {
           xmlFeed = new XmlFeed(connectorName, feedType, newLimit, feedLog,
-              feedConnection);
+              feedConnection, feedSpoolDirectory);
         } catch (OutOfMemoryError oome) {
           throw new OutOfMemoryError(
                "Unable to allocate feed buffer for connector " + connectorName);
@@ -469,7 +732,11 @@ public class DocPusher implements Pusher {
       throw new PushException("Error creating feed", ioe);
     }
 
-    LOGGER.fine("Allocated a new feed of size " + feedSize);
+    if (feedSpoolDirectory == null) {
+      LOGGER.fine("Allocated a new feed of size " + feedSize);
+    } else {
+      LOGGER.fine("Allocated a new feed spooled to " + feedSpoolDirectory);
+    }
     return;
   }
 
@@ -499,31 +766,87 @@ public class DocPusher implements Pusher {
     try {
       feed.close();
     } catch (IOException ioe) {
+      feed.release();
       throw new PushException("Error closing feed", ioe);
     }
 
-    try {
-      // Send the feed to the GSA in a separate thread.
-      FutureTask<String> future = new FutureTask<String> (
-          new Callable<String>() {
-            public String call()
-                throws PushException, FeedException, RepositoryException {
-              try {
-                NDC.push("Feed " + feed.getDataSource());
-                return submitFeed(feed, logMessage);
-              } finally {
-                NDC.remove();
-              }
+    // Send the feed to the GSA in a separate thread.  Whichever of the
+    // sender or the canceled submission claims the feed releases it.
+    final AtomicBoolean claimed = new AtomicBoolean();
+    FeedSubmission future = new FeedSubmission(feed, claimed,
+        new Callable<String>() {
+          public String call()
+              throws PushException, FeedException, RepositoryException {
+            if (!claimed.compareAndSet(false, true)) {
+              // Canceled after the submission started to run.
+              return null;
+            }
+            try {
+              NDC.push("Feed " + feed.getDataSource());
+              return submitFeed(feed, logMessage);
+            } finally {
+              feed.release();
+              NDC.remove();
             }
           }
-        );
-      feedSender.execute(future);
-      // Add the future to list of outstanding submissions.
-      synchronized(submissions) {
-        submissions.add(future);
-      }
+        }
+      );
+    // Add the future to set of outstanding submissions before it can
+    // possibly complete.
+    synchronized(submissions) {
+      submissions.add(future);
+    }
+    try {
+      feedSender.execute(connectorName, feedConnection, future);
     } catch (RejectedExecutionException ree) {
+      future.cancel(false);
       throw new FeedException("Asynchronous feed was rejected. ", ree);
+    } catch (InterruptedException ie) {
+      future.cancel(false);
+      Thread.currentThread().interrupt();
+      throw new FeedException("Interrupted while queueing feed.", ie);
+    }
+  }
+
+  /**
+   * An asynchronous feed submission.  When complete, the submission
+   * removes itself from the outstanding submissions and records its
+   * result.  The feed is released by the callable if it claimed the
+   * feed to send it, otherwise by the submission when it is done.
+   */
+  private class FeedSubmission extends FutureTask<String> {
+    private final XmlFeed feed;
+    private final AtomicBoolean claimed;
+
+    FeedSubmission(XmlFeed feed, AtomicBoolean claimed,
+        Callable<String> callable) {
+      super(callable);
+      this.feed = feed;
+      this.claimed = claimed;
+    }
+
+    @Override
+    protected void done() {
+      if (claimed.compareAndSet(false, true)) {
+        // The feed was never sent.
+        feed.release();
+      }
+      synchronized(submissions) {
+        submissions.remove(this);
+        if (!isCancelled()) {
+          try {
+            gsaResponse = get();
+          } catch (InterruptedException ie) {
+            // Shouldn't happen if isDone.
+          } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (submissionFailure == null) {
+              submissionFailure = (cause == null) ? ee : cause;
+            }
+          }
+        }
+        submissions.notifyAll();
+      }
     }
   }
 
@@ -14,10 +14,15 @@
 
 package com.google.enterprise.connector.pusher;
 
+import com.google.common.base.Strings;
 import com.google.enterprise.connector.instantiator.DocumentFilterFactoryFactory;
 import com.google.enterprise.connector.instantiator.DocumentFilterFactoryFactoryImpl;
+import com.google.enterprise.connector.manager.MetadataCache;
 import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
 
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 /**
@@ -52,6 +57,39 @@ public class DocPusherFactory implements PusherFactory {
    */
   private final DocumentFilterFactoryFactory documentFilterFactoryFactory;
 
+  /**
+   * The directory in which to spool feed files.  If {@code null},
+   * feeds are accumulated in memory.
+   */
+  private File feedSpoolDirectory = null;
+
+  /**
+   * The {@link FeedSender} shared by all the Pushers.  If {@code null},
+   * each Pusher sends its feeds using a dedicated thread.
+   */
+  private FeedSender feedSender = null;
+
+  /**
+   * The number of threads used to encode documents while the traversal
+   * continues.  If zero, documents are encoded by the traversal thread.
+   */
+  private int pipelineThreads = 0;
+
+  /**
+   * The maximum number of documents per traversal that may be waiting
+   * to be added to the feed.
+   */
+  private int pipelineDepth = 16;
+
+  /**
+   * The cache of Retriever metadata, whose entries are discarded for the
+   * documents that are fed.  May be {@code null}.
+   */
+  private MetadataCache metadataCache = null;
+
+  /** The lazily created pool of encoder threads. */
+  private ExecutorService encoder = null;
+
   /**
    * Creates a {@code DocPusherFactory} object from the specified
    * {@code feedConnection}.  This constructor is Used by the tests.
@@ -87,9 +125,108 @@ public class DocPusherFactory implements PusherFactory {
     LOGGER.config(documentFilterFactoryFactory.toString());
   }
 
+  /**
+   * Sets the directory in which feed files are spooled while they are
+   * being built and sent.  Spooling feeds to disk keeps the heap used
+   * by each connector instance from growing with the feed size.
+   * If {@code null} or empty, feeds are accumulated in memory.
+   *
+   * @param feedSpoolDirectory a directory name, may be {@code null}
+   * @throws IllegalArgumentException if the directory does not exist
+   *         and cannot be created
+   */
+  public void setFeedSpoolDirectory(String feedSpoolDirectory) {
+    if (Strings.isNullOrEmpty(feedSpoolDirectory)) {
+      this.feedSpoolDirectory = null;
+      return;
+    }
+    File dir = new File(feedSpoolDirectory);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IllegalArgumentException(
+          "Unable to create feed spool directory " + dir);
+    }
+    this.feedSpoolDirectory = dir;
+    LOGGER.config("Spooling feeds to " + dir.getAbsolutePath());
+  }
+
+  /**
+   * Sets the {@link FeedSender} used to send feeds to the GSA.
+   * If {@code null}, each Pusher sends its feeds using a dedicated thread.
+   *
+   * @param feedSender a {@link FeedSender}, may be {@code null}
+   */
+  public void setFeedSender(FeedSender feedSender) {
+    this.feedSender = feedSender;
+    if (feedSender != null) {
+      LOGGER.config(feedSender.toString());
+    }
+  }
+
+  /**
+   * Sets the number of threads used to encode documents concurrently with
+   * the traversal.  If zero, documents are encoded by the traversal thread.
+   * The encoder threads are shared by all the Pushers.
+   *
+   * @param pipelineThreads the number of encoder threads, or zero
+   * @throws IllegalArgumentException if {@code pipelineThreads} is negative
+   */
+  public synchronized void setPipelineThreads(int pipelineThreads) {
+    if (pipelineThreads < 0) {
+      throw new IllegalArgumentException(
+          "pipelineThreads must not be negative.");
+    }
+    this.pipelineThreads = pipelineThreads;
+    if (pipelineThreads > 0) {
+      LOGGER.config("Encoding documents using " + pipelineThreads
+          + " threads");
+    }
+  }
+
+  /**
+   * Sets the maximum number of documents per traversal that may be
+   * encoded, but not yet added to the feed.
+   *
+   * @param pipelineDepth the maximum number of pending documents
+   * @throws IllegalArgumentException if {@code pipelineDepth} is not
+   *         positive
+   */
+  public void setPipelineDepth(int pipelineDepth) {
+    if (pipelineDepth <= 0) {
+      throw new IllegalArgumentException("pipelineDepth must be positive.");
+    }
+    this.pipelineDepth = pipelineDepth;
+  }
+
+  /**
+   * Sets the cache of Retriever metadata.  The cached metadata of each
+   * document that is fed is discarded.
+   *
+   * @param metadataCache a {@link MetadataCache}, may be {@code null}
+   */
+  public void setMetadataCache(MetadataCache metadataCache) {
+    this.metadataCache = metadataCache;
+  }
+
   @Override
   public Pusher newPusher(String dataSource) {
-    return new DocPusher(feedConnection, dataSource, fileSizeLimit,
-        documentFilterFactoryFactory.getDocumentFilterFactory(dataSource));
+    DocPusher pusher = new DocPusher(feedConnection, dataSource, fileSizeLimit,
+        documentFilterFactoryFactory.getDocumentFilterFactory(dataSource),
+        feedSpoolDirectory, feedSender);
+    pusher.setMetadataCache(metadataCache);
+    ExecutorService executor = getEncoder();
+    return (executor == null)
+        ? pusher : new PipelinedPusher(pusher, executor, pipelineDepth);
+  }
+
+  /**
+   * Returns the shared pool of encoder threads, creating it if necessary,
+   * or {@code null} if documents are encoded by the traversal thread.
+   */
+  private synchronized ExecutorService getEncoder() {
+    if (encoder == null && pipelineThreads > 0) {
+      encoder = Executors.newFixedThreadPool(pipelineThreads,
+          new NamedThreadFactory("DocumentEncoder"));
+    }
+    return encoder;
   }
 }
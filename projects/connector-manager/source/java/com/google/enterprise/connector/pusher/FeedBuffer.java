@@ -0,0 +1,67 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Backing storage for the bytes of an {@link XmlFeed}.
+ */
+interface FeedBuffer {
+
+  /** Returns the number of bytes currently held in the buffer. */
+  public int size();
+
+  /** Appends a single byte to the buffer. */
+  public void write(int b) throws IOException;
+
+  /** Appends {@code len} bytes from {@code b}, starting at {@code off}. */
+  public void write(byte[] b, int off, int len) throws IOException;
+
+  /**
+   * Truncates the buffer to the specified {@code size}, effectively
+   * discarding any data that may have been written passed that point.
+   * The specified {@code size} cannot be greater than the current size.
+   *
+   * @param size new data size.
+   */
+  public void reset(int size);
+
+  /**
+   * Appends the complete contents of the supplied InputStream to the
+   * buffer.
+   *
+   * @param in the InputStream from which to read the data.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void readFrom(InputStream in) throws IOException;
+
+  /**
+   * Writes the complete contents of the buffer to the supplied
+   * OutputStream.
+   *
+   * @param out the OutputStream to which to write the data.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void writeTo(OutputStream out) throws IOException;
+
+  /**
+   * Releases any resources held by the buffer.  The buffer may not be
+   * used after it has been released.
+   */
+  public void release();
+}
@@ -0,0 +1,364 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.enterprise.connector.manager.ContextService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A feed submission service that may be shared by many {@link DocPusher}
+ * instances.  Feeds are sent to the GSA by a fixed number of worker threads.
+ * <p>
+ * Queued feeds are held per data source, and the workers take feeds from
+ * the data sources in round-robin order, so that a connector with many
+ * queued feeds cannot starve the others.  The total number of queued feeds
+ * is bounded; submitters block while the queue is full.  The number of
+ * feeds concurrently being sent to any one {@link FeedConnection} is also
+ * limited.
+ * <p>
+ * The worker threads are started lazily, when the first feed is submitted.
+ */
+public class FeedSender implements ContextService {
+  private static final Logger LOGGER =
+      Logger.getLogger(FeedSender.class.getName());
+
+  /** The default amount of time to wait for feeds to be sent at shutdown. */
+  public static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 10 * 1000L;
+
+  private final int workerCount;
+  private final int queueSize;
+  private final int maxFeedsPerConnection;
+
+  /** Queued feeds for each data source, in order of submission. */
+  private final Map<String, LinkedList<Submission>> queues =
+      new HashMap<String, LinkedList<Submission>>();
+
+  /** Data sources that have queued feeds, in round-robin order. */
+  private final LinkedList<String> readyOrder = new LinkedList<String>();
+
+  /** The number of feeds currently being sent to each FeedConnection. */
+  private final Map<FeedConnection, Integer> inFlight =
+      new IdentityHashMap<FeedConnection, Integer>();
+
+  /** The lazily started worker threads. */
+  private final List<Thread> workers = new ArrayList<Thread>();
+
+  private int queuedCount = 0;
+  private int inFlightCount = 0;
+  private boolean isShutdown = false;
+
+  /**
+   * Creates a {@code FeedSender}.
+   *
+   * @param workerCount the number of threads sending feeds
+   * @param queueSize the maximum number of feeds that may be queued,
+   *        waiting to be sent
+   * @param maxFeedsPerConnection the maximum number of feeds that may
+   *        be sent concurrently to the same {@link FeedConnection}
+   */
+  public FeedSender(int workerCount, int queueSize,
+      int maxFeedsPerConnection) {
+    if (workerCount <= 0) {
+      throw new IllegalArgumentException("workerCount must be positive.");
+    }
+    if (queueSize <= 0) {
+      throw new IllegalArgumentException("queueSize must be positive.");
+    }
+    if (maxFeedsPerConnection <= 0) {
+      throw new IllegalArgumentException(
+          "maxFeedsPerConnection must be positive.");
+    }
+    this.workerCount = workerCount;
+    this.queueSize = queueSize;
+    this.maxFeedsPerConnection = maxFeedsPerConnection;
+  }
+
+  @Override
+  public String toString() {
+    return "FeedSender: workerCount = " + workerCount + ", queueSize = "
+        + queueSize + ", maxFeedsPerConnection = " + maxFeedsPerConnection;
+  }
+
+  /**
+   * Queues a feed submission task.  The task will be run by one of the
+   * worker threads.  If the queue is full, this waits until there is room.
+   *
+   * @param dataSource the data source of the feed
+   * @param feedConnection the {@link FeedConnection} to which the task
+   *        sends the feed
+   * @param task the task that sends the feed
+   * @throws InterruptedException if interrupted while waiting for room
+   *         in the queue
+   * @throws RejectedExecutionException if this {@code FeedSender} has
+   *         been shut down
+   */
+  public synchronized void execute(String dataSource,
+      FeedConnection feedConnection, RunnableFuture<?> task)
+      throws InterruptedException {
+    while (queuedCount >= queueSize && !isShutdown) {
+      wait();
+    }
+    if (isShutdown) {
+      throw new RejectedExecutionException("FeedSender has been shut down.");
+    }
+    LinkedList<Submission> queue = queues.get(dataSource);
+    if (queue == null) {
+      queue = new LinkedList<Submission>();
+      queues.put(dataSource, queue);
+    }
+    if (queue.isEmpty()) {
+      readyOrder.addLast(dataSource);
+    }
+    queue.addLast(new Submission(feedConnection, task));
+    queuedCount++;
+    startWorkers();
+    notifyAll();
+  }
+
+  /**
+   * Removes a task from the queue, if it has not yet started running.
+   *
+   * @param task a task previously passed to {@link #execute}
+   * @return {@code true} if the task was removed from the queue,
+   *         {@code false} if it has already been taken by a worker
+   */
+  public synchronized boolean remove(RunnableFuture<?> task) {
+    for (Map.Entry<String, LinkedList<Submission>> entry : queues.entrySet()) {
+      Iterator<Submission> iter = entry.getValue().iterator();
+      while (iter.hasNext()) {
+        if (iter.next().task == task) {
+          iter.remove();
+          queuedCount--;
+          if (entry.getValue().isEmpty()) {
+            readyOrder.remove(entry.getKey());
+          }
+          notifyAll();
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Returns the number of feeds waiting to be sent. */
+  public synchronized int getQueuedCount() {
+    return queuedCount;
+  }
+
+  /** Returns the number of feeds currently being sent. */
+  public synchronized int getInFlightCount() {
+    return inFlightCount;
+  }
+
+  /**
+   * Shuts down this {@code FeedSender}.  No new feeds will be accepted.
+   *
+   * @param interrupt if {@code true}, queued feeds are canceled and the
+   *        workers sending feeds are interrupted; otherwise, queued feeds
+   *        are allowed to be sent
+   * @param waitMillis maximum amount of time to wait for the workers to
+   *        finish
+   * @return {@code true} if all the workers terminated, {@code false}
+   *         otherwise
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean shutdown(boolean interrupt, long waitMillis)
+      throws InterruptedException {
+    List<Thread> threads;
+    List<Submission> canceled = new ArrayList<Submission>();
+    synchronized (this) {
+      isShutdown = true;
+      if (interrupt) {
+        for (LinkedList<Submission> queue : queues.values()) {
+          canceled.addAll(queue);
+        }
+        queues.clear();
+        readyOrder.clear();
+        queuedCount = 0;
+      }
+      threads = new ArrayList<Thread>(workers);
+      notifyAll();
+    }
+    for (Submission submission : canceled) {
+      submission.task.cancel(false);
+    }
+    long deadline = System.currentTimeMillis() + waitMillis;
+    for (Thread thread : threads) {
+      if (interrupt) {
+        thread.interrupt();
+      }
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining > 0) {
+        thread.join(remaining);
+      }
+    }
+    for (Thread thread : threads) {
+      if (thread.isAlive()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /* ContextService Interface. */
+
+  /** Workers are started lazily, so this does nothing. */
+  @Override
+  public void start() {
+  }
+
+  @Override
+  public void stop(boolean force) {
+    try {
+      if (!shutdown(force, DEFAULT_SHUTDOWN_TIMEOUT_MILLIS)) {
+        LOGGER.warning("Some feeds were still being sent at shutdown.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public synchronized boolean isRunning() {
+    return !isShutdown && !workers.isEmpty();
+  }
+
+  @Override
+  public String getName() {
+    return getClass().getName();
+  }
+
+  /* Private Methods. */
+
+  /** Starts the worker threads, if they have not already been started. */
+  private void startWorkers() {
+    if (workers.isEmpty()) {
+      LOGGER.config(toString());
+      for (int i = 0; i < workerCount; i++) {
+        Thread thread = new Thread(new Worker(), "FeedSender-" + i);
+        thread.setDaemon(true);
+        workers.add(thread);
+        thread.start();
+      }
+    }
+  }
+
+  /**
+   * Returns the next queued submission to run, or {@code null} if
+   * this {@code FeedSender} has been shut down and the queue is empty.
+   */
+  private synchronized Submission take() throws InterruptedException {
+    while (true) {
+      Submission submission = poll();
+      if (submission != null) {
+        return submission;
+      }
+      if (isShutdown && queuedCount == 0) {
+        return null;
+      }
+      wait();
+    }
+  }
+
+  /**
+   * Takes the first queued submission from the next data source in
+   * round-robin order whose FeedConnection is not at its limit of
+   * concurrent feeds.
+   *
+   * @return a submission, or {@code null} if none may be run now
+   */
+  private Submission poll() {
+    Iterator<String> iter = readyOrder.iterator();
+    while (iter.hasNext()) {
+      String dataSource = iter.next();
+      LinkedList<Submission> queue = queues.get(dataSource);
+      Submission submission = queue.getFirst();
+      Integer count = inFlight.get(submission.feedConnection);
+      int sending = (count == null) ? 0 : count;
+      if (sending < maxFeedsPerConnection) {
+        queue.removeFirst();
+        queuedCount--;
+        iter.remove();
+        if (queue.isEmpty()) {
+          queues.remove(dataSource);
+        } else {
+          // Move to the end of the line.
+          readyOrder.addLast(dataSource);
+        }
+        inFlight.put(submission.feedConnection, sending + 1);
+        inFlightCount++;
+        // There is room in the queue now.
+        notifyAll();
+        return submission;
+      }
+    }
+    return null;
+  }
+
+  /** Records the completion of a submission. */
+  private synchronized void complete(Submission submission) {
+    int sending = inFlight.get(submission.feedConnection) - 1;
+    if (sending == 0) {
+      inFlight.remove(submission.feedConnection);
+    } else {
+      inFlight.put(submission.feedConnection, sending);
+    }
+    inFlightCount--;
+    notifyAll();
+  }
+
+  /** A queued feed submission task. */
+  private static class Submission {
+    final FeedConnection feedConnection;
+    final RunnableFuture<?> task;
+
+    Submission(FeedConnection feedConnection, RunnableFuture<?> task) {
+      this.feedConnection = feedConnection;
+      this.task = task;
+    }
+  }
+
+  /** Runs queued submissions until shut down. */
+  private class Worker implements Runnable {
+    @Override
+    public void run() {
+      try {
+        Submission submission;
+        while ((submission = take()) != null) {
+          try {
+            submission.task.run();
+          } finally {
+            // Clear any interrupt intended for the task.
+            Thread.interrupted();
+            complete(submission);
+          }
+        }
+      } catch (InterruptedException e) {
+        LOGGER.log(Level.FINEST, "FeedSender worker interrupted", e);
+      }
+    }
+  }
+}
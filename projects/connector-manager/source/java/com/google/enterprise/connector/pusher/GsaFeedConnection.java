@@ -22,6 +22,7 @@ import com.google.enterprise.connector.util.SslUtil;
 import com.google.enterprise.connector.util.SystemClock;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -30,13 +31,34 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 
 /**
  * Opens a connection to a url and sends data to it.
+ * <p>
+ * Connections to the GSA are kept alive and reused for subsequent feeds,
+ * backlog checks, and DTD requests.  Rather than a separate connection
+ * pool, idle connections are held in the JDK's HTTP keep-alive cache,
+ * which closes them once they have been idle longer than the server's
+ * keep-alive timeout (5 seconds, by default).  The cache is configured
+ * by the {@code http.keepAlive} and {@code http.maxConnections} system
+ * properties, which may be set by {@link #setKeepAlive} and
+ * {@link #setMaxConnections}.  HTTPS connections share a single SSL socket factory,
+ * so that new connections may resume existing SSL sessions rather than
+ * perform a full handshake.
+ * <p>
+ * If compression is enabled, the entire multipart feed upload is gzip
+ * compressed as it is streamed to the GSA, using chunked transfer encoding.
+ * Compression is only used with a GSA whose feed DTD identifies it as
+ * GSA 7.0 or later.  If the GSA nevertheless rejects a compressed upload
+ * with a status that refuses the request body's encoding, the feed is
+ * resent uncompressed, and compression is not tried again for a back-off
+ * period, which doubles with each consecutive rejection.
  */
 public class GsaFeedConnection implements FeedConnection {
   private static final Logger LOGGER =
@@ -71,6 +93,19 @@ public class GsaFeedConnection implements FeedConnection {
 
   private static final String CRLF = "\r\n";
 
+  /** The size of the buffer used to compress feed uploads. */
+  private static final int GZIP_BUFFER_SIZE = 32 * 1024;
+
+  /** The initial time to wait before retrying a rejected compression. */
+  private static final long MIN_COMPRESSION_BACKOFF_MILLIS = 15 * 60 * 1000L;
+
+  /** The longest time to wait before retrying a rejected compression. */
+  private static final long MAX_COMPRESSION_BACKOFF_MILLIS =
+      24 * 60 * 60 * 1000L;
+
+  /** The amount of an error response that is read for its message. */
+  private static final int MAX_ERROR_MESSAGE_LENGTH = 1024;
+
   // Content encodings supported by GSA.
   private String contentEncodings = null;
 
@@ -110,6 +145,27 @@ public class GsaFeedConnection implements FeedConnection {
   /** Whether HTTPS connections validate the server certificate. */
   private boolean validateCertificate = true;
 
+  /**
+   * The SSL socket factory used for all HTTPS connections. Created lazily,
+   * and retained so that connections and SSL sessions may be reused.
+   */
+  private MeteredSslSocketFactory sslSocketFactory = null;
+
+  /** Whether feed uploads should be compressed, if the GSA accepts them. */
+  private boolean compression = false;
+
+  /** Whether the GSA accepts compressed uploads, or null if not known. */
+  private Boolean compressedUploads = null;
+
+  /** The time before which compression is not retried, once rejected. */
+  private long compressionRetryTime = 0L;
+
+  /** The time to wait after the next rejection of a compressed upload. */
+  private long compressionBackoff = MIN_COMPRESSION_BACKOFF_MILLIS;
+
+  /** The number of HTTP requests made to the GSA. */
+  private final AtomicLong requestCount = new AtomicLong();
+
   public GsaFeedConnection(String protocol, String host, int port,
       int securePort) throws MalformedURLException {
     if (Strings.isNullOrEmpty(protocol)) {
@@ -142,6 +198,9 @@ public class GsaFeedConnection implements FeedConnection {
     contentEncodings = null;
     backlogUrl = new URL(protocol, host, port, "/getbacklogcount");
     lastBacklogCheck = 0L;
+    compressedUploads = null;
+    compressionRetryTime = 0L;
+    compressionBackoff = MIN_COMPRESSION_BACKOFF_MILLIS;
   }
 
   /** For the unit tests to verify the correct URLs. */
@@ -180,8 +239,12 @@ public class GsaFeedConnection implements FeedConnection {
   /**
    * Sets whether HTTPS connections to the GSA validate the GSA certificate.
    */
-  public void setValidateCertificate(boolean validateCertificate) {
-    this.validateCertificate = validateCertificate;
+  public synchronized void setValidateCertificate(
+      boolean validateCertificate) {
+    if (this.validateCertificate != validateCertificate) {
+      this.validateCertificate = validateCertificate;
+      sslSocketFactory = null;
+    }
   }
 
   /** For the unit tests. */
@@ -189,6 +252,239 @@ public class GsaFeedConnection implements FeedConnection {
     return validateCertificate;
   }
 
+  /**
+   * Sets whether idle connections are kept alive for reuse, unless the
+   * {@code http.keepAlive} system property is already set.  The JDK reads
+   * the property when the first HTTP connection is made, and it applies
+   * to all HTTP connections made by this JVM.
+   *
+   * @since 3.3
+   */
+  public void setKeepAlive(boolean keepAlive) {
+    setDefaultSystemProperty("http.keepAlive", Boolean.toString(keepAlive));
+  }
+
+  /**
+   * Sets the maximum number of idle connections kept alive for each
+   * host, unless the {@code http.maxConnections} system property is
+   * already set.  The JDK reads the property when the first HTTP
+   * connection is made, and it applies to all HTTP connections made by
+   * this JVM.
+   *
+   * @since 3.3
+   */
+  public void setMaxConnections(int maxConnections) {
+    if (maxConnections <= 0) {
+      throw new IllegalArgumentException("maxConnections must be positive.");
+    }
+    setDefaultSystemProperty("http.maxConnections",
+        Integer.toString(maxConnections));
+  }
+
+  /** Sets a system property, unless it is set on the command line. */
+  private static void setDefaultSystemProperty(String key, String value) {
+    if (System.getProperty(key) == null) {
+      System.setProperty(key, value);
+    } else if (!value.equals(System.getProperty(key))) {
+      LOGGER.config("Using system property " + key + "="
+          + System.getProperty(key) + " rather than " + value);
+    }
+  }
+
+  /**
+   * Sets whether feed uploads to the GSA are gzip compressed.  If the GSA
+   * rejects a compressed upload, uncompressed uploads are used instead
+   * until compression is retried.
+   */
+  public synchronized void setCompression(boolean compression) {
+    this.compression = compression;
+  }
+
+  /**
+   * Returns {@code true} if feed uploads are compressed.  For the unit
+   * tests.
+   */
+  public synchronized boolean isCompressing() {
+    return compression && clock.getTimeMillis() >= compressionRetryTime
+        && supportsCompressedUploads();
+  }
+
+  /**
+   * Returns {@code true} if the GSA software version accepts compressed
+   * feed uploads.  The GSA does not report its version directly, so as
+   * with the content encodings and inherited ACLs, it is inferred from
+   * the feed DTD.  GSA 7.0 and later declare the {@code acl} element.
+   */
+  private synchronized boolean supportsCompressedUploads() {
+    if (compressedUploads == null) {
+      compressedUploads = Boolean.valueOf(supportsInheritedAcls());
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("GSA supports compressed feed uploads: "
+            + compressedUploads);
+      }
+    }
+    return compressedUploads.booleanValue();
+  }
+
+  /** Returns the number of HTTP requests made to the GSA. */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Returns the number of HTTPS connections opened to the GSA.
+   * Plain HTTP connections are not counted.
+   */
+  public synchronized long getConnectionCount() {
+    return (sslSocketFactory == null) ? 0L : sslSocketFactory.getSocketCount();
+  }
+
+  /** Returns the number of SSL handshakes performed with the GSA. */
+  public synchronized long getHandshakeCount() {
+    return (sslSocketFactory == null)
+        ? 0L : sslSocketFactory.getHandshakeCount();
+  }
+
+  /**
+   * Returns the number of SSL handshakes that resumed an existing
+   * session, rather than performing a full handshake.
+   */
+  public synchronized long getResumedHandshakeCount() {
+    return (sslSocketFactory == null)
+        ? 0L : sslSocketFactory.getResumedHandshakeCount();
+  }
+
+  /**
+   * Returns the number of HTTPS requests made to the GSA since the
+   * HTTPS connections were last reconfigured.
+   */
+  public synchronized long getHttpsRequestCount() {
+    return (sslSocketFactory == null)
+        ? 0L : sslSocketFactory.getRequestCount();
+  }
+
+  /**
+   * Returns the fraction of HTTPS requests that reused an existing
+   * connection, or 0 if no HTTPS requests have been made.  Plain HTTP
+   * requests are not counted, since their connections are not metered.
+   */
+  public synchronized double getReuseRatio() {
+    return (sslSocketFactory == null) ? 0.0 : sslSocketFactory.getReuseRatio();
+  }
+
+  /**
+   * Opens a connection to the specified URL. HTTPS connections all share
+   * the same SSL socket factory.
+   */
+  private HttpURLConnection openConnection(URL url)
+      throws IOException, GeneralSecurityException {
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    if (conn instanceof HttpsURLConnection) {
+      HttpsURLConnection httpsConn = (HttpsURLConnection) conn;
+      synchronized (this) {
+        if (sslSocketFactory == null) {
+          sslSocketFactory = new MeteredSslSocketFactory(validateCertificate
+              ? HttpsURLConnection.getDefaultSSLSocketFactory()
+              : SslUtil.getTrustingFactory());
+        }
+        httpsConn.setSSLSocketFactory(sslSocketFactory);
+        if (!validateCertificate) {
+          httpsConn.setHostnameVerifier(SslUtil.getTrustingHostnameVerifier());
+        }
+        sslSocketFactory.countRequest();
+      }
+    }
+    requestCount.incrementAndGet();
+    return conn;
+  }
+
+  /** Logs the connection statistics. */
+  private void logStatistics() {
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Feed connection statistics: requests = " + getRequestCount()
+          + ", HTTPS requests = " + getHttpsRequestCount()
+          + ", HTTPS connections = " + getConnectionCount()
+          + ", SSL handshakes = " + getHandshakeCount()
+          + ", resumed SSL handshakes = " + getResumedHandshakeCount()
+          + ", connection reuse ratio = " + getReuseRatio());
+    }
+  }
+
+  /**
+   * Returns the HTTP response code, or -1 if there is no valid response.
+   */
+  private static int getResponseCode(HttpURLConnection conn) {
+    try {
+      return conn.getResponseCode();
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the HTTP response message, or {@code null} if there is none.
+   */
+  private static String getResponseMessage(HttpURLConnection conn) {
+    try {
+      return conn.getResponseMessage();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the HTTP response message followed by the beginning of the
+   * error response, omitting either one that is missing or empty.
+   * Reading the error response lets the connection be reused.
+   */
+  private static String getErrorMessage(HttpURLConnection conn) {
+    String reason = Strings.nullToEmpty(getResponseMessage(conn)).trim();
+    String body = Strings.nullToEmpty(readErrorStream(conn)).trim();
+    if (reason.length() == 0) {
+      return body;
+    } else if (body.length() == 0) {
+      return reason;
+    } else {
+      return reason + ": " + body;
+    }
+  }
+
+  /**
+   * Reads and discards the error response, if any, so that the
+   * connection may be reused.
+   */
+  private static void discardErrorStream(HttpURLConnection conn) {
+    readErrorStream(conn);
+  }
+
+  /**
+   * Reads the error response, if any, so that the connection may be
+   * reused.
+   *
+   * @return the beginning of the error response, or {@code null} if
+   *         there is none
+   */
+  private static String readErrorStream(HttpURLConnection conn) {
+    InputStream errorStream = conn.getErrorStream();
+    if (errorStream == null) {
+      return null;
+    }
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    try {
+      byte[] buffer = new byte[1024];
+      int count;
+      while ((count = errorStream.read(buffer)) != -1) {
+        // Keep the beginning of the message, and discard the rest.
+        count = Math.min(count, MAX_ERROR_MESSAGE_LENGTH - message.size());
+        message.write(buffer, 0, count);
+      }
+      errorStream.close();
+    } catch (IOException e) {
+      conn.disconnect();
+    }
+    return new String(message.toByteArray(), Charsets.UTF_8);
+  }
+
   private static final void controlHeader(StringBuilder builder,
         String name, String mimetype) {
     builder.append("--").append(BOUNDARY).append(CRLF);
@@ -211,7 +507,56 @@ public class GsaFeedConnection implements FeedConnection {
     }
   }
 
-  private String sendFeedData(XmlFeed feed)
+  private String sendFeedData(XmlFeed feed) throws FeedException {
+    if (isCompressing()) {
+      try {
+        String response = sendFeedData(feed, true);
+        synchronized (this) {
+          compressionBackoff = MIN_COMPRESSION_BACKOFF_MILLIS;
+        }
+        return response;
+      } catch (CompressionRejectedException e) {
+        synchronized (this) {
+          LOGGER.log(Level.WARNING, "The GSA rejected a compressed feed. "
+              + "Sending feeds uncompressed for the next "
+              + (compressionBackoff / 60000L) + " minutes.", e);
+          compressionRetryTime = clock.getTimeMillis() + compressionBackoff;
+          compressionBackoff = Math.min(2 * compressionBackoff,
+              MAX_COMPRESSION_BACKOFF_MILLIS);
+        }
+      }
+    }
+    return sendFeedData(feed, false);
+  }
+
+  /**
+   * Thrown if the GSA rejects a compressed feed, so that the feed
+   * may be resent uncompressed.
+   */
+  private static class CompressionRejectedException extends FeedException {
+    CompressionRejectedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Returns {@code true} if the HTTP response status indicates that the
+   * server does not accept a compressed, chunked request body.  A Bad
+   * Request is not a rejection, since it is also returned for malformed
+   * feeds.
+   */
+  private static boolean isCompressionRejected(int responseCode) {
+    switch (responseCode) {
+      case HttpURLConnection.HTTP_LENGTH_REQUIRED:
+      case HttpURLConnection.HTTP_UNSUPPORTED_TYPE:
+      case HttpURLConnection.HTTP_NOT_IMPLEMENTED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private String sendFeedData(XmlFeed feed, boolean compress)
       throws FeedException {
     String feedType = feed.getFeedType().toLegacyString();
     String dataSource = feed.getDataSource();
@@ -235,19 +580,26 @@ public class GsaFeedConnection implements FeedConnection {
       suffix = buf.toString().getBytes(Charsets.UTF_8);
 
       LOGGER.finest("Opening feed connection to " + feedUrl);
+      URL url;
       synchronized (this) {
-        uc = (HttpURLConnection) feedUrl.openConnection();
-      }
-      if (uc instanceof HttpsURLConnection && !validateCertificate) {
-        SslUtil.setTrustingHttpsOptions((HttpsURLConnection) uc);
+        url = feedUrl;
       }
+      uc = openConnection(url);
       uc.setDoInput(true);
       uc.setDoOutput(true);
-      uc.setFixedLengthStreamingMode(prefix.length + feed.size()
-          + suffix.length);
       uc.setRequestProperty("Content-Type", "multipart/form-data; boundary="
           + BOUNDARY);
-      outputStream = uc.getOutputStream();
+      if (compress) {
+        // The compressed length is not known until the feed has been sent.
+        uc.setChunkedStreamingMode(0);
+        uc.setRequestProperty("Content-Encoding", "gzip");
+        outputStream =
+            new GZIPOutputStream(uc.getOutputStream(), GZIP_BUFFER_SIZE);
+      } else {
+        uc.setFixedLengthStreamingMode(prefix.length + feed.size()
+            + suffix.length);
+        outputStream = uc.getOutputStream();
+      }
     } catch (IOException ioe) {
       throw new FeedException(feedUrl.toString(), ioe);
     } catch (GeneralSecurityException e) {
@@ -299,7 +651,19 @@ public class GsaFeedConnection implements FeedConnection {
           buf.append(line);
         }
       } catch (IOException ioe) {
+        int responseCode = getResponseCode(uc);
+        String message = getErrorMessage(uc);
+        if (compress && isCompressionRejected(responseCode)) {
+          // This supersedes any exception thrown while writing the feed,
+          // since the GSA may have rejected the feed before it was sent.
+          isThrowing = true;
+          throw new CompressionRejectedException(
+              feedUrl.toString() + " returned response " + responseCode
+              + (message.length() == 0 ? "" : " " + message));
+        }
         if (!isThrowing) {
+          // Discard the connection, since the response was not read.
+          isThrowing = true;
           throw new FeedException(ioe);
         }
       } finally {
@@ -310,10 +674,14 @@ public class GsaFeedConnection implements FeedConnection {
         } catch (IOException e) {
           LOGGER.log(Level.SEVERE,
                      "IOException while closing after post: continuing", e);
+          isThrowing = true;
         }
-        if (uc != null) {
+        // Closing the fully read response returns the connection to the
+        // keep-alive cache. Only discard the connection if it failed.
+        if (isThrowing) {
           uc.disconnect();
         }
+        logStatistics();
         if (LOGGER.isLoggable(Level.FINEST)) {
           LOGGER.finest("Received response from feed connection: "
                         + buf.toString());
@@ -457,14 +825,12 @@ public class GsaFeedConnection implements FeedConnection {
     BufferedReader br = null;
     String str = null;
     StringBuilder buf = new StringBuilder();
+    boolean failed = false;
     try {
       if (LOGGER.isLoggable(Level.FINEST)) {
         LOGGER.finest("Opening " + name + " connection to " + url);
       }
-      conn = (HttpURLConnection)url.openConnection();
-      if (conn instanceof HttpsURLConnection && !validateCertificate) {
-        SslUtil.setTrustingHttpsOptions((HttpsURLConnection) conn);
-      }
+      conn = openConnection(url);
       conn.connect();
       int responseCode = conn.getResponseCode();
       if (responseCode == HttpURLConnection.HTTP_OK) {
@@ -478,16 +844,21 @@ public class GsaFeedConnection implements FeedConnection {
           LOGGER.finest("Received " + name + ": " + str);
         }
         return str;
-      } else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
-        throw new UnsupportedOperationException(
-            "GSA lacks " + name + " support.");
       } else {
-        throw new FeedException(url.toString() + " returned response "
-            + responseCode + "  " + conn.getResponseMessage());
+        discardErrorStream(conn);
+        if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+          throw new UnsupportedOperationException(
+              "GSA lacks " + name + " support.");
+        } else {
+          throw new FeedException(url.toString() + " returned response "
+              + responseCode + "  " + conn.getResponseMessage());
+        }
       }
     } catch (IOException ioe) {
+      failed = true;
       throw new FeedException(url.toString(), ioe);
     } catch (GeneralSecurityException e) {
+      failed = true;
       throw new FeedException(url.toString(), e);
     } finally {
       try {
@@ -495,10 +866,13 @@ public class GsaFeedConnection implements FeedConnection {
           br.close();
         }
       } catch (IOException e) {
+        failed = true;
         LOGGER.warning("Error after reading response for " + name + ": "
                        + e.getMessage());
       } finally {
-        if (conn != null) {
+        // Closing the fully read response returns the connection to the
+        // keep-alive cache. Only discard the connection if it failed.
+        if (failed && conn != null) {
           conn.disconnect();
         }
       }
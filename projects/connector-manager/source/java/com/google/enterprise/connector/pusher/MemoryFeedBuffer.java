@@ -0,0 +1,193 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.enterprise.connector.common.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link FeedBuffer} that holds the feed data on the heap, in a list
+ * of chunks taken from the shared {@link BufferPool}.  The buffer grows
+ * by adding chunks, rather than by copying the data into a larger array,
+ * and the chunks are returned to the pool when the buffer is released.
+ */
+class MemoryFeedBuffer implements FeedBuffer {
+  /** The size of the chunks that hold the feed data. */
+  static final int CHUNK_SIZE = 256 * 1024;
+
+  private final BufferPool pool;
+
+  /** The size of the first chunk. */
+  private final int initialSize;
+
+  /** The size of the subsequent chunks. */
+  private final int chunkSize;
+
+  /** The chunks.  All but the last chunk are full. */
+  private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+  /** The number of valid bytes in the buffer. */
+  private int count;
+
+  /** The number of valid bytes in the last chunk. */
+  private int tail;
+
+  /**
+   * @param size the initial size of the buffer, typically the target
+   *        feed size.  The buffer will use one chunk of at most this
+   *        size before it grows.
+   */
+  MemoryFeedBuffer(int size) {
+    this(size, CHUNK_SIZE, BufferPool.getInstance());
+  }
+
+  /** For the unit tests. */
+  MemoryFeedBuffer(int size, int chunkSize, BufferPool pool) {
+    this.initialSize = Math.max(1, Math.min(size, chunkSize));
+    this.chunkSize = chunkSize;
+    this.pool = pool;
+  }
+
+  @Override
+  public synchronized int size() {
+    return count;
+  }
+
+  @Override
+  public synchronized void write(int b) {
+    byte[] chunk = writableChunk();
+    chunk[tail++] = (byte) b;
+    count++;
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) {
+    if (off < 0 || len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      byte[] chunk = writableChunk();
+      int bytes = Math.min(len, chunk.length - tail);
+      System.arraycopy(b, off, chunk, tail, bytes);
+      tail += bytes;
+      count += bytes;
+      off += bytes;
+      len -= bytes;
+    }
+  }
+
+  /**
+   * Resets the size of this buffer to the specified {@code size},
+   * effectively discarding any data that may have been written passed
+   * that point.  Chunks that are no longer needed are returned to the
+   * pool.
+   * <p>
+   * This method may be used to reduce the size of the data stored,
+   * but not to increase it.  In other words, the specified {@code size}
+   * cannot be greater than the current size.
+   *
+   * @param size new data size.
+   */
+  @Override
+  public synchronized void reset(int size) {
+    if (size < 0 || size > count) {
+      throw new IllegalArgumentException(
+          "New size must not be negative or greater than the current size.");
+    }
+    int remaining = size;
+    for (int i = 0; i < chunks.size(); i++) {
+      int length = chunks.get(i).length;
+      if (remaining <= length) {
+        releaseChunks(i + 1);
+        tail = remaining;
+        break;
+      }
+      remaining -= length;
+    }
+    count = size;
+  }
+
+  /**
+   * Reads the complete contents of the supplied InputStream
+   * directly into the chunks of this buffer.
+   * This avoids the data copy that would occur if using
+   * {@code InputStream.read(byte[], int, int)}, followed by
+   * {@code write(byte[], int, int)}.
+   *
+   * @param in the InputStream from which to read the data.
+   * @throws IOException if an I/O error occurs.
+   */
+  @Override
+  public synchronized void readFrom(InputStream in) throws IOException {
+    int bytes;
+    do {
+      byte[] chunk = writableChunk();
+      bytes = in.read(chunk, tail, chunk.length - tail);
+      if (bytes > 0) {
+        tail += bytes;
+        count += bytes;
+      }
+    } while (bytes != -1);
+  }
+
+  @Override
+  public synchronized void writeTo(OutputStream out) throws IOException {
+    int last = chunks.size() - 1;
+    for (int i = 0; i < last; i++) {
+      byte[] chunk = chunks.get(i);
+      out.write(chunk, 0, chunk.length);
+    }
+    if (last >= 0) {
+      out.write(chunks.get(last), 0, tail);
+    }
+  }
+
+  /** Returns the chunks to the pool. */
+  @Override
+  public synchronized void release() {
+    releaseChunks(0);
+    count = 0;
+    tail = 0;
+  }
+
+  /**
+   * Returns the last chunk, adding a new chunk if the last one is full.
+   */
+  private byte[] writableChunk() {
+    if (!chunks.isEmpty()) {
+      byte[] chunk = chunks.get(chunks.size() - 1);
+      if (tail < chunk.length) {
+        return chunk;
+      }
+    }
+    byte[] chunk =
+        pool.acquire(chunks.isEmpty() ? initialSize : chunkSize);
+    chunks.add(chunk);
+    tail = 0;
+    return chunk;
+  }
+
+  /** Returns the chunks from {@code index} on to the pool. */
+  private void releaseChunks(int index) {
+    while (chunks.size() > index) {
+      pool.release(chunks.remove(chunks.size() - 1));
+    }
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * An {@link SSLSocketFactory} that counts the sockets it creates and
+ * the SSL handshakes performed on them, distinguishing full handshakes
+ * from resumed sessions.  The requests made using the factory are
+ * counted by the caller, so that the connection reuse is measured
+ * against the same HTTPS traffic.
+ * <p>
+ * The JDK keeps idle HTTPS connections for reuse only if subsequent
+ * requests use the same {@code SSLSocketFactory} instance, and SSL
+ * sessions are only resumed by sockets from the same underlying
+ * {@code SSLContext}.  So a single instance of this factory should be
+ * retained and used for all connections to the same server.
+ */
+class MeteredSslSocketFactory extends SSLSocketFactory {
+  private final SSLSocketFactory delegate;
+
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong socketCount = new AtomicLong();
+  private final AtomicLong handshakeCount = new AtomicLong();
+  private final AtomicLong resumedCount = new AtomicLong();
+
+  private final HandshakeCompletedListener listener =
+      new HandshakeCompletedListener() {
+        @Override
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+          handshakeCount.incrementAndGet();
+          // A resumed session was created by an earlier handshake.
+          if (event.getSession().getLastAccessedTime()
+              > event.getSession().getCreationTime()) {
+            resumedCount.incrementAndGet();
+          }
+        }
+      };
+
+  MeteredSslSocketFactory(SSLSocketFactory delegate) {
+    this.delegate = delegate;
+  }
+
+  /** Counts a request made on a connection that uses this factory. */
+  void countRequest() {
+    requestCount.incrementAndGet();
+  }
+
+  /** Returns the number of requests counted by {@link #countRequest}. */
+  long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Returns the fraction of the requests that reused an existing socket,
+   * or 0 if no requests have been counted.
+   */
+  double getReuseRatio() {
+    long sockets = socketCount.get();
+    long requests = requestCount.get();
+    return (requests == 0L)
+        ? 0.0 : Math.max(0.0, (requests - sockets) / (double) requests);
+  }
+
+  /** Returns the number of sockets created. */
+  long getSocketCount() {
+    return socketCount.get();
+  }
+
+  /** Returns the number of SSL handshakes completed. */
+  long getHandshakeCount() {
+    return handshakeCount.get();
+  }
+
+  /** Returns the number of handshakes that resumed an existing session. */
+  long getResumedHandshakeCount() {
+    return resumedCount.get();
+  }
+
+  private Socket meter(Socket socket) {
+    socketCount.incrementAndGet();
+    if (socket instanceof SSLSocket) {
+      ((SSLSocket) socket).addHandshakeCompletedListener(listener);
+    }
+    return socket;
+  }
+
+  @Override
+  public String[] getDefaultCipherSuites() {
+    return delegate.getDefaultCipherSuites();
+  }
+
+  @Override
+  public String[] getSupportedCipherSuites() {
+    return delegate.getSupportedCipherSuites();
+  }
+
+  @Override
+  public Socket createSocket() throws IOException {
+    return meter(delegate.createSocket());
+  }
+
+  @Override
+  public Socket createSocket(Socket s, String host, int port,
+      boolean autoClose) throws IOException {
+    return meter(delegate.createSocket(s, host, port, autoClose));
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    return meter(delegate.createSocket(host, port));
+  }
+
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localHost,
+      int localPort) throws IOException {
+    return meter(delegate.createSocket(host, port, localHost, localPort));
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    return meter(delegate.createSocket(host, port));
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port,
+      InetAddress localAddress, int localPort) throws IOException {
+    return meter(delegate.createSocket(address, port, localAddress,
+                                       localPort));
+  }
+}
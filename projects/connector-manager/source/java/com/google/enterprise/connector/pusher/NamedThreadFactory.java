@@ -0,0 +1,51 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ThreadFactory} that creates daemon threads named with a
+ * common prefix followed by a sequence number, such as
+ * {@code DocumentEncoder-0}, to provide diagnostic context in stack
+ * traces.  Daemon threads do not keep the web application container
+ * from shutting down.
+ *
+ * @since 3.3
+ */
+class NamedThreadFactory implements ThreadFactory {
+  private final ThreadFactory delegate = Executors.defaultThreadFactory();
+  private final String namePrefix;
+  private final AtomicInteger count = new AtomicInteger();
+
+  /**
+   * Constructs a {@code NamedThreadFactory}.
+   *
+   * @param name the prefix of the thread names
+   */
+  NamedThreadFactory(String name) {
+    this.namePrefix = name + "-";
+  }
+
+  @Override
+  public Thread newThread(Runnable r) {
+    Thread thread = delegate.newThread(r);
+    thread.setName(namePrefix + count.getAndIncrement());
+    thread.setDaemon(true);
+    return thread;
+  }
+}
@@ -0,0 +1,238 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link Pusher} that overlaps the encoding of documents with the
+ * traversal.  Documents taken from the connector are encoded as feed
+ * records on a shared pool of encoder threads, while the traversal thread
+ * goes on to fetch the next document.  The encoded records are added to
+ * the feed by the {@link DocPusher}, in the order that the documents were
+ * taken, so the feed contents, and the checkpoint semantics, are the same
+ * as if the documents were pushed one at a time.
+ * <p>
+ * At most {@code depth} documents may be waiting to be added to the feed.
+ * When that limit is reached, {@link #take} waits for the oldest document
+ * to be encoded.  All pending documents are added to the feed before the
+ * feed is flushed, so all documents taken from the {@code DocumentList}
+ * are fed before the traversal checkpoint is taken.
+ * <p>
+ * Since connector {@link Document Documents} are read on the encoder
+ * threads, this should only be used with connectors whose documents
+ * remain valid after the next document has been retrieved.
+ */
+class PipelinedPusher implements Pusher {
+  private static final Logger LOGGER =
+      Logger.getLogger(PipelinedPusher.class.getName());
+
+  private final DocPusher pusher;
+  private final Executor encoder;
+  private final int depth;
+
+  /** Documents being encoded, in the order they were taken. */
+  private final LinkedList<Future<XmlFeed>> pending =
+      new LinkedList<Future<XmlFeed>>();
+
+  /** {@code true} once the pusher has been canceled or shut down. */
+  private boolean disabled = false;
+
+  /**
+   * Creates a {@code PipelinedPusher}.
+   *
+   * @param pusher the {@link DocPusher} that builds and sends the feeds
+   * @param encoder the {@link Executor} used to encode documents
+   * @param depth the maximum number of documents that may be waiting to
+   *        be added to the feed
+   */
+  PipelinedPusher(DocPusher pusher, Executor encoder, int depth) {
+    if (depth <= 0) {
+      throw new IllegalArgumentException("depth must be positive.");
+    }
+    this.pusher = pusher;
+    this.encoder = encoder;
+    this.depth = depth;
+  }
+
+  /**
+   * Queues the document to be encoded, then adds any documents that have
+   * already been encoded to the feed.
+   *
+   * @param document Document corresponding to the document.
+   * @return PusherStatus of the documents added to the feed by this
+   *         call, or OK if none were.  If OK, Pusher may accept more
+   *         documents.
+   * @throws PushException if Pusher problem
+   * @throws FeedException if transient Feed problem
+   * @throws RepositoryException if transient Repository problem
+   */
+  @Override
+  public PusherStatus take(final Document document)
+      throws PushException, FeedException, RepositoryException {
+    if (disabled) {
+      return PusherStatus.DISABLED;
+    }
+    FutureTask<XmlFeed> task = new FutureTask<XmlFeed>(
+        new Callable<XmlFeed>() {
+          public XmlFeed call() throws Exception {
+            return pusher.encode(document);
+          }
+        });
+    try {
+      encoder.execute(task);
+    } catch (RejectedExecutionException e) {
+      throw new PushException("Unable to encode document", e);
+    }
+    pending.addLast(task);
+
+    PusherStatus status = PusherStatus.OK;
+    try {
+      // Commit the documents that have been encoded, waiting for the
+      // oldest ones if there are too many pending.
+      while (!pending.isEmpty()
+             && (pending.size() > depth || pending.getFirst().isDone())) {
+        PusherStatus committed = commitFirst();
+        if (committed != PusherStatus.OK) {
+          status = committed;
+        }
+      }
+    } catch (InterruptedException e) {
+      // The traversal will notice the interrupt and cancel the pusher.
+      // The documents still pending are released by cancel.
+      Thread.currentThread().interrupt();
+    }
+    return status;
+  }
+
+  /**
+   * Adds all the pending documents to the feed, then flushes the feed.
+   *
+   * @throws PushException if Pusher problem
+   * @throws FeedException if transient Feed problem
+   * @throws RepositoryException if transient Repository problem
+   */
+  @Override
+  public void flush()
+      throws PushException, FeedException, RepositoryException {
+    try {
+      while (!pending.isEmpty()) {
+        commitFirst();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FeedException("Interrupted while encoding documents.", e);
+    }
+    pusher.flush();
+  }
+
+  /**
+   * Cancels the documents being encoded, then cancels the feed.
+   */
+  @Override
+  public void cancel() {
+    for (Future<XmlFeed> future : pending) {
+      future.cancel(true);
+    }
+    for (Future<XmlFeed> future : pending) {
+      // Release the records of any documents that had already been encoded.
+      if (future.isDone() && !future.isCancelled()) {
+        try {
+          future.get().release();
+        } catch (Exception e) {
+          // The document failed to encode, so there are no records.
+        }
+      }
+    }
+    pending.clear();
+    disabled = true;
+    pusher.cancel();
+  }
+
+  @Override
+  public PusherStatus getPusherStatus()
+      throws PushException, FeedException, RepositoryException {
+    return pusher.getPusherStatus();
+  }
+
+  /** Returns the number of documents waiting to be added to the feed. */
+  int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Waits for the oldest pending document to be encoded, then adds it to
+   * the feed.  Documents that fail to encode are skipped, in the same way
+   * as {@code QueryTraverser} skips documents rejected by {@link #take}.
+   * If the wait is interrupted, the document remains pending.
+   *
+   * @return PusherStatus of the commit, or OK if the document was skipped
+   */
+  private PusherStatus commitFirst() throws InterruptedException,
+      PushException, FeedException, RepositoryException {
+    Future<XmlFeed> future = pending.getFirst();
+    XmlFeed records;
+    try {
+      records = future.get();
+    } catch (CancellationException e) {
+      pending.removeFirst();
+      return PusherStatus.OK;
+    } catch (ExecutionException e) {
+      pending.removeFirst();
+      Throwable cause = e.getCause();
+      if (cause instanceof RepositoryDocumentException
+          || cause instanceof RuntimeException) {
+        // Skip individual documents that fail.  Proceed on to the next one.
+        logSkippedDocument(cause);
+        return PusherStatus.OK;
+      } else if (cause instanceof RepositoryException) {
+        throw (RepositoryException) cause;
+      } else if (cause instanceof PushException) {
+        throw (PushException) cause;
+      } else if (cause instanceof FeedException) {
+        throw (FeedException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new PushException("Error encoding document", cause);
+      }
+    }
+    pending.removeFirst();
+    PusherStatus status = pusher.commit(records);
+    if (status == PusherStatus.DISABLED) {
+      disabled = true;
+    }
+    return status;
+  }
+
+  private static void logSkippedDocument(Throwable t) {
+    if (LOGGER.isLoggable(Level.FINER)) {
+      LOGGER.log(Level.FINER, "Skipping document: " + t.getMessage());
+    }
+  }
+}
@@ -0,0 +1,190 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.enterprise.connector.common.BufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link FeedBuffer} that spools the feed data to a temporary file,
+ * so that the heap used by a feed does not scale with the feed size.
+ * Only a small staging buffer is held in memory.  The spooled data is
+ * sent using {@link FileChannel#transferTo}, which avoids copying the
+ * data through the Java heap.
+ */
+class SpooledFeedBuffer implements FeedBuffer {
+  private static final Logger LOGGER =
+      Logger.getLogger(SpooledFeedBuffer.class.getName());
+
+  /** The default size of the in-memory staging buffer. */
+  static final int STAGING_BUFFER_SIZE = 64 * 1024;
+
+  private final File file;
+  private final RandomAccessFile spool;
+  private final FileChannel channel;
+
+  /**
+   * Bytes not yet written to the spool file.  The staging buffer is taken
+   * from the shared {@link BufferPool}, so it may be larger than
+   * {@code stagingSize}, but only {@code stagingSize} bytes of it are used.
+   */
+  private byte[] staging;
+  private final int stagingSize;
+  private int count;
+
+  /**
+   * The number of valid bytes in the spool file.  The file may be
+   * longer than this, if the buffer has been reset, but any trailing
+   * data will be overwritten by subsequent writes.
+   */
+  private long spooled;
+
+  /**
+   * Creates a new spool file in the specified directory.
+   *
+   * @param directory the directory in which to create the spool file,
+   *        or {@code null} to use the default temporary-file directory
+   * @throws IOException if the spool file could not be created
+   */
+  SpooledFeedBuffer(File directory) throws IOException {
+    this(directory, STAGING_BUFFER_SIZE);
+  }
+
+  SpooledFeedBuffer(File directory, int stagingSize) throws IOException {
+    this.file = File.createTempFile("feed", ".xml", directory);
+    this.spool = new RandomAccessFile(file, "rw");
+    this.channel = spool.getChannel();
+    this.stagingSize = stagingSize;
+    this.staging = BufferPool.getInstance().acquire(stagingSize);
+    this.count = 0;
+    this.spooled = 0L;
+  }
+
+  /** Returns the spool file. For the unit tests. */
+  File getFile() {
+    return file;
+  }
+
+  @Override
+  public synchronized int size() {
+    return (int) (spooled + count);
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    if (count == stagingSize) {
+      flushStaging();
+    }
+    staging[count++] = (byte) b;
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len)
+      throws IOException {
+    if (count + len > stagingSize) {
+      flushStaging();
+      if (len > stagingSize) {
+        // Too big to stage, write it directly to the spool.
+        spoolBytes(ByteBuffer.wrap(b, off, len));
+        return;
+      }
+    }
+    System.arraycopy(b, off, staging, count, len);
+    count += len;
+  }
+
+  @Override
+  public synchronized void reset(int size) {
+    if (size < 0 || size > size()) {
+      throw new IllegalArgumentException(
+          "New size must not be negative or greater than the current size.");
+    }
+    if (size >= spooled) {
+      count = (int) (size - spooled);
+    } else {
+      // Discard the staged bytes and logically truncate the spool file.
+      // Subsequent writes will overwrite the discarded data.
+      count = 0;
+      spooled = size;
+    }
+  }
+
+  @Override
+  public synchronized void readFrom(InputStream in) throws IOException {
+    int bytes;
+    do {
+      if (count == stagingSize) {
+        flushStaging();
+      }
+      bytes = in.read(staging, count, stagingSize - count);
+      if (bytes > 0) {
+        count += bytes;
+      }
+    } while (bytes != -1);
+  }
+
+  @Override
+  public synchronized void writeTo(OutputStream out) throws IOException {
+    flushStaging();
+    WritableByteChannel target = Channels.newChannel(out);
+    long position = 0L;
+    while (position < spooled) {
+      position += channel.transferTo(position, spooled - position, target);
+    }
+  }
+
+  @Override
+  public synchronized void release() {
+    try {
+      spool.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to close feed spool file " + file, e);
+    }
+    if (!file.delete() && file.exists()) {
+      LOGGER.warning("Failed to delete feed spool file " + file);
+    }
+    if (staging != null) {
+      BufferPool.getInstance().release(staging);
+      staging = null;
+      count = 0;
+    }
+  }
+
+  /** Writes the staged bytes to the spool file. */
+  private void flushStaging() throws IOException {
+    if (count > 0) {
+      spoolBytes(ByteBuffer.wrap(staging, 0, count));
+      count = 0;
+    }
+  }
+
+  /** Writes the supplied bytes to the end of the valid spool data. */
+  private void spoolBytes(ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      spooled += channel.write(bytes, spooled);
+    }
+  }
+}
@@ -22,6 +22,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.common.AlternateContentFilterInputStream;
 import com.google.enterprise.connector.common.BigEmptyDocumentFilterInputStream;
 import com.google.enterprise.connector.common.CompressedFilterInputStream;
+import com.google.enterprise.connector.common.ParallelCompressedBase64InputStream;
 import com.google.enterprise.connector.manager.Context;
 import com.google.enterprise.connector.servlet.ServletUtil;
 import com.google.enterprise.connector.spi.Document;
@@ -47,20 +48,26 @@ import com.google.enterprise.connector.util.UuidGenerator;
 import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Class to generate XML Feed for a document from the Document and send it
- * to GSA.
+ * to GSA.  The generated feed is held either in memory or, if a spool
+ * directory is configured, in a temporary file.
  */
-public class XmlFeed extends ByteArrayOutputStream implements FeedData {
+public class XmlFeed extends OutputStream implements FeedData {
   private static final Logger LOGGER =
       Logger.getLogger(XmlFeed.class.getName());
 
@@ -92,14 +99,25 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   private final FileSizeLimitInfo fileSizeLimit;
   private final AclTransformFilter aclTransformFilter;
 
+  /** The storage for the generated feed data. */
+  private final FeedBuffer buffer;
+
   /** Encoding method to use for Document content. */
   private final ContentEncoding contentEncoding;
 
   /** If true, ACLs support inheritance and deny; otherwise legacy ACLs. */
   private final boolean supportsInheritedAcls;
 
+  /** The initial size of the buffer for a record feed. */
+  private static final int RECORD_BUFFER_SIZE = 16 * 1024;
+
   private static UniqueIdGenerator uniqueIdGenerator = new UuidGenerator();
 
+  /** The threads that compress large content, or null if disabled. */
+  private static ExecutorService compressor;
+  private static int compressionThreads;
+  private static long parallelCompressionThreshold;
+
   private static DocumentFilterFactory stripAclDocumentFilter =
       new StripAclDocumentFilter();
   private static DocumentFilterFactory extractedAclDocumentFilter =
@@ -176,7 +194,36 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   public XmlFeed(String dataSource, FeedType feedType, 
       FileSizeLimitInfo fileSizeLimit, Appendable feedLogBuilder,
       FeedConnection feedConnection) throws IOException {
-    super((int) fileSizeLimit.maxFeedSize());
+    this(dataSource, feedType, fileSizeLimit, feedLogBuilder, feedConnection,
+         (File) null);
+  }
+
+  /**
+   * Constructs a new XmlFeed.  If a {@code spoolDirectory} is specified,
+   * the feed data is written to a temporary file in that directory, rather
+   * than accumulated in memory.  The caller should {@link #release} the
+   * feed once it has been sent.
+   *
+   * @param spoolDirectory the directory in which to spool the feed data,
+   *        or {@code null} to hold the feed data in memory
+   */
+  public XmlFeed(String dataSource, FeedType feedType,
+      FileSizeLimitInfo fileSizeLimit, Appendable feedLogBuilder,
+      FeedConnection feedConnection, File spoolDirectory) throws IOException {
+    this(dataSource, feedType, fileSizeLimit, feedLogBuilder, feedConnection,
+        (spoolDirectory == null)
+        ? new MemoryFeedBuffer((int) fileSizeLimit.maxFeedSize())
+        : new SpooledFeedBuffer(spoolDirectory));
+  }
+
+  /**
+   * Constructs a new XmlFeed that writes the feed data to the supplied
+   * {@link FeedBuffer}.
+   */
+  XmlFeed(String dataSource, FeedType feedType,
+      FileSizeLimitInfo fileSizeLimit, Appendable feedLogBuilder,
+      FeedConnection feedConnection, FeedBuffer buffer) throws IOException {
+    this.buffer = buffer;
     this.maxFeedSize = (int) fileSizeLimit.maxFeedSize();
     this.dataSource = dataSource;
     this.feedType = feedType;
@@ -202,11 +249,84 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     write(prefix.getBytes(XML_DEFAULT_CHARSET));
   }
 
+  /**
+   * Constructs a record feed with the same configuration as the
+   * supplied {@code feed}.  A record feed holds only feed records,
+   * without the feed header, and is never sent to the GSA by itself.
+   */
+  private XmlFeed(XmlFeed feed, Appendable feedLogBuilder) {
+    this.buffer = new MemoryFeedBuffer(RECORD_BUFFER_SIZE);
+    this.maxFeedSize = feed.maxFeedSize;
+    this.dataSource = feed.dataSource;
+    this.feedType = feed.feedType;
+    this.fileSizeLimit = feed.fileSizeLimit;
+    this.feedLogBuilder = feedLogBuilder;
+    this.recordCount = 0;
+    this.isClosed = true;
+    this.feedId = feed.feedId;
+    this.supportsInheritedAcls = feed.supportsInheritedAcls;
+    this.urlConstructor = feed.urlConstructor;
+    this.aclTransformFilter = feed.aclTransformFilter;
+    this.supportedEncodings = feed.supportedEncodings;
+    this.contentEncoding = feed.contentEncoding;
+  }
+
+  /**
+   * Returns a new, empty record feed with the same data source, feed type,
+   * and encoding options as this feed.  Records may be added to record
+   * feeds concurrently, from different threads, and later appended to a
+   * feed of the same type using {@link #appendRecords}.
+   *
+   * @param feedLogBuilder the feed log for the records, may be {@code null}
+   */
+  public XmlFeed newRecordFeed(Appendable feedLogBuilder) {
+    return new XmlFeed(this, feedLogBuilder);
+  }
+
   @VisibleForTesting
   static void setUniqueIdGenerator(UniqueIdGenerator idGenerator) {
     uniqueIdGenerator = idGenerator;
   }
 
+  /**
+   * Configures the parallel compression of large document content.
+   * Content that is to be compressed is split into blocks, and the
+   * blocks past the first {@code threshold} bytes are compressed by a
+   * shared pool of threads, while the feed continues to read the
+   * content.  The compressed bytes differ from those compressed by a
+   * single thread, but they decode to the same content.
+   * <p>
+   * Any previous pool of threads is shut down, but the blocks already
+   * given to it are still compressed, and feeds that are still reading
+   * content compress the rest of it on the feed thread.
+   *
+   * @param threads the number of compression threads, or zero to
+   *        compress all content on the feed thread
+   * @param threshold the number of bytes of each document's content to
+   *        compress on the feed thread
+   */
+  public static synchronized void setParallelCompression(int threads,
+      long threshold) {
+    if (compressor != null) {
+      // Let the old threads drain; streams that are using it fall back
+      // to compressing on the feed thread.
+      compressor.shutdown();
+      compressor = null;
+    }
+    compressionThreads = Math.max(0, threads);
+    parallelCompressionThreshold = Math.max(0L, threshold);
+    if (compressionThreads > 0) {
+      if (!ParallelCompressedBase64InputStream.isSupported()) {
+        LOGGER.warning("Parallel compression is not supported by this JVM.");
+        return;
+      }
+      compressor = Executors.newFixedThreadPool(compressionThreads,
+          new NamedThreadFactory("ContentCompressor"));
+      LOGGER.config("Compressing content larger than " + threshold
+          + " bytes using " + compressionThreads + " threads.");
+    }
+  }
+
   /*
    * XmlFeed Public Interface.
    */
@@ -261,6 +381,24 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     xmlWrapRecord(aclTransformFilter.newDocumentFilter(document));
   }
 
+  /**
+   * Appends the records held in a record feed to this feed.
+   *
+   * @param records a record feed returned by {@link #newRecordFeed}
+   * @throws IOException if an I/O error occurs
+   */
+  public synchronized void appendRecords(XmlFeed records) throws IOException {
+    if (records.feedType != feedType) {
+      throw new IllegalArgumentException("Record feed type " + records.feedType
+          + " does not match feed type " + feedType);
+    }
+    records.writeTo(this);
+    recordCount += records.getRecordCount();
+    if (feedLogBuilder != null && records.feedLogBuilder != null) {
+      feedLogBuilder.append(records.feedLogBuilder.toString());
+    }
+  }
+
   /*
    * FeedData Interface.
    */
@@ -280,15 +418,20 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   }
 
   /*
-   * ByteArrayOutputStream (and related) Interface.
+   * OutputStream (and related) Interface.
+   */
+
+  /**
+   * Returns the current size of the feed data, in bytes.
    */
+  public synchronized int size() {
+    return buffer.size();
+  }
 
   /**
-   * Resets the size of this ByteArrayOutputStream to the
-   * specified {@code size}, effectively discarding any
-   * data that may have been written passed that point.
-   * Like {@code reset()}, this method retains the previously
-   * allocated buffer.
+   * Resets the size of this feed to the specified {@code size},
+   * effectively discarding any data that may have been written passed
+   * that point.
    * <p>
    * This method may be used to reduce the size of the data stored,
    * but not to increase it.  In other words, the specified {@code size}
@@ -297,36 +440,70 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
    * @param size new data size.
    */
   public synchronized void reset(int size) {
-    if (size < 0 || size > count) {
-      throw new IllegalArgumentException(
-          "New size must not be negative or greater than the current size.");
-    }
-    count = size;
+    buffer.reset(size);
   }
 
   /**
    * Reads the complete contents of the supplied InputStream
-   * directly into buffer of this ByteArrayOutputStream.
-   * This avoids the data copy that would occur if using
-   * {@code InputStream.read(byte[], int, int)}, followed by
-   * {@code ByteArrayOutputStream.write(byte[], int, int)}.
+   * directly into the feed buffer.  This avoids the data copy that
+   * would occur if using {@code InputStream.read(byte[], int, int)},
+   * followed by {@code write(byte[], int, int)}.
    *
    * @param in the InputStream from which to read the data.
    * @throws IOException if an I/O error occurs.
    */
   public synchronized void readFrom(InputStream in) throws IOException {
-    int bytes = 0;
-    do {
-      count += bytes;
-      if (count >= buf.length) {
-        // Need to grow buffer.
-        int incr = Math.min(buf.length, 8 * 1024 * 1024);
-        byte[] newbuf = new byte[buf.length + incr];
-        System.arraycopy(buf, 0, newbuf, 0, buf.length);
-        buf = newbuf;
-      }
-      bytes = in.read(buf, count, buf.length - count);
-    } while (bytes != -1);
+    buffer.readFrom(in);
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    buffer.write(b);
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len)
+      throws IOException {
+    buffer.write(b, off, len);
+  }
+
+  /**
+   * Writes the complete contents of this feed to the specified
+   * OutputStream.
+   *
+   * @param out the OutputStream to which to write the data.
+   * @throws IOException if an I/O error occurs.
+   */
+  public synchronized void writeTo(OutputStream out) throws IOException {
+    buffer.writeTo(out);
+  }
+
+  /**
+   * Returns the contents of this feed, decoded using the named charset.
+   */
+  public synchronized String toString(String charsetName)
+      throws UnsupportedEncodingException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(size());
+    try {
+      writeTo(out);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read feed data", e);
+    }
+    return out.toString(charsetName);
+  }
+
+  /**
+   * Returns the contents of this feed, decoded using the
+   * {@link #XML_DEFAULT_CHARSET}.
+   */
+  @Override
+  public String toString() {
+    try {
+      return toString(XML_DEFAULT_CHARSET.name());
+    } catch (UnsupportedEncodingException e) {
+      // Can't happen with UTF-8.
+      throw new AssertionError(e);
+    }
   }
 
   @Override
@@ -338,6 +515,14 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     }
   }
 
+  /**
+   * Releases the storage held by this feed, deleting any spool file.
+   * The feed data is no longer available once the feed is released.
+   */
+  public synchronized void release() {
+    buffer.release();
+  }
+
   /*
    * Private Methods to XML encode the feed data.
    */
@@ -853,7 +1038,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
       if (documentContentEncoding == null) {
         encodedContentStream = getEncodedStream(contentEncoding, 
             original, (Context.getInstance().getTeedFeedFile() != null),
-            1024 * 1024);
+            1024 * 1024, true);
       } else {
         encodedContentStream = original;
       }
@@ -862,7 +1047,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
           AlternateContentFilterInputStream.getAlternateContent(
           DocUtils.getOptionalString(document, SpiConstants.PROPNAME_TITLE), 
           DocUtils.getOptionalString(document, SpiConstants.PROPNAME_MIMETYPE)),
-          false, 2048);
+          false, 2048, false);
 
       return new AlternateContentFilterInputStream(
           encodedContentStream, encodedAlternateStream, this);
@@ -875,8 +1060,18 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   // TODO: Don't compress tiny content or already compressed data
   // (based on mimetype).  This is harder than it sounds.
   private InputStream getEncodedStream(ContentEncoding contentEncoding,
-      InputStream content, boolean wrapLines, int ioBufferSize) {
+      InputStream content, boolean wrapLines, int ioBufferSize,
+      boolean allowParallel) {
     if (contentEncoding == ContentEncoding.BASE64COMPRESSED) {
+      if (allowParallel) {
+        synchronized (XmlFeed.class) {
+          if (compressor != null) {
+            return new ParallelCompressedBase64InputStream(content,
+                compressor, 2 * compressionThreads,
+                parallelCompressionThreshold, wrapLines);
+          }
+        }
+      }
       return new Base64FilterInputStream(
           new CompressedFilterInputStream(content, ioBufferSize), wrapLines);
     } else {
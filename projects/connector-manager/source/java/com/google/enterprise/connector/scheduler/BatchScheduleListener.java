@@ -0,0 +1,34 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.scheduler;
+
+/**
+ * Accepts notifications that a connector instance may be able to start
+ * a traversal batch sooner than previously expected, for instance because
+ * a batch has completed, a traversal delay has been lifted, or the
+ * connector's configuration or schedule has changed.
+ * <p>
+ * Implementations must not block, since notifications may be sent while
+ * the connector's locks are held.
+ */
+public interface BatchScheduleListener {
+  /**
+   * Invoked when the time at which the named connector may next start a
+   * traversal batch may have changed.
+   *
+   * @param connectorName the name of the connector instance
+   */
+  public void batchScheduleChanged(String connectorName);
+}
@@ -36,6 +36,12 @@ public class HostLoadManager implements LoadManager {
 
   private static final long MINUTE_IN_MILLIS = 60 * 1000L;
 
+  /**
+   * How long to wait before checking again for low memory or a feed
+   * backlog, whose end cannot be predicted.
+   */
+  private static final long RECHECK_DELAY_MILLIS = 1000L;
+
   // TODO(bmj): Raise this to 1000 when the GSA moves there.
   public static final int DEFAULT_HOST_LOAD = 500;
 
@@ -266,6 +272,26 @@ public class HostLoadManager implements LoadManager {
     return false;
   }
 
+  /**
+   * Returns the earliest time at which {@link #shouldDelay} may return
+   * {@code false}.  The end of a delay imposed to maintain the load can
+   * be calculated, but low memory and feed backlog conditions are simply
+   * checked again after a short delay.
+   *
+   * @return the time, in milliseconds, at which the delay ends
+   */
+  @Override
+  public long getDelayEndTime() {
+    long now = clock.getTimeMillis();
+    // shouldDelay() lets it go once there is less than 100ms left.
+    long loadDelayEnd =
+        lastBatchResult.getEndTime() + getBatchRequest().delay - 99;
+    if (loadDelayEnd > now) {
+      return loadDelayEnd;
+    }
+    return shouldDelay() ? now + RECHECK_DELAY_MILLIS : now;
+  }
+
   /**
    * Calculate the batch size for the next traversal batch.
    * This uses the throughput of the previous traversal batch and
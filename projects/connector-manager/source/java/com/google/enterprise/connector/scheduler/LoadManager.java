@@ -66,4 +66,11 @@ public interface LoadManager extends BatchResultRecorder {
    * maintain the target load management.
    */
   public boolean shouldDelay();
+
+  /**
+   * Returns the earliest time, in milliseconds, at which {@link #shouldDelay}
+   * may return {@code false}.  If the caller need not delay, the current time
+   * is returned.
+   */
+  public long getDelayEndTime();
 }
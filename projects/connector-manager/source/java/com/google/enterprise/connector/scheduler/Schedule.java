@@ -326,6 +326,48 @@ public class Schedule implements TraversalSchedule {
     return nextScheduledInterval(Calendar.getInstance());
   }
 
+  /**
+   * Return {@code true} if the given time is within a scheduled traversal
+   * interval; {@code false} otherwise.
+   *
+   * @param timeMillis the time, in milliseconds since the epoch
+   * @since 3.3
+   */
+  public boolean inScheduledInterval(long timeMillis) {
+    return nextScheduledIntervalStart(timeMillis) == timeMillis;
+  }
+
+  /**
+   * Returns the time at which the next scheduled traversal interval
+   * starts.  If no interval is left today, this is the start of
+   * tomorrow's first interval.
+   *
+   * @param timeMillis the current time, in milliseconds since the epoch
+   * @return {@code timeMillis} if that time is within a scheduled
+   *         traversal interval, the start of the next interval, or
+   *         {@link Long#MAX_VALUE} if there are no traversal intervals
+   * @since 3.3
+   */
+  public long nextScheduledIntervalStart(long timeMillis) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(timeMillis);
+    int hour = calendar.get(Calendar.HOUR_OF_DAY);
+    // The last interval is the first one, repeated tomorrow.
+    for (ScheduleTimeInterval interval : scheduleIntervals) {
+      if ((hour >= interval.startTime) && (hour < interval.endTime)) {
+        return timeMillis;
+      } else if (hour < interval.startTime) {
+        // Intervals start on the hour. Tomorrow's hours are past 23.
+        calendar.set(Calendar.HOUR_OF_DAY, interval.startTime);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
   @VisibleForTesting
   int nextScheduledInterval(Calendar now) {
     int hour = now.get(Calendar.HOUR_OF_DAY);
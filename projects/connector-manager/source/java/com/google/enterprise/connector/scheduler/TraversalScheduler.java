@@ -17,7 +17,12 @@ package com.google.enterprise.connector.scheduler;
 import com.google.enterprise.connector.instantiator.Instantiator;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,61 +30,107 @@ import java.util.logging.Logger;
  * Scheduler that schedules connector traversal.  This class is thread safe.
  * Must initialize TraversalScheduler before running it.
  *
- * <p> This facility includes a schedule thread that runs a loop.
- * Each iteration it asks the instantiator for the schedule
- * for each Connector Instance and runs batches for those that
- * are
+ * <p> This facility includes a schedule thread that keeps a queue of
+ * wakeup times, one for each Connector Instance.  When a Connector
+ * Instance's wakeup time arrives, the scheduler asks the instantiator
+ * to run a batch for it, which it will do if it
  * <OL>
- * <LI> scheduled to run.
- * <LI> have not exhausted their quota for the current time interval.
- * <LI> are not currently running.
+ * <LI> is scheduled to run.
+ * <LI> has not exhausted its quota for the current time interval.
+ * <LI> is not currently running.
  * </OL>
+ * The scheduler then asks the instantiator when the Connector Instance
+ * may next run, which is when its traversal delay, load window, or
+ * traversal schedule interval ends.  If it cannot run until something
+ * changes, such as a running batch completing, or its schedule or
+ * configuration changing, it is not rescheduled until it reports the
+ * change as a {@link BatchScheduleListener}.
+ * <p>
  * The implementation must handle the situation that a Connector
  * Instance is running.
  */
-/* TODO (bmj): This should be removed and its functionality moved to
- * ConnectorCoordinator.  Connectors should be in charge of their own
- * scheduling.  In particular, the ConnectorCoordinator could leverage
- * Schedule.nextScheduledInterval(), sleeping when unscheduled rather
- * than checking all schedules once per second.
- */
-public class TraversalScheduler implements Runnable {
+public class TraversalScheduler implements Runnable, BatchScheduleListener {
   public static final String SCHEDULER_CURRENT_TIME = "/Scheduler/currentTime";
 
   private static final Logger LOGGER =
     Logger.getLogger(TraversalScheduler.class.getName());
 
+  /**
+   * The minimum time to wait before trying again to start a batch for a
+   * Connector Instance that did not start one.
+   */
+  static final long RETRY_DELAY_MILLIS = 1000L;
+
+  /**
+   * The interval at which all Connector Instances are rescheduled,
+   * as a safeguard against state changes that were not reported.
+   */
+  static final long RESCAN_INTERVAL_MILLIS = 5 * 60 * 1000L;
+
   private final Instantiator instantiator;
+  private final Clock clock;
 
   private boolean isInitialized; // Protected by instance lock.
   private boolean isShutdown; // Protected by instance lock.
 
+  /** Wakeups ordered by time.  Protected by instance lock. */
+  private final TreeSet<Wakeup> wakeups = new TreeSet<Wakeup>();
+
+  /** The queued wakeup for each connector.  Protected by instance lock. */
+  private final Map<String, Wakeup> queued = new HashMap<String, Wakeup>();
+
+  /** The time of the next rescan.  Protected by instance lock. */
+  private long nextRescanTime;
+
   /**
    * Create a scheduler object.
    *
    * @param instantiator used to get schedule for connector instances
    */
   public TraversalScheduler(Instantiator instantiator) {
+    this(instantiator, new SystemClock());
+  }
+
+  /**
+   * Create a scheduler object.
+   *
+   * @param instantiator used to get schedule for connector instances
+   * @param clock the {@link Clock} used by the connector instances
+   */
+  public TraversalScheduler(Instantiator instantiator, Clock clock) {
     this.instantiator = instantiator;
+    this.clock = clock;
     this.isInitialized = false;
     this.isShutdown = false;
   }
 
-  public synchronized void init() {
-    if (isInitialized) {
-      return;
+  public void init() {
+    synchronized (this) {
+      if (isInitialized) {
+        return;
+      }
+      isInitialized = true;
+      isShutdown = false;
+      wakeups.clear();
+      queued.clear();
+      nextRescanTime = 0L;
     }
-    isInitialized = true;
-    isShutdown = false;
+    // This must not be called while holding the lock, since
+    // the ConnectorCoordinators may call batchScheduleChanged.
+    instantiator.setBatchScheduleListener(this);
     new Thread(this, "TraversalScheduler").start();
   }
 
-  public synchronized void shutdown() {
-    if (isShutdown) {
-      return;
+  public void shutdown() {
+    synchronized (this) {
+      if (isShutdown) {
+        return;
+      }
+      isInitialized = false;
+      isShutdown = true;
+      notifyAll();
     }
-    isInitialized = false;
-    isShutdown = true;
+    instantiator.setBatchScheduleListener(null);
   }
 
   /**
@@ -92,16 +143,98 @@ public class TraversalScheduler implements Runnable {
     return isInitialized && !isShutdown;
   }
 
-  private void scheduleBatches() {
+  /**
+   * Wakes the named connector as soon as possible.
+   */
+  @Override
+  public void batchScheduleChanged(String connectorName) {
+    schedule(connectorName, clock.getTimeMillis());
+  }
+
+  /**
+   * Queues a wakeup for the named connector at the specified time.
+   * If the connector already has an earlier wakeup queued, that is kept.
+   */
+  private synchronized void schedule(String connectorName, long time) {
+    Wakeup existing = queued.get(connectorName);
+    if (existing != null) {
+      if (existing.time <= time) {
+        return;
+      }
+      wakeups.remove(existing);
+    }
+    Wakeup wakeup = new Wakeup(connectorName, time);
+    wakeups.add(wakeup);
+    queued.put(connectorName, wakeup);
+    if (wakeups.first() == wakeup) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Returns the number of connectors waiting to be woken.
+   */
+  synchronized int getQueuedCount() {
+    return wakeups.size();
+  }
+
+  /**
+   * Waits for the next connector wakeup.
+   *
+   * @return the name of the connector to wake, or {@code null} if it is
+   *         time to rescan the connectors or to stop
+   */
+  private synchronized String takeNext() throws InterruptedException {
+    while (isRunningState()) {
+      long now = clock.getTimeMillis();
+      if (now >= nextRescanTime) {
+        nextRescanTime = now + RESCAN_INTERVAL_MILLIS;
+        return null;
+      }
+      long waitUntil = nextRescanTime;
+      if (!wakeups.isEmpty()) {
+        Wakeup wakeup = wakeups.first();
+        if (wakeup.time <= now) {
+          wakeups.remove(wakeup);
+          queued.remove(wakeup.connectorName);
+          return wakeup.connectorName;
+        }
+        waitUntil = Math.min(waitUntil, wakeup.time);
+      }
+      wait(waitUntil - now);
+    }
+    return null;
+  }
+
+  /**
+   * Schedules all the connectors to be woken now.
+   */
+  private void rescan() {
+    // This must not be called while holding the lock, since
+    // the Instantiator may call batchScheduleChanged.
+    long now = clock.getTimeMillis();
     for (String connectorName : instantiator.getConnectorNames()) {
-      NDC.pushAppend(connectorName);
-      try {
-        instantiator.startBatch(connectorName);
-      } catch (ConnectorNotFoundException e) {
-        // Looks like the connector just got deleted.  Don't schedule it.
-      } finally {
-        NDC.pop();
+      schedule(connectorName, now);
+    }
+  }
+
+  /**
+   * Tries to start a batch for the named connector, then schedules its
+   * next wakeup.
+   */
+  private void startBatch(String connectorName) {
+    NDC.pushAppend(connectorName);
+    try {
+      instantiator.startBatch(connectorName);
+      long nextTime = instantiator.getNextBatchTime(connectorName);
+      if (nextTime != Long.MAX_VALUE) {
+        schedule(connectorName, Math.max(nextTime,
+            clock.getTimeMillis() + RETRY_DELAY_MILLIS));
       }
+    } catch (ConnectorNotFoundException e) {
+      // Looks like the connector just got deleted.  Don't schedule it.
+    } finally {
+      NDC.pop();
     }
   }
 
@@ -115,14 +248,19 @@ public class TraversalScheduler implements Runnable {
                 + "shutdown or not being initialized.");
             return;
           }
-          scheduleBatches();
-          // Give someone else a chance to run.
+          String connectorName;
           try {
-            synchronized (this) {
-              wait(1000);
-            }
+            connectorName = takeNext();
           } catch (InterruptedException e) {
             // May have been interrupted for shutdown.
+            continue;
+          }
+          if (connectorName == null) {
+            if (isRunningState()) {
+              rescan();
+            }
+          } else {
+            startBatch(connectorName);
           }
         } catch (Throwable t) {
           LOGGER.log(Level.SEVERE,
@@ -133,4 +271,23 @@ public class TraversalScheduler implements Runnable {
       NDC.remove();
     }
   }
+
+  /** A queued connector wakeup. */
+  private static class Wakeup implements Comparable<Wakeup> {
+    final String connectorName;
+    final long time;
+
+    Wakeup(String connectorName, long time) {
+      this.connectorName = connectorName;
+      this.time = time;
+    }
+
+    @Override
+    public int compareTo(Wakeup other) {
+      if (time != other.time) {
+        return (time < other.time) ? -1 : 1;
+      }
+      return connectorName.compareTo(other.connectorName);
+    }
+  }
 }
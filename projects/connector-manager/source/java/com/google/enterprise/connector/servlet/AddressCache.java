@@ -0,0 +1,220 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.servlet;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.InetAddresses;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The addresses of a set of hosts, resolved ahead of time so that the
+ * remote address of a request can be checked without calling the resolver.
+ * Remote addresses are parsed as IP address literals and matched as raw
+ * bytes. The addresses are resolved when the cache is created, and are
+ * refreshed in the background when they are older than the time-to-live,
+ * so a slow DNS server does not stall requests. If a host cannot be
+ * resolved on refresh, its previous addresses are kept.
+ * <p>
+ * Instances are immutable with respect to the hosts; create a new
+ * {@code AddressCache} when the hosts change.
+ *
+ * @since 3.3
+ */
+class AddressCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(AddressCache.class.getName());
+
+  /** The default time-to-live of the resolved addresses, in milliseconds. */
+  static final long DEFAULT_TTL = 60 * 1000L;
+
+  /** Resolves hosts in the background for all the caches. */
+  private static final Executor REFRESH_EXECUTOR =
+      Executors.newSingleThreadExecutor(
+          new NamedThreadFactory("AddressCache-refresh"));
+
+  /** Resolves hostnames; replaced in tests. */
+  @VisibleForTesting
+  interface Resolver {
+    InetAddress[] getAllByName(String host) throws UnknownHostException;
+    InetAddress getLocalHost() throws UnknownHostException;
+  }
+
+  private static final Resolver DNS_RESOLVER = new Resolver() {
+      @Override
+      public InetAddress[] getAllByName(String host)
+          throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+      }
+
+      @Override
+      public InetAddress getLocalHost() throws UnknownHostException {
+        return InetAddress.getLocalHost();
+      }
+    };
+
+  private final Set<String> hosts;
+  private final boolean includeLocalHost;
+  private final long ttl;
+  private final Resolver resolver;
+  private final Executor executor;
+
+  /** The last addresses resolved for each host. */
+  private final Map<String, Set<ByteBuffer>> hostAddresses =
+      new HashMap<String, Set<ByteBuffer>>();
+
+  private volatile Set<ByteBuffer> addresses;
+  private volatile long expiration;
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  /**
+   * Constructs a cache of the addresses of the supplied hosts, resolving
+   * them immediately.
+   *
+   * @param hosts the hostnames or address literals to resolve; {@code null}
+   *        and empty names are ignored
+   * @param includeLocalHost if {@code true}, the loopback addresses and the
+   *        addresses of the local host are included
+   */
+  AddressCache(Collection<String> hosts, boolean includeLocalHost) {
+    this(hosts, includeLocalHost, DEFAULT_TTL, DNS_RESOLVER,
+        REFRESH_EXECUTOR);
+  }
+
+  @VisibleForTesting
+  AddressCache(Collection<String> hosts, boolean includeLocalHost, long ttl,
+      Resolver resolver, Executor executor) {
+    Set<String> names = new HashSet<String>();
+    for (String host : hosts) {
+      if (host != null && host.trim().length() > 0) {
+        names.add(host.trim());
+      }
+    }
+    this.hosts = ImmutableSet.copyOf(names);
+    this.includeLocalHost = includeLocalHost;
+    this.ttl = ttl;
+    this.resolver = resolver;
+    this.executor = executor;
+    refresh();
+  }
+
+  /** Returns the hosts whose addresses are cached. */
+  Set<String> getHosts() {
+    return hosts;
+  }
+
+  /**
+   * Returns {@code true} if the supplied remote address is one of the
+   * cached addresses. This never calls the resolver.
+   *
+   * @param remoteAddr an IP address literal, as returned by
+   *        {@code ServletRequest.getRemoteAddr()}
+   */
+  boolean contains(String remoteAddr) {
+    InetAddress address;
+    try {
+      address = InetAddresses.forString(remoteAddr);
+    } catch (IllegalArgumentException e) {
+      LOGGER.log(Level.WARNING, "Invalid remote address: " + remoteAddr);
+      return false;
+    }
+    return contains(address);
+  }
+
+  /**
+   * Returns {@code true} if the supplied address is one of the cached
+   * addresses. This never calls the resolver.
+   */
+  boolean contains(InetAddress address) {
+    if (System.currentTimeMillis() >= expiration
+        && refreshing.compareAndSet(false, true)) {
+      executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              refresh();
+            } finally {
+              refreshing.set(false);
+            }
+          }
+        });
+    }
+    if (includeLocalHost && address.isLoopbackAddress()) {
+      return true;
+    }
+    return addresses.contains(ByteBuffer.wrap(address.getAddress()));
+  }
+
+  /** Resolves the addresses of the hosts. */
+  @VisibleForTesting
+  synchronized void refresh() {
+    Set<ByteBuffer> resolved = new HashSet<ByteBuffer>();
+    for (String host : hosts) {
+      try {
+        hostAddresses.put(host, toBytes(resolver.getAllByName(host)));
+      } catch (UnknownHostException e) {
+        LOGGER.log(Level.WARNING, "Could not resolve hostname " + host
+            + (hostAddresses.containsKey(host)
+               ? "; using its previous addresses" : ""), e);
+      }
+    }
+    if (includeLocalHost) {
+      try {
+        InetAddress localHost = resolver.getLocalHost();
+        Set<ByteBuffer> local = toBytes(new InetAddress[] { localHost });
+        try {
+          local.addAll(
+              toBytes(resolver.getAllByName(localHost.getHostName())));
+        } catch (UnknownHostException e) {
+          // Use just the primary address.
+        }
+        hostAddresses.put(null, local);
+      } catch (UnknownHostException e) {
+        LOGGER.log(Level.WARNING, "Could not resolve the local host", e);
+      }
+    }
+    for (Set<ByteBuffer> hostAddrs : hostAddresses.values()) {
+      resolved.addAll(hostAddrs);
+    }
+    addresses = resolved;
+    expiration = System.currentTimeMillis() + ttl;
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Resolved " + hosts + ((includeLocalHost)
+          ? " and the local host" : "") + " to " + resolved.size()
+          + " addresses");
+    }
+  }
+
+  private static Set<ByteBuffer> toBytes(InetAddress[] addrs) {
+    Set<ByteBuffer> bytes = new HashSet<ByteBuffer>();
+    for (InetAddress addr : addrs) {
+      bytes.add(ByteBuffer.wrap(addr.getAddress()));
+    }
+    return bytes;
+  }
+}
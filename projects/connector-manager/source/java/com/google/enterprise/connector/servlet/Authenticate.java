@@ -123,7 +123,7 @@ public class Authenticate extends ConnectorManagerServlet {
           // TODO: Either fix ServletUtil XML code to XML escape attr values and
           // element text bodies, or add the ability to append attributes to
           // XmlUtils.appendStartTag().
-          out.append(ServletUtil.indentStr(3));
+          ServletUtil.writeIndent(out, 3);
           XmlUtils.xmlAppendStartTag(ServletUtil.XMLTAG_IDENTITY, out);
           XmlUtils.xmlAppendAttrValue(username, out);
           XmlUtils.xmlAppendEndTag(ServletUtil.XMLTAG_IDENTITY, out);
@@ -133,7 +133,7 @@ public class Authenticate extends ConnectorManagerServlet {
             for (Object item : response.getGroups()) {
               Principal group = (item instanceof String) ?
                   new Principal((String) item) : (Principal) item;
-              out.append(ServletUtil.indentStr(3));
+              ServletUtil.writeIndent(out, 3);
               out.append('<').append(ServletUtil.XMLTAG_GROUP);
               if (group.getPrincipalType() ==
                   SpiConstants.PrincipalType.UNQUALIFIED) {
@@ -15,9 +15,12 @@
 
 package com.google.enterprise.connector.servlet;
 
+import com.google.enterprise.connector.manager.Context;
 import com.google.enterprise.connector.manager.Manager;
 
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
 
 /**
  * Admin servlet for authorization
@@ -28,7 +31,26 @@ public class Authorization extends ConnectorManagerServlet {
   @Override
   protected void processDoPost(
       String xmlBody, Manager manager, PrintWriter out) {
-    AuthorizationHandler authorizationHandler = new AuthorizationHandler(xmlBody, manager, out);
+    processDoPost(new StringReader(xmlBody), manager, out);
+  }
+
+  /**
+   * Parses the request as it is read, rather than reading it into a
+   * String first.
+   */
+  @Override
+  protected void processDoPost(String connectorManagerUrl,
+      Reader xmlBody, Manager manager, PrintWriter out) {
+    processDoPost(xmlBody, manager, out);
+  }
+
+  private void processDoPost(
+      Reader xmlBody, Manager manager, PrintWriter out) {
+    AuthorizationExecutor executor = (AuthorizationExecutor) Context
+        .getInstance().getBean("AuthorizationExecutor",
+                               AuthorizationExecutor.class);
+    AuthorizationHandler authorizationHandler =
+        new AuthorizationHandler(xmlBody, manager, out, executor);
     authorizationHandler.handleDoPost();
   }
 }
@@ -0,0 +1,171 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.servlet;
+
+import com.google.enterprise.connector.manager.ContextService;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs the connector queries of batched authorization requests in
+ * parallel.  The queries of all requests share a fixed number of worker
+ * threads and a bounded queue.  If the queue is full, the query is run
+ * by the request thread instead, which slows down the submission of
+ * further queries.
+ * <p>
+ * Each request waits for its queries no longer than the configured
+ * timeout.  Queries still running at the deadline are cancelled.
+ * <p>
+ * The worker threads are started lazily, when the first query is
+ * submitted, and exit when they have been idle for a minute.
+ *
+ * @since 3.3
+ */
+public class AuthorizationExecutor implements ContextService {
+  private static final Logger LOGGER =
+      Logger.getLogger(AuthorizationExecutor.class.getName());
+
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
+  private final int threadCount;
+  private final int queueSize;
+  private final long timeoutMillis;
+
+  private ThreadPoolExecutor executor;
+  private boolean isShutdown = false;
+
+  /**
+   * Creates an {@code AuthorizationExecutor}.
+   *
+   * @param threadCount the number of threads running connector queries
+   * @param queueSize the maximum number of queries that may be waiting
+   *        for a thread
+   * @param timeoutMillis the maximum time in milliseconds that a request
+   *        waits for its queries, or zero to wait for them to finish
+   */
+  public AuthorizationExecutor(int threadCount, int queueSize,
+      long timeoutMillis) {
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("threadCount must be positive.");
+    }
+    if (queueSize <= 0) {
+      throw new IllegalArgumentException("queueSize must be positive.");
+    }
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException("timeoutMillis must not be negative.");
+    }
+    this.threadCount = threadCount;
+    this.queueSize = queueSize;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "AuthorizationExecutor: threadCount = " + threadCount
+        + ", queueSize = " + queueSize + ", timeoutMillis = " + timeoutMillis;
+  }
+
+  /**
+   * Returns the maximum time in milliseconds that a request waits for
+   * its queries, or zero if there is no limit.
+   */
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+
+  /**
+   * Runs the supplied tasks, and waits until they have all finished or
+   * the timeout has expired.  Tasks that have not finished by then are
+   * cancelled.
+   *
+   * @param tasks the tasks to run
+   * @return a list of {@code Future}s, in the same order as the tasks,
+   *         all of which are done
+   * @throws InterruptedException if interrupted while waiting, in which
+   *         case the unfinished tasks are cancelled
+   */
+  public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks)
+      throws InterruptedException {
+    ThreadPoolExecutor pool = getExecutor();
+    if (timeoutMillis > 0) {
+      return pool.invokeAll(tasks, timeoutMillis, TimeUnit.MILLISECONDS);
+    } else {
+      return pool.invokeAll(tasks);
+    }
+  }
+
+  /** Returns the thread pool, creating it if necessary. */
+  private synchronized ThreadPoolExecutor getExecutor() {
+    if (executor == null) {
+      LOGGER.config(toString());
+      executor = new ThreadPoolExecutor(threadCount, threadCount,
+          KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(queueSize),
+          new NamedThreadFactory("AuthorizationExecutor"),
+          new RejectedExecutionHandler() {
+            /**
+             * Runs the task in the submitting thread, even after shutdown,
+             * so that no request waits for a task that will never run.
+             */
+            @Override
+            public void rejectedExecution(Runnable r,
+                ThreadPoolExecutor pool) {
+              r.run();
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+      if (isShutdown) {
+        executor.shutdown();
+      }
+    }
+    return executor;
+  }
+
+  /* ContextService Methods. */
+
+  @Override
+  public void start() {
+  }
+
+  @Override
+  public synchronized void stop(boolean force) {
+    isShutdown = true;
+    if (executor != null) {
+      if (force) {
+        executor.shutdownNow();
+      } else {
+        executor.shutdown();
+      }
+    }
+  }
+
+  @Override
+  public synchronized boolean isRunning() {
+    return !isShutdown && executor != null;
+  }
+
+  @Override
+  public String getName() {
+    return getClass().getName();
+  }
+}
@@ -24,6 +24,8 @@ import com.google.enterprise.connector.spi.XmlUtils;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -33,6 +35,9 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,17 +48,37 @@ public class AuthorizationHandler {
   private static final Logger LOGGER =
       Logger.getLogger(AuthorizationHandler.class.getName());
 
-  String xmlBody;
+  Reader xmlBody;
   Manager manager;
   PrintWriter out;
   ConnectorMessageCode status;
+  AuthorizationExecutor executor;
 
   Map<AuthorizationResource, AuthorizationResponse.Status> results;
 
   AuthorizationHandler(String xmlBody, Manager manager, PrintWriter out) {
+    this(xmlBody, manager, out, null);
+  }
+
+  AuthorizationHandler(String xmlBody, Manager manager, PrintWriter out,
+      AuthorizationExecutor executor) {
+    this(new StringReader(xmlBody), manager, out, executor);
+  }
+
+  /**
+   * Constructs a handler that reads the request as a stream, and queries
+   * the connectors in parallel.
+   *
+   * @param xmlBody a {@code Reader} for the request body
+   * @param executor runs the connector queries; if {@code null}, the
+   *        queries are run one at a time by the request thread
+   */
+  AuthorizationHandler(Reader xmlBody, Manager manager, PrintWriter out,
+      AuthorizationExecutor executor) {
     this.xmlBody = xmlBody;
     this.manager = manager;
     this.out = out;
+    this.executor = executor;
     results = new HashMap<AuthorizationResource, AuthorizationResponse.Status>();
   }
 
@@ -63,8 +88,17 @@ public class AuthorizationHandler {
    */
   static AuthorizationHandler makeAuthorizationHandlerForTest(String xmlBody,
       Manager manager, PrintWriter out) {
+    return makeAuthorizationHandlerForTest(xmlBody, manager, out, null);
+  }
+
+  /**
+   * Factory method for testing.  Ensures that the results come back in a
+   * predictable order.
+   */
+  static AuthorizationHandler makeAuthorizationHandlerForTest(String xmlBody,
+      Manager manager, PrintWriter out, AuthorizationExecutor executor) {
     AuthorizationHandler authorizationHandler = new AuthorizationHandler(
-        xmlBody, manager, out);
+        xmlBody, manager, out, executor);
     authorizationHandler.results =
         new TreeMap<AuthorizationResource, AuthorizationResponse.Status>();
     return authorizationHandler;
@@ -117,7 +151,9 @@ public class AuthorizationHandler {
       // TODO: Either fix ServletUtil XML code to XML escape attr values and
       // element text bodies, or add the ability to append attributes to
       // XmlUtils.appendStartTag().
-      out.write(ServletUtil.indentStr(3) + "<" + ServletUtil.XMLTAG_RESOURCE);
+      ServletUtil.writeIndent(out, 3);
+      out.write('<');
+      out.write(ServletUtil.XMLTAG_RESOURCE);
       XmlUtils.xmlAppendAttr(ServletUtil.XMLTAG_CONNECTOR_NAME_ATTRIBUTE,
                              resource.getConnectorName(), out);
       out.append('>');
@@ -132,41 +168,126 @@ public class AuthorizationHandler {
   }
 
   private void computeResultSet(AuthorizationParser authorizationParser) {
+    List<QueryTask> tasks = new ArrayList<QueryTask>();
+    String context = NDC.peek();
     for (AuthenticationIdentity identity: authorizationParser.getIdentities()) {
-      NDC.pushAppend(identity.getUsername());
-      try {
-        ConnectorQueries queries =
-            authorizationParser.getConnectorQueriesForIdentity(identity);
-        runManagerQueries(identity, queries);
-      } finally {
-        NDC.pop();
+      ConnectorQueries queries =
+          authorizationParser.getConnectorQueriesForIdentity(identity);
+      for (String connectorName : queries.getConnectors()) {
+        tasks.add(new QueryTask(context, identity, connectorName,
+            queries.getQueryResources(connectorName)));
+      }
+    }
+    if (executor == null || tasks.size() < 2) {
+      for (QueryTask task : tasks) {
+        results.putAll(task.call());
+      }
+    } else {
+      runManagerQueries(tasks);
+    }
+  }
+
+  /**
+   * Runs the queries in parallel, and merges their results in request
+   * order, so that the results do not depend on which query finishes
+   * first.  Documents whose queries did not finish in time are
+   * INDETERMINATE.
+   */
+  private void runManagerQueries(List<QueryTask> tasks) {
+    List<Future<Map<AuthorizationResource, AuthorizationResponse.Status>>>
+        futures;
+    try {
+      futures = executor.invokeAll(tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.warning("Interrupted while waiting for authorization");
+      futures = null;
+    }
+    for (int i = 0; i < tasks.size(); i++) {
+      QueryTask task = tasks.get(i);
+      Map<AuthorizationResource, AuthorizationResponse.Status> taskResults =
+          null;
+      if (futures == null || futures.get(i).isCancelled()) {
+        LOGGER.warning("Authorization of " + task
+            + " did not finish within " + executor.getTimeoutMillis() + " ms");
+      } else {
+        try {
+          taskResults = futures.get(i).get();
+        } catch (InterruptedException e) {
+          // Can't happen, because the future is done.
+          Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+          LOGGER.log(Level.WARNING, "Authorization of " + task + " failed",
+              e.getCause());
+        }
+      }
+      if (taskResults == null) {
+        QueryResources urlsByDocid = task.urlsByDocid;
+        for (String docid : urlsByDocid.getDocids()) {
+          results.put(urlsByDocid.getResource(docid),
+              AuthorizationResponse.Status.INDETERMINATE);
+        }
+      } else {
+        results.putAll(taskResults);
       }
     }
   }
 
-  private void runManagerQueries(AuthenticationIdentity identity,
-      ConnectorQueries urlsByConnector) {
-    for (String connectorName : urlsByConnector.getConnectors()) {
+  /**
+   * Authorizes the documents of one connector for one identity.  Each
+   * task accumulates its results in its own map, so that a task that is
+   * cancelled cannot add results after the request has given up on it.
+   */
+  private class QueryTask implements
+      Callable<Map<AuthorizationResource, AuthorizationResponse.Status>> {
+    private final String context;
+    private final AuthenticationIdentity identity;
+    private final String connectorName;
+    private final QueryResources urlsByDocid;
+
+    QueryTask(String context, AuthenticationIdentity identity,
+        String connectorName, QueryResources urlsByDocid) {
+      this.context = context;
+      this.identity = identity;
+      this.connectorName = connectorName;
+      this.urlsByDocid = urlsByDocid;
+    }
+
+    @Override
+    public Map<AuthorizationResource, AuthorizationResponse.Status> call() {
+      // The diagnostic context of the request, which may be on another thread.
+      NDC.push(context);
+      NDC.pushAppend(identity.getUsername());
       NDC.pushAppend(connectorName);
       try {
         // TODO [bmj]: It is conceivable that multiple URLs (resources) could
         // map to the same repository document (docid).  We should handle the
         // duplicates, somehow?
-        QueryResources urlsByDocid = urlsByConnector.getQueryResources(connectorName);
         List<String> docidList = new ArrayList<String>(urlsByDocid.getDocids());
         Collection<AuthorizationResponse> answerSet =
             manager.authorizeDocids(connectorName, docidList, identity);
+        Map<AuthorizationResource, AuthorizationResponse.Status> taskResults =
+            new HashMap<AuthorizationResource, AuthorizationResponse.Status>();
         if (answerSet != null) {
-          accumulateQueryResults(answerSet, urlsByDocid);
+          accumulateQueryResults(answerSet, urlsByDocid, taskResults);
         }
+        return taskResults;
       } finally {
         NDC.pop();
+        NDC.pop();
+        NDC.pop();
       }
     }
+
+    @Override
+    public String toString() {
+      return "connector " + connectorName + " for " + identity.getUsername();
+    }
   }
 
   private void accumulateQueryResults(Collection<AuthorizationResponse> answerSet,
-      QueryResources urlsByDocid) {
+      QueryResources urlsByDocid,
+      Map<AuthorizationResource, AuthorizationResponse.Status> results) {
     Set<String> docids = new HashSet<String>(urlsByDocid.getDocids());
     for (AuthorizationResponse response : answerSet) {
       String docid = response.getDocid();
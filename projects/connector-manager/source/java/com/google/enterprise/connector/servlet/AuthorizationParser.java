@@ -16,17 +16,23 @@ package com.google.enterprise.connector.servlet;
 
 import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
-import com.google.enterprise.connector.util.XmlParseUtil;
-
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 /**
  * This class parses the xml body of an Authorization request.
  * <p>
@@ -45,23 +51,53 @@ import java.util.logging.Logger;
  * </pre>
  * Note that both the {@code domain} and {@code password} attributes of the
  * {@code Identity} element are optional.
+ * <p>
+ * The request is read as a stream, one {@code ConnectorQuery} at a time,
+ * without building a DOM of the whole request.
  */
 public class AuthorizationParser {
 
   private static final Logger LOGGER =
       Logger.getLogger(AuthorizationParser.class.getName());
 
-  private final String xmlBody;
+  private static final XMLInputFactory INPUT_FACTORY = newInputFactory();
+
   private ConnectorMessageCode status;
   private int numDocs;
   private final Map<AuthenticationIdentity, ConnectorQueries> parseMap;
 
+  /**
+   * Identities by username, password and domain, with {@code null}
+   * passwords and domains treated as empty, as in {@link #matchesIdentity}.
+   */
+  private final Map<List<String>, AuthenticationIdentity> identities;
+
   public AuthorizationParser(String xmlBody) {
-    this.xmlBody = xmlBody;
+    this(new StringReader(xmlBody));
+  }
+
+  /**
+   * Parses the request read from the supplied {@code Reader}.  The caller
+   * is responsible for closing the {@code Reader}.
+   *
+   * @param xmlBody a {@code Reader} for the request body
+   */
+  public AuthorizationParser(Reader xmlBody) {
     parseMap = new HashMap<AuthenticationIdentity, ConnectorQueries>();
+    identities = new HashMap<List<String>, AuthenticationIdentity>();
     status = new ConnectorMessageCode();
     numDocs = 0;
-    parse();
+    parse(xmlBody);
+  }
+
+  private static XMLInputFactory newInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    // Match the names as written, like the DOM parser we used to use.
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+        Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    return factory;
   }
 
   /**
@@ -84,59 +120,148 @@ public class AuthorizationParser {
    * two levels (AuthorizationParser and ConnectorQueries) each have only one
    * item.
    */
-  private void parse() {
-    Element root = XmlParseUtil.parseAndGetRootElement(xmlBody,
-        ServletUtil.XMLTAG_AUTHZ_QUERY);
+  private void parse(Reader xmlBody) {
+    boolean foundRoot = false;
+    int queryCount = 0;
+    try {
+      XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(xmlBody);
+      try {
+        while (reader.hasNext()) {
+          if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+            continue;
+          }
+          String name = reader.getLocalName();
+          if (!foundRoot) {
+            foundRoot = ServletUtil.XMLTAG_AUTHZ_QUERY.equals(name);
+          } else if (ServletUtil.XMLTAG_CONNECTOR_QUERY.equals(name)) {
+            queryCount++;
+            parseQueryItem(reader);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (XMLStreamException e) {
+      LOGGER.log(Level.WARNING, "XML parsing exception!", e);
+      foundRoot = false;
+    }
 
-    if (root == null) {
+    if (!foundRoot) {
+      parseMap.clear();
+      numDocs = 0;
+      status = new ConnectorMessageCode();
       setStatus(ConnectorMessageCode.ERROR_PARSING_XML_REQUEST);
       return;
     }
 
-    NodeList queryList =
-        root.getElementsByTagName(ServletUtil.XMLTAG_CONNECTOR_QUERY);
-
-    if (queryList.getLength() == 0) {
+    if (queryCount == 0) {
       LOGGER.log(Level.WARNING, ServletUtil.LOG_RESPONSE_EMPTY_NODE);
       return;
     }
 
-    numDocs = 0;
+    if (numDocs == 0) {
+      LOGGER.warning("No docid available.");
+      return;
+    }
+  }
 
-    for (int i = 0; i < queryList.getLength(); ++i) {
-      Element queryItem = (Element) queryList.item(i);
-      AuthenticationIdentity identity = parseIdentityGroup(queryItem);
-      // Only consider Resources for which there is an associated identity.
-      // A null Identity is considered an error on the part of the GSA.
-      // Skip all its resources and continue with the next ConnectorQuery item.
-      // Subsequently, this ConnectorQuery will not run and none of its
-      // QueryResources will be returned. The GSA will then consider them
-      // INDETERMINATE.
-      if (identity != null) {
-        parseResourceGroup(identity, queryItem);
+  /**
+   * Reads a {@code ConnectorQuery} element, and adds its resources to the
+   * queries for its identity.  The reader is positioned at the start of the
+   * element, and is left at its end.
+   */
+  private void parseQueryItem(XMLStreamReader reader)
+      throws XMLStreamException {
+    boolean foundIdentity = false;
+    String username = null;
+    String domain = null;
+    String password = null;
+    List<AuthorizationResource> resources =
+        new ArrayList<AuthorizationResource>();
+
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      } else if (event == XMLStreamConstants.START_ELEMENT) {
+        String name = reader.getLocalName();
+        if (ServletUtil.XMLTAG_RESOURCE.equals(name)) {
+          String connectorName = reader.getAttributeValue(null,
+              ServletUtil.XMLTAG_CONNECTOR_NAME_ATTRIBUTE);
+          resources.add(
+              new AuthorizationResource(readText(reader), connectorName));
+        } else if (ServletUtil.XMLTAG_IDENTITY.equals(name) && !foundIdentity) {
+          foundIdentity = true;
+          domain = nullToEmpty(reader.getAttributeValue(null,
+              ServletUtil.XMLTAG_DOMAIN_ATTRIBUTE));
+          password = nullToEmpty(reader.getAttributeValue(null,
+              ServletUtil.XMLTAG_PASSWORD_ATTRIBUTE));
+          username = readText(reader);
+          if (username.length() == 0) {
+            username = null;
+          }
+        } else {
+          depth++;
+        }
       }
     }
 
-    if (numDocs == 0) {
-      LOGGER.warning("No docid available.");
-      return;
+    AuthenticationIdentity identity =
+        parseIdentityGroup(username, password, domain);
+    // Only consider Resources for which there is an associated identity.
+    // A null Identity is considered an error on the part of the GSA.
+    // Skip all its resources and continue with the next ConnectorQuery item.
+    // Subsequently, this ConnectorQuery will not run and none of its
+    // QueryResources will be returned. The GSA will then consider them
+    // INDETERMINATE.
+    if (identity != null) {
+      parseResourceGroup(identity, resources);
     }
   }
 
+  /**
+   * Returns the text content of the current element, and leaves the reader
+   * at the end of the element.  The text of any nested elements is ignored.
+   */
+  private static String readText(XMLStreamReader reader)
+      throws XMLStreamException {
+    StringBuilder text = new StringBuilder();
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      switch (event) {
+        case XMLStreamConstants.START_ELEMENT:
+          depth++;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          depth--;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+        case XMLStreamConstants.ENTITY_REFERENCE:
+          if (depth == 1) {
+            text.append(reader.getText());
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return text.toString();
+  }
+
+  private static String nullToEmpty(String value) {
+    return (value == null) ? "" : value;
+  }
+
   /**
    * Utility function to establish the first level mapping from the Identity
    * to the ConnectorQueries.
    */
-  private AuthenticationIdentity parseIdentityGroup(Element queryItem) {
-    String username = XmlParseUtil.getFirstElementByTagName(queryItem,
-        ServletUtil.XMLTAG_IDENTITY);
-    String domain =
-        XmlParseUtil.getFirstAttribute(queryItem, ServletUtil.XMLTAG_IDENTITY,
-        ServletUtil.XMLTAG_DOMAIN_ATTRIBUTE);
-    String password =
-        XmlParseUtil.getFirstAttribute(queryItem, ServletUtil.XMLTAG_IDENTITY,
-        ServletUtil.XMLTAG_PASSWORD_ATTRIBUTE);
-
+  private AuthenticationIdentity parseIdentityGroup(String username,
+      String password, String domain) {
     if (username == null) {
       LOGGER.warning("Null Identity");
       // TODO: Is this the only way this can happen?
@@ -168,10 +293,8 @@ public class AuthorizationParser {
    * can be routed to a connector for authorization.
    */
   private void parseResourceGroup(AuthenticationIdentity identity,
-      Element queryItem) {
-    NodeList resourceList =
-        queryItem.getElementsByTagName(ServletUtil.XMLTAG_RESOURCE);
-    if (resourceList.getLength() == 0) {
+      List<AuthorizationResource> resources) {
+    if (resources.isEmpty()) {
       LOGGER.warning("Null Resources");
       setStatus(ConnectorMessageCode.RESPONSE_NULL_RESOURCE);
       return;
@@ -180,9 +303,7 @@ public class AuthorizationParser {
     // Get the ConnectorQueries for the given Identity.
     ConnectorQueries urlsByConnector =
         getConnectorQueriesForIdentity(identity);
-    for (int i = 0; i < resourceList.getLength(); ++i) {
-      Element resourceItem = (Element) resourceList.item(i);
-      AuthorizationResource resource = new AuthorizationResource(resourceItem);
+    for (AuthorizationResource resource : resources) {
       if (resource.getStatus() != ConnectorMessageCode.SUCCESS) {
         setStatus(resource.getStatus());
         // Skip this failed resource and continue with the next one.
@@ -235,12 +356,14 @@ public class AuthorizationParser {
 
   private AuthenticationIdentity findIdentity(String username, String password,
       String domain) {
-    for (AuthenticationIdentity identity : parseMap.keySet()) {
-      if (matchesIdentity(identity, username, password, domain)) {
-        return identity;
-      }
+    List<String> key =
+        Arrays.asList(username, nullToEmpty(password), nullToEmpty(domain));
+    AuthenticationIdentity identity = identities.get(key);
+    if (identity == null) {
+      identity = new SimpleAuthenticationIdentity(username, password, domain);
+      identities.put(key, identity);
     }
-    return new SimpleAuthenticationIdentity(username, password, domain);
+    return identity;
   }
 
   public int getNumDocs() {
@@ -44,16 +44,25 @@ public class AuthorizationResource
    * Construct from given XML element.
    */
   public AuthorizationResource(Element resourceItem) {
-    String resourceUrl = resourceItem.getFirstChild().getNodeValue();
+    this(resourceItem.getFirstChild().getNodeValue(),
+        resourceItem.getAttribute(ServletUtil.XMLTAG_CONNECTOR_NAME_ATTRIBUTE));
+  }
+
+  /**
+   * Construct from the text and {@code connectorname} attribute of a
+   * {@code Resource} element.
+   *
+   * @param resourceUrl the URL of the resource
+   * @param connectorName the value of the {@code connectorname} attribute,
+   *        or {@code null} or the empty string if there is none
+   */
+  public AuthorizationResource(String resourceUrl, String connectorName) {
     this.fabricatedUrl = new ParsedUrl(resourceUrl);
     if (fabricatedUrl.getStatus() ==
         ConnectorMessageCode.RESPONSE_NULL_CONNECTOR) {
       // Could not get the Connector Name from the URL so can't use it.
       useFabricated = false;
-      // Get the connector name attribute.
-      String connectorName = resourceItem.getAttribute(
-          ServletUtil.XMLTAG_CONNECTOR_NAME_ATTRIBUTE);
-      if ("".equals(connectorName)) {
+      if (connectorName == null || "".equals(connectorName)) {
         // This is an invalid state.
         status = ConnectorMessageCode.RESPONSE_NULL_CONNECTOR;
       } else {
@@ -14,7 +14,6 @@
 
 package com.google.enterprise.connector.servlet;
 
-import com.google.common.base.Strings;
 import com.google.enterprise.connector.common.StringUtils;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.Context;
@@ -23,6 +22,7 @@ import com.google.enterprise.connector.manager.Manager;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,6 +51,25 @@ public abstract class ConnectorManagerUrlServlet extends HttpServlet {
   protected abstract void processDoPost(String connectorManagerUrl, 
       String xmlBody, Manager manager, PrintWriter out);
 
+  /**
+   * Processes the servlet-specific request body read from the supplied
+   * {@code Reader}.  The default implementation reads the whole body into
+   * a String and calls
+   * {@link #processDoPost(String, String, Manager, PrintWriter)}.
+   * Servlets that can parse the body as it is read may override this.
+   *
+   * @param connectorManagerUrl URL string for the Connector Manager servlet
+   * @param xmlBody a Reader for the non-empty request body
+   * @param manager Manager
+   * @param out PrintWriter where the XML response body is written
+   * @throws IOException if the request body cannot be read
+   */
+  protected void processDoPost(String connectorManagerUrl,
+      Reader xmlBody, Manager manager, PrintWriter out) throws IOException {
+    processDoPost(connectorManagerUrl, StringUtils.readAllToString(xmlBody),
+        manager, out);
+  }
+
   /**
    * Returns an XML response to the HTTP GET request.
    *
@@ -92,9 +111,7 @@ public abstract class ConnectorManagerUrlServlet extends HttpServlet {
     NDC.push(NDC.peek());
     try {
       // I encountered a null reader if no content or body.
-      String xmlBody =
-          (reader == null) ? null : StringUtils.readAllToString(reader);
-      if (Strings.isNullOrEmpty(xmlBody)) {
+      if (reader == null || isEmpty(reader)) {
         ServletUtil.writeResponse(
             out, ConnectorMessageCode.RESPONSE_EMPTY_REQUEST);
         LOGGER.log(Level.WARNING, ServletUtil.LOG_RESPONSE_EMPTY_REQUEST);
@@ -113,11 +130,21 @@ public abstract class ConnectorManagerUrlServlet extends HttpServlet {
       String webappUrl = requestUrl.toString();
 
       Manager manager = Context.getInstance().getManager();
-      processDoPost(webappUrl, xmlBody, manager, out);
+      processDoPost(webappUrl, reader, manager, out);
 
     } finally {
       out.close();
       NDC.pop();
     }
   }
+
+  /** Returns {@code true} if there is nothing left to read. */
+  private static boolean isEmpty(BufferedReader reader) throws IOException {
+    reader.mark(1);
+    if (reader.read() < 0) {
+      return true;
+    }
+    reader.reset();
+    return false;
+  }
 }
@@ -143,27 +143,17 @@ public class GetConnectorInstanceList extends HttpServlet {
         ServletUtil.writeEmptyXMLElement(out, 3,
             ServletUtil.XMLTAG_CONNECTOR_SCHEDULES);
       } else {
-        StringBuilder buffer = new StringBuilder();
         // Put out new style Schedules element.
-        ServletUtil.writeXMLTagWithAttrs(buffer, 3,
+        ServletUtil.writeXMLElementWithAttrs(out, 3,
             ServletUtil.XMLTAG_CONNECTOR_SCHEDULES,
             ServletUtil.ATTRIBUTE_VERSION + Schedule.CURRENT_VERSION
-            + ServletUtil.QUOTE, false);
-        buffer.append(schedule);
-        ServletUtil.writeXMLTag(buffer, 0,
-            ServletUtil.XMLTAG_CONNECTOR_SCHEDULES, true);
+            + ServletUtil.QUOTE, schedule);
 
         // TODO: Remove this when pre-6.2 GSA's no longer need to be supported.
-        buffer.append('\n');
-        ServletUtil.writeXMLTagWithAttrs(buffer, 3,
+        ServletUtil.writeXMLElementWithAttrs(out, 3,
             DEPRECATED_XMLTAG_CONNECTOR_SCHEDULE,
             ServletUtil.ATTRIBUTE_VERSION + "1" + ServletUtil.QUOTE,
-            false);
-        buffer.append(Schedule.toLegacyString(schedule));
-        ServletUtil.writeXMLTag(buffer, 0,
-            DEPRECATED_XMLTAG_CONNECTOR_SCHEDULE, true);
-
-        out.println(buffer.toString());
+            Schedule.toLegacyString(schedule));
       }
 
       if (connectorStatus.getGlobalNamespace() != null) {
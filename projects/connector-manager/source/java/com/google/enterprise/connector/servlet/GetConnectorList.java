@@ -112,15 +112,10 @@ public class GetConnectorList extends HttpServlet {
       }
       if (version != null && version.length() > 0) {
         // Write out the Connector version as an attribute on the tag.
-        StringBuilder buffer = new StringBuilder();
-        ServletUtil.writeXMLTagWithAttrs(buffer, 2,
+        ServletUtil.writeXMLElementWithAttrs(out, 2,
             ServletUtil.XMLTAG_CONNECTOR_TYPE,
             ServletUtil.ATTRIBUTE_VERSION + version + ServletUtil.QUOTE,
-            false);
-        buffer.append(typeName);
-        ServletUtil.writeXMLTag(buffer, 0,
-            ServletUtil.XMLTAG_CONNECTOR_TYPE, true);
-        out.println(buffer.toString());
+            typeName);
       } else {
         ServletUtil.writeXMLElement(out, 2,
             ServletUtil.XMLTAG_CONNECTOR_TYPE, typeName);
@@ -90,15 +90,10 @@ public class GetConnectorStatus extends ConnectorManagerGetServlet {
         ServletUtil.writeEmptyXMLElement(out, 2,
             ServletUtil.XMLTAG_CONNECTOR_SCHEDULES);
       } else {
-        StringBuilder buffer = new StringBuilder();
-        ServletUtil.writeXMLTagWithAttrs(buffer, 2,
+        ServletUtil.writeXMLElementWithAttrs(out, 2,
             ServletUtil.XMLTAG_CONNECTOR_SCHEDULES,
             ServletUtil.ATTRIBUTE_VERSION + Schedule.CURRENT_VERSION
-            + ServletUtil.QUOTE, false);
-        buffer.append(schedule);
-        ServletUtil.writeXMLTag(buffer, 0,
-            ServletUtil.XMLTAG_CONNECTOR_SCHEDULES, true);
-        out.println(buffer.toString());
+            + ServletUtil.QUOTE, schedule);
       }
       ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_CONNECTOR_STATUS,
           true);
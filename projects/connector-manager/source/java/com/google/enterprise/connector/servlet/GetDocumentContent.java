@@ -16,6 +16,7 @@ package com.google.enterprise.connector.servlet;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.enterprise.connector.common.BufferPool;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.ConnectorManagerException;
 import com.google.enterprise.connector.manager.Context;
@@ -80,7 +81,13 @@ public class GetDocumentContent extends HttpServlet {
   private static final String EXTERNAL_METADATA_HEADER =
       "X-Gsa-External-Metadata";
 
+  /**
+   * The Range header value sent by the GSA to simulate a HEAD request.
+   */
+  private static final String LEGACY_HEAD_RANGE = "0-0";
+
   private static boolean useCompression = false;
+  private static boolean allowHeadRequests = false;
   private static FeedConnection feedConnection;
   /**
    * GSA 7.0 introduces the ability to provide a HTTP header that specifies
@@ -93,6 +100,23 @@ public class GetDocumentContent extends HttpServlet {
     useCompression = doCompression;
   }
 
+  /**
+   * Enables HEAD and byte-range requests. HEAD requests, and the GSA's
+   * {@code Range: 0-0} requests that simulate them, are answered from the
+   * document metadata without retrieving the content. Byte-range requests
+   * return only the requested part of the content.
+   * <p>
+   * If not enabled, these requests are denied, since some GSAs use them
+   * to check authorization, which this servlet does not support.
+   *
+   * @param allow {@code true} to serve HEAD and byte-range requests,
+   *        {@code false} to deny them
+   * @since 3.3
+   */
+  public static void setAllowHeadRequests(boolean allow) {
+    allowHeadRequests = allow;
+  }
+
   /**
    * Set the feed connection to use to discover if the security header is
    * supported. This must be set during startup to take effect.
@@ -117,8 +141,6 @@ public class GetDocumentContent extends HttpServlet {
     return securityHeaderSupported;
   }
 
-  // TODO: Range requests?
-
   /**
    * Retrieves the content of a document from a connector instance.
    *
@@ -145,6 +167,20 @@ public class GetDocumentContent extends HttpServlet {
     doGet(req, res, Context.getInstance().getManager());
   }
 
+  /**
+   * Retrieves the metadata of a document from a connector instance,
+   * without retrieving its content.
+   *
+   * @param req
+   * @param res
+   * @throws IOException
+   */
+  @Override
+  protected void doHead(HttpServletRequest req, HttpServletResponse res)
+      throws IOException {
+    doGet(req, res, Context.getInstance().getManager());
+  }
+
   /**
    * Fetches the last modified date for the document, in milliseconds since
    * the epoch; or -1 if the last modified date is not known or unavailable.
@@ -194,9 +230,10 @@ public class GetDocumentContent extends HttpServlet {
       Manager manager) throws IOException {
     // The servlet relies on proper security to be handled by a filter.
 
+    String range = req.getHeader("Range");
+    boolean isHead = "HEAD".equals(req.getMethod());
     if ("SecMgr".equals(req.getHeader("User-Agent")) || 
-        req.getHeader("Range") != null ||
-        "HEAD".equals(req.getMethod())) {
+        (!allowHeadRequests && (range != null || isHead))) {
       // GSA does a GET with Range:0-0 to simulate head request.
       // Assume that a "HEAD" request to check authz is being performed
       // due to presence of Range header.
@@ -207,6 +244,8 @@ public class GetDocumentContent extends HttpServlet {
       res.sendError(HttpServletResponse.SC_FORBIDDEN);
       return;
     }
+    boolean isLegacyHead =
+        (range != null && LEGACY_HEAD_RANGE.equals(range.trim()));
 
     Map<String, List<String>> params = getQueryParams(req);
     String connectorName = ServletUtil.getFirstParameter(
@@ -243,6 +282,9 @@ public class GetDocumentContent extends HttpServlet {
     if (contentLength != null) {
       LOGGER.log(Level.FINEST, "Document Content-Length {0}", contentLength);
       res.setContentLength(contentLength);
+      if (allowHeadRequests) {
+        res.setHeader("Accept-Ranges", "bytes");
+      }
     }
 
     // Supply the document metadata in an X-Gsa-External-Metadata header.
@@ -250,6 +292,44 @@ public class GetDocumentContent extends HttpServlet {
       res.setHeader(EXTERNAL_METADATA_HEADER, getMetadataHeader(metadata));
     }
 
+    if (isHead || isLegacyHead) {
+      // Answer from the metadata alone. A GET that simulates a HEAD
+      // request gets an empty body.
+      LOGGER.finest("RETRIEVER: Head request");
+      if (!isHead) {
+        res.setContentLength(0);
+      }
+      NDC.pop();
+      return;
+    }
+
+    ByteRange byteRange = (range == null || contentLength == null)
+        ? null : parseRange(range, contentLength);
+    if (byteRange == UNSATISFIABLE_RANGE) {
+      res.setHeader("Content-Range", "bytes */" + contentLength);
+      res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      NDC.pop();
+      return;
+    }
+    if (byteRange != null) {
+      LOGGER.log(Level.FINEST, "Document Content-Range {0}", byteRange);
+      res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      res.setHeader("Content-Range", byteRange + "/" + contentLength);
+      res.setContentLength((int) byteRange.length());
+      OutputStream out = res.getOutputStream();
+      try {
+        int code = handleDoGet(manager, connectorName, docid, out,
+            byteRange.first, byteRange.length());
+        if (code != HttpServletResponse.SC_OK) {
+          res.sendError(code);
+        }
+      } finally {
+        out.close();
+        NDC.pop();
+      }
+      return;
+    }
+
     OutputStream out = res.getOutputStream();
     if (useCompression) {
       // Select Content-Encoding based on the client's Accept-Encoding header.
@@ -344,7 +424,31 @@ public class GetDocumentContent extends HttpServlet {
   @VisibleForTesting
   static int handleDoGet(Manager manager, String connectorName, String docid,
       OutputStream out) throws IOException {
+    return handleDoGet(manager, connectorName, docid, out, 0L, Long.MAX_VALUE);
+  }
+
+  /**
+   * Retrieves part of the content of a document from a connector instance.
+   * The content before {@code offset} is skipped using
+   * {@link InputStream#skip}, which connectors may implement efficiently
+   * for seekable content.
+   *
+   * @param manager a Manager
+   * @param connectorName the name of the connector instance that
+   *        can access the document
+   * @param docId the document identifer
+   * @param out OutputStream to which to write the content
+   * @param offset the number of bytes of content to skip
+   * @param length the maximum number of bytes of content to write
+   * @return an HTTP Status Code
+   * @throws IOException
+   */
+  @VisibleForTesting
+  static int handleDoGet(Manager manager, String connectorName, String docid,
+      OutputStream out, long offset, long length) throws IOException {
     InputStream in = null;
+    BufferPool bufferPool = BufferPool.getInstance();
+    byte[] buffer = null;
     try {
       in = manager.getDocumentContent(connectorName, docid);
       if (in == null) {
@@ -352,24 +456,126 @@ public class GetDocumentContent extends HttpServlet {
         // will return an AlternateContent InputStream.
         in = new ByteArrayInputStream(new byte[0]);
       }
-      byte[] buffer = new byte[1024 * 1024];
+      skipFully(in, offset);
+      buffer = bufferPool.acquire(1024 * 1024);
       int bytes;
       do {
-        bytes = in.read(buffer);
+        bytes = in.read(buffer, 0, (int) Math.min(buffer.length, length));
         if (bytes > 0) {
           out.write(buffer, 0, bytes);
+          length -= bytes;
         }
-      } while (bytes != -1);
+      } while (bytes != -1 && length > 0);
       return HttpServletResponse.SC_OK;
     } catch (Exception e) {
       return handleException("content", e);
     } finally {
+      bufferPool.release(buffer);
       if (in != null) {
         in.close();
       }
     }
   }
 
+  /**
+   * Skips {@code count} bytes of the stream, or to the end of the stream,
+   * whichever comes first.
+   */
+  private static void skipFully(InputStream in, long count)
+      throws IOException {
+    while (count > 0) {
+      long skipped = in.skip(count);
+      if (skipped <= 0) {
+        // InputStream.skip may skip nothing before the end of the stream.
+        if (in.read() == -1) {
+          return;
+        }
+        skipped = 1;
+      }
+      count -= skipped;
+    }
+  }
+
+  /** A range of bytes, from a {@code Range} request header. */
+  @VisibleForTesting
+  static class ByteRange {
+    final long first;
+    final long last;
+
+    ByteRange(long first, long last) {
+      this.first = first;
+      this.last = last;
+    }
+
+    long length() {
+      return last - first + 1;
+    }
+
+    /** Returns the range as a {@code Content-Range} header prefix. */
+    @Override
+    public String toString() {
+      return "bytes " + first + "-" + last;
+    }
+  }
+
+  /** The range returned by {@link #parseRange} for unsatisfiable ranges. */
+  @VisibleForTesting
+  static final ByteRange UNSATISFIABLE_RANGE = new ByteRange(-1L, -1L);
+
+  /**
+   * Parses a {@code Range} request header for a document of the given
+   * length. Only a single range of bytes is supported. Other requests,
+   * and malformed headers, are ignored, and the whole document is returned.
+   *
+   * @param header the value of the {@code Range} header
+   * @param length the length of the document content
+   * @return the requested range, limited to the document length;
+   *         {@link #UNSATISFIABLE_RANGE} if the range lies beyond the end
+   *         of the document; or {@code null} if the header should be ignored
+   */
+  @VisibleForTesting
+  static ByteRange parseRange(String header, long length) {
+    String spec = header.trim();
+    if (!spec.regionMatches(true, 0, "bytes=", 0, 6)) {
+      return null;
+    }
+    spec = spec.substring(6);
+    int dash = spec.indexOf('-');
+    if (dash < 0 || spec.indexOf(',') >= 0) {
+      return null;
+    }
+    String firstStr = spec.substring(0, dash).trim();
+    String lastStr = spec.substring(dash + 1).trim();
+    long first;
+    long last;
+    try {
+      if (firstStr.length() == 0) {
+        // A suffix range, such as "bytes=-500" for the last 500 bytes.
+        long suffix = Long.parseLong(lastStr);
+        if (suffix < 0) {
+          return null;
+        } else if (suffix == 0) {
+          return UNSATISFIABLE_RANGE;
+        }
+        first = Math.max(0L, length - suffix);
+        last = length - 1;
+      } else {
+        first = Long.parseLong(firstStr);
+        last = (lastStr.length() == 0)
+            ? Long.MAX_VALUE : Long.parseLong(lastStr);
+        if (first < 0 || last < first) {
+          return null;
+        }
+      }
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (first >= length) {
+      return UNSATISFIABLE_RANGE;
+    }
+    return new ByteRange(first, Math.min(last, length - 1));
+  }
+
   /**
    * Retrieve and cache the metadata of the currently requested document.
    * The metadata is cached for the life of the servlet request.
@@ -18,10 +18,7 @@ import com.google.common.base.Objects;
 import com.google.enterprise.connector.manager.Context;
 
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Locale;
 import java.util.Properties;
@@ -64,11 +61,12 @@ public class HostnameSecurity implements Filter {
       = Logger.getLogger(HostnameSecurity.class.getName());
 
   private FilterConfig filterConfig;
-  private Set<String> allowedAccessCommonNames;
-  private Set<InetAddress> allowedAccessAddresses;
-  private boolean useClientCertificateSecurity;
+  private volatile Set<String> allowedAccessCommonNames;
+  private volatile AddressCache allowedAccessAddresses;
+  private volatile boolean useClientCertificateSecurity;
 
-  private String gsaHostInUse;
+  private volatile String gsaHostInUse;
+  private volatile int gsaHostVersion;
 
   @Override
   public void init(FilterConfig config) {
@@ -78,10 +76,10 @@ public class HostnameSecurity implements Filter {
     LOGGER.info("init done.");
   }
 
-  private void loadConnectorConfig(FilterConfig config) {
-    allowedAccessCommonNames = new HashSet<String>();
-    allowedAccessAddresses = new HashSet<InetAddress>();
+  private synchronized void loadConnectorConfig(FilterConfig config) {
+    Set<String> allowedAccessCommonNames = new HashSet<String>();
 
+    gsaHostVersion = Context.getInstance().getGsaFeedHostVersion();
     Properties props = Context.getInstance().getConnectorManagerProperties();
     String useClientCertificateSecurityConfigName
         = config.getInitParameter("useClientCertificateSecurityConfigName");
@@ -119,18 +117,15 @@ public class HostnameSecurity implements Filter {
                + " are permitted in {0}: {1}",
                new Object[] {filterName, allowedAccessCommonNames});
 
-    for (String hostname : allowedAccessCommonNames) {
-      try {
-        InetAddress[] ips = InetAddress.getAllByName(hostname);
-        allowedAccessAddresses.addAll(Arrays.asList(ips));
-      } catch (UnknownHostException ex) {
-        LOGGER.log(Level.WARNING, "Could not resolve hostname. Not adding it to"
-                   + " full access list of IPs: " + hostname, ex);
-      }
-    }
+    // The addresses are resolved now, and refreshed in the background,
+    // so that requests are not held up by the resolver.
+    this.allowedAccessCommonNames = allowedAccessCommonNames;
+    this.allowedAccessAddresses =
+        new AddressCache(allowedAccessCommonNames, false);
     LOGGER.log(Level.CONFIG,
-               "When not using client certificates, IPs that are permitted in "
-               + "{0}: {1}", new Object[] {filterName, allowedAccessAddresses});
+               "When not using client certificates, IPs of hosts that are "
+               + "permitted in {0}: {1}", new Object[] {filterName,
+               allowedAccessAddresses.getHosts()});
   }
 
   @Override
@@ -148,20 +143,20 @@ public class HostnameSecurity implements Filter {
   }
 
   protected boolean isAllowed(ServletRequest request) {
-    String currentGsaHost = Context.getInstance().getGsaFeedHost();
-    if (!Objects.equal(gsaHostInUse, currentGsaHost)) {
-      // The GSA hostname has changed. Update the allowedAccess sets.
-      LOGGER.info("GSA hostname changed; reloading config.");
-      loadConnectorConfig(filterConfig);
+    Context context = Context.getInstance();
+    if (context.getGsaFeedHostVersion() != gsaHostVersion) {
+      String currentGsaHost = context.getGsaFeedHost();
+      if (!Objects.equal(gsaHostInUse, currentGsaHost)) {
+        // The GSA hostname has changed. Update the allowedAccess sets.
+        LOGGER.info("GSA hostname changed; reloading config.");
+        loadConnectorConfig(filterConfig);
+      } else {
+        gsaHostVersion = context.getGsaFeedHostVersion();
+      }
     }
 
     if (!useClientCertificateSecurity) {
-      InetAddress addr;
-      try {
-        addr = InetAddress.getByName(request.getRemoteAddr());
-      } catch (UnknownHostException ex) {
-        throw new AssertionError(ex);
-      }
+      String addr = request.getRemoteAddr();
       boolean allowed = allowedAccessAddresses.contains(addr);
       if (!allowed) {
         LOGGER.log(Level.WARNING, "Denying caller: {0}", addr);
@@ -14,12 +14,13 @@
 
 package com.google.enterprise.connector.servlet;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.manager.Context;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Collections;
 import java.util.Properties;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -44,6 +45,16 @@ public class RemoteAddressFilter {
   // If true, Connector Manager is on-board GSA.
   private final boolean onboard;
 
+  // The addresses of the local host.
+  private final AddressCache localAddresses =
+      new AddressCache(Collections.<String>emptySet(), true);
+
+  // The addresses of the GSA, and the Context and feed host version
+  // they were resolved for.
+  private volatile AddressCache gsaAddresses;
+  private volatile Context gsaContext;
+  private volatile int gsaFeedHostVersion;
+
   /**
    * The various access modes. The GSA has access to all the servlets.
    * The access mode names here are arbitrary, as their interpretations
@@ -72,6 +83,35 @@ public class RemoteAddressFilter {
     return instance;
   }
 
+  /**
+   * Returns the cached addresses of the GSA, resolving them again if the
+   * feed host has changed.
+   */
+  private AddressCache getGsaAddresses() {
+    Context context = Context.getInstance();
+    int version = context.getGsaFeedHostVersion();
+    if (gsaAddresses != null && context == gsaContext
+        && version == gsaFeedHostVersion) {
+      return gsaAddresses;
+    }
+    synchronized (this) {
+      String gsaHost = context.getGsaFeedHost();
+      if (gsaHost == null) {
+        // Like InetAddress.getAllByName(null), use the loopback address.
+        try {
+          gsaHost = InetAddress.getByName(null).getHostAddress();
+        } catch (UnknownHostException e) {
+          // The loopback address is not looked up.
+          throw new AssertionError(e);
+        }
+      }
+      gsaAddresses = new AddressCache(ImmutableSet.of(gsaHost), false);
+      gsaContext = context;
+      gsaFeedHostVersion = version;
+      return gsaAddresses;
+    }
+  }
+
   /**
    * Determine whether the supplied {@code remoteAddr} is allowed
    * access under the given {@code Access} mode.
@@ -87,24 +127,13 @@ public class RemoteAddressFilter {
     if (!onboard || accessMode == Access.RED) {
       return true;
     }
-    try {
-      InetAddress caller = InetAddress.getByName(remoteAddr);
-      if (caller.isLoopbackAddress() ||
-          caller.equals(InetAddress.getLocalHost())) {
-        return true;  // localhost is allowed access
-      }
-      String gsaHost = Context.getInstance().getGsaFeedHost();
-      InetAddress[] gsaAddrs = InetAddress.getAllByName(gsaHost);
-      for (int i = 0; i < gsaAddrs.length; i++) {
-        if (caller.equals(gsaAddrs[i])) {
-          return true;  // GSA is allowed access
-        }
-      }
-      LOGGER.warning("Denying caller: " + caller );
-    } catch (UnknownHostException uhe) {
-      // Unknown host - fall through to fail.
-      LOGGER.log(Level.WARNING, "Denying caller:" + remoteAddr, uhe);
+    if (localAddresses.contains(remoteAddr)) {
+      return true;  // localhost is allowed access
+    }
+    if (getGsaAddresses().contains(remoteAddr)) {
+      return true;  // GSA is allowed access
     }
+    LOGGER.warning("Denying caller: " + remoteAddr);
     return false;
   }
 
@@ -117,23 +146,10 @@ public class RemoteAddressFilter {
    *         {@code false} otherwise.
    */
   public boolean isFeedHost(String remoteAddr) {
-    try {
-      InetAddress caller = InetAddress.getByName(remoteAddr);
-      if (onboard) {
-        // If onboard, localhost is feed host.
-        return caller.isLoopbackAddress() ||
-               caller.equals(InetAddress.getLocalHost());
-      }
-      String gsaHost = Context.getInstance().getGsaFeedHost();
-      InetAddress[] gsaAddrs = InetAddress.getAllByName(gsaHost);
-      for (int i = 0; i < gsaAddrs.length; i++) {
-        if (caller.equals(gsaAddrs[i])) {
-          return true;  // The GSA Feed Host is the caller.
-        }
-      }
-    } catch (UnknownHostException uhe) {
-      // Unknown host - fall through to fail.
+    if (onboard) {
+      // If onboard, localhost is feed host.
+      return localAddresses.contains(remoteAddr);
     }
-    return false;
+    return getGsaAddresses().contains(remoteAddr);
   }
 }
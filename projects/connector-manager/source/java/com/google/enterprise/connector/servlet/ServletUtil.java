@@ -343,11 +343,18 @@ public class ServletUtil {
       if (param == null || param.length() < 1) {
         continue;
       }
-      out.println(indentStr(1)
-          + "<" + XMLTAG_STATUS_PARAMS
-          + " " + XMLTAG_STATUS_PARAM_ORDER + "=\"" + Integer.toString(i) + "\""
-          + " " + XMLTAG_STATUS_PARAM + "=\"" + param
-          + "\"/>");
+      writeIndent(out, 1);
+      out.write('<');
+      out.write(XMLTAG_STATUS_PARAMS);
+      out.write(' ');
+      out.write(XMLTAG_STATUS_PARAM_ORDER);
+      out.write("=\"");
+      out.print(i);
+      out.write("\" ");
+      out.write(XMLTAG_STATUS_PARAM);
+      out.write("=\"");
+      out.print(param);
+      out.println("\"/>");
     }
   }
 
@@ -361,8 +368,13 @@ public class ServletUtil {
    */
   public static void writeXMLElement(PrintWriter out, int indentLevel,
                                      String elemName, String elemValue) {
-    out.println(indentStr(indentLevel)
-        + "<" + elemName + ">" + elemValue + "</" + elemName + ">");
+    writeIndent(out, indentLevel);
+    out.write('<');
+    out.print(elemName);
+    out.write('>');
+    out.print(elemValue);
+    writeEndTag(out, elemName);
+    out.println();
   }
 
   /**
@@ -388,8 +400,12 @@ public class ServletUtil {
    */
   public static void writeEmptyXMLElement(PrintWriter out, int indentLevel,
                                           String elemName) {
-    out.println(indentStr(indentLevel)
-        + "<" + elemName + "></" + elemName + ">");
+    writeIndent(out, indentLevel);
+    out.write('<');
+    out.print(elemName);
+    out.write('>');
+    writeEndTag(out, elemName);
+    out.println();
   }
 
   /**
@@ -403,8 +419,45 @@ public class ServletUtil {
    */
   public static void writeXMLTagWithAttrs(PrintWriter out, int indentLevel,
       String elemName, String attributes, boolean closeTag) {
-    out.println(indentStr(indentLevel)
-        + "<" + elemName + " " + attributes + ((closeTag)? "/>" : ">"));
+    writeIndent(out, indentLevel);
+    writeStartTagWithAttrs(out, elemName, attributes, closeTag);
+    out.println();
+  }
+
+  /**
+   * Write a name value pair as an XML element with attributes to a
+   * PrintWriter. The element value is written as is, so it may contain
+   * nested markup.
+   *
+   * @param out where PrintWriter to be written to
+   * @param indentLevel the depth of indentation.
+   * @param elemName element name
+   * @param attributes attributes
+   * @param elemValue element value
+   * @since 3.3
+   */
+  public static void writeXMLElementWithAttrs(PrintWriter out,
+      int indentLevel, String elemName, String attributes, String elemValue) {
+    writeIndent(out, indentLevel);
+    writeStartTagWithAttrs(out, elemName, attributes, false);
+    out.print(elemValue);
+    writeEndTag(out, elemName);
+    out.println();
+  }
+
+  private static void writeStartTagWithAttrs(PrintWriter out, String elemName,
+      String attributes, boolean closeTag) {
+    out.write('<');
+    out.print(elemName);
+    out.write(' ');
+    out.print(attributes);
+    out.write((closeTag) ? "/>" : ">");
+  }
+
+  private static void writeEndTag(PrintWriter out, String elemName) {
+    out.write("</");
+    out.print(elemName);
+    out.write('>');
   }
 
   /**
@@ -432,8 +485,10 @@ public class ServletUtil {
    */
   public static void writeXMLTag(PrintWriter out, int indentLevel,
                                  String tagName, boolean endingTag) {
-    out.println(indentStr(indentLevel)
-        + (endingTag ? "</" : "<") + (tagName) + ">");
+    writeIndent(out, indentLevel);
+    out.write(endingTag ? "</" : "<");
+    out.print(tagName);
+    out.println('>');
   }
 
   /** Write an XML tag to a StringBuilder
@@ -450,6 +505,22 @@ public class ServletUtil {
     out.append(tagName).append(">");
   }
 
+  /**
+   * Write the indentation for the given level to a PrintWriter, without
+   * building an intermediate String for deeply nested levels.
+   *
+   * @param out where PrintWriter to be written to
+   * @param level the depth of indentation
+   * @since 3.3
+   */
+  public static void writeIndent(PrintWriter out, int level) {
+    int last = XMLIndent.length - 1;
+    for (; level > last; level -= last) {
+      out.write(XMLIndent[last]);
+    }
+    out.write(XMLIndent[level]);
+  }
+
   // A helper method to ident output string.
   public static String indentStr(int level) {
     if (level < XMLIndent.length) {
@@ -57,13 +57,28 @@ public class SslUtil {
         }
       };
 
-  private static SSLSocketFactory getTrustingFactory()
+  /**
+   * Returns a new {@code SSLSocketFactory} that trusts all certificates.
+   * Sockets created by the same factory share an SSL session cache, so
+   * callers that make repeated connections should retain the factory.
+   *
+   * @return an all-trusting SSLSocketFactory
+   * @throws GeneralSecurityException if an error occurs creating the factory
+   */
+  public static SSLSocketFactory getTrustingFactory()
       throws GeneralSecurityException {
     SSLContext sc = SSLContext.getInstance("SSL");
     sc.init(null, trustAllCerts, null);
     return sc.getSocketFactory();
   }
 
+  /**
+   * Returns a {@code HostnameVerifier} that accepts all hostnames.
+   */
+  public static HostnameVerifier getTrustingHostnameVerifier() {
+    return trustAllHosts;
+  }
+
   /**
    * Replaces the default {@code TrustManager} for this
    * connection with one that trusts all certificates, and the default
@@ -16,7 +16,17 @@ package com.google.enterprise.connector.util.database;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,6 +38,14 @@ import javax.sql.DataSource;
  * time-consuming to open.  This pool maintains a LIFO stack of open
  * Connections in an attempt to re-use existing Connections to the database.
  * <p>
+ * The number of Connections borrowed from the pool at once may be limited.
+ * When the limit is reached, borrowers wait in the order they arrived for
+ * a Connection to be released, up to a configurable timeout. Idle
+ * Connections are validated when they have not been used for a while,
+ * both by a background thread and when they are borrowed, rather than
+ * every time they are borrowed. Idle Connections beyond a minimum number
+ * are closed after a configurable idle time.
+ * <p>
  * This class requires a JDBC driver that supports the {@code isValid}
  * method of {@code java.sql.Connection}, part of the JDBC 4.0
  * specification in Java 6.
@@ -37,8 +55,92 @@ import javax.sql.DataSource;
 public class DatabaseConnectionPool {
   private static final Logger LOGGER =
       Logger.getLogger(DatabaseConnectionPool.class.getName());
+
+  /**
+   * The default maximum number of borrowed Connections.
+   * @since 3.3
+   */
+  public static final int DEFAULT_MAXIMUM_CONNECTIONS = 50;
+
+  /**
+   * The default time in milliseconds to wait for a Connection.
+   * @since 3.3
+   */
+  public static final long DEFAULT_BORROW_TIMEOUT = 30 * 1000L;
+
+  /**
+   * The default time in milliseconds after which idle Connections are
+   * validated.
+   * @since 3.3
+   */
+  public static final long DEFAULT_VALIDATION_INTERVAL = 30 * 1000L;
+
+  /**
+   * The default time in milliseconds after which idle Connections are
+   * closed.
+   * @since 3.3
+   */
+  public static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000L;
+
+  /** The number of permits used when the pool is unbounded. */
+  private static final int UNBOUNDED = Integer.MAX_VALUE / 2;
+
   private final DataSource dataSource;
-  private final LinkedList<Connection> connections = new LinkedList<Connection>();
+
+  /** The idle Connections, most recently released first. */
+  private final LinkedBlockingDeque<IdleConnection> connections =
+      new LinkedBlockingDeque<IdleConnection>();
+
+  /** The borrowed Connections. */
+  private final ConcurrentMap<Connection, Boolean> borrowed =
+      new ConcurrentHashMap<Connection, Boolean>();
+
+  /** Permits to borrow a Connection, granted in the order requested. */
+  private final ResizableSemaphore permits =
+      new ResizableSemaphore(DEFAULT_MAXIMUM_CONNECTIONS);
+
+  private int maximumConnections = DEFAULT_MAXIMUM_CONNECTIONS;
+  private volatile int minimumIdleConnections = 0;
+  private volatile long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+  private volatile long validationInterval = DEFAULT_VALIDATION_INTERVAL;
+  private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+  /** The background validation and eviction thread, if started. */
+  private ScheduledExecutorService maintenanceExecutor;
+
+  /* Metrics. */
+  private final AtomicLong borrowCount = new AtomicLong();
+  private final AtomicLong borrowNanos = new AtomicLong();
+  private final AtomicLong waitCount = new AtomicLong();
+  private final AtomicLong waitNanos = new AtomicLong();
+  private final AtomicLong timeoutCount = new AtomicLong();
+  private final AtomicLong createdCount = new AtomicLong();
+  private final AtomicLong closedCount = new AtomicLong();
+
+  /** An idle Connection and when it was last known to be alive. */
+  private static class IdleConnection {
+    final Connection connection;
+    final long releaseTime;
+    volatile long checkTime;
+
+    IdleConnection(Connection connection, long now) {
+      this.connection = connection;
+      this.releaseTime = now;
+      this.checkTime = now;
+    }
+  }
+
+  /** Exposes {@link Semaphore#reducePermits}. */
+  private static class ResizableSemaphore extends Semaphore {
+    ResizableSemaphore(int permits) {
+      super(permits, true);
+    }
+
+    @Override
+    public void reducePermits(int reduction) {
+      super.reducePermits(reduction);
+    }
+  }
 
   /**
    * Constructs a pool to hold cached {@link Connection Connections}
@@ -64,26 +166,159 @@ public class DatabaseConnectionPool {
     return dataSource;
   }
 
+  /**
+   * Sets the maximum number of {@link Connection Connections} that may be
+   * borrowed from the pool at once. The default is
+   * {@value #DEFAULT_MAXIMUM_CONNECTIONS}.
+   *
+   * @param maximumConnections the maximum number of borrowed Connections,
+   *        or zero for no limit
+   * @since 3.3
+   */
+  public synchronized void setMaximumConnections(int maximumConnections) {
+    if (maximumConnections < 0) {
+      throw new IllegalArgumentException(
+          "maximumConnections must not be negative");
+    }
+    int oldPermits = toPermits(this.maximumConnections);
+    int newPermits = toPermits(maximumConnections);
+    if (newPermits > oldPermits) {
+      permits.release(newPermits - oldPermits);
+    } else if (newPermits < oldPermits) {
+      permits.reducePermits(oldPermits - newPermits);
+    }
+    this.maximumConnections = maximumConnections;
+  }
+
+  private static int toPermits(int maximumConnections) {
+    return (maximumConnections == 0) ? UNBOUNDED : maximumConnections;
+  }
+
+  /**
+   * Returns the maximum number of borrowed Connections, or zero for no
+   * limit.
+   *
+   * @since 3.3
+   */
+  public synchronized int getMaximumConnections() {
+    return maximumConnections;
+  }
+
+  /**
+   * Sets the number of idle {@link Connection Connections} that the
+   * background thread keeps open. The default is zero.
+   *
+   * @param minimumIdleConnections the minimum number of idle Connections
+   * @since 3.3
+   */
+  public void setMinimumIdleConnections(int minimumIdleConnections) {
+    this.minimumIdleConnections = minimumIdleConnections;
+  }
+
+  /**
+   * Sets the time to wait for a {@link Connection} when the maximum number
+   * of Connections are borrowed. The default is
+   * {@value #DEFAULT_BORROW_TIMEOUT} milliseconds.
+   *
+   * @param borrowTimeout the timeout in milliseconds
+   * @since 3.3
+   */
+  public void setBorrowTimeout(long borrowTimeout) {
+    this.borrowTimeout = borrowTimeout;
+  }
+
+  /**
+   * Sets the time after which an idle {@link Connection} is validated
+   * before it is borrowed. Idle Connections are also validated in the
+   * background at this interval. The default is
+   * {@value #DEFAULT_VALIDATION_INTERVAL} milliseconds.
+   *
+   * @param validationInterval the interval in milliseconds, or zero to
+   *        validate Connections every time they are borrowed
+   * @since 3.3
+   */
+  public void setValidationInterval(long validationInterval) {
+    this.validationInterval = validationInterval;
+  }
+
+  /**
+   * Sets the time after which an idle {@link Connection} is closed, unless
+   * it is needed to keep the minimum number of idle Connections. The
+   * default is {@value #DEFAULT_IDLE_TIMEOUT} milliseconds.
+   *
+   * @param idleTimeout the timeout in milliseconds, or zero to keep idle
+   *        Connections open
+   * @since 3.3
+   */
+  public void setIdleTimeout(long idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
   /**
    * Returns a {@link Connection} from the connection pool.
    * If the pool is empty, a new {@code Connection} is
    * obtained from the {@link DataSource}.
    *
    * @return a {@link Connection} to the {@link DataSource}
-   * @throws SQLException if a Connection cannot be obtained
-   */
-  public synchronized Connection getConnection() throws SQLException {
-    while (!connections.isEmpty()) {
-      // Get a cached connection, but check if it is still functional.
-      Connection conn = connections.removeFirst();
-      if (isAlive(conn)) {
-        return conn;
+   * @throws SQLException if a Connection cannot be obtained, or if the
+   *         maximum number of Connections remain borrowed for longer than
+   *         the borrow timeout
+   */
+  public Connection getConnection() throws SQLException {
+    long start = System.nanoTime();
+    startMaintenance();
+    acquirePermit(start);
+    Connection conn = null;
+    try {
+      IdleConnection idle;
+      while ((idle = connections.pollFirst()) != null) {
+        // Get a cached connection, but check if it is still functional
+        // if it has not been used for a while.
+        if (!needsValidation(idle, System.currentTimeMillis())
+            || isAlive(idle.connection)) {
+          conn = idle.connection;
+          break;
+        }
+        // Close dead connection.
+        close(idle.connection);
+      }
+      if (conn == null) {
+        // Pool is empty.  Get a new connection from the dataSource.
+        conn = dataSource.getConnection();
+        createdCount.incrementAndGet();
+      }
+      borrowed.put(conn, Boolean.TRUE);
+    } finally {
+      if (conn == null) {
+        permits.release();
       }
-      // Close dead connection.
-      close(conn);
     }
-    // Pool is empty.  Get a new connection from the dataSource.
-    return dataSource.getConnection();
+    borrowCount.incrementAndGet();
+    borrowNanos.addAndGet(System.nanoTime() - start);
+    return conn;
+  }
+
+  private void acquirePermit(long start) throws SQLException {
+    try {
+      // Unlike tryAcquire(), a zero timeout does not barge ahead of
+      // waiting borrowers.
+      if (permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+        return;
+      }
+      waitCount.incrementAndGet();
+      boolean acquired =
+          permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS);
+      waitNanos.addAndGet(System.nanoTime() - start);
+      if (!acquired) {
+        timeoutCount.incrementAndGet();
+        throw new SQLException("Timed out after " + borrowTimeout
+            + " ms waiting for one of " + getMaximumConnections()
+            + " database connections");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a database connection");
+    }
   }
 
   /**
@@ -92,19 +327,222 @@ public class DatabaseConnectionPool {
    *
    * @param connection a Connection to to return to the pool
    */
-  public synchronized void releaseConnection(Connection connection) {
-    connections.addFirst(connection);
+  public void releaseConnection(Connection connection) {
+    boolean wasBorrowed = (borrowed.remove(connection) != null);
+    int maximum = getMaximumConnections();
+    if (maximum > 0 && connections.size() >= maximum) {
+      // The pool was shrunk; there are more Connections than needed.
+      close(connection);
+    } else {
+      connections.offerFirst(
+          new IdleConnection(connection, System.currentTimeMillis()));
+    }
+    if (wasBorrowed) {
+      permits.release();
+    }
   }
 
   /**
    * Empties the connection pool, closing all its
    * {@link Connection Connections}.
    */
-  public synchronized void closeConnections() {
-    for (Connection conn : connections) {
-      close(conn);
+  public void closeConnections() {
+    stopMaintenance();
+    IdleConnection idle;
+    while ((idle = connections.pollFirst()) != null) {
+      close(idle.connection);
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Closed database connection pool: " + getStatistics());
+    }
+  }
+
+  /**
+   * Returns the number of {@link Connection Connections} currently
+   * borrowed from the pool.
+   *
+   * @since 3.3
+   */
+  public int getActiveCount() {
+    return borrowed.size();
+  }
+
+  /**
+   * Returns the number of idle {@link Connection Connections} in the pool.
+   *
+   * @since 3.3
+   */
+  public int getIdleCount() {
+    return connections.size();
+  }
+
+  /**
+   * Returns the number of {@link Connection Connections} borrowed from the
+   * pool.
+   *
+   * @since 3.3
+   */
+  public long getBorrowCount() {
+    return borrowCount.get();
+  }
+
+  /**
+   * Returns the average time in milliseconds taken to borrow a
+   * {@link Connection}, including any time spent waiting, validating, or
+   * opening the Connection.
+   *
+   * @since 3.3
+   */
+  public double getAverageBorrowMillis() {
+    long count = borrowCount.get();
+    return (count == 0) ? 0.0 : borrowNanos.get() / 1000000.0 / count;
+  }
+
+  /**
+   * Returns the number of borrowers that had to wait for a
+   * {@link Connection} to be released.
+   *
+   * @since 3.3
+   */
+  public long getWaitCount() {
+    return waitCount.get();
+  }
+
+  /**
+   * Returns the total time in milliseconds that borrowers have waited for
+   * a {@link Connection} to be released.
+   *
+   * @since 3.3
+   */
+  public long getWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+  }
+
+  /**
+   * Returns the number of borrowers that timed out waiting for a
+   * {@link Connection}.
+   *
+   * @since 3.3
+   */
+  public long getTimeoutCount() {
+    return timeoutCount.get();
+  }
+
+  /**
+   * Returns a summary of the pool metrics, suitable for logging.
+   *
+   * @since 3.3
+   */
+  public String getStatistics() {
+    return String.format("active=%d, idle=%d, borrowed=%d, "
+        + "averageBorrowMillis=%.3f, waits=%d, waitMillis=%d, timeouts=%d, "
+        + "opened=%d, closed=%d", getActiveCount(), getIdleCount(),
+        getBorrowCount(), getAverageBorrowMillis(), getWaitCount(),
+        getWaitMillis(), getTimeoutCount(), createdCount.get(),
+        closedCount.get());
+  }
+
+  private boolean needsValidation(IdleConnection idle, long now) {
+    return now - idle.checkTime >= validationInterval;
+  }
+
+  /**
+   * Starts the background thread, if it is needed and not already
+   * running.
+   */
+  private synchronized void startMaintenance() {
+    if (maintenanceExecutor != null) {
+      return;
+    }
+    long period = getMaintenancePeriod();
+    if (period <= 0) {
+      return;
+    }
+    maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+          private final AtomicInteger threadCount = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r,
+                "DatabaseConnectionPool-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            maintain();
+          } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING,
+                "Failed to maintain database connection pool", e);
+          }
+        }
+      }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void stopMaintenance() {
+    if (maintenanceExecutor != null) {
+      maintenanceExecutor.shutdownNow();
+      maintenanceExecutor = null;
+    }
+  }
+
+  private long getMaintenancePeriod() {
+    long period = validationInterval;
+    if (idleTimeout > 0 && (period <= 0 || idleTimeout < period)) {
+      period = idleTimeout;
+    }
+    return period;
+  }
+
+  /**
+   * Closes Connections that have been idle for too long, validates those
+   * that have not been checked recently, and opens Connections to keep
+   * the minimum number idle.
+   */
+  void maintain() {
+    long now = System.currentTimeMillis();
+    // Start with the least recently used Connections.
+    Iterator<IdleConnection> iterator = connections.descendingIterator();
+    while (iterator.hasNext()) {
+      IdleConnection idle = iterator.next();
+      if (idleTimeout > 0 && now - idle.releaseTime >= idleTimeout
+          && connections.size() > minimumIdleConnections) {
+        if (connections.remove(idle)) {
+          close(idle.connection);
+        }
+      } else if (validationInterval > 0 && needsValidation(idle, now)) {
+        // Take the Connection out of the pool while checking it, so that
+        // it is not borrowed at the same time.
+        if (connections.remove(idle)) {
+          if (isAlive(idle.connection)) {
+            idle.checkTime = now;
+            // Keep the LIFO order, so that the most recently released
+            // Connections are still borrowed first.
+            connections.offerFirst(idle);
+          } else {
+            close(idle.connection);
+          }
+        }
+      }
+    }
+
+    int maximum = getMaximumConnections();
+    while (connections.size() < minimumIdleConnections
+        && (maximum == 0
+            || connections.size() + borrowed.size() < maximum)) {
+      try {
+        Connection conn = dataSource.getConnection();
+        createdCount.incrementAndGet();
+        connections.offerLast(new IdleConnection(conn, now));
+      } catch (SQLException e) {
+        LOGGER.log(Level.WARNING, "Failed to open database connection", e);
+        break;
+      }
     }
-    connections.clear();
   }
 
   /**
@@ -124,6 +562,7 @@ public class DatabaseConnectionPool {
 
   /** Closes the Connection silently. */
   private void close(Connection conn) {
+    closedCount.incrementAndGet();
     try {
       conn.close();
     } catch (SQLException ignored) {
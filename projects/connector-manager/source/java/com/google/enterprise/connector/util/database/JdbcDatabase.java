@@ -449,4 +449,92 @@ public class JdbcDatabase {
       connectionPool.releaseConnection(connection);
     }
   }
+
+  /**
+   * Verify that the table named {@code tableName} has an index on the
+   * column named {@code columnName}.  If not, create it, using the
+   * supplied DDL statements.  This may be used to add an index to a
+   * table created by an earlier version.
+   *
+   * @param tableName the name of the table to find in the database.
+   * @param columnName the name of the column that should be indexed.
+   * @param createIndexDdl DDL statements that may be used to create the
+   *        index if it does not exist.  If {@code null}, no attempt will
+   *        be made to create the index.
+   *
+   * @return {@code true} if the index exists or was successfully created,
+   *         {@code false} if the index does not exist.
+   * @since 3.3
+   */
+  public boolean verifyIndexExists(String tableName, String columnName,
+      String[] createIndexDdl) {
+    boolean originalAutoCommit = true;
+    Connection connection = null;
+    try {
+      connection = connectionPool.getConnection();
+      try {
+        originalAutoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        // Check to see if the column is already indexed.
+        DatabaseMetaData metaData = connection.getMetaData();
+        String tableIdentifier;
+        if (metaData.storesUpperCaseIdentifiers()) {
+          tableIdentifier = tableName.toUpperCase();
+        } else if (metaData.storesLowerCaseIdentifiers()) {
+          tableIdentifier = tableName.toLowerCase();
+        } else {
+          tableIdentifier = tableName;
+        }
+        ResultSet indexes =
+            metaData.getIndexInfo(null, null, tableIdentifier, false, true);
+        try {
+          while (indexes.next()) {
+            if (columnName.equalsIgnoreCase(indexes.getString("COLUMN_NAME"))) {
+              LOGGER.config("Found index on " + tableName + "." + columnName);
+              return true;
+            }
+          }
+        } finally {
+          indexes.close();
+        }
+
+        // Our index was not found.
+        if (createIndexDdl == null) {
+          return false;
+        }
+
+        // Create the index using the supplied Create Index DDL.
+        Statement stmt = connection.createStatement();
+        try {
+          for (String ddlStatement : createIndexDdl) {
+            LOGGER.config("Creating index on " + tableName + "." + columnName
+                + ": " + ddlStatement);
+            stmt.executeUpdate(ddlStatement);
+          }
+          connection.commit();
+        } finally {
+          stmt.close();
+        }
+        return true;
+      } catch (SQLException e) {
+        try {
+          connection.rollback();
+        } catch (SQLException ignored) {
+        }
+        throw e;
+      } finally {
+        try {
+          connection.setAutoCommit(originalAutoCommit);
+        } catch (SQLException ignored) {
+        }
+        connectionPool.releaseConnection(connection);
+      }
+    } catch (SQLException e) {
+      // The index only speeds up queries, so the caller may carry on.
+      LOGGER.log(Level.WARNING, "Failed to create index on " + tableName
+          + "." + columnName, e);
+      return false;
+    }
+  }
 }
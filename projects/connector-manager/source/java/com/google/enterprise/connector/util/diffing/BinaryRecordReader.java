@@ -0,0 +1,397 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import static com.google.enterprise.connector.util.diffing.BinarySnapshotWriter.DEFLATED;
+import static com.google.enterprise.connector.util.diffing.BinarySnapshotWriter.HEADER_LENGTH;
+import static com.google.enterprise.connector.util.diffing.BinarySnapshotWriter.MAGIC;
+import static com.google.enterprise.connector.util.diffing.BinarySnapshotWriter.STORED;
+import static com.google.enterprise.connector.util.diffing.BinarySnapshotWriter.TRAILER_LENGTH;
+import static com.google.enterprise.connector.util.diffing.BinarySnapshotWriter.VERSION;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the records of a snapshot written by {@link BinarySnapshotWriter}.
+ * Records are skipped using the block index, if the file has one, and
+ * otherwise by skipping whole blocks without decompressing them.
+ * A file that ends in a partially written block, left by a crash, is
+ * read up to the last complete block.
+ *
+ * @since 3.3
+ */
+class BinaryRecordReader implements SnapshotReader.RecordReader, Closeable {
+  private final String inputPath;
+  private final FileInputStream file;
+  private final FileChannel channel;
+  private DataInputStream in;
+
+  private final Inflater inflater = new Inflater();
+  private final CRC32 crc = new CRC32();
+
+  /** The first record numbers and file offsets of the indexed blocks. */
+  private long[] indexRecords = new long[0];
+  private long[] indexOffsets = new long[0];
+
+  /** The number of records before the next one to be read. */
+  private long recordNumber = 0;
+  private boolean done = false;
+
+  /* The header of the current block. */
+  private int blockRecords;
+  private int dataLength;
+  private int storedLength;
+  private byte compression;
+  private int blockCrc;
+
+  /** The data of the current block, and the number of records left in it. */
+  private DataInputStream block;
+  private int blockRemaining = 0;
+
+  /**
+   * Returns {@code true} if the file is a binary snapshot, or
+   * {@code false} if it is missing, empty, or a legacy text snapshot.
+   */
+  static boolean isBinarySnapshot(File input) throws IOException {
+    if (!input.isFile()) {
+      return false;
+    }
+    FileInputStream is = new FileInputStream(input);
+    try {
+      byte[] magic = new byte[MAGIC.length];
+      int length = 0;
+      int count;
+      while (length < magic.length
+          && (count = is.read(magic, length, magic.length - length)) > 0) {
+        length += count;
+      }
+      return Arrays.equals(magic, MAGIC);
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Opens a binary snapshot.
+   *
+   * @param input the snapshot file
+   * @throws SnapshotReaderException if the file is not a supported
+   *         binary snapshot, or cannot be read
+   */
+  BinaryRecordReader(File input) throws SnapshotReaderException {
+    this.inputPath = input.getAbsolutePath();
+    try {
+      file = new FileInputStream(input);
+    } catch (IOException e) {
+      throw new SnapshotReaderException(
+          "failed to open snapshot: " + inputPath, e);
+    }
+    this.channel = file.getChannel();
+    boolean iMadeIt = false;
+    try {
+      seek(0);
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new SnapshotReaderException(
+            "not a binary snapshot: " + inputPath);
+      }
+      byte version = in.readByte();
+      if (version != VERSION) {
+        throw new SnapshotReaderException(String.format(
+            "unsupported snapshot version (%s, version %d)",
+            inputPath, version));
+      }
+      readIndex();
+      seek(HEADER_LENGTH);
+      iMadeIt = true;
+    } catch (IOException e) {
+      throw new SnapshotReaderException(
+          "failed to read snapshot header: " + inputPath, e);
+    } finally {
+      if (!iMadeIt) {
+        try {
+          close();
+        } catch (IOException e) {
+          // Already failing.
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the block index from the end of the file. If the file has no
+   * trailer, because the writer was not closed, the index is left empty.
+   */
+  private void readIndex() throws IOException {
+    long size = channel.size();
+    if (size < HEADER_LENGTH + 8 + TRAILER_LENGTH) {
+      return;
+    }
+    seek(size - TRAILER_LENGTH);
+    in.readLong();  // The record count.
+    long endOffset = in.readLong();
+    byte[] magic = new byte[MAGIC.length];
+    in.readFully(magic);
+    if (!Arrays.equals(magic, MAGIC) || endOffset < HEADER_LENGTH
+        || endOffset > size - TRAILER_LENGTH - 8) {
+      return;
+    }
+    seek(endOffset);
+    int entries = in.readInt() == 0 ? in.readInt() : -1;
+    if (entries < 0
+        || endOffset + 8 + 16L * entries + TRAILER_LENGTH != size) {
+      return;
+    }
+    long[] records = new long[entries];
+    long[] offsets = new long[entries];
+    for (int i = 0; i < entries; i++) {
+      records[i] = in.readLong();
+      offsets[i] = in.readLong();
+    }
+    indexRecords = records;
+    indexOffsets = offsets;
+  }
+
+  private void seek(long offset) throws IOException {
+    channel.position(offset);
+    in = new DataInputStream(new BufferedInputStream(file));
+  }
+
+  @Override
+  public String readRecord() throws SnapshotReaderException {
+    try {
+      while (blockRemaining == 0) {
+        if (!readBlockHeader() || !readBlock()) {
+          return null;
+        }
+      }
+      byte[] bytes = new byte[block.readInt()];
+      block.readFully(bytes);
+      blockRemaining--;
+      recordNumber++;
+      return new String(bytes, Charsets.UTF_8);
+    } catch (IOException e) {
+      throw new SnapshotReaderException(
+          String.format("failed to read snapshot record (%s, record %d)",
+              inputPath, recordNumber + 1), e);
+    }
+  }
+
+  /**
+   * Discards {@code number} records, using the block index to avoid
+   * reading the blocks in between.
+   *
+   * @param number of records to skip
+   * @throws SnapshotReaderException on IO errors, or if there aren't enough
+   *         records
+   */
+  void skipRecords(long number) throws SnapshotReaderException {
+    long target = recordNumber + number;
+    try {
+      if (number <= blockRemaining) {
+        skipBlockRecords((int) number);
+        return;
+      }
+      recordNumber += blockRemaining;
+      blockRemaining = 0;
+      block = null;
+
+      // Find the last indexed block that starts at or before the target.
+      int i = Arrays.binarySearch(indexRecords, target);
+      if (i < 0) {
+        i = -i - 2;
+      }
+      if (i >= 0 && indexRecords[i] > recordNumber) {
+        seek(indexOffsets[i]);
+        recordNumber = indexRecords[i];
+      }
+
+      while (recordNumber < target) {
+        boolean found = readBlockHeader();
+        if (found && recordNumber + blockRecords <= target) {
+          found = skipBlock();
+          if (found) {
+            recordNumber += blockRecords;
+          }
+        } else if (found) {
+          found = readBlock();
+          if (found) {
+            skipBlockRecords((int) (target - recordNumber));
+          }
+        }
+        if (!found) {
+          throw new SnapshotReaderException(String.format(
+              "failed to skip %d records; snapshot contains only %d",
+              number, recordNumber));
+        }
+      }
+    } catch (IOException e) {
+      throw new SnapshotReaderException(
+          String.format("failed to skip snapshot records (%s, record %d)",
+              inputPath, recordNumber + 1), e);
+    }
+  }
+
+  private void skipBlockRecords(int number) throws IOException {
+    for (int k = 0; k < number; k++) {
+      int length = block.readInt();
+      if (block.skipBytes(length) != length) {
+        throw new EOFException();
+      }
+      blockRemaining--;
+      recordNumber++;
+    }
+  }
+
+  /**
+   * Skips the data of the current block.
+   *
+   * @return {@code false} if the block is truncated
+   */
+  private boolean skipBlock() throws IOException {
+    long length = storedLength;
+    while (length > 0) {
+      long skipped = in.skip(length);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          return truncated();
+        }
+        skipped = 1;
+      }
+      length -= skipped;
+    }
+    return true;
+  }
+
+  /**
+   * Marks the end of the readable data at a partially written block
+   * header or block, left by a crash.
+   *
+   * @return {@code false}
+   */
+  private boolean truncated() {
+    done = true;
+    block = null;
+    blockRemaining = 0;
+    return false;
+  }
+
+  /**
+   * Reads the header of the next block.
+   *
+   * @return {@code false} if there are no more blocks
+   */
+  private boolean readBlockHeader()
+      throws IOException, SnapshotReaderException {
+    if (done) {
+      return false;
+    }
+    try {
+      blockRecords = in.readInt();
+      if (blockRecords == 0) {
+        done = true;
+        return false;
+      }
+      dataLength = in.readInt();
+      storedLength = in.readInt();
+      compression = in.readByte();
+      blockCrc = in.readInt();
+    } catch (EOFException e) {
+      // The writer did not finish the file, so the data ends here.
+      return truncated();
+    }
+    if (blockRecords < 0 || dataLength < 0 || storedLength < 0
+        || (compression != STORED && compression != DEFLATED)
+        || (compression == STORED && storedLength != dataLength)) {
+      throw new SnapshotReaderException(String.format(
+          "failed to read snapshot block with invalid header "
+          + "(%s, record %d)", inputPath, recordNumber + 1));
+    }
+    return true;
+  }
+
+  /**
+   * Reads, decompresses, and verifies the data of the current block.
+   *
+   * @return {@code false} if the block is truncated
+   */
+  private boolean readBlock() throws IOException, SnapshotReaderException {
+    byte[] stored = new byte[storedLength];
+    try {
+      in.readFully(stored);
+    } catch (EOFException e) {
+      // The writer did not finish the block, so the data ends before it.
+      return truncated();
+    }
+    byte[] data;
+    if (compression == DEFLATED) {
+      data = new byte[dataLength];
+      inflater.reset();
+      inflater.setInput(stored);
+      int length = 0;
+      try {
+        while (length < dataLength && !inflater.finished()) {
+          int count = inflater.inflate(data, length, dataLength - length);
+          if (count == 0 && inflater.needsInput()) {
+            break;
+          }
+          length += count;
+        }
+      } catch (DataFormatException e) {
+        throw new SnapshotReaderException(String.format(
+            "failed to decompress snapshot block (%s, record %d)",
+            inputPath, recordNumber + 1), e);
+      }
+      if (length != dataLength) {
+        throw new SnapshotReaderException(String.format(
+            "failed to read snapshot block with incomplete data "
+            + "(%s, record %d)", inputPath, recordNumber + 1));
+      }
+    } else {
+      data = stored;
+    }
+    crc.reset();
+    crc.update(data);
+    if ((int) crc.getValue() != blockCrc) {
+      throw new SnapshotReaderException(String.format(
+          "failed to read snapshot block with invalid checksum "
+          + "(%s, record %d)", inputPath, recordNumber + 1));
+    }
+    block = new DataInputStream(new ByteArrayInputStream(data));
+    blockRemaining = blockRecords;
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    inflater.end();
+    file.close();
+  }
+}
@@ -0,0 +1,218 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.NullOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes snapshot records in a compact binary format. Records are
+ * written in blocks, each of which is compressed separately, and a
+ * sparse index of the blocks is written when the writer is closed, so
+ * that {@link BinaryRecordReader} can skip to a record without reading
+ * the records before it. The file layout is:
+ * <pre>
+ * header:  magic (4 bytes), version (byte)
+ * blocks:  record count (int), data length (int), stored length (int),
+ *          compression (byte), CRC-32 of the data (int), stored data
+ * end:     zero (int)
+ * index:   entry count (int), then the number of the first record in
+ *          the block (long) and the file offset of the block (long)
+ *          for each entry
+ * trailer: record count (long), file offset of the end marker (long),
+ *          magic (4 bytes)
+ * </pre>
+ * The data of a block is the UTF-8 length (int) and bytes of the
+ * string form of each record. A file without a trailer, left by a
+ * crash, can still be read up to the last complete block.
+ * <p>
+ * Each sync ends the current block, so syncing every record produces
+ * single record blocks, which are rarely worth compressing. This
+ * format is best used with group commit.
+ *
+ * @since 3.3
+ */
+class BinarySnapshotWriter extends SnapshotWriter {
+  /** The first byte is never the first byte of a legacy text snapshot. */
+  static final byte[] MAGIC = { (byte) 0x89, 'S', 'N', 'P' };
+  static final byte VERSION = 1;
+  static final int HEADER_LENGTH = MAGIC.length + 1;
+  static final int BLOCK_HEADER_LENGTH = 17;
+  static final int TRAILER_LENGTH = 16 + MAGIC.length;
+
+  static final byte STORED = 0;
+  static final byte DEFLATED = 1;
+
+  /** The uncompressed size at which a block is written. */
+  static final int BLOCK_SIZE = 64 * 1024;
+
+  /** The minimum number of records between index entries. */
+  static final int INDEX_INTERVAL = 1024;
+
+  private final DataOutputStream out;
+  private final ByteArrayOutputStream blockBytes =
+      new ByteArrayOutputStream(BLOCK_SIZE);
+  private final DataOutputStream block = new DataOutputStream(blockBytes);
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final CRC32 crc = new CRC32();
+  private byte[] deflated = new byte[BLOCK_SIZE];
+
+  /** The number of records in the current block. */
+  private int blockRecords = 0;
+
+  /** The number of records in the blocks written so far. */
+  private long blockedRecords = 0;
+
+  /** The file offset of the next block. */
+  private long position = HEADER_LENGTH;
+
+  /** Pairs of first record number and file offset. */
+  private final List<long[]> index = new ArrayList<long[]>();
+  private long nextIndexedRecord = 0;
+
+  private boolean closed = false;
+
+  /**
+   * Creates a BinarySnapshotWriter that writes to {@code output},
+   * syncing records in groups.
+   *
+   * @param output stream that is being wrapped
+   * @param fileDescriptor if non-{code null}, this will be synced to disk
+   *        after each group of records is written
+   * @param path name of output, for logging purposes
+   * @param syncRecords the maximum number of records to write between
+   *        syncs; must be positive
+   * @param syncMillis the maximum time in milliseconds between syncs, or
+   *        zero to sync only by the number of records
+   * @throws SnapshotWriterException on any error
+   */
+  public BinarySnapshotWriter(OutputStream output,
+      FileDescriptor fileDescriptor, String path, int syncRecords,
+      long syncMillis) throws SnapshotWriterException {
+    // The superclass Writer is not used, but it cannot be null.
+    super(new OutputStreamWriter(new NullOutputStream()), fileDescriptor,
+        path, syncRecords, syncMillis);
+    this.out = new DataOutputStream(new BufferedOutputStream(output));
+    try {
+      out.write(MAGIC);
+      out.writeByte(VERSION);
+    } catch (IOException e) {
+      throw new SnapshotWriterException("failed to write snapshot header", e);
+    }
+  }
+
+  @Override
+  protected void writeRecord(String stringForm) throws IOException {
+    byte[] bytes = stringForm.getBytes(Charsets.UTF_8);
+    block.writeInt(bytes.length);
+    block.write(bytes);
+    blockRecords++;
+    if (blockBytes.size() >= BLOCK_SIZE) {
+      writeBlock();
+    }
+  }
+
+  /** Ends the current block, and flushes it to the underlying output. */
+  @Override
+  protected void flushRecords() throws IOException {
+    writeBlock();
+    out.flush();
+  }
+
+  private void writeBlock() throws IOException {
+    if (blockRecords == 0) {
+      return;
+    }
+    byte[] data = blockBytes.toByteArray();
+    crc.reset();
+    crc.update(data);
+
+    // Store the data uncompressed if compression does not shrink it.
+    if (deflated.length < data.length) {
+      deflated = new byte[data.length];
+    }
+    deflater.reset();
+    deflater.setInput(data);
+    deflater.finish();
+    int deflatedLength = 0;
+    while (!deflater.finished() && deflatedLength < data.length) {
+      deflatedLength += deflater.deflate(deflated, deflatedLength,
+          data.length - deflatedLength);
+    }
+    boolean compress = deflater.finished() && deflatedLength < data.length;
+    byte[] stored = (compress) ? deflated : data;
+    int storedLength = (compress) ? deflatedLength : data.length;
+
+    if (blockedRecords >= nextIndexedRecord) {
+      index.add(new long[] { blockedRecords, position });
+      nextIndexedRecord = blockedRecords + INDEX_INTERVAL;
+    }
+    out.writeInt(blockRecords);
+    out.writeInt(data.length);
+    out.writeInt(storedLength);
+    out.writeByte((compress) ? DEFLATED : STORED);
+    out.writeInt((int) crc.getValue());
+    out.write(stored, 0, storedLength);
+
+    position += BLOCK_HEADER_LENGTH + storedLength;
+    blockedRecords += blockRecords;
+    blockRecords = 0;
+    blockBytes.reset();
+  }
+
+  /**
+   * Writes the remaining records and the block index, and closes the
+   * underlying output stream.
+   *
+   * @throws SnapshotWriterException
+   */
+  @Override
+  public void close() throws SnapshotWriterException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      writeBlock();
+      out.writeInt(0);
+      out.writeInt(index.size());
+      for (long[] entry : index) {
+        out.writeLong(entry[0]);
+        out.writeLong(entry[1]);
+      }
+      out.writeLong(blockedRecords);
+      out.writeLong(position);
+      out.write(MAGIC);
+      sync();
+      out.close();
+    } catch (IOException e) {
+      throw new SnapshotWriterException("failed to close snapshot", e);
+    } finally {
+      deflater.end();
+    }
+  }
+}
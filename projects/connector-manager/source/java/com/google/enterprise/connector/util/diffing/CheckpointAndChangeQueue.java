@@ -20,18 +20,23 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.json.JSONWriter;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -42,6 +47,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * Queue of {@code CheckpointAndChange} objects to be processed by the
@@ -52,6 +59,12 @@ import java.util.logging.Logger;
  * {@code CheckpointAndChange} objects remain until the client
  * indicates they have completed processing by calling {@link #resume(String)}
  * with the object's checkpoint or a later object's checkpoint.
+ * <p>
+ * The queue is persisted in a recovery file, which holds the full state
+ * of the queue as JSON, followed by a CRC-32 checksum of that state. Each
+ * call to {@link #resume(String)} appends a journal record with the
+ * number of changes retired and the changes added, and when the journal
+ * grows larger than the full state, a new recovery file is written.
  *
  * @since 2.8
  */
@@ -65,6 +78,18 @@ public class CheckpointAndChangeQueue {
   private static final String RECOVERY_FILE_PREFIX = "recovery.";
   private static final String QUEUE_JSON_TAG = "Q";
   private static final String MONITOR_STATE_JSON_TAG = "MON";
+  private static final String RETIRED_JSON_TAG = "R";
+  private static final String ADDED_JSON_TAG = "A";
+
+  /** Separates the lines of a recovery file. */
+  private static final char LINE_DELIMITER = '\n';
+
+  /**
+   * The journal is compacted when it is larger than the full state of the
+   * queue and this minimum size.
+   */
+  @VisibleForTesting
+  static final long MIN_COMPACTION_BYTES = 64 * 1024;
 
   private final AtomicInteger maximumQueueSize =
       new AtomicInteger(DEFAULT_MAXIMUM_QUEUE_SIZE);
@@ -77,6 +102,11 @@ public class CheckpointAndChangeQueue {
   private final File persistDir;  // place to persist enqueued values
   private MonitorRestartState monitorPoints = new MonitorRestartState();
 
+  /* The recovery file that journal records are appended to, if any. */
+  private RecoveryFile journalFile;
+  private long journalBaseLength;
+  private long journalLength;
+
   /** Convenient way to log some IOException instances. */
   private static class LoggingIoException extends IOException {
     LoggingIoException(String msg) {
@@ -377,22 +407,55 @@ public class CheckpointAndChangeQueue {
     }
   }
 
-  /** @return true if argument exists, has sentinal and readable JSON queue */
+  /**
+   * @return true if argument exists, and its queue state matches its
+   *         checksum, or for older recovery files without a checksum, has
+   *         sentinal and readable JSON queue
+   */
   private boolean isComplete(RecoveryFile recoveryFile) {
     // TODO(pjo): Move this method into RecoveryFile.
     try {
-      new ValidatingQueueReader().readJson(recoveryFile);
-      return true;
+      InputStream in =
+          new BufferedInputStream(new FileInputStream(recoveryFile));
+      try {
+        CRC32 crc = new CRC32();
+        int b;
+        while ((b = in.read()) >= 0 && b != LINE_DELIMITER) {
+          crc.update(b);
+        }
+        if (b < 0) {
+          // An older recovery file, without a checksum.
+          in.close();
+          new ValidatingQueueReader().readJson(recoveryFile);
+          return true;
+        }
+        StringBuilder checksum = new StringBuilder();
+        while ((b = in.read()) >= 0 && b != LINE_DELIMITER) {
+          checksum.append((char) b);
+        }
+        return b == LINE_DELIMITER
+            && checksum.toString().equals(Long.toHexString(crc.getValue()));
+      } finally {
+        in.close();
+      }
     } catch(IOException e) {
       return false;
     }
   }
 
-  private void writeRecoveryState(RecoveryFile recoveryFile)
+  /**
+   * Writes the full state of the queue, followed by its checksum.
+   * The JSON never contains a line delimiter.
+   *
+   * @return the length of the recovery file
+   */
+  private long writeRecoveryState(RecoveryFile recoveryFile)
       throws IOException {
     // TODO(pjo): Move this method into RecoveryFile.
     FileOutputStream outStream = new FileOutputStream(recoveryFile);
-    Writer writer = new OutputStreamWriter(outStream, Charsets.UTF_8);
+    CheckedOutputStream checkedStream =
+        new CheckedOutputStream(outStream, new CRC32());
+    Writer writer = new OutputStreamWriter(checkedStream, Charsets.UTF_8);
     try {
       try {
         writeJson(writer);
@@ -400,15 +463,132 @@ public class CheckpointAndChangeQueue {
         throw new IOException("Failed writing recovery file.", e);
       }
       writer.flush();
+      long checksum = checkedStream.getChecksum().getValue();
+      writer.write(LINE_DELIMITER + Long.toHexString(checksum)
+          + LINE_DELIMITER);
+      writer.flush();
       outStream.getFD().sync();
+      return outStream.getChannel().position();
     } finally {
       writer.close();
     }
   }
 
+  /**
+   * Appends a journal record of the changes retired from the head of the
+   * queue and added to its tail.
+   */
+  private void appendJournalRecord(int retired,
+      List<CheckpointAndChange> added) throws IOException {
+    StringWriter record = new StringWriter();
+    try {
+      JSONWriter writer = new JSONWriter(record);
+      writer.object();
+      writer.key(RETIRED_JSON_TAG);
+      writer.value(retired);
+      writer.key(ADDED_JSON_TAG);
+      writer.array();
+      for (CheckpointAndChange guaranteed : added) {
+        writer.value(guaranteed.getJson());
+      }
+      writer.endArray();
+      writer.endObject();
+    } catch (JSONException e) {
+      throw new IOException("Failed writing recovery journal.", e);
+    }
+    byte[] bytes = (getChecksum(record.toString()) + " " + record
+        + LINE_DELIMITER).getBytes(Charsets.UTF_8);
+
+    FileOutputStream outStream = new FileOutputStream(journalFile, true);
+    try {
+      outStream.write(bytes);
+      outStream.getFD().sync();
+    } finally {
+      outStream.close();
+    }
+    journalLength += bytes.length;
+  }
+
+  private static String getChecksum(String record) {
+    CRC32 crc = new CRC32();
+    crc.update(record.getBytes(Charsets.UTF_8));
+    return Long.toHexString(crc.getValue());
+  }
+
+  /**
+   * Replays a journal record.
+   *
+   * @return false if the record is incomplete
+   */
+  private boolean replayJournalRecord(String line) throws JSONException {
+    int space = line.indexOf(' ');
+    if (space < 0) {
+      return false;
+    }
+    String record = line.substring(space + 1);
+    if (!line.substring(0, space).equals(getChecksum(record))) {
+      return false;
+    }
+    JSONObject json = new JSONObject(record);
+    int retired = json.getInt(RETIRED_JSON_TAG);
+    for (int i = 0; i < retired && !checkpointAndChangeList.isEmpty(); i++) {
+      checkpointAndChangeList.remove(0);
+    }
+    List<CheckpointAndChange> added = new ArrayList<CheckpointAndChange>();
+    JSONArray array = json.getJSONArray(ADDED_JSON_TAG);
+    for (int i = 0; i < array.length(); i++) {
+      added.add(new CheckpointAndChange(array.getJSONObject(i),
+          internalDocumentHandleFactory, clientDocumentHandleFactory));
+    }
+    checkpointAndChangeList.addAll(added);
+    monitorPoints.updateOnGuaranteed(added);
+    return true;
+  }
+
+  /**
+   * Loads the full state of the queue from the first line of a recovery
+   * file, without the gson to org.json conversion of older files.
+   */
+  private void loadFullState(String line) throws JSONException {
+    JSONObject json = new JSONObject(new JSONTokener(line));
+    monitorPoints =
+        new MonitorRestartState(json.getJSONObject(MONITOR_STATE_JSON_TAG));
+    JSONArray array = json.getJSONArray(QUEUE_JSON_TAG);
+    for (int i = 0; i < array.length(); i++) {
+      checkpointAndChangeList.add(new CheckpointAndChange(
+          array.getJSONObject(i), internalDocumentHandleFactory,
+          clientDocumentHandleFactory));
+    }
+  }
+
   private void loadUpFromRecoveryState(RecoveryFile file) throws IOException {
     // TODO(pjo): Move this method into RecoveryFile.
-    new LoadingQueueReader().readJson(file);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(file), Charsets.UTF_8));
+    try {
+      String fullState = reader.readLine();
+      if (reader.readLine() == null) {
+        // An older recovery file, without a checksum.
+        reader.close();
+        new LoadingQueueReader().readJson(file);
+        return;
+      }
+      loadFullState(fullState);
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!replayJournalRecord(line)) {
+          // The last record was not completely written, so the batch it
+          // records was never returned.
+          LOG.warning("Ignoring incomplete journal record in recovery file "
+              + file.getAbsolutePath());
+          break;
+        }
+      }
+    } catch (JSONException e) {
+      throw new IOException("Failed reading persisted JSON queue.", e);
+    } finally {
+      reader.close();
+    }
   }
 
   private RecoveryFile[] allRecoveryFiles() throws IOException {
@@ -434,6 +614,10 @@ public class CheckpointAndChangeQueue {
     LOG.info("Starting CheckpointAndChangeQueue from " + checkpointString);
     ensurePersistDirExists();
     checkpointAndChangeList.clear();
+    monitorPoints = new MonitorRestartState();
+    // Start a new recovery file on the next resume, rather than appending
+    // to one that might end with an incomplete journal record.
+    journalFile = null;
     lastCheckpoint = constructLastCheckpoint(checkpointString);
     if (null == checkpointString) {
       removeAllRecoveryState();
@@ -460,13 +644,33 @@ public class CheckpointAndChangeQueue {
    */
   synchronized List<CheckpointAndChange> resume(String checkpointString)
       throws IOException {
-    removeCompletedChanges(checkpointString);
+    int retired = removeCompletedChanges(checkpointString);
+    int previousSize = checkpointAndChangeList.size();
     loadUpFromChangeSource();
     monitorPoints.updateOnGuaranteed(checkpointAndChangeList);
+    List<CheckpointAndChange> added = new ArrayList<CheckpointAndChange>(
+        checkpointAndChangeList.subList(previousSize,
+            checkpointAndChangeList.size()));
+
+    if (journalFile != null && journalLength - journalBaseLength
+        <= Math.max(journalBaseLength, MIN_COMPACTION_BYTES)) {
+      if (retired > 0 || !added.isEmpty()) {
+        try {
+          appendJournalRecord(retired, added);
+        } catch (IOException e) {
+          // Start a new recovery file on the next resume.
+          journalFile = null;
+          throw e;
+        }
+      }
+      return getList();
+    }
+
+    journalFile = null;
     RecoveryFile recoveryFile = new RecoveryFile(persistDir);
     try {
       try {
-        writeRecoveryState(recoveryFile);
+        journalBaseLength = writeRecoveryState(recoveryFile);
       } finally {
         // TODO: Enhance with mechanism that remembers
         // information about recovery files to avoid re-reading.
@@ -479,6 +683,8 @@ public class CheckpointAndChangeQueue {
       }
       throw e;
     }
+    journalFile = recoveryFile;
+    journalLength = journalBaseLength;
     return getList();
   }
 
@@ -520,9 +726,11 @@ public class CheckpointAndChangeQueue {
     writer.endObject();
   }
 
-  private void removeCompletedChanges(String checkpointString) {
+  /** @return the number of changes removed */
+  private int removeCompletedChanges(String checkpointString) {
+    int removed = 0;
     if (checkpointString == null) {
-      return;
+      return removed;
     } else {
       DiffingConnectorCheckpoint checkpoint
           = DiffingConnectorCheckpoint.fromJsonString(checkpointString);
@@ -538,10 +746,12 @@ public class CheckpointAndChangeQueue {
         } else {
           // Has been sent.  Remove it.
           iterator.remove();
+          removed++;
           // Monitors can consider these changes sent too.
           // monitorPoints.updateOnCompleted(current.getChange());
         }
       }
+      return removed;
     }
   }
 
@@ -634,6 +844,7 @@ public class CheckpointAndChangeQueue {
   }
 
   void clean() {
+    journalFile = null;
     try {
       removeAllRecoveryState();
     } catch (IOException e) {
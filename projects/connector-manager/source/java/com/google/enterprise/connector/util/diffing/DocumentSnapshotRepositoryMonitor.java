@@ -24,6 +24,16 @@ import com.google.enterprise.connector.spi.TraversalScheduleAware;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,6 +64,12 @@ import java.util.logging.Logger;
  * <p>
  * When an API to do that is available, this implementation should be fixed
  * to use it.
+ * <p>
+ * The repository is scanned and compared to the snapshot by a single
+ * thread, but the {@link DocumentSnapshot#getUpdate} calls, which may
+ * compute checksums or fetch metadata, can be made by a pool of update
+ * threads. The changes are still written to the snapshot and propagated
+ * to the client in repository order.
  *
  * @since 2.8
  */
@@ -152,12 +168,54 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
 
   private final DocumentSink documentSink;
 
+  /**
+   * The most recent checkpoint in this pass at which all of the written
+   * snapshot records had been synced to disk.
+   */
+  private MonitorCheckpoint syncedCheckpoint;
+
   /* Contains a checkpoint confirmation from CM. */
   private MonitorCheckpoint guaranteeCheckpoint;
 
   /* The monitor should exit voluntarily if set to false */
   private volatile boolean isRunning = true;
 
+  /** The number of changes per update thread that may be pending. */
+  private static final int PENDING_CHANGES_PER_THREAD = 8;
+
+  /** The number of threads making getUpdate calls. */
+  private final int updateThreads;
+
+  /** The update threads for this pass, or null to make the calls inline. */
+  private ExecutorService updateExecutor;
+
+  /** Changes detected in this pass, in order, whose callbacks are pending. */
+  private final Queue<PendingChange> pendingChanges =
+      new LinkedList<PendingChange>();
+
+  /** A change detected in this pass. */
+  private static class PendingChange {
+    /** The current record, or {@code null} for a deleted document. */
+    final DocumentSnapshot snapshot;
+
+    /** The previous record, or {@code null} for a new document. */
+    final DocumentSnapshot previous;
+
+    /** The result of getUpdate, or {@code null} for a deleted document. */
+    final Future<DocumentHandle> update;
+
+    /** The snapshot read record number for the checkpoint. */
+    final long readRecordNumber;
+
+    PendingChange(DocumentSnapshot snapshot, DocumentSnapshot previous,
+        Future<DocumentHandle> update, long readRecordNumber) {
+      this.snapshot = snapshot;
+      this.previous = previous;
+      this.update = update;
+      this.readRecordNumber = readRecordNumber;
+    }
+  }
+
   /**
    * Creates a DocumentSnapshotRepositoryMonitor that monitors the
    * Repository rooted at {@code root}.
@@ -176,6 +234,38 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
       SnapshotStore snapshotStore, Callback callback,
       DocumentSink documentSink, MonitorCheckpoint initialCp,
       DocumentSnapshotFactory documentSnapshotFactory) {
+    this(name, query, snapshotStore, callback, documentSink, initialCp,
+        documentSnapshotFactory, 1);
+  }
+
+  /**
+   * Creates a DocumentSnapshotRepositoryMonitor that monitors the
+   * Repository rooted at {@code root}, using multiple threads to call
+   * {@link DocumentSnapshot#getUpdate}, which must be thread-safe.
+   *
+   * @param name the name of this monitor (a hash of the start path)
+   * @param query query for files
+   * @param snapshotStore where snapshots are stored
+   * @param callback client callback
+   * @param documentSink destination for filtered out file info
+   * @param initialCp checkpoint when system initiated, could be {@code null}
+   * @param documentSnapshotFactory for un-serializing
+   *        {@link DocumentSnapshot} objects.
+   * @param updateThreads the number of threads calling
+   *        {@code DocumentSnapshot.getUpdate}; if 1, the calls are made
+   *        by the monitor thread
+   * @since 3.3
+   */
+  public DocumentSnapshotRepositoryMonitor(String name,
+      SnapshotRepository<? extends DocumentSnapshot> query,
+      SnapshotStore snapshotStore, Callback callback,
+      DocumentSink documentSink, MonitorCheckpoint initialCp,
+      DocumentSnapshotFactory documentSnapshotFactory, int updateThreads) {
+    if (updateThreads < 1) {
+      throw new IllegalArgumentException(
+          "updateThreads must be positive: " + updateThreads);
+    }
+    this.updateThreads = updateThreads;
     this.name = name;
     this.query = query;
     this.snapshotStore = snapshotStore;
@@ -189,8 +279,14 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
    * @return a current checkpoint for this monitor.
    */
   private MonitorCheckpoint getCheckpoint(long readerDelta) {
+    return getCheckpointAt(snapshotReader.getRecordNumber() + readerDelta);
+  }
+
+  /**
+   * @return a checkpoint for this monitor at the given snapshot read record
+   */
+  private MonitorCheckpoint getCheckpointAt(long readRecNum) {
     long snapNum = snapshotReader.getSnapshotNumber();
-    long readRecNum = snapshotReader.getRecordNumber() + readerDelta;
     if (readRecNum < 0) {
       readRecNum = 0;
     }
@@ -198,8 +294,20 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
     return new MonitorCheckpoint(name, snapNum, readRecNum, writeRecNum);
   }
 
-  private MonitorCheckpoint getCheckpoint() {
-    return getCheckpoint(0);
+  /**
+   * Returns a checkpoint to report to the callback.  If some of the
+   * snapshot records written have not yet been synced to disk, returns
+   * the most recent checkpoint at which they all were instead, because
+   * {@link SnapshotStore#stitch} can only recover from such a checkpoint.
+   * Recovering from an earlier checkpoint detects the intervening changes
+   * again.
+   */
+  private MonitorCheckpoint getSyncedCheckpoint(long readRecNum) {
+    if (snapshotWriter.getSyncedRecordCount()
+        == snapshotWriter.getRecordCount()) {
+      syncedCheckpoint = getCheckpointAt(readRecNum);
+    }
+    return syncedCheckpoint;
   }
 
   @Override
@@ -318,6 +426,11 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
       // Create an snapshot writer for this pass.
       this.snapshotWriter =
           new OrderedSnapshotWriter(snapshotStore.openNewSnapshotWriter());
+      this.syncedCheckpoint = new MonitorCheckpoint(name,
+          snapshotReader.getSnapshotNumber(), 0, 0);
+      if (updateThreads > 1) {
+        updateExecutor = newUpdateExecutor();
+      }
 
       for(DocumentSnapshot ss : query) {
         if (false == isRunning) {
@@ -330,12 +443,14 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
           throw new InterruptedException();
         }
         processDeletes(ss);
-        safelyProcessDocumentSnapshot(ss);
+        processDocument(ss);
       }
       // Take care of any trailing paths in the snapshot.
       processDeletes(null);
+      processPendingChanges(0);
 
     } finally {
+      cancelPendingChanges();
       try {
         snapshotStore.close(snapshotReader, snapshotWriter);
       } catch (IOException e) {
@@ -357,6 +472,7 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
     }
     snapshotWriter = null;
     snapshotReader = null;
+    syncedCheckpoint = null;
   }
 
   /**
@@ -366,41 +482,31 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
    *
    * @param documentSnapshot where to stop
    * @throws SnapshotReaderException
+   * @throws SnapshotWriterException
    * @throws InterruptedException
    */
   private void processDeletes(DocumentSnapshot documentSnapshot)
-      throws SnapshotReaderException, InterruptedException {
+      throws SnapshotReaderException, SnapshotWriterException,
+      InterruptedException {
     while (current != null
         && (documentSnapshot == null
             || COMPARATOR.compare(documentSnapshot, current) > 0)) {
-      callback.deletedDocument(
-          new DeleteDocumentHandle(current.getDocumentId()), getCheckpoint());
+      addPendingChange(new PendingChange(null, current, null,
+          snapshotReader.getRecordNumber()));
       current = snapshotReader.read();
     }
   }
 
-  private void safelyProcessDocumentSnapshot(DocumentSnapshot snapshot)
-      throws InterruptedException, SnapshotReaderException,
-      SnapshotWriterException {
-    try {
-      processDocument(snapshot);
-    } catch (RepositoryException re) {
-      //TODO Log the exception or its message? in document sink perhaps.
-      documentSink.add(snapshot.getDocumentId(), FilterReason.IO_EXCEPTION);
-    }
-  }
-
   /**
    * Processes a document found in the document repository.
    *
    * @param documentSnapshot
-   * @throws RepositoryException
    * @throws InterruptedException
    * @throws SnapshotReaderException
    * @throws SnapshotWriterException
    */
   private void processDocument(DocumentSnapshot documentSnapshot)
-      throws InterruptedException, RepositoryException, SnapshotReaderException,
+      throws InterruptedException, SnapshotReaderException,
           SnapshotWriterException {
     // At this point 'current' >= 'file', or possibly current == null if
     // we've processed the previous snapshot entirely.
@@ -409,39 +515,160 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
       processPossibleChange(documentSnapshot);
     } else {
       // This file didn't exist during the previous scan.
-      DocumentHandle documentHandle  = documentSnapshot.getUpdate(null);
-      snapshotWriter.write(documentSnapshot);
-
-      // Null if filtered due to mime-type.
-      if (documentHandle != null) {
-        callback.newDocument(documentHandle, getCheckpoint(-1));
-      }
+      addPendingChange(new PendingChange(documentSnapshot, null,
+          submitUpdate(documentSnapshot, null),
+          snapshotReader.getRecordNumber() - 1));
     }
   }
 
   /**
    * Processes a document found in the document repository that also appeared
    * in the previous scan. Determines whether the document has changed,
-   * propagates changes to the client and writes the snapshot record.
+   * and reads the next record from the previous scan.
    *
    * @param documentSnapshot
-   * @throws RepositoryException
    * @throws InterruptedException
    * @throws SnapshotWriterException
    * @throws SnapshotReaderException
    */
   private void processPossibleChange(DocumentSnapshot documentSnapshot)
-      throws RepositoryException, InterruptedException, SnapshotWriterException,
+      throws InterruptedException, SnapshotWriterException,
              SnapshotReaderException {
-    DocumentHandle documentHandle = documentSnapshot.getUpdate(current);
-    snapshotWriter.write(documentSnapshot);
+    addPendingChange(new PendingChange(documentSnapshot, current,
+        submitUpdate(documentSnapshot, current),
+        snapshotReader.getRecordNumber()));
+    current = snapshotReader.read();
+  }
+
+  private ExecutorService newUpdateExecutor() {
+    return Executors.newFixedThreadPool(updateThreads,
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r,
+                "Monitor " + name + " update-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  /**
+   * Starts determining whether a document has changed, on an update
+   * thread if there are any.
+   */
+  private Future<DocumentHandle> submitUpdate(
+      final DocumentSnapshot documentSnapshot,
+      final DocumentSnapshot previous) {
+    Callable<DocumentHandle> task = new Callable<DocumentHandle>() {
+        public DocumentHandle call() throws RepositoryException {
+          return documentSnapshot.getUpdate(previous);
+        }
+      };
+    if (updateExecutor == null) {
+      FutureTask<DocumentHandle> future = new FutureTask<DocumentHandle>(task);
+      future.run();
+      return future;
+    } else {
+      return updateExecutor.submit(task);
+    }
+  }
+
+  /**
+   * Adds a change to the pending changes, and processes the oldest
+   * pending changes if there are too many.
+   */
+  private void addPendingChange(PendingChange change)
+      throws InterruptedException, SnapshotWriterException {
+    pendingChanges.add(change);
+    int maxPending = (updateExecutor == null)
+        ? 0 : updateThreads * PENDING_CHANGES_PER_THREAD;
+    processPendingChanges(maxPending);
+  }
+
+  /**
+   * Processes pending changes in order until no more than
+   * {@code maxPending} remain.
+   */
+  private void processPendingChanges(int maxPending)
+      throws InterruptedException, SnapshotWriterException {
+    while (pendingChanges.size() > maxPending) {
+      processPendingChange(pendingChanges.remove());
+    }
+  }
+
+  private void cancelPendingChanges() {
+    for (PendingChange change : pendingChanges) {
+      if (change.update != null) {
+        change.update.cancel(true);
+      }
+    }
+    pendingChanges.clear();
+    if (updateExecutor != null) {
+      updateExecutor.shutdownNow();
+      updateExecutor = null;
+    }
+  }
+
+  /**
+   * Writes the snapshot record for a change, and propagates the change
+   * to the client.
+   */
+  private void processPendingChange(PendingChange change)
+      throws InterruptedException, SnapshotWriterException {
+    if (change.update == null) {
+      callback.deletedDocument(
+          new DeleteDocumentHandle(change.previous.getDocumentId()),
+          getSyncedCheckpoint(change.readRecordNumber));
+      return;
+    }
+
+    DocumentHandle documentHandle;
+    try {
+      documentHandle = getUpdate(change.update);
+    } catch (RepositoryException re) {
+      //TODO Log the exception or its message? in document sink perhaps.
+      documentSink.add(change.snapshot.getDocumentId(),
+          FilterReason.IO_EXCEPTION);
+      if (change.previous != null) {
+        // The record is not written to the snapshot, so the document
+        // is deleted.
+        callback.deletedDocument(
+            new DeleteDocumentHandle(change.previous.getDocumentId()),
+            getSyncedCheckpoint(change.readRecordNumber));
+      }
+      return;
+    }
+    snapshotWriter.write(change.snapshot);
+    MonitorCheckpoint checkpoint =
+        getSyncedCheckpoint(change.readRecordNumber);
     if (documentHandle == null) {
-      // No change.
+      // No change, or filtered due to mime-type.
+    } else if (change.previous == null) {
+      callback.newDocument(documentHandle, checkpoint);
     } else {
       // Normal change - send the gsa an update.
-      callback.changedDocument(documentHandle, getCheckpoint());
+      callback.changedDocument(documentHandle, checkpoint);
+    }
+  }
+
+  private static DocumentHandle getUpdate(Future<DocumentHandle> update)
+      throws InterruptedException, RepositoryException {
+    try {
+      return update.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RepositoryException) {
+        throw (RepositoryException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new SnapshotRepositoryRuntimeException(
+            "failed to get document update", cause);
+      }
     }
-    current = snapshotReader.read();
   }
 
   // Public for DocumentSnapshotRepositoryMonitorTest
@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.util.diffing;
 
+import com.google.common.base.Preconditions;
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.TraversalSchedule;
@@ -72,6 +73,16 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
 
   private final DocumentSnapshotFactory documentSnapshotFactory;
 
+  /* Group-commit settings for the snapshot writers. */
+  private int snapshotSyncRecords = 1;
+  private long snapshotSyncMillis = 0L;
+
+  /* Whether new snapshots are written in the binary format. */
+  private boolean binarySnapshots = false;
+
+  /* The number of threads per monitor making getUpdate calls. */
+  private int monitorUpdateThreads = 1;
+
   /**
    * Constructs {@link DocumentSnapshotRepositoryMonitorManagerImpl}
    * for the {@link DiffingConnector}.
@@ -101,6 +112,64 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
     this.checkpointAndChangeQueue = checkpointAndChangeQueue;
   }
 
+  /**
+   * Sets the maximum number of snapshot records written between syncs
+   * to disk. The default is 1, which syncs every record. Larger values
+   * make monitor passes much faster, at the cost of detecting more
+   * changes again after a crash.
+   *
+   * @param snapshotSyncRecords the maximum number of records between syncs
+   * @since 3.3
+   */
+  public void setSnapshotSyncRecords(int snapshotSyncRecords) {
+    Preconditions.checkArgument(snapshotSyncRecords > 0,
+        "snapshotSyncRecords must be positive: %s", snapshotSyncRecords);
+    this.snapshotSyncRecords = snapshotSyncRecords;
+  }
+
+  /**
+   * Sets the maximum time between syncs of the snapshot records to disk,
+   * when records are synced in groups. The default is 0, which syncs
+   * only by the number of records.
+   *
+   * @param snapshotSyncMillis the maximum time between syncs in milliseconds
+   * @since 3.3
+   */
+  public void setSnapshotSyncMillis(long snapshotSyncMillis) {
+    Preconditions.checkArgument(snapshotSyncMillis >= 0,
+        "snapshotSyncMillis must not be negative: %s", snapshotSyncMillis);
+    this.snapshotSyncMillis = snapshotSyncMillis;
+  }
+
+  /**
+   * Sets whether new snapshots are written in a compact binary format,
+   * which is faster to read and to recover from a crash. The default is
+   * {@code false}, which writes the text format that older versions can
+   * read. Snapshots in either format are always readable.
+   *
+   * @param binarySnapshots {@code true} to write binary snapshots
+   * @since 3.3
+   */
+  public void setBinarySnapshots(boolean binarySnapshots) {
+    this.binarySnapshots = binarySnapshots;
+  }
+
+  /**
+   * Sets the number of threads used by each monitor to determine whether
+   * documents have changed. The default is 1, which makes the
+   * {@link DocumentSnapshot#getUpdate} calls on the monitor thread.
+   * Larger values let the checksums and metadata of several documents be
+   * fetched at once, but require {@code getUpdate} to be thread-safe.
+   *
+   * @param monitorUpdateThreads the number of update threads per monitor
+   * @since 3.3
+   */
+  public void setMonitorUpdateThreads(int monitorUpdateThreads) {
+    Preconditions.checkArgument(monitorUpdateThreads > 0,
+        "monitorUpdateThreads must be positive: %s", monitorUpdateThreads);
+    this.monitorUpdateThreads = monitorUpdateThreads;
+  }
+
   private void flagAllMonitorsToStop() {
     for (SnapshotRepository<? extends DocumentSnapshot> repository
         : repositories) {
@@ -169,7 +238,8 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
       }
 
       SnapshotStore snapshotStore = new SnapshotStore(dir,
-          documentSnapshotFactory);
+          documentSnapshotFactory, snapshotSyncRecords, snapshotSyncMillis,
+          binarySnapshots);
 
       snapshotStores.put(monitorName, snapshotStore);
     }
@@ -263,7 +333,7 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
     DocumentSnapshotRepositoryMonitor monitor =
         new DocumentSnapshotRepositoryMonitor(monitorName, repository,
             snapshotStore, changeQueue.newCallback(), DOCUMENT_SINK, startCp,
-            documentSnapshotFactory);
+            documentSnapshotFactory, monitorUpdateThreads);
     monitor.setTraversalSchedule(traversalSchedule);
     LOG.fine("Adding a new monitor for " + monitorName + ": " + monitor);
     fileSystemMonitorsByName.put(monitorName, monitor);
@@ -73,4 +73,14 @@ class OrderedSnapshotWriter extends SnapshotWriter {
   public long getRecordCount() {
     return delegate.getRecordCount();
   }
+
+  @Override
+  public long getSyncedRecordCount() {
+    return delegate.getSyncedRecordCount();
+  }
+
+  @Override
+  public void sync() throws SnapshotWriterException {
+    delegate.sync();
+  }
 }
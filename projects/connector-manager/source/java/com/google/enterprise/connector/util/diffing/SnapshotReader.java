@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.util.diffing;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.CharBuffer;
 
@@ -29,6 +30,7 @@ public class SnapshotReader {
   
   private final String inputPath;
   private final BufferedReader in;
+  private final Closeable input;
   private final long snapshotNumber;
   private final DocumentSnapshotFactory documentSnapshotFactory;
   private long recordNumber;
@@ -158,6 +160,7 @@ public class SnapshotReader {
       DocumentSnapshotFactory documentSnapshotFactory)
       throws SnapshotReaderException {
     this.in = in;
+    this.input = in;
     /* Initial version of File System connector (2.6) used JSON.
     When diffing library was extracted (2.8) the requirement was loosened to
     allow for arbitrary Strings.  We have two
@@ -182,12 +185,42 @@ public class SnapshotReader {
     this.documentSnapshotFactory = documentSnapshotFactory;
   }
 
+  /**
+   * Constructs a SnapshotReader for another snapshot format.
+   *
+   * @param recordReader reads the records of the snapshot
+   * @param input closed when the reader is closed
+   * @param inputPath path to the snapshot
+   * @param snapshotNumber the number of the snapshot being read
+   */
+  SnapshotReader(RecordReader recordReader, Closeable input, String inputPath,
+      long snapshotNumber, DocumentSnapshotFactory documentSnapshotFactory) {
+    this.in = null;
+    this.input = input;
+    this.recordReader = recordReader;
+    this.inputPath = inputPath;
+    this.recordNumber = 0;  //1 based.
+    this.snapshotNumber = snapshotNumber;
+    this.documentSnapshotFactory = documentSnapshotFactory;
+  }
+
   /**
    * @return the next record in this snapshot, or {@code null} if we have
    *         reached the end of the snapshot
    * @throws SnapshotReaderException
    */
   public DocumentSnapshot read() throws SnapshotReaderException {
+    return parseDocumentSnapshot(readStringForm());
+  }
+
+  /**
+   * Reads the next record without parsing it, for copying to a
+   * {@link SnapshotWriter}.
+   *
+   * @return the string form of the next record in this snapshot, or
+   *         {@code null} if we have reached the end of the snapshot
+   */
+  String readStringForm() throws SnapshotReaderException {
     if (done) {
       throw new IllegalStateException();
     }
@@ -200,7 +233,7 @@ public class SnapshotReader {
         done = true;
       }
     }
-    return parseDocumentSnapshot(stringForm);
+    return stringForm;
   }
 
   private DocumentSnapshot parseDocumentSnapshot(String stringForm)
@@ -242,6 +275,13 @@ public class SnapshotReader {
    */
   public void skipRecords(long number) throws SnapshotReaderException,
       InterruptedException {
+    if (recordReader instanceof BinaryRecordReader) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      ((BinaryRecordReader) recordReader).skipRecords(number);
+      return;
+    }
     for (int k = 0; k < number; ++k) {
       if (Thread.interrupted()) {
         throw new InterruptedException();
@@ -265,6 +305,6 @@ public class SnapshotReader {
    * Closes the underlying input stream.
    */
   public void close() throws IOException {
-    in.close();
+    input.close();
   }
 }
\ No newline at end of file
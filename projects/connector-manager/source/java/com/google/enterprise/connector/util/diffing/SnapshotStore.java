@@ -53,11 +53,17 @@ public class SnapshotStore {
     return new File(snapshotDir, name);
   }
 
-  private static SnapshotWriter getSnapshotWriter(File snapshotFile)
+  private static SnapshotWriter getSnapshotWriter(File snapshotFile,
+      int syncRecords, long syncMillis, boolean binaryFormat)
       throws IOException, SnapshotWriterException {
     FileOutputStream os = new FileOutputStream(snapshotFile);
+    if (binaryFormat) {
+      return new BinarySnapshotWriter(os, os.getFD(),
+          snapshotFile.getAbsolutePath(), syncRecords, syncMillis);
+    }
     Writer w = new OutputStreamWriter(os, Charsets.UTF_8);
-    return new SnapshotWriter(w, os.getFD(), snapshotFile.getAbsolutePath());
+    return new SnapshotWriter(w, os.getFD(), snapshotFile.getAbsolutePath(),
+        syncRecords, syncMillis);
   }
 
   private static final Pattern SNAPSHOT_PATTERN =
@@ -70,6 +76,13 @@ public class SnapshotStore {
 
   protected volatile long oldestSnapshotToKeep;
 
+  // Group-commit settings for the snapshot writers.
+  private final int syncRecords;
+  private final long syncMillis;
+
+  // Whether new snapshots are written in the binary format.
+  private final boolean binaryFormat;
+
   /**
    * @param snapshotDirectory the directory in which to store the snapshots.
    *        Must be non-{@code null}. If it does not exist, it will be created.
@@ -80,7 +93,61 @@ public class SnapshotStore {
   public SnapshotStore(File snapshotDirectory,
       DocumentSnapshotFactory documentSnapshotFactory)
       throws SnapshotStoreException {
+    this(snapshotDirectory, documentSnapshotFactory, 1, 0L, false);
+  }
+
+  /**
+   * Constructs a SnapshotStore whose snapshot writers sync records to
+   * disk in groups, rather than one at a time.
+   *
+   * @param snapshotDirectory the directory in which to store the snapshots.
+   *        Must be non-{@code null}. If it does not exist, it will be created.
+   * @param documentSnapshotFactory factory for creating DocumentSnapshots
+   * @param syncRecords the maximum number of snapshot records to write
+   *        between syncs
+   * @param syncMillis the maximum time in milliseconds between syncs, or
+   *        zero to sync only by the number of records
+   * @throws SnapshotStoreException if the snapshot directory does not exist and
+   *         cannot be created
+   * @see SnapshotWriter#SnapshotWriter(Writer, java.io.FileDescriptor,
+   *      String, int, long)
+   * @since 3.3
+   */
+  public SnapshotStore(File snapshotDirectory,
+      DocumentSnapshotFactory documentSnapshotFactory, int syncRecords,
+      long syncMillis) throws SnapshotStoreException {
+    this(snapshotDirectory, documentSnapshotFactory, syncRecords, syncMillis,
+        false);
+  }
+
+  /**
+   * Constructs a SnapshotStore that may write new snapshots in a compact
+   * binary format. Existing snapshots are read in either format.
+   *
+   * @param snapshotDirectory the directory in which to store the snapshots.
+   *        Must be non-{@code null}. If it does not exist, it will be created.
+   * @param documentSnapshotFactory factory for creating DocumentSnapshots
+   * @param syncRecords the maximum number of snapshot records to write
+   *        between syncs
+   * @param syncMillis the maximum time in milliseconds between syncs, or
+   *        zero to sync only by the number of records
+   * @param binaryFormat {@code true} to write new snapshots in the binary
+   *        format, or {@code false} to write them in the text format
+   * @throws SnapshotStoreException if the snapshot directory does not exist and
+   *         cannot be created
+   * @since 3.3
+   */
+  public SnapshotStore(File snapshotDirectory,
+      DocumentSnapshotFactory documentSnapshotFactory, int syncRecords,
+      long syncMillis, boolean binaryFormat) throws SnapshotStoreException {
     Preconditions.checkNotNull(snapshotDirectory);
+    Preconditions.checkArgument(syncRecords > 0,
+        "syncRecords must be positive: %s", syncRecords);
+    Preconditions.checkArgument(syncMillis >= 0,
+        "syncMillis must not be negative: %s", syncMillis);
+    this.syncRecords = syncRecords;
+    this.syncMillis = syncMillis;
+    this.binaryFormat = binaryFormat;
     if (!snapshotDirectory.exists()) {
       if (!snapshotDirectory.mkdirs()) {
         throw new SnapshotStoreException("failed to create snapshot directory: "
@@ -104,7 +171,8 @@ public class SnapshotStore {
     long nextIndex = (snapshots.isEmpty()) ? 1 : snapshots.first() + 1;
     File out = getSnapshotFile(snapshotDir, nextIndex);
     try {
-      SnapshotWriter writer = getSnapshotWriter(out);
+      SnapshotWriter writer = getSnapshotWriter(out, syncRecords, syncMillis,
+          binaryFormat);
       aWriterIsActive = true;
       return writer;
     } catch (IOException e) {
@@ -136,7 +204,7 @@ public class SnapshotStore {
     LOG.info("starting with empty snapshot");
     File out = getSnapshotFile(snapshotDir, 0);
     try {
-      SnapshotWriter writer = getSnapshotWriter(out);
+      SnapshotWriter writer = getSnapshotWriter(out, 1, 0L, binaryFormat);
       writer.close();
     } catch (IOException e) {
       throw new SnapshotStoreException("failed to open snapshot: " + out.getAbsolutePath(), e);
@@ -221,12 +289,20 @@ public class SnapshotStore {
       throws SnapshotStoreException {
     File input = getSnapshotFile(snapshotDir, number);
     try {
+      if (BinaryRecordReader.isBinarySnapshot(input)) {
+        BinaryRecordReader reader = new BinaryRecordReader(input);
+        return new SnapshotReader(reader, reader, input.getAbsolutePath(),
+            number, documentSnapshotFactory);
+      }
       InputStream is = new FileInputStream(input);
       Reader r = new InputStreamReader(is, Charsets.UTF_8);
       return new SnapshotReader(new BufferedReader(r), input.getAbsolutePath(),
           number, documentSnapshotFactory);
     } catch (FileNotFoundException e) {
       throw new SnapshotStoreException("failed to open snapshot: " + number);
+    } catch (IOException e) {
+      throw new SnapshotReaderException("failed to open snapshot: " + number,
+          e);
     }
   }
 
@@ -279,18 +355,25 @@ public class SnapshotStore {
     long recoveryFileIndex = checkpoint.getSnapshotNumber() + 2;
     File out = getSnapshotFile(snapshotDir, recoveryFileIndex);
     boolean iMadeIt = false;
-    SnapshotWriter writer = getSnapshotWriter(out);
+    // The recovery snapshot is only used once it is complete, and is
+    // rewritten if recovery is interrupted, so it is synced when closed.
+    // It is written in the same format as the older snapshot, and the
+    // records are copied without parsing them.
+    boolean binaryFormat = BinaryRecordReader.isBinarySnapshot(
+        getSnapshotFile(snapshotDir, checkpoint.getSnapshotNumber()));
+    SnapshotWriter writer = getSnapshotWriter(out, Integer.MAX_VALUE, 0L,
+        binaryFormat);
       try {
       SnapshotReader part1 = openSnapshot(snapshotDir,
           checkpoint.getSnapshotNumber() + 1, documentSnapshotFactory);
       try {
         for (long k = 0; k < checkpoint.getOffset2(); ++k) {
           handleInterrupt();
-          DocumentSnapshot rec = part1.read();
+          String rec = part1.readStringForm();
           if (rec == null) {
             break;
           }
-          writer.write(rec);
+          writer.writeStringForm(rec);
         }
       } finally {
         part1.close();
@@ -299,11 +382,11 @@ public class SnapshotStore {
           checkpoint.getSnapshotNumber(), documentSnapshotFactory);
       try {
         part2.skipRecords(checkpoint.getOffset1());
-        DocumentSnapshot rec = part2.read();
+        String rec = part2.readStringForm();
         while (rec != null) {
           handleInterrupt();
-          writer.write(rec);
-          rec = part2.read();
+          writer.writeStringForm(rec);
+          rec = part2.readStringForm();
         }
       } finally {
         part2.close();
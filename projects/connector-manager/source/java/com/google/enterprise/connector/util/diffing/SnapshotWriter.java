@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.util.diffing;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 
 import java.io.BufferedWriter;
 import java.io.FileDescriptor;
@@ -23,6 +24,13 @@ import java.io.Writer;
 
 /**
  * Write snapshot records in CSV format.
+ * <p>
+ * By default, each record is flushed and synced to disk as it is
+ * written.  In group-commit mode, records are synced every {@code N}
+ * records or every {@code T} milliseconds, whichever comes first, and
+ * when the writer is closed.  Only the first {@link #getSyncedRecordCount}
+ * records are guaranteed to survive a crash, so checkpoints must not
+ * refer to records beyond that point.
  *
  * @since 2.8
  */
@@ -34,8 +42,15 @@ public class SnapshotWriter {
   protected long count;
   protected FileDescriptor fileDescriptor;
 
+  /** The number of records synced to disk. */
+  protected long syncedCount;
+  private final int syncRecords;
+  private final long syncMillis;
+  private long lastSyncTime;
+
   /**
-   * Creates a SnapshotWriter that appends to {@code output}.
+   * Creates a SnapshotWriter that appends to {@code output}, syncing
+   * each record.
    *
    * @param output CSV writer that is being wrapped
    * @param fileDescriptor if non-{code null}, this will be flushed after
@@ -45,10 +60,39 @@ public class SnapshotWriter {
    */
   public SnapshotWriter(Writer output, FileDescriptor fileDescriptor,
       String path) throws SnapshotWriterException {
+    this(output, fileDescriptor, path, 1, 0L);
+  }
+
+  /**
+   * Creates a SnapshotWriter that appends to {@code output}, syncing
+   * records in groups.
+   *
+   * @param output CSV writer that is being wrapped
+   * @param fileDescriptor if non-{code null}, this will be synced to disk
+   *        after each group of records is written
+   * @param path name of output, for logging purposes
+   * @param syncRecords the maximum number of records to write between
+   *        syncs; must be positive
+   * @param syncMillis the maximum time in milliseconds between syncs, or
+   *        zero to sync only by the number of records
+   * @throws SnapshotWriterException on any error
+   * @since 3.3
+   */
+  public SnapshotWriter(Writer output, FileDescriptor fileDescriptor,
+      String path, int syncRecords, long syncMillis)
+      throws SnapshotWriterException {
+    Preconditions.checkArgument(syncRecords > 0,
+        "syncRecords must be positive: %s", syncRecords);
+    Preconditions.checkArgument(syncMillis >= 0,
+        "syncMillis must not be negative: %s", syncMillis);
     this.output = new BufferedWriter(output);
     this.fileDescriptor = fileDescriptor;
     this.path = path;
     this.count = 0;
+    this.syncedCount = 0;
+    this.syncRecords = syncRecords;
+    this.syncMillis = syncMillis;
+    this.lastSyncTime = System.currentTimeMillis();
   }
 
   /**
@@ -60,31 +104,88 @@ public class SnapshotWriter {
    */
   public void write(DocumentSnapshot snapshot) throws SnapshotWriterException,
       IllegalArgumentException {
+    writeStringForm(getStringForm(snapshot));
+  }
+
+  /**
+   * Appends the string form of a record, as returned by
+   * {@link SnapshotReader#readStringForm}, to the output stream.
+   */
+  void writeStringForm(String stringForm) throws SnapshotWriterException {
     try {
-      write(snapshot, output);
+      writeRecord(stringForm);
+      ++count;
+      if (count - syncedCount >= syncRecords || (syncMillis > 0
+          && System.currentTimeMillis() - lastSyncTime >= syncMillis)) {
+        sync();
+      }
+    } catch (IOException e) {
+      throw new SnapshotWriterException("failed to write snapshot record", e);
+    }
+  }
+
+  /**
+   * Writes the string form of a record to the output, without syncing it.
+   *
+   * @param stringForm the string form of the record
+   * @throws IOException
+   * @since 3.3
+   */
+  protected void writeRecord(String stringForm) throws IOException {
+    write(stringForm, output);
+  }
+
+  /**
+   * Flushes the written records to the underlying output.
+   *
+   * @throws IOException
+   * @since 3.3
+   */
+  protected void flushRecords() throws IOException {
+    output.flush();
+  }
+
+  /**
+   * Flushes the written records and syncs them to disk.
+   *
+   * @throws SnapshotWriterException
+   * @since 3.3
+   */
+  public void sync() throws SnapshotWriterException {
+    try {
+      flushRecords();
       if (fileDescriptor != null) {
         fileDescriptor.sync();
       }
-      ++count;
+      syncedCount = count;
+      lastSyncTime = System.currentTimeMillis();
     } catch (IOException e) {
-      throw new SnapshotWriterException("failed to write snapshot record", e);
+      throw new SnapshotWriterException("failed to sync snapshot", e);
     }
   }
 
   @VisibleForTesting
   static void write(DocumentSnapshot snapshot, Writer writer)
       throws IOException, IllegalArgumentException {
+    write(getStringForm(snapshot), writer);
+  }
+
+  private static String getStringForm(DocumentSnapshot snapshot) {
     String stringForm = snapshot.toString();
     if (stringForm == null) {
       throw new IllegalArgumentException(
           "DocumentSnapshot.toString returned null.");
     }
+    return stringForm;
+  }
+
+  private static void write(String stringForm, Writer writer)
+      throws IOException {
     String length = Integer.toString(stringForm.length());
     writer.write(length);
     writer.write(LENGTH_DELIMITER);
     writer.write(stringForm);
     writer.write(RECORD_DELIMITER);
-    writer.flush();
   }
 
   /**
@@ -94,6 +195,9 @@ public class SnapshotWriter {
    */
   public void close() throws SnapshotWriterException {
     try {
+      if (count > syncedCount) {
+        sync();
+      }
       output.close();
     } catch (IOException e) {
       throw new SnapshotWriterException("failed to close snapshot", e);
@@ -114,6 +218,14 @@ public class SnapshotWriter {
     return count;
   }
 
+  /**
+   * @return the number of records successfully written and synced to disk.
+   * @since 3.3
+   */
+  public long getSyncedRecordCount() {
+    return syncedCount;
+  }
+
   @VisibleForTesting
   public Writer getOutput() {
     return output;
@@ -0,0 +1,148 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests {@link BufferPool}.
+ */
+public class BufferPoolTest extends TestCase {
+  private BufferPool pool;
+
+  @Override
+  protected void setUp() {
+    pool = new BufferPool(1024, 64 * 1024, 256 * 1024, 4);
+  }
+
+  public void testSizeClasses() {
+    assertEquals(1024, pool.acquire(1).length);
+    assertEquals(1024, pool.acquire(1024).length);
+    assertEquals(2048, pool.acquire(1025).length);
+    assertEquals(64 * 1024, pool.acquire(40000).length);
+    // Too big to pool.
+    assertEquals(64 * 1024 + 1, pool.acquire(64 * 1024 + 1).length);
+    assertEquals(0, pool.getReuseCount());
+    assertEquals(5, pool.getAllocationCount());
+  }
+
+  public void testReuse() {
+    byte[] buffer = pool.acquire(3000);
+    pool.release(buffer);
+    assertSame(buffer, pool.acquire(4096));
+    assertNotSame(buffer, pool.acquire(4096));
+    assertEquals(1, pool.getReuseCount());
+    assertEquals(2, pool.getAllocationCount());
+    assertEquals(8192, pool.getAllocatedBytes());
+  }
+
+  public void testReleaseForeignBuffers() {
+    pool.release(null);
+    pool.release(new byte[1000]);
+    pool.release(new byte[128 * 1024]);
+    pool.acquire(1000);
+    pool.acquire(1024);
+    assertEquals(0, pool.getReuseCount());
+
+    // A buffer that is exactly a size class is pooled anyway.
+    byte[] buffer = new byte[2048];
+    pool.release(buffer);
+    assertSame(buffer, pool.acquire(2048));
+    assertEquals(1, pool.getReuseCount());
+  }
+
+  public void testPoolLimit() {
+    // 256KB per size class holds only four 64KB buffers.
+    List<byte[]> buffers = new ArrayList<byte[]>();
+    for (int i = 0; i < 6; i++) {
+      buffers.add(pool.acquire(64 * 1024));
+    }
+    for (byte[] buffer : buffers) {
+      pool.release(buffer);
+    }
+    for (int i = 0; i < 6; i++) {
+      pool.acquire(64 * 1024);
+    }
+    assertEquals(4, pool.getReuseCount());
+    assertEquals(8, pool.getAllocationCount());
+  }
+
+  public void testConcurrentUse() throws Exception {
+    final int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      for (int t = 0; t < threads; t++) {
+        final byte value = (byte) t;
+        results.add(executor.submit(new Callable<Boolean>() {
+            public Boolean call() {
+              for (int i = 0; i < 1000; i++) {
+                byte[] buffer = pool.acquire(2048);
+                buffer[0] = value;
+                buffer[buffer.length - 1] = value;
+                Thread.yield();
+                if (buffer[0] != value || buffer[buffer.length - 1] != value) {
+                  return false;
+                }
+                pool.release(buffer);
+              }
+              return true;
+            }
+          }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue("A buffer was shared", result.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertTrue(pool.getStatistics(), pool.getAllocationCount() <= threads);
+  }
+
+  /**
+   * Compares the buffer allocation of compressing many small documents
+   * with and without the shared pool.
+   */
+  public void testAllocationRate() throws Exception {
+    final int documents = 1000;
+    final int bufferSize = 1024 * 1024;
+    byte[] content = new byte[10 * 1024];
+
+    BufferPool sharedPool = BufferPool.getInstance();
+    long before = sharedPool.getAllocatedBytes();
+    for (int i = 0; i < documents; i++) {
+      InputStream in = new CompressedFilterInputStream(
+          new ByteArrayInputStream(content), bufferSize);
+      byte[] out = new byte[4096];
+      while (in.read(out, 0, out.length) != -1) {
+      }
+      in.close();
+    }
+    long pooledBytes = sharedPool.getAllocatedBytes() - before;
+    long unpooledBytes = (long) documents * bufferSize;
+    // Other tests may be using the shared pool at the same time.
+    assertTrue("Buffer bytes allocated: unpooled " + unpooledBytes
+        + ", pooled " + pooledBytes, pooledBytes < unpooledBytes / 100);
+  }
+}
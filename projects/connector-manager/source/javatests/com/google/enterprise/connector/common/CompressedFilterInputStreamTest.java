@@ -279,6 +279,27 @@ public class CompressedFilterInputStreamTest extends TestCase {
     byteArrayRead3(2048);
   }
 
+  /* Test that reading a closed stream fails cleanly. */
+  public void testReadAfterClose() throws Exception {
+    CompressedFilterInputStream is = new CompressedFilterInputStream(
+        new ByteArrayInputStream(input), BUFF_SIZE);
+    assertTrue(is.read() != -1);
+    is.close();
+    try {
+      is.read();
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // Expected.
+    }
+    try {
+      is.read(new byte[10], 0, 10);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // Expected.
+    }
+    is.close();
+  }
+
   /* Test use of mixed read() and read(byte[], off, len) interface. */
   public void testReadWithReadByteArray() throws Exception {
     byteArrayRead4(1, 1);
@@ -0,0 +1,205 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import com.google.enterprise.connector.util.Base64;
+import com.google.enterprise.connector.util.Base64FilterInputStream;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Inflater;
+
+/**
+ * Tests {@link ParallelCompressedBase64InputStream}.
+ */
+public class ParallelCompressedBase64InputStreamTest extends TestCase {
+  private static final int BLOCK_SIZE =
+      ParallelCompressedBase64InputStream.BLOCK_SIZE;
+
+  private static final int[] SIZES = { 0, 1, 2, 3, 4, 1000,
+      BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 5 * BLOCK_SIZE + 7 };
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() {
+    assertTrue(ParallelCompressedBase64InputStream.isSupported());
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /** Returns random bytes. */
+  private static byte[] randomInput(int size) {
+    byte[] input = new byte[size];
+    new Random(size).nextBytes(input);
+    return input;
+  }
+
+  /** Returns compressible text, repeated across the blocks. */
+  private static byte[] textInput(int size) {
+    byte[] text = ("Given the enormous volume of web site information added,"
+        + " deleted, and changed on a frequent basis, Google cannot and does"
+        + " not screen anything made available through its indices. ")
+        .getBytes();
+    Random random = new Random(size);
+    byte[] input = new byte[size];
+    for (int i = 0; i < size; i++) {
+      input[i] = text[(i + random.nextInt(3)) % text.length];
+    }
+    return input;
+  }
+
+  private static byte[] readFully(InputStream in, int readSize)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[readSize];
+    int count;
+    if (readSize == 1) {
+      while ((count = in.read()) != -1) {
+        out.write(count);
+      }
+    } else {
+      while ((count = in.read(buffer, 0, buffer.length)) != -1) {
+        out.write(buffer, 0, count);
+      }
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  private byte[] encode(byte[] input, long threshold, boolean breakLines,
+      int readSize) throws IOException {
+    return readFully(new ParallelCompressedBase64InputStream(
+        new ByteArrayInputStream(input), executor, 4, threshold, breakLines),
+        readSize);
+  }
+
+  /** Decodes and inflates the output, which must be one zlib stream. */
+  private static byte[] decode(byte[] encoded) throws Exception {
+    byte[] compressed = Base64.decode(encoded);
+    Inflater inflater = new Inflater();
+    inflater.setInput(compressed);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    while (!inflater.finished()) {
+      int count = inflater.inflate(buffer);
+      assertFalse("truncated", count == 0 && !inflater.finished()
+          && inflater.needsInput());
+      out.write(buffer, 0, count);
+    }
+    assertEquals(0, inflater.getRemaining());
+    inflater.end();
+    return out.toByteArray();
+  }
+
+  private void checkRoundTrip(byte[] input, long threshold,
+      boolean breakLines, int readSize) throws Exception {
+    byte[] encoded = encode(input, threshold, breakLines, readSize);
+    assertTrue(Arrays.equals(input, decode(encoded)));
+  }
+
+  public void testParallel() throws Exception {
+    for (int size : SIZES) {
+      checkRoundTrip(randomInput(size), 0L, false, 32768);
+      checkRoundTrip(textInput(size), 0L, false, 32768);
+    }
+  }
+
+  public void testReadingThread() throws Exception {
+    for (int size : SIZES) {
+      checkRoundTrip(textInput(size), Long.MAX_VALUE, false, 32768);
+    }
+  }
+
+  public void testSameOutput() throws Exception {
+    byte[] input = textInput(5 * BLOCK_SIZE + 7);
+    byte[] expected = encode(input, Long.MAX_VALUE, false, 32768);
+    assertTrue(Arrays.equals(expected, encode(input, 0L, false, 32768)));
+    assertTrue(Arrays.equals(expected,
+        encode(input, 2L * BLOCK_SIZE, false, 32768)));
+    assertTrue(Arrays.equals(expected, encode(input, 0L, false, 3)));
+    assertTrue(Arrays.equals(expected, encode(input, 0L, false, 1)));
+  }
+
+  public void testBreakLines() throws Exception {
+    for (int size : SIZES) {
+      byte[] input = textInput(size);
+      byte[] encoded = encode(input, 0L, true, 1000);
+      assertTrue(Arrays.equals(input, decode(encoded)));
+      for (String line : new String(encoded, "US-ASCII").split("\n")) {
+        assertTrue(line, line.length() <= 76);
+      }
+    }
+  }
+
+  /** Compression ratio should be close to that of a single Deflater. */
+  public void testCompressionRatio() throws Exception {
+    byte[] input = textInput(8 * BLOCK_SIZE);
+    int serial = readFully(new Base64FilterInputStream(
+        new CompressedFilterInputStream(new ByteArrayInputStream(input))),
+        32768).length;
+    int parallel = encode(input, 0L, false, 32768).length;
+    assertTrue(serial + " vs " + parallel, parallel < serial * 1.05);
+  }
+
+  public void testNoExecutor() throws Exception {
+    byte[] input = textInput(3 * BLOCK_SIZE);
+    byte[] encoded = readFully(new ParallelCompressedBase64InputStream(
+        new ByteArrayInputStream(input), null, 2, 0L, false), 32768);
+    assertTrue(Arrays.equals(input, decode(encoded)));
+  }
+
+  /** A shut down executor should not fail a stream that is using it. */
+  public void testExecutorShutdown() throws Exception {
+    byte[] input = textInput(10 * BLOCK_SIZE);
+    byte[] expected = encode(input, Long.MAX_VALUE, false, 32768);
+    InputStream in = new ParallelCompressedBase64InputStream(
+        new ByteArrayInputStream(input), executor, 4, 0L, false);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[100];
+    int count = in.read(buffer);
+    assertTrue(count > 0);
+    out.write(buffer, 0, count);
+    executor.shutdown();
+    out.write(readFully(in, 32768));
+    assertTrue(Arrays.equals(expected, out.toByteArray()));
+  }
+
+  public void testEarlyClose() throws Exception {
+    InputStream in = new ParallelCompressedBase64InputStream(
+        new ByteArrayInputStream(randomInput(10 * BLOCK_SIZE)), executor, 4,
+        0L, false);
+    assertTrue(in.read(new byte[100]) > 0);
+    in.close();
+    try {
+      in.read();
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+}
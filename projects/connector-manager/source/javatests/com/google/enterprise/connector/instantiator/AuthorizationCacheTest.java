@@ -0,0 +1,278 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.instantiator;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationManager;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
+import com.google.enterprise.connector.spi.AuthorizationResponse.Status;
+import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
+import com.google.enterprise.connector.util.Clock;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests {@link AuthorizationCache}.
+ */
+public class AuthorizationCacheTest extends TestCase {
+  /**
+   * An AuthorizationManager that records the docids it is asked about.
+   * Docids starting with "p" are permitted, those starting with "i" are
+   * indeterminate, and the rest are omitted from the response.
+   */
+  private static class MockAuthorizationManager
+      implements AuthorizationManager {
+    final List<String> requested = new ArrayList<String>();
+
+    @Override
+    public Collection<AuthorizationResponse> authorizeDocids(
+        Collection<String> docids, AuthenticationIdentity identity) {
+      List<AuthorizationResponse> responses =
+          new ArrayList<AuthorizationResponse>();
+      for (String docid : docids) {
+        requested.add(docid);
+        if (docid.startsWith("p")) {
+          responses.add(new AuthorizationResponse(Status.PERMIT, docid));
+        } else if (docid.startsWith("i")) {
+          responses.add(new AuthorizationResponse(Status.INDETERMINATE, docid));
+        }
+      }
+      return responses;
+    }
+  }
+
+  private static class MockClock implements Clock {
+    long time = 1000L;
+
+    @Override
+    public long getTimeMillis() {
+      return time;
+    }
+  }
+
+  private static final AuthenticationIdentity ALICE =
+      new SimpleAuthenticationIdentity("alice");
+  private static final AuthenticationIdentity BOB =
+      new SimpleAuthenticationIdentity("bob");
+
+  private final Object instance = new Object();
+  private MockAuthorizationManager delegate;
+  private MockClock clock;
+
+  @Override
+  protected void setUp() {
+    delegate = new MockAuthorizationManager();
+    clock = new MockClock();
+  }
+
+  private AuthorizationCache newCache(long maxEntries, long permitTtl,
+      long denyTtl, long indeterminateTtl) {
+    AuthorizationCache cache = new AuthorizationCache(maxEntries, 0L,
+        permitTtl, denyTtl, indeterminateTtl);
+    cache.setClock(clock);
+    return cache;
+  }
+
+  private static Map<String, Status> authorize(AuthorizationManager manager,
+      AuthenticationIdentity identity, String... docids) throws Exception {
+    Map<String, Status> results = new HashMap<String, Status>();
+    for (AuthorizationResponse response :
+             manager.authorizeDocids(Arrays.asList(docids), identity)) {
+      results.put(response.getDocid(), response.getStatus());
+    }
+    return results;
+  }
+
+  public void testDisabled() {
+    AuthorizationCache cache = newCache(0L, 1000L, 1000L, 1000L);
+    assertFalse(cache.isEnabled());
+    assertSame(delegate,
+        cache.newAuthorizationManager("test", instance, delegate, null));
+  }
+
+  public void testNothingCached() {
+    AuthorizationCache cache = newCache(100L, 0L, 0L, 0L);
+    assertSame(delegate,
+        cache.newAuthorizationManager("test", instance, delegate, null));
+  }
+
+  public void testNullAuthorizationManager() {
+    AuthorizationCache cache = newCache(100L, 1000L, 1000L, 1000L);
+    assertNull(cache.newAuthorizationManager("test", instance, null, null));
+  }
+
+  public void testHits() throws Exception {
+    AuthorizationCache cache = newCache(100L, 1000L, 1000L, 1000L);
+    AuthorizationManager manager =
+        cache.newAuthorizationManager("test", instance, delegate, null);
+
+    Map<String, Status> expected = ImmutableMap.of(
+        "p1", Status.PERMIT, "d1", Status.DENY, "i1", Status.INDETERMINATE);
+    assertEquals(
+        ImmutableMap.of("p1", Status.PERMIT, "i1", Status.INDETERMINATE),
+        authorize(manager, ALICE, "p1", "d1", "i1"));
+    assertEquals(ImmutableList.of("p1", "d1", "i1"), delegate.requested);
+
+    // Omitted docids are cached, and returned, as DENY.
+    assertEquals(expected, authorize(manager, ALICE, "p1", "d1", "i1"));
+    assertEquals(3, delegate.requested.size());
+    assertEquals(3, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+    assertEquals(3, cache.size());
+
+    // Only the misses go to the connector.
+    assertEquals(ImmutableMap.of("p1", Status.PERMIT, "p2", Status.PERMIT),
+        authorize(manager, ALICE, "p1", "p2"));
+    assertEquals(ImmutableList.of("p1", "d1", "i1", "p2"), delegate.requested);
+  }
+
+  public void testIdentities() throws Exception {
+    AuthorizationCache cache = newCache(100L, 1000L, 1000L, 1000L);
+    AuthorizationManager manager =
+        cache.newAuthorizationManager("test", instance, delegate, null);
+    authorize(manager, ALICE, "p1");
+    authorize(manager, BOB, "p1");
+    authorize(manager, new SimpleAuthenticationIdentity("alice", "pw"), "p1");
+    authorize(manager, ALICE, "p1");
+    assertEquals(ImmutableList.of("p1", "p1", "p1"), delegate.requested);
+
+    // Identities with the same password share decisions, those with
+    // another password do not.
+    authorize(manager, new SimpleAuthenticationIdentity("alice", "pw"), "p1");
+    assertEquals(ImmutableList.of("p1", "p1", "p1"), delegate.requested);
+    authorize(manager, new SimpleAuthenticationIdentity("alice", "pw2"), "p1");
+    assertEquals(ImmutableList.of("p1", "p1", "p1", "p1"), delegate.requested);
+  }
+
+  public void testTtls() throws Exception {
+    AuthorizationCache cache = newCache(100L, 1000L, 2000L, 0L);
+    AuthorizationManager manager =
+        cache.newAuthorizationManager("test", instance, delegate, null);
+    authorize(manager, ALICE, "p1", "d1", "i1");
+    assertEquals(2, cache.size());
+
+    clock.time += 999L;
+    authorize(manager, ALICE, "p1", "d1", "i1");
+    assertEquals(ImmutableList.of("p1", "d1", "i1", "i1"), delegate.requested);
+
+    clock.time += 1L;
+    authorize(manager, ALICE, "p1", "d1");
+    assertEquals(ImmutableList.of("p1", "d1", "i1", "i1", "p1"),
+        delegate.requested);
+
+    clock.time += 1000L;
+    authorize(manager, ALICE, "d1");
+    assertEquals(ImmutableList.of("p1", "d1", "i1", "i1", "p1", "d1"),
+        delegate.requested);
+  }
+
+  public void testConnectorTtls() throws Exception {
+    AuthorizationCache cache = newCache(100L, 1000L, 1000L, 0L);
+    Map<String, String> config = ImmutableMap.of(
+        AuthorizationCache.PERMIT_TTL_PROPERTY, "5000",
+        AuthorizationCache.DENY_TTL_PROPERTY, "0",
+        AuthorizationCache.INDETERMINATE_TTL_PROPERTY, "bogus");
+    AuthorizationManager manager =
+        cache.newAuthorizationManager("test", instance, delegate, config);
+    authorize(manager, ALICE, "p1", "d1", "i1");
+    assertEquals(1, cache.size());
+
+    clock.time += 4999L;
+    authorize(manager, ALICE, "p1");
+    assertEquals(3, delegate.requested.size());
+  }
+
+  public void testEviction() throws Exception {
+    AuthorizationCache cache = newCache(2L, 1000L, 1000L, 1000L);
+    AuthorizationManager manager =
+        cache.newAuthorizationManager("test", instance, delegate, null);
+    authorize(manager, ALICE, "p1", "p2", "p3");
+    assertTrue(String.valueOf(cache.size()), cache.size() <= 2);
+    assertEquals(3 - cache.size(), cache.getEvictionCount());
+  }
+
+  public void testMaxBytes() throws Exception {
+    AuthorizationCache cache =
+        new AuthorizationCache(0L, 1024L, 1000L, 1000L, 1000L);
+    assertTrue(cache.isEnabled());
+    AuthorizationManager manager =
+        cache.newAuthorizationManager("test", instance, delegate, null);
+    List<String> docids = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      docids.add("p" + i);
+    }
+    manager.authorizeDocids(docids, ALICE);
+    assertTrue(String.valueOf(cache.size()), cache.size() > 0);
+    assertTrue(String.valueOf(cache.size()), cache.size() < 100);
+  }
+
+  public void testNewInstance() throws Exception {
+    AuthorizationCache cache = newCache(100L, 1000L, 1000L, 1000L);
+    AuthorizationManager manager =
+        cache.newAuthorizationManager("test", instance, delegate, null);
+    authorize(manager, ALICE, "p1");
+
+    // Another wrapper for the same instance shares the decisions.
+    manager = cache.newAuthorizationManager("test", instance, delegate, null);
+    authorize(manager, ALICE, "p1");
+    assertEquals(1, delegate.requested.size());
+
+    // A new instance does not.
+    manager =
+        cache.newAuthorizationManager("test", new Object(), delegate, null);
+    authorize(manager, ALICE, "p1");
+    assertEquals(2, delegate.requested.size());
+  }
+
+  public void testInvalidate() throws Exception {
+    AuthorizationCache cache = newCache(100L, 1000L, 1000L, 1000L);
+    AuthorizationManager test =
+        cache.newAuthorizationManager("test", instance, delegate, null);
+    AuthorizationManager other =
+        cache.newAuthorizationManager("other", new Object(), delegate, null);
+    authorize(test, ALICE, "p1");
+    authorize(other, ALICE, "p1");
+    assertEquals(2, cache.size());
+
+    cache.invalidate("test");
+    assertEquals(1, cache.size());
+    authorize(test, ALICE, "p1");
+    authorize(other, ALICE, "p1");
+    assertEquals(3, delegate.requested.size());
+  }
+
+  public void testNullResponse() throws Exception {
+    AuthorizationCache cache = newCache(100L, 1000L, 1000L, 1000L);
+    AuthorizationManager manager = cache.newAuthorizationManager("test",
+        instance, new AuthorizationManager() {
+            @Override
+            public Collection<AuthorizationResponse> authorizeDocids(
+                Collection<String> docids, AuthenticationIdentity identity) {
+              return null;
+            }
+          }, null);
+    assertNull(manager.authorizeDocids(ImmutableList.of("p1"), ALICE));
+    assertEquals(0, cache.size());
+  }
+}
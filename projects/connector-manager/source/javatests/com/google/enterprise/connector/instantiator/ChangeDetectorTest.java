@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.instantiator;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.persist.ConnectorStamps;
 import com.google.enterprise.connector.persist.MockPersistentStore;
 import com.google.enterprise.connector.persist.PersistentStore;
 import com.google.enterprise.connector.persist.StoreContext;
@@ -276,6 +278,43 @@ public class ChangeDetectorTest extends TestCase {
     assertNoChanges(expectedChanges, listener.getChanges());
   }
 
+  /** Tests retries with a store that reuses an unchanged inventory. */
+  public void testRetryOnAddUnchangedInventory() {
+    useUnchangedInventoryStore();
+    testRetryInstantiationOnAdd();
+  }
+
+  /** Tests retries with a store that reuses an unchanged inventory. */
+  public void testRetryOnUpdateUnchangedInventory() {
+    useUnchangedInventoryStore();
+    testRetryInstantiationOnUpdate();
+  }
+
+  private void useUnchangedInventoryStore() {
+    store = new UnchangedInventoryStore();
+    detector = new ChangeDetectorImpl(store, listener);
+  }
+
+  /**
+   * A MockPersistentStore that returns the previous inventory if it
+   * has not changed, as an incremental store would.
+   */
+  private static class UnchangedInventoryStore extends MockPersistentStore {
+    private ImmutableMap<StoreContext, ConnectorStamps> inventory;
+
+    @Override
+    public synchronized ImmutableMap<StoreContext, ConnectorStamps>
+        getInventory() {
+      ImmutableMap<StoreContext, ConnectorStamps> current =
+          super.getInventory();
+      if (inventory == null
+          || !inventory.toString().equals(current.toString())) {
+        inventory = current;
+      }
+      return inventory;
+    }
+  }
+
   /**
    * A ChangeListener that optionally throws InstantiatorException
    * for configuration changes.  Used to test instantiation retry.
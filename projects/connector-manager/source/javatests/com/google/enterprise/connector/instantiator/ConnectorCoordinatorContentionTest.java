@@ -0,0 +1,174 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.instantiator;
+
+import com.google.enterprise.connector.manager.Context;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that serving requests to a {@link ConnectorCoordinatorImpl} are
+ * not blocked by traversal or checkpoint operations holding the
+ * coordinator lock.
+ */
+public class ConnectorCoordinatorContentionTest extends TestCase {
+  private static final String APPLICATION_CONTEXT =
+      "testdata/contextTests/ConnectorCoordinatorBatchTest.xml";
+
+  private static final String TEST_DIR_NAME =
+      "testdata/tmp/ConnectorCoordinatorContentionTests";
+  private final File baseDirectory = new File(TEST_DIR_NAME);
+
+  private static final int READERS = 4;
+  private static final int CALLS = 100;
+
+  private ConnectorCoordinatorImpl coordinator;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    ConnectorTestUtils.deleteAllFiles(baseDirectory);
+    assertTrue(baseDirectory.mkdirs());
+
+    Context.refresh();
+    Context context = Context.getInstance();
+    context.setStandaloneContext(APPLICATION_CONTEXT,
+        Context.DEFAULT_JUNIT_COMMON_DIR_PATH);
+    SpringInstantiator si = (SpringInstantiator) context.getRequiredBean(
+        "Instantiator", SpringInstantiator.class);
+    si.init();
+
+    TypeInfo typeInfo = ((TypeMap) context.getRequiredBean(
+        "TypeMap", TypeMap.class)).getTypeInfo("TestConnectorA");
+    assertNotNull(typeInfo);
+    ConnectorCoordinatorMap coordinatorMap = (ConnectorCoordinatorMap)
+        context.getRequiredBean("ConnectorCoordinatorMap",
+                                ConnectorCoordinatorMap.class);
+    coordinator = (ConnectorCoordinatorImpl) coordinatorMap.getOrAdd("c1");
+    Configuration config = new Configuration(
+        typeInfo.getConnectorTypeName(), new HashMap<String, String>(), null);
+    coordinator.setConnectorConfiguration(typeInfo, config, Locale.ENGLISH,
+                                          false);
+    executor = Executors.newFixedThreadPool(READERS + 1);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      executor.shutdownNow();
+      executor.awaitTermination(5, TimeUnit.SECONDS);
+      if (coordinator != null) {
+        coordinator.removeConnector();
+      }
+    } finally {
+      coordinator = null;
+      ConnectorTestUtils.deleteAllFiles(baseDirectory);
+    }
+  }
+
+  /** Makes the serving calls that should not require the coordinator lock. */
+  private void serve() throws Exception {
+    assertTrue(coordinator.exists());
+    coordinator.getAuthorizationManager();
+    coordinator.getAuthenticationManager();
+    coordinator.getRetriever();
+    coordinator.getConnectorState();
+    coordinator.getConnectorTypeName();
+  }
+
+  /**
+   * Tests that serving requests complete while another thread holds the
+   * coordinator lock, as BatchCoordinator does while storing a checkpoint.
+   */
+  public void testServingWhileLocked() throws Exception {
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    executor.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          synchronized (coordinator) {
+            locked.countDown();
+            release.await();
+          }
+          return null;
+        }
+      });
+    try {
+      assertTrue(locked.await(5, TimeUnit.SECONDS));
+      Future<Void> future = executor.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            serve();
+            return null;
+          }
+        });
+      future.get(5, TimeUnit.SECONDS);
+    } finally {
+      release.countDown();
+    }
+  }
+
+  /**
+   * Tests that concurrent serving requests all complete while a simulated
+   * traversal stores a checkpoint and keeps holding the coordinator lock.
+   */
+  public void testServingWhileStoringCheckpoint() throws Exception {
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Future<Void> traversal = executor.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          synchronized (coordinator) {
+            coordinator.setConnectorState("checkpoint");
+            locked.countDown();
+            release.await();
+          }
+          return null;
+        }
+      });
+    try {
+      assertTrue(locked.await(5, TimeUnit.SECONDS));
+      List<Future<Void>> readers = new ArrayList<Future<Void>>();
+      for (int i = 0; i < READERS; i++) {
+        readers.add(executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+              for (int j = 0; j < CALLS; j++) {
+                serve();
+              }
+              return null;
+            }
+          }));
+      }
+      for (Future<Void> reader : readers) {
+        reader.get(5, TimeUnit.SECONDS);
+      }
+      // The lock was held for the whole time the readers were running.
+      assertFalse(traversal.isDone());
+    } finally {
+      release.countDown();
+    }
+    traversal.get(5, TimeUnit.SECONDS);
+  }
+}
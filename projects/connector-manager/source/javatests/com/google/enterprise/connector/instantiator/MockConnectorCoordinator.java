@@ -16,6 +16,7 @@ package com.google.enterprise.connector.instantiator;
 
 import com.google.enterprise.connector.persist.PersistentStore;
 import com.google.enterprise.connector.persist.StoreContext;
+import com.google.enterprise.connector.scheduler.BatchScheduleListener;
 import com.google.enterprise.connector.scheduler.HostLoadManager;
 import com.google.enterprise.connector.scheduler.Schedule;
 import com.google.enterprise.connector.spi.AuthenticationManager;
@@ -194,6 +195,15 @@ class MockConnectorCoordinator implements ConnectorCoordinator {
     return true;
   }
 
+  /** Always reports that a batch may be started now. */
+  public long getNextBatchTime() {
+    return 0L;
+  }
+
+  public void setBatchScheduleListener(BatchScheduleListener listener) {
+    // Batch completion is not reported.
+  }
+
   public String getConnectorState() {
     return stateStore.getTraversalState();
   }
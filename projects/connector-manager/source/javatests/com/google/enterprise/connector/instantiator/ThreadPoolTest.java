@@ -205,6 +205,192 @@ public class ThreadPoolTest extends TestCase {
     assertIsExiting(true, tasks);
   }
 
+  public void testMaximumThreads() throws Exception {
+    final int count = 5;
+    ThreadPool threadPool = new ThreadPool(DEFAULT_TASK_LIFE_SECS, clock);
+    threadPool.setMaximumThreads(2);
+    BlockingQueue<Object> taskRunningQ = new ArrayBlockingQueue<Object>(count);
+    BlockingQueue<Object> taskStoppingQ = new ArrayBlockingQueue<Object>(count);
+    List<TaskHandle> handles = new ArrayList<TaskHandle>();
+    for (int ix = 0; ix < count; ix++) {
+      CancelableTask task =
+          new BlockingQueueCancelable(taskRunningQ, taskStoppingQ);
+      handles.add(threadPool.submit(task, "connector" + ix, 100));
+    }
+    take(2, taskRunningQ);
+    verifyRunning(handles);
+    assertEquals(2, threadPool.getActiveCount());
+    assertEquals(3, threadPool.getQueueDepth());
+    assertNull(taskRunningQ.poll(100, TimeUnit.MILLISECONDS));
+
+    // Each task that stops lets one waiting task start.
+    clock.adjustTime(1000L);
+    put(1, taskStoppingQ);
+    take(1, taskRunningQ);
+    assertNull(taskRunningQ.poll(100, TimeUnit.MILLISECONDS));
+    put(count - 1, taskStoppingQ);
+    take(count - 3, taskRunningQ);
+    verifyCompleted(handles);
+    // A task is done slightly before it gives up its thread.
+    verifyActiveCount(0, threadPool);
+    assertEquals(0, threadPool.getQueueDepth());
+    assertEquals(count, threadPool.getStartedCount());
+    assertEquals(3, threadPool.getWaitCount());
+    assertTrue(threadPool.getStatistics(),
+        threadPool.getMaximumWaitMillis() >= 1000L);
+  }
+
+  public void testUnlimitedThreads() throws Exception {
+    final int count = 10;
+    ThreadPool threadPool = new ThreadPool(DEFAULT_TASK_LIFE_SECS, clock);
+    BlockingQueue<Object> taskRunningQ = new ArrayBlockingQueue<Object>(count);
+    BlockingQueue<Object> taskStoppingQ = new ArrayBlockingQueue<Object>(count);
+    List<TaskHandle> handles = new ArrayList<TaskHandle>();
+    for (int ix = 0; ix < count; ix++) {
+      CancelableTask task =
+          new BlockingQueueCancelable(taskRunningQ, taskStoppingQ);
+      handles.add(threadPool.submit(task, "connector", 1));
+    }
+    take(count, taskRunningQ);
+    assertEquals(0, threadPool.getQueueDepth());
+    put(count, taskStoppingQ);
+    verifyCompleted(handles);
+  }
+
+  public void testWeightedFairOrder() throws Exception {
+    ThreadPool threadPool = new ThreadPool(DEFAULT_TASK_LIFE_SECS, clock);
+    threadPool.setMaximumThreads(1);
+    BlockingQueue<Object> runningQ = new ArrayBlockingQueue<Object>(1);
+    BlockingQueue<Object> stoppingQ = new ArrayBlockingQueue<Object>(1);
+    TaskHandle blocker = threadPool.submit(
+        new BlockingQueueCancelable(runningQ, stoppingQ), "blocker", 1);
+    take(1, runningQ);
+
+    // Connector A has twice the weight of connector B.
+    BlockingQueue<Object> startedQ = new ArrayBlockingQueue<Object>(12);
+    for (int ix = 0; ix < 6; ix++) {
+      threadPool.submit(new NamedCancelable("A", startedQ), "A", 200);
+    }
+    for (int ix = 0; ix < 6; ix++) {
+      threadPool.submit(new NamedCancelable("B", startedQ), "B", 100);
+    }
+    assertEquals(12, threadPool.getQueueDepth());
+
+    stoppingQ.put(this);
+    verifyCompleted(blocker);
+    StringBuilder order = new StringBuilder();
+    for (int ix = 0; ix < 12; ix++) {
+      order.append(startedQ.poll(2050, TimeUnit.MILLISECONDS));
+    }
+    // B is never starved, but A starts twice as often while both wait.
+    assertEquals("ABAABAABABBB", order.toString());
+  }
+
+  public void testCancelWaiting() throws Exception {
+    ThreadPool threadPool = new ThreadPool(DEFAULT_TASK_LIFE_SECS, clock);
+    threadPool.setMaximumThreads(1);
+    BlockingQueue<Object> runningQ = new ArrayBlockingQueue<Object>(2);
+    BlockingQueue<Object> stoppingQ = new ArrayBlockingQueue<Object>(2);
+    CancelableTask running = new BlockingQueueCancelable(runningQ, stoppingQ);
+    CancelableTask waiting = new BlockingQueueCancelable(runningQ, stoppingQ);
+    TaskHandle runningHandle = threadPool.submit(running, "running", 1);
+    TaskHandle waitingHandle = threadPool.submit(waiting, "waiting", 1);
+    take(1, runningQ);
+    assertFalse(waitingHandle.isDone());
+    assertEquals(1, threadPool.getQueueDepth());
+
+    waitingHandle.cancel();
+    assertTrue(waitingHandle.isDone());
+    assertEquals(1, waiting.getCancelCount());
+    assertEquals(0, threadPool.getQueueDepth());
+
+    stoppingQ.put(this);
+    verifyCompleted(runningHandle);
+    assertNull(runningQ.poll(100, TimeUnit.MILLISECONDS));
+    verifyActiveCount(0, threadPool);
+  }
+
+  public void testCancelRunning() throws Exception {
+    ThreadPool threadPool = new ThreadPool(DEFAULT_TASK_LIFE_SECS, clock);
+    threadPool.setMaximumThreads(1);
+    BlockingQueue<Object> runningQ = new ArrayBlockingQueue<Object>(2);
+    BlockingQueue<Object> stoppingQ = new ArrayBlockingQueue<Object>(2);
+    CancelableTask running = new BlockingQueueCancelable(runningQ, stoppingQ);
+    CancelableTask waiting = new BlockingQueueCancelable(runningQ, stoppingQ);
+    TaskHandle runningHandle = threadPool.submit(running, "running", 1);
+    TaskHandle waitingHandle = threadPool.submit(waiting, "waiting", 1);
+    take(1, runningQ);
+    assertEquals(1, threadPool.getQueueDepth());
+
+    // Canceling the running task stops it, which starts the waiting one.
+    runningHandle.cancel();
+    assertTrue(runningHandle.isDone());
+    take(1, runningQ);
+    assertEquals(0, threadPool.getQueueDepth());
+    assertEquals(1, threadPool.getActiveCount());
+
+    stoppingQ.put(this);
+    verifyCompleted(waitingHandle);
+    verifyActiveCount(0, threadPool);
+  }
+
+  public void testCancelIgnored() throws Exception {
+    ThreadPool threadPool = new ThreadPool(DEFAULT_TASK_LIFE_SECS, clock);
+    threadPool.setMaximumThreads(1);
+    BlockingQueue<Object> runningQ = new ArrayBlockingQueue<Object>(1);
+    BlockingQueue<Object> startedQ = new ArrayBlockingQueue<Object>(1);
+    HangingCancelable hung = new HangingCancelable(runningQ);
+    TaskHandle hungHandle = threadPool.submit(hung, "hung", 1);
+    TaskHandle waitingHandle =
+        threadPool.submit(new NamedCancelable("B", startedQ), "waiting", 1);
+    take(1, runningQ);
+
+    // The canceled task ignores the interrupt, so it keeps its thread.
+    hungHandle.cancel();
+    assertTrue(hungHandle.isDone());
+    assertNull(startedQ.poll(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, threadPool.getActiveCount());
+    assertEquals(1, threadPool.getQueueDepth());
+
+    // Once it returns, the waiting task starts.
+    synchronized (hung) {
+      hung.dontChangeMe = false;
+      hung.notifyAll();
+    }
+    take(1, startedQ);
+    verifyCompleted(waitingHandle);
+    verifyActiveCount(0, threadPool);
+  }
+
+  public void testShutdownWithWaiting() throws Exception {
+    ThreadPool threadPool = new ThreadPool(DEFAULT_TASK_LIFE_SECS, clock);
+    threadPool.setMaximumThreads(1);
+    BlockingQueue<Object> taskRunningQ = new ArrayBlockingQueue<Object>(2);
+    BlockingQueue<Object> taskCanceledQ = new ArrayBlockingQueue<Object>(2);
+    TaskHandle runningHandle = threadPool.submit(
+        new VerifyInterruptedCancelable(taskRunningQ, taskCanceledQ), "a", 1);
+    TaskHandle waitingHandle = threadPool.submit(
+        new VerifyInterruptedCancelable(taskRunningQ, taskCanceledQ), "b", 1);
+    take(1, taskRunningQ);
+    assertTrue(threadPool.shutdown(true, 1000));
+    take(1, taskCanceledQ);
+    verifyCompleted(runningHandle);
+    verifyCompleted(waitingHandle);
+    assertNull(taskRunningQ.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  public void testSetMaximumThreadsAfterSubmit() throws Exception {
+    ThreadPool threadPool = new ThreadPool(DEFAULT_TASK_LIFE_SECS, clock);
+    BlockingQueue<Object> startedQ = new ArrayBlockingQueue<Object>(1);
+    verifyCompleted(threadPool.submit(new NamedCancelable("A", startedQ)));
+    try {
+      threadPool.setMaximumThreads(1);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+    threadPool.shutdown(true, 10);
+  }
+
   private void assertIsExiting(boolean expect,
       List<VerifyInterruptedCancelable> tasks) throws InterruptedException{
     for (VerifyInterruptedCancelable task : tasks) {
@@ -238,6 +424,16 @@ public class ThreadPoolTest extends TestCase {
     }
   }
 
+  private void verifyActiveCount(int expected, ThreadPool threadPool)
+      throws InterruptedException {
+    long timeToGiveUp = System.currentTimeMillis() + 2100;
+    while (threadPool.getActiveCount() != expected
+           && System.currentTimeMillis() < timeToGiveUp) {
+      Thread.sleep(10);
+    }
+    assertEquals(expected, threadPool.getActiveCount());
+  }
+
   private void verifyRunning(List<TaskHandle> tasks) {
     for (TaskHandle task : tasks) {
       assertTrue(!task.isDone());
@@ -319,6 +515,21 @@ public class ThreadPoolTest extends TestCase {
     }
   }
 
+  private static class NamedCancelable extends CancelableTask {
+    private final String name;
+    // Written by me when I start.
+    private final BlockingQueue<Object> startedQ;
+
+    NamedCancelable(String name, BlockingQueue<Object> startedQ) {
+      this.name = name;
+      this.startedQ = startedQ;
+    }
+
+    public void run() {
+      startedQ.add(name);
+    }
+  }
+
   private static class HangingCancelable extends CancelableTask {
     // Cancelable writes to this Q so test can block Cancelable is running.
     private final BlockingQueue<Object> taskRunningQ;
@@ -0,0 +1,164 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.SimpleDocument;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+import com.google.enterprise.connector.util.Clock;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests {@link MetadataCache}.
+ */
+public class MetadataCacheTest extends TestCase {
+  private static class MockClock implements Clock {
+    long time = 1000L;
+
+    @Override
+    public long getTimeMillis() {
+      return time;
+    }
+  }
+
+  private final Object instance = new Object();
+  private MockClock clock;
+
+  @Override
+  protected void setUp() {
+    clock = new MockClock();
+  }
+
+  private MetadataCache newCache(long maxEntries, long ttl) {
+    MetadataCache cache = new MetadataCache(maxEntries, ttl);
+    cache.setClock(clock);
+    return cache;
+  }
+
+  private static Document newDocument(String docid) {
+    Map<String, Object> props =
+        ConnectorTestUtils.createSimpleDocumentBasicProperties(docid);
+    props.remove(SpiConstants.PROPNAME_CONTENT);
+    return ConnectorTestUtils.createSimpleDocument(props);
+  }
+
+  private static String getDocid(Document document) throws Exception {
+    return Value.getSingleValueString(document, SpiConstants.PROPNAME_DOCID);
+  }
+
+  public void testDisabled() throws Exception {
+    assertFalse(new MetadataCache(0L, 1000L).isEnabled());
+    assertFalse(new MetadataCache(100L, 0L).isEnabled());
+
+    MetadataCache cache = newCache(0L, 1000L);
+    Document document = newDocument("doc1");
+    assertSame(document, cache.put("test", instance, "doc1", document));
+    assertNull(cache.get("test", instance, "doc1"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testHits() throws Exception {
+    MetadataCache cache = newCache(100L, 1000L);
+    assertTrue(cache.isEnabled());
+    assertNull(cache.get("test", instance, "doc1"));
+    Document document =
+        cache.put("test", instance, "doc1", newDocument("doc1"));
+    assertEquals("doc1", getDocid(document));
+
+    // The cached copy may be read again and again.
+    Document cached = cache.get("test", instance, "doc1");
+    assertSame(document, cached);
+    assertEquals("doc1", getDocid(cached));
+    assertEquals("doc1", getDocid(cache.get("test", instance, "doc1")));
+    assertEquals(newDocument("doc1").getPropertyNames(),
+                 cached.getPropertyNames());
+
+    assertNull(cache.get("other", instance, "doc1"));
+    assertNull(cache.get("test", instance, "doc2"));
+    assertEquals(2, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+    assertEquals(1, cache.size());
+  }
+
+  public void testTtl() throws Exception {
+    MetadataCache cache = newCache(100L, 1000L);
+    cache.put("test", instance, "doc1", newDocument("doc1"));
+    clock.time += 999L;
+    assertNotNull(cache.get("test", instance, "doc1"));
+    clock.time += 1L;
+    assertNull(cache.get("test", instance, "doc1"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testNewInstance() throws Exception {
+    MetadataCache cache = newCache(100L, 1000L);
+    cache.put("test", instance, "doc1", newDocument("doc1"));
+    assertNull(cache.get("test", new Object(), "doc1"));
+    assertNull(cache.get("test", instance, "doc1"));
+  }
+
+  public void testInvalidateDocid() throws Exception {
+    MetadataCache cache = newCache(100L, 1000L);
+    cache.put("test", instance, "doc1", newDocument("doc1"));
+    cache.put("test", instance, "doc2", newDocument("doc2"));
+    cache.invalidate("test", "doc1");
+    cache.invalidate("test", null);
+    assertNull(cache.get("test", instance, "doc1"));
+    assertNotNull(cache.get("test", instance, "doc2"));
+  }
+
+  public void testInvalidateConnector() throws Exception {
+    MetadataCache cache = newCache(100L, 1000L);
+    Object other = new Object();
+    cache.put("test", instance, "doc1", newDocument("doc1"));
+    cache.put("test", instance, "doc2", newDocument("doc2"));
+    cache.put("other", other, "doc1", newDocument("doc1"));
+    assertEquals(3, cache.size());
+
+    cache.invalidate("test");
+    assertEquals(1, cache.size());
+    assertNotNull(cache.get("other", other, "doc1"));
+
+    cache.invalidateAll();
+    assertEquals(0, cache.size());
+  }
+
+  public void testEviction() throws Exception {
+    MetadataCache cache = newCache(2L, 1000L);
+    cache.put("test", instance, "doc1", newDocument("doc1"));
+    cache.put("test", instance, "doc2", newDocument("doc2"));
+    cache.put("test", instance, "doc3", newDocument("doc3"));
+    assertTrue(String.valueOf(cache.size()), cache.size() <= 2);
+    assertEquals(3 - cache.size(), cache.getEvictionCount());
+  }
+
+  public void testBinaryValuesNotCached() throws Exception {
+    MetadataCache cache = newCache(100L, 1000L);
+    Document document = new SimpleDocument(
+        Collections.<String, List<Value>>singletonMap("binary",
+            Collections.singletonList(Value.getBinaryValue("x".getBytes()))));
+    Document copy = cache.put("test", instance, "doc1", document);
+    assertNotNull(copy.findProperty("binary").nextValue());
+    assertNull(cache.get("test", instance, "doc1"));
+    assertEquals(0, cache.size());
+  }
+}
@@ -38,6 +38,7 @@ import com.google.enterprise.connector.spi.RepositoryLoginException;
 import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
 import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
 import com.google.enterprise.connector.traversal.TraversalStateStore;
 import com.google.enterprise.connector.util.SystemClock;
 
@@ -370,6 +371,85 @@ public class ProductionManagerTest extends TestCase {
         Value.getSingleValueString(document, SpiConstants.PROPNAME_DOCID));
   }
 
+  /** A MockRetriever that counts the metadata requests. */
+  private static class CountingRetriever extends MockRetriever {
+    int count = 0;
+
+    @Override
+    public Document getMetaData(String docid) throws RepositoryException {
+      count++;
+      return super.getMetaData(docid);
+    }
+  }
+
+  /** Test getDocumentMetaData with a MetadataCache. */
+  public void testGetDocumentMetaDataCached() throws Exception {
+    MetadataCache cache = new MetadataCache(100L, 60000L);
+    manager.setMetadataCache(cache);
+    CountingRetriever retriever = new CountingRetriever();
+    instantiator.addConnector(connectorName,
+        new MockConnector(null, null, null, retriever, null));
+
+    for (int i = 0; i < 3; i++) {
+      Document document = manager.getDocumentMetaData(connectorName, "docid");
+      assertEquals("docid",
+          Value.getSingleValueString(document, SpiConstants.PROPNAME_DOCID));
+    }
+    assertEquals(1, retriever.count);
+
+    // A fed document is fetched again.
+    cache.invalidate(connectorName, "docid");
+    manager.getDocumentMetaData(connectorName, "docid");
+    assertEquals(2, retriever.count);
+
+    // A new connector instance does not see the old metadata.
+    CountingRetriever newRetriever = new CountingRetriever();
+    instantiator.addConnector(connectorName,
+        new MockConnector(null, null, null, newRetriever, null));
+    manager.getDocumentMetaData(connectorName, "docid");
+    assertEquals(1, newRetriever.count);
+  }
+
+  /** A MockRetriever whose documents inherit ACLs from a parent. */
+  private static class InheritingRetriever extends MockRetriever {
+    @Override
+    public Document getMetaData(String docid) throws RepositoryException {
+      Map<String, Object> props =
+          ConnectorTestUtils.createSimpleDocumentBasicProperties(docid);
+      props.put(SpiConstants.PROPNAME_ACLINHERITFROM_DOCID, "parent");
+      return ConnectorTestUtils.createSimpleDocument(props);
+    }
+  }
+
+  /**
+   * Test that cached metadata is filtered using the current content URL
+   * prefix.
+   */
+  public void testGetDocumentMetaDataCachedPrefixChange() throws Exception {
+    Context context = Context.getInstance();
+    String oldPrefix = context.getContentUrlPrefix();
+    try {
+      manager.setMetadataCache(new MetadataCache(100L, 60000L));
+      instantiator.addConnector(connectorName,
+          new MockConnector(null, null, null, new InheritingRetriever(),
+                            null));
+
+      context.setContentUrlPrefix("http://first/getDocumentContent");
+      Document document = manager.getDocumentMetaData(connectorName, "docid");
+      String inheritFrom = Value.getSingleValueString(document,
+          SpiConstants.PROPNAME_ACLINHERITFROM);
+      assertTrue(inheritFrom, inheritFrom.startsWith("http://first/"));
+
+      context.setContentUrlPrefix("http://second/getDocumentContent");
+      document = manager.getDocumentMetaData(connectorName, "docid");
+      inheritFrom = Value.getSingleValueString(document,
+          SpiConstants.PROPNAME_ACLINHERITFROM);
+      assertTrue(inheritFrom, inheritFrom.startsWith("http://second/"));
+    } finally {
+      context.setContentUrlPrefix(oldPrefix);
+    }
+  }
+
   /** Test getConnectorStatus. */
   public void testGetConnectorStatus() throws Exception {
     ConnectorStatus status = manager.getConnectorStatus(connectorName);
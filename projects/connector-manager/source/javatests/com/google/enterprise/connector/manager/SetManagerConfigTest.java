@@ -125,6 +125,21 @@ public class SetManagerConfigTest extends TestCase {
     assertEquals(expectedContentUrlPrefix, context.getContentUrlPrefix());
   }
 
+  public final void testGsaFeedHostVersion() throws Exception {
+    assertEquals("fubar", context.getGsaFeedHost());
+    int version = context.getGsaFeedHostVersion();
+
+    // Changing only the port does not change the feed host version.
+    context.setConnectorManagerConfig("", "fubar", 14,
+        Context.GSA_FEED_SECURE_PORT_INVALID, null);
+    assertEquals(version, context.getGsaFeedHostVersion());
+
+    context.setConnectorManagerConfig("", "shme", 14,
+        Context.GSA_FEED_SECURE_PORT_INVALID, null);
+    assertEquals("shme", context.getGsaFeedHost());
+    assertTrue(version != context.getGsaFeedHostVersion());
+  }
+
   public final void testIsManagerLocked() throws Exception {
     // Check initial states.
     assertTrue("Manager with missing prop is locked",
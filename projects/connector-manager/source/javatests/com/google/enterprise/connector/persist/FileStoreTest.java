@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.persist;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.enterprise.connector.instantiator.TypeMap;
 import com.google.enterprise.connector.test.ConnectorTestUtils;
 
@@ -81,4 +82,32 @@ public class FileStoreTest extends PersistentStoreTestAbstract {
     // This should have deleted all the storage files.
     assertTrue(connectorDir.list().length == 0);
   }
+
+  // Tests that only modified connector directories are examined.
+  public void testIncrementalInventory() {
+    StoreContext context = getStoreContext(NAME, "xyzzy");
+    File connectorDir = getConnectorDir(context);
+    store.storeConnectorConfiguration(context, getConfiguration());
+    store.storeConnectorState(context, "checkpoint1");
+
+    // Age the directories past the modification time resolution.
+    long past = System.currentTimeMillis() - 60 * 60 * 1000L;
+    assertTrue(connectorDir.setLastModified(past));
+    assertTrue(connectorDir.getParentFile().setLastModified(past));
+
+    ImmutableMap<StoreContext, ConnectorStamps> first = store.getInventory();
+    assertTrue(first.containsKey(context));
+    assertSame(first, store.getInventory());
+
+    // Storing the checkpoint touches the connector directory.
+    store.storeConnectorState(context, "checkpoint2");
+    ImmutableMap<StoreContext, ConnectorStamps> second = store.getInventory();
+    assertNotSame(first, second);
+    assertEquals("checkpoint2", store.getConnectorState(context));
+
+    // Removing the connector's files is noticed.
+    store.removeConnectorState(context);
+    store.removeConnectorConfiguration(context);
+    assertFalse(store.getInventory().containsKey(context));
+  }
 }
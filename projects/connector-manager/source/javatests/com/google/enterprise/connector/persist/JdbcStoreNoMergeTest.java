@@ -0,0 +1,36 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.persist;
+
+import java.net.URL;
+
+/**
+ * Runs the JDBC persistent store tests without the H2 specific SQL
+ * resources, so that values are written with an update and insert
+ * rather than a merge.
+ */
+public class JdbcStoreNoMergeTest extends JdbcStoreTest {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ((JdbcStore) store).setResourceClassLoader(new TestClassLoader() {
+        @Override
+        public URL getResource(String name) {
+          return name.endsWith("JdbcStore_h2.properties")
+              ? null : super.getResource(name);
+        }
+      });
+  }
+}
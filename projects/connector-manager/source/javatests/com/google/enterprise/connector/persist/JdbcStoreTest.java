@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.persist;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.instantiator.Configuration;
 import com.google.enterprise.connector.scheduler.Schedule;
 import com.google.enterprise.connector.util.database.JdbcDatabase;
 
@@ -24,6 +26,9 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
 
 import javax.sql.DataSource;
 
@@ -80,9 +85,171 @@ public class JdbcStoreTest extends PersistentStoreTestAbstract {
     jdbcDatabase.getConnectionPool().releaseConnection(connection);
   }
 
+  // Tests that the modify stamp is bumped each time a value is stored.
+  public void testModifyStamp() {
+    StoreContext context = getStoreContext("stamped");
+    store.storeConnectorConfiguration(context, getConfiguration());
+    store.storeConnectorState(context, "checkpoint1");
+    Stamp first = store.getInventory().get(context).getCheckpointStamp();
+    store.storeConnectorState(context, "checkpoint2");
+    Stamp second = store.getInventory().get(context).getCheckpointStamp();
+    assertTrue(second.compareTo(first) > 0);
+    assertEquals("checkpoint2", store.getConnectorState(context));
+  }
+
+  // Tests that the values stored together share a single stamp.
+  public void testStoreConnector() {
+    JdbcStore jdbcStore = (JdbcStore) store;
+    StoreContext context = getStoreContext("together");
+    Configuration configuration = getConfiguration();
+    Schedule schedule = new Schedule("together:100:0:0-0");
+    jdbcStore.storeConnector(context, configuration, schedule, "checkpoint1");
+    ConnectorStamps stamps = store.getInventory().get(context);
+    assertEquals(0, stamps.getConfigurationStamp().compareTo(
+        stamps.getCheckpointStamp()));
+    assertEquals(0, stamps.getScheduleStamp().compareTo(
+        stamps.getCheckpointStamp()));
+    assertEquals("checkpoint1", store.getConnectorState(context));
+    assertEquals(schedule.toString(),
+        store.getConnectorSchedule(context).toString());
+
+    // Null values are left unchanged.
+    jdbcStore.storeConnector(context, null, null, "checkpoint2");
+    ConnectorStamps changed = store.getInventory().get(context);
+    assertTrue(changed.getCheckpointStamp().compareTo(
+        stamps.getCheckpointStamp()) > 0);
+    assertEquals(0, changed.getConfigurationStamp().compareTo(
+        stamps.getConfigurationStamp()));
+    assertEquals("checkpoint2", store.getConnectorState(context));
+    assertNotNull(store.getConnectorConfiguration(context));
+    assertEquals(schedule.toString(),
+        store.getConnectorSchedule(context).toString());
+  }
+
+  // Tests that the inventory is updated incrementally.
+  public void testIncrementalInventory() {
+    StoreContext context = getStoreContext("incremental");
+    store.storeConnectorConfiguration(context, getConfiguration());
+    ImmutableMap<StoreContext, ConnectorStamps> first = store.getInventory();
+    assertTrue(first.containsKey(context));
+    assertNull(first.get(context).getCheckpointStamp());
+
+    // Nothing has changed.
+    assertSame(first, store.getInventory());
+
+    store.storeConnectorState(context, "checkpoint1");
+    ImmutableMap<StoreContext, ConnectorStamps> second = store.getInventory();
+    assertNotSame(first, second);
+    assertNotNull(second.get(context).getCheckpointStamp());
+    assertSame(second, store.getInventory());
+
+    store.removeConnectorState(context);
+    assertNull(store.getInventory().get(context).getCheckpointStamp());
+    store.removeConnectorConfiguration(context);
+    assertFalse(store.getInventory().containsKey(context));
+  }
+
+  // Tests that writes by another store sharing the table are seen.
+  public void testSharedTable() {
+    JdbcStore other = new JdbcStore();
+    other.setDatabase(jdbcDatabase);
+    other.setResourceClassLoader(new TestClassLoader());
+    StoreContext context = getStoreContext("shared");
+
+    assertTrue(store.getInventory().isEmpty());
+    other.storeConnectorConfiguration(context, getConfiguration());
+    Stamp first = store.getInventory().get(context).getConfigurationStamp();
+    other.storeConnectorConfiguration(context,
+        new Configuration(context.getTypeName(),
+            getConfiguration().getMap(), null));
+    Stamp second = store.getInventory().get(context).getConfigurationStamp();
+    assertTrue(second.compareTo(first) > 0);
+
+    other.removeConnectorConfiguration(context);
+    assertTrue(store.getInventory().isEmpty());
+  }
+
+  // Tests that cached statements are discarded with their Connection.
+  public void testClosedConnection() throws SQLException {
+    StoreContext context = getStoreContext("closed");
+    store.storeConnectorState(context, "checkpoint1");
+
+    // Keep the in-memory database alive while the pooled connection
+    // is closed out from under the store.
+    Connection keepAlive = dataSource.getConnection();
+    // Validate the pooled connection when it is borrowed again.
+    jdbcDatabase.getConnectionPool().setValidationInterval(0);
+    try {
+      Connection connection =
+          jdbcDatabase.getConnectionPool().getConnection();
+      connection.close();
+      jdbcDatabase.getConnectionPool().releaseConnection(connection);
+
+      store.storeConnectorState(context, "checkpoint2");
+      assertEquals("checkpoint2", store.getConnectorState(context));
+    } finally {
+      keepAlive.close();
+    }
+  }
+
+  // Tests that concurrent writes get distinct stamps, and are all seen
+  // by the incremental inventory.
+  public void testConcurrentWrites() throws Exception {
+    final int writes = 50;
+    final StoreContext[] contexts = {
+        getStoreContext("concurrent1"), getStoreContext("concurrent2") };
+    for (StoreContext context : contexts) {
+      store.storeConnectorConfiguration(context, getConfiguration());
+    }
+    store.getInventory();
+
+    final CyclicBarrier barrier = new CyclicBarrier(contexts.length);
+    Thread[] threads = new Thread[contexts.length];
+    for (int i = 0; i < contexts.length; i++) {
+      final StoreContext context = contexts[i];
+      threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              barrier.await();
+            } catch (Exception e) {
+              return;
+            }
+            for (int j = 0; j < writes; j++) {
+              store.storeConnectorState(context, "checkpoint" + j);
+            }
+          }
+        };
+      threads[i].start();
+    }
+    // Read the inventory incrementally while the writes are going on.
+    for (Thread thread : threads) {
+      while (thread.isAlive()) {
+        store.getInventory();
+        thread.join(1);
+      }
+    }
+
+    // The incremental inventory should match a full one.
+    ImmutableMap<StoreContext, ConnectorStamps> incremental =
+        store.getInventory();
+    JdbcStore other = new JdbcStore();
+    other.setDatabase(jdbcDatabase);
+    other.setResourceClassLoader(new TestClassLoader());
+    ImmutableMap<StoreContext, ConnectorStamps> full = other.getInventory();
+    Set<String> stamps = new HashSet<String>();
+    for (StoreContext context : contexts) {
+      assertEquals("checkpoint" + (writes - 1),
+          store.getConnectorState(context));
+      String stamp = incremental.get(context).getCheckpointStamp().toString();
+      assertEquals(full.get(context).getCheckpointStamp().toString(), stamp);
+      assertTrue(stamp, stamps.add(stamp));
+    }
+  }
+
   // A ClassLoader that looks for resources relative to the
   // current working directory and the source/resources directory.
-  private class TestClassLoader extends ClassLoader {
+  protected class TestClassLoader extends ClassLoader {
     private static final String RESOURCE_DIR = "source/resources/";
 
     @Override
@@ -0,0 +1,253 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.persist;
+
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Tests the write-behind checkpoint journal of {@link WriteBehindStore}.
+ * The {@link PersistentStore} tests are run against a journaling store.
+ */
+public class WriteBehindStoreTest extends PersistentStoreTestAbstract {
+  private static final String TEST_DIR_NAME =
+      "testdata/tmp/WriteBehindStoreTests";
+  private final File baseDirectory = new File(TEST_DIR_NAME);
+  private final File journalFile = new File(baseDirectory, "journal");
+
+  private CountingStore backingStore;
+  private WriteBehindStore writeBehindStore;
+
+  /**
+   * A MockPersistentStore that counts the checkpoints stored, and fails
+   * to store the given number of them.
+   */
+  private static class CountingStore extends MockPersistentStore {
+    int storeCount = 0;
+    int failures = 0;
+
+    @Override
+    public void storeConnectorState(StoreContext context, String state) {
+      if (failures > 0) {
+        failures--;
+        throw new RuntimeException("Simulated failure");
+      }
+      storeCount++;
+      super.storeConnectorState(context, state);
+    }
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ConnectorTestUtils.deleteAllFiles(baseDirectory);
+    assertTrue(ConnectorTestUtils.mkdirs(baseDirectory));
+    backingStore = new CountingStore();
+    writeBehindStore = newWriteBehindStore(backingStore);
+    super.store = writeBehindStore;
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      writeBehindStore.stop(true);
+      ConnectorTestUtils.deleteAllFiles(baseDirectory);
+    } finally {
+      super.tearDown();
+    }
+  }
+
+  private WriteBehindStore newWriteBehindStore(PersistentStore backing) {
+    WriteBehindStore store = new WriteBehindStore(backing);
+    store.setJournalFile(journalFile.getPath());
+    // Long enough that the tests control the flushing.
+    store.setFlushInterval(60 * 60 * 1000L);
+    return store;
+  }
+
+  public void testWriteThrough() {
+    WriteBehindStore store = new WriteBehindStore(backingStore);
+    store.setJournalFile("");
+    StoreContext context = getStoreContext("writeThrough");
+    store.storeConnectorState(context, "checkpoint");
+    assertEquals(1, backingStore.storeCount);
+    assertEquals("checkpoint", backingStore.getConnectorState(context));
+    assertFalse(journalFile.exists());
+  }
+
+  public void testCoalescing() {
+    StoreContext context = getStoreContext("coalesce");
+    for (int i = 0; i < 10; i++) {
+      writeBehindStore.storeConnectorState(context, "checkpoint" + i);
+    }
+    assertEquals(0, backingStore.storeCount);
+    assertNull(backingStore.getConnectorState(context));
+    assertEquals("checkpoint9", writeBehindStore.getConnectorState(context));
+    assertTrue(journalFile.length() > 0);
+
+    writeBehindStore.flush();
+    assertEquals(1, backingStore.storeCount);
+    assertEquals("checkpoint9", backingStore.getConnectorState(context));
+    assertEquals(0, journalFile.length());
+  }
+
+  public void testRemove() {
+    StoreContext context = getStoreContext("remove");
+    backingStore.storeConnectorState(context, "old");
+    writeBehindStore.storeConnectorState(context, "checkpoint");
+    writeBehindStore.removeConnectorState(context);
+    assertNull(backingStore.getConnectorState(context));
+    assertNull(writeBehindStore.getConnectorState(context));
+
+    // The removed checkpoint must not be written behind.
+    writeBehindStore.flush();
+    assertNull(backingStore.getConnectorState(context));
+  }
+
+  public void testReplay() throws Exception {
+    StoreContext one = getStoreContext("one");
+    StoreContext two = getStoreContext("two");
+    writeBehindStore.storeConnectorState(one, "checkpoint1");
+    writeBehindStore.storeConnectorState(two, "checkpoint2");
+    writeBehindStore.storeConnectorState(one, "checkpoint3");
+    writeBehindStore.removeConnectorState(two);
+
+    // Simulate a crash, by replaying the journal into a new store.
+    CountingStore recovered = new CountingStore();
+    recovered.storeConnectorState(two, "stale");
+    WriteBehindStore store = newWriteBehindStore(recovered);
+    try {
+      assertEquals("checkpoint3", store.getConnectorState(one));
+      assertEquals("checkpoint3", recovered.getConnectorState(one));
+      assertNull(recovered.getConnectorState(two));
+      assertEquals(0, journalFile.length());
+    } finally {
+      store.stop(true);
+    }
+  }
+
+  public void testReplayTruncatedJournal() throws Exception {
+    StoreContext context = getStoreContext("truncated");
+    writeBehindStore.storeConnectorState(context, "checkpoint1");
+
+    // Append an incomplete record, as if we crashed while writing it.
+    FileOutputStream out = new FileOutputStream(journalFile, true);
+    try {
+      out.write(new byte[] { 0, 0, 1, 0, 1, 2, 3 });
+    } finally {
+      out.close();
+    }
+
+    CountingStore recovered = new CountingStore();
+    WriteBehindStore store = newWriteBehindStore(recovered);
+    try {
+      assertEquals("checkpoint1", store.getConnectorState(context));
+      assertEquals(1, recovered.storeCount);
+    } finally {
+      store.stop(true);
+    }
+  }
+
+  public void testFailedFlush() {
+    StoreContext context = getStoreContext("failed");
+    writeBehindStore.storeConnectorState(context, "checkpoint1");
+    backingStore.failures = 1;
+    writeBehindStore.flush();
+    assertNull(backingStore.getConnectorState(context));
+    assertEquals("checkpoint1", writeBehindStore.getConnectorState(context));
+    assertTrue(journalFile.length() > 0);
+
+    // The failed checkpoint is retried.
+    writeBehindStore.flush();
+    assertEquals("checkpoint1", backingStore.getConnectorState(context));
+    assertEquals(0, journalFile.length());
+  }
+
+  public void testFailedFlushSuperseded() {
+    StoreContext context = getStoreContext("superseded");
+    writeBehindStore.storeConnectorState(context, "checkpoint1");
+    backingStore.failures = 1;
+    writeBehindStore.flush();
+    writeBehindStore.storeConnectorState(context, "checkpoint2");
+    writeBehindStore.flush();
+    assertEquals(1, backingStore.storeCount);
+    assertEquals("checkpoint2", backingStore.getConnectorState(context));
+  }
+
+  public void testFailedReplay() throws Exception {
+    StoreContext context = getStoreContext("failedReplay");
+    writeBehindStore.storeConnectorState(context, "checkpoint1");
+
+    CountingStore recovered = new CountingStore();
+    recovered.failures = 1;
+    WriteBehindStore store = newWriteBehindStore(recovered);
+    try {
+      assertEquals("checkpoint1", store.getConnectorState(context));
+      assertNull(recovered.getConnectorState(context));
+      assertTrue(journalFile.length() > 0);
+
+      store.flush();
+      assertEquals("checkpoint1", recovered.getConnectorState(context));
+      assertEquals(0, journalFile.length());
+    } finally {
+      store.stop(true);
+    }
+  }
+
+  public void testReplayCompactedJournal() throws Exception {
+    StoreContext context = getStoreContext("compacted");
+    writeBehindStore.storeConnectorState(context, "checkpoint1");
+
+    // Simulate a crash after the journal was compacted, but before the
+    // compacted journal was renamed into place.
+    File compactFile = new File(journalFile.getPath() + ".new");
+    assertTrue(journalFile.renameTo(compactFile));
+
+    CountingStore recovered = new CountingStore();
+    WriteBehindStore store = newWriteBehindStore(recovered);
+    try {
+      assertEquals("checkpoint1", store.getConnectorState(context));
+      assertEquals("checkpoint1", recovered.getConnectorState(context));
+      assertFalse(compactFile.exists());
+    } finally {
+      store.stop(true);
+    }
+  }
+
+  public void testStop() {
+    StoreContext context = getStoreContext("stop");
+    writeBehindStore.storeConnectorState(context, "checkpoint1");
+    assertTrue(writeBehindStore.isRunning());
+    writeBehindStore.stop(false);
+    assertFalse(writeBehindStore.isRunning());
+    assertEquals("checkpoint1", backingStore.getConnectorState(context));
+
+    // Checkpoints are written through after the store has been stopped.
+    writeBehindStore.storeConnectorState(context, "checkpoint2");
+    assertEquals("checkpoint2", backingStore.getConnectorState(context));
+  }
+
+  public void testBackgroundFlush() throws Exception {
+    writeBehindStore.setFlushInterval(10);
+    StoreContext context = getStoreContext("background");
+    writeBehindStore.storeConnectorState(context, "checkpoint");
+    for (int i = 0; i < 500 && backingStore.storeCount == 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals("checkpoint", backingStore.getConnectorState(context));
+  }
+}
@@ -276,6 +276,19 @@ public class DocPusherTest extends TestCase {
     takeFeed(expectedXml, "MockRepositoryEventLog8.txt", true, true);
   }
 
+  /**
+   * Test Take for a compressed content feed, compressing in parallel.
+   * The content should be the same as that compressed serially.
+   */
+  public void testTakeCompressedContentParallel() throws Exception {
+    XmlFeed.setParallelCompression(2, 0L);
+    try {
+      testTakeCompressedContent();
+    } finally {
+      XmlFeed.setParallelCompression(0, 0L);
+    }
+  }
+
   /**
    * Test Take for isPublic.
    */
@@ -0,0 +1,224 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link FeedSender}.
+ */
+public class FeedSenderTest extends TestCase {
+  private FeedSender feedSender;
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (feedSender != null) {
+      feedSender.shutdown(true, 5000L);
+    }
+  }
+
+  /** A task that records its data source, optionally waiting on a latch. */
+  private static class Task extends FutureTask<String> {
+    Task(final String name, final List<String> log,
+         final CountDownLatch gate) {
+      super(new Runnable() {
+          public void run() {
+            try {
+              if (gate != null) {
+                gate.await();
+              }
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              return;
+            }
+            log.add(name);
+          }
+        }, name);
+    }
+  }
+
+  public void testInvalidArguments() {
+    try {
+      new FeedSender(0, 1, 1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new FeedSender(1, 0, 1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new FeedSender(1, 1, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testExecute() throws Exception {
+    feedSender = new FeedSender(2, 10, 2);
+    assertFalse(feedSender.isRunning());
+    List<String> log = Collections.synchronizedList(new ArrayList<String>());
+    Task task = new Task("a", log, null);
+    feedSender.execute("a", new MockFeedConnection(), task);
+    assertEquals("a", task.get(5, TimeUnit.SECONDS));
+    assertTrue(feedSender.isRunning());
+    assertEquals(1, log.size());
+  }
+
+  /** Tests that queued feeds are taken round-robin across data sources. */
+  public void testRoundRobin() throws Exception {
+    feedSender = new FeedSender(1, 10, 1);
+    FeedConnection connection = new MockFeedConnection();
+    List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+    // Block the single worker while the queue fills up.
+    CountDownLatch gate = new CountDownLatch(1);
+    Task blocker = new Task("blocker", log, gate);
+    feedSender.execute("blocker", connection, blocker);
+    feedSender.execute("a", connection, new Task("a1", log, null));
+    feedSender.execute("a", connection, new Task("a2", log, null));
+    feedSender.execute("a", connection, new Task("a3", log, null));
+    feedSender.execute("b", connection, new Task("b1", log, null));
+    Task last = new Task("b2", log, null);
+    feedSender.execute("b", connection, last);
+
+    gate.countDown();
+    last.get(5, TimeUnit.SECONDS);
+    assertTrue(feedSender.shutdown(false, 5000L));
+    assertEquals("[blocker, a1, b1, a2, b2, a3]", log.toString());
+  }
+
+  /** Tests the limit on concurrent feeds to the same FeedConnection. */
+  public void testConnectionLimit() throws Exception {
+    feedSender = new FeedSender(4, 10, 2);
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>();
+    FeedConnection connection = new MockFeedConnection();
+    for (int i = 0; i < 8; i++) {
+      FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+          public void run() {
+            int now = running.incrementAndGet();
+            synchronized (maxRunning) {
+              maxRunning.set(Math.max(maxRunning.get(), now));
+            }
+            try {
+              Thread.sleep(20);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+          }
+        }, null);
+      tasks.add(task);
+      feedSender.execute("ds" + i, connection, task);
+    }
+    for (FutureTask<Object> task : tasks) {
+      task.get(5, TimeUnit.SECONDS);
+    }
+    assertEquals(2, maxRunning.get());
+  }
+
+  /** Tests that execute blocks while the queue is full. */
+  public void testBoundedQueue() throws Exception {
+    feedSender = new FeedSender(1, 1, 1);
+    final FeedConnection connection = new MockFeedConnection();
+    final List<String> log =
+        Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch gate = new CountDownLatch(1);
+    feedSender.execute("a", connection, new Task("a1", log, gate));
+    // Wait for the worker to take the first task.
+    while (feedSender.getInFlightCount() == 0) {
+      Thread.sleep(10);
+    }
+    feedSender.execute("a", connection, new Task("a2", log, null));
+    assertEquals(1, feedSender.getQueuedCount());
+
+    final CountDownLatch queued = new CountDownLatch(1);
+    Thread submitter = new Thread() {
+        @Override
+        public void run() {
+          try {
+            feedSender.execute("b", connection, new Task("b1", log, null));
+            queued.countDown();
+          } catch (InterruptedException e) {
+            // Test will fail.
+          }
+        }
+      };
+    submitter.start();
+    assertFalse(queued.await(100, TimeUnit.MILLISECONDS));
+    gate.countDown();
+    assertTrue(queued.await(5, TimeUnit.SECONDS));
+    submitter.join();
+    assertTrue(feedSender.shutdown(false, 5000L));
+    assertEquals("[a1, a2, b1]", log.toString());
+  }
+
+  public void testRemove() throws Exception {
+    feedSender = new FeedSender(1, 10, 1);
+    FeedConnection connection = new MockFeedConnection();
+    List<String> log = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch gate = new CountDownLatch(1);
+    Task blocker = new Task("blocker", log, gate);
+    feedSender.execute("a", connection, blocker);
+    while (feedSender.getInFlightCount() == 0) {
+      Thread.sleep(10);
+    }
+    Task removed = new Task("removed", log, null);
+    feedSender.execute("a", connection, removed);
+    assertTrue(feedSender.remove(removed));
+    assertFalse(feedSender.remove(removed));
+    assertFalse(feedSender.remove(blocker));
+    assertEquals(0, feedSender.getQueuedCount());
+    gate.countDown();
+    assertTrue(feedSender.shutdown(false, 5000L));
+    assertEquals("[blocker]", log.toString());
+  }
+
+  public void testShutdownInterrupt() throws Exception {
+    feedSender = new FeedSender(1, 10, 1);
+    FeedConnection connection = new MockFeedConnection();
+    List<String> log = Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch gate = new CountDownLatch(1);
+    feedSender.execute("a", connection, new Task("blocker", log, gate));
+    while (feedSender.getInFlightCount() == 0) {
+      Thread.sleep(10);
+    }
+    Task queued = new Task("queued", log, null);
+    feedSender.execute("a", connection, queued);
+
+    assertTrue(feedSender.shutdown(true, 5000L));
+    assertTrue(queued.isCancelled());
+    assertEquals(0, log.size());
+    assertFalse(feedSender.isRunning());
+
+    try {
+      feedSender.execute("a", connection, new Task("late", log, null));
+      fail("Expected RejectedExecutionException");
+    } catch (RejectedExecutionException expected) {
+    }
+  }
+}
@@ -14,12 +14,36 @@
 
 package com.google.enterprise.connector.pusher;
 
+import com.google.common.base.Charsets;
+import com.google.enterprise.connector.spi.SpiConstants.FeedType;
+import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
+import com.google.enterprise.connector.util.Clock;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.SSLSocketFactory;
 
-/** Tests for {@link GsaFeedConnection} URLs. */
+/** Tests for {@link GsaFeedConnection}. */
 public class GsaFeedConnectionTest extends TestCase {
   private void assertFeedUrl(String protocol,
       String host, int port, GsaFeedConnection feeder) {
@@ -88,4 +112,324 @@ public class GsaFeedConnectionTest extends TestCase {
     assertFeedUrl("https", "myhost", 19902,
         new GsaFeedConnection("https", "myhost", 19900, 19902));
   }
+
+  /**
+   * A stand-in for the GSA feedergate that counts the requests it
+   * receives and records their client ports, content encodings, and
+   * decompressed bodies.
+   */
+  private static class FeedHandler implements HttpHandler {
+    final AtomicInteger requests = new AtomicInteger();
+    final Set<Integer> clientPorts =
+        Collections.synchronizedSet(new HashSet<Integer>());
+    final List<String> contentEncodings =
+        Collections.synchronizedList(new ArrayList<String>());
+    volatile String lastBody;
+    private final int status;
+    private final String response;
+    private final int gzipStatus;
+    private final String gzipResponse;
+
+    FeedHandler(int status, String response) {
+      this(status, response, status, response);
+    }
+
+    /** Responds to compressed requests with a different status. */
+    FeedHandler(int status, String response, int gzipStatus,
+        String gzipResponse) {
+      this.status = status;
+      this.response = response;
+      this.gzipStatus = gzipStatus;
+      this.gzipResponse = gzipResponse;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      requests.incrementAndGet();
+      clientPorts.add(exchange.getRemoteAddress().getPort());
+      String encoding =
+          exchange.getRequestHeaders().getFirst("Content-Encoding");
+      contentEncodings.add(String.valueOf(encoding));
+      boolean isGzip = "gzip".equals(encoding);
+      boolean rejectGzip = isGzip && gzipStatus != status;
+      InputStream in = exchange.getRequestBody();
+      if (isGzip && !rejectGzip) {
+        in = new GZIPInputStream(in);
+      }
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        body.write(buffer, 0, count);
+      }
+      in.close();
+      lastBody = body.toString("UTF-8");
+      int responseStatus = rejectGzip ? gzipStatus : status;
+      byte[] bytes =
+          (rejectGzip ? gzipResponse : response).getBytes(Charsets.UTF_8);
+      exchange.sendResponseHeaders(responseStatus, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(bytes);
+      out.close();
+    }
+  }
+
+  /** Tests that feeds and GETs reuse the same connection to the GSA. */
+  public void testConnectionReuse() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+    FeedHandler handler =
+        new FeedHandler(200, GsaFeedConnection.SUCCESS_RESPONSE);
+    FeedHandler dtdHandler = new FeedHandler(404, "Not Found");
+    server.createContext("/xmlfeed", handler);
+    server.createContext("/getdtd", dtdHandler);
+    server.start();
+    try {
+      GsaFeedConnection feeder = new GsaFeedConnection("http", "localhost",
+          server.getAddress().getPort(), -1);
+      // The DTD is not found, which should not close the connection.
+      assertEquals("base64binary", feeder.getContentEncodings());
+      for (int i = 0; i < 3; i++) {
+        XmlFeed feed = new XmlFeed("test", FeedType.CONTENT,
+            new FileSizeLimitInfo(), null, feeder);
+        feed.close();
+        assertEquals(GsaFeedConnection.SUCCESS_RESPONSE,
+            feeder.sendData(feed));
+        feed.release();
+      }
+      assertEquals(3, handler.requests.get());
+      assertEquals(handler.requests.get() + dtdHandler.requests.get(),
+                   feeder.getRequestCount());
+      Set<Integer> ports = new HashSet<Integer>(handler.clientPorts);
+      ports.addAll(dtdHandler.clientPorts);
+      assertEquals(ports.toString(), 1, ports.size());
+
+      // HTTPS connections are not counted for plain HTTP.
+      assertEquals(0, feeder.getHttpsRequestCount());
+      assertEquals(0, feeder.getConnectionCount());
+      assertEquals(0, feeder.getHandshakeCount());
+      assertEquals(0.0, feeder.getReuseRatio());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that a command line keep-alive setting is not overridden. */
+  public void testMaxConnections() throws Exception {
+    GsaFeedConnection feeder =
+        new GsaFeedConnection("http", "localhost", 19900, -1);
+    try {
+      feeder.setMaxConnections(0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    String original = System.getProperty("http.maxConnections");
+    try {
+      System.setProperty("http.maxConnections", "7");
+      feeder.setMaxConnections(3);
+      assertEquals("7", System.getProperty("http.maxConnections"));
+    } finally {
+      if (original == null) {
+        System.clearProperty("http.maxConnections");
+      } else {
+        System.setProperty("http.maxConnections", original);
+      }
+    }
+  }
+
+  /** Tests that the reuse ratio compares HTTPS requests to sockets. */
+  public void testReuseRatio() throws Exception {
+    MeteredSslSocketFactory factory = new MeteredSslSocketFactory(
+        (SSLSocketFactory) SSLSocketFactory.getDefault());
+    assertEquals(0.0, factory.getReuseRatio());
+    for (int i = 0; i < 4; i++) {
+      factory.countRequest();
+    }
+    factory.createSocket().close();
+    assertEquals(4, factory.getRequestCount());
+    assertEquals(1, factory.getSocketCount());
+    assertEquals(0.75, factory.getReuseRatio());
+  }
+
+  /** Sends a small feed, returning the GSA response. */
+  private String sendFeed(GsaFeedConnection feeder, FeedType feedType)
+      throws Exception {
+    XmlFeed feed = new XmlFeed("test", feedType, new FileSizeLimitInfo(),
+                               null, feeder);
+    try {
+      feed.close();
+      return feeder.sendData(feed);
+    } finally {
+      feed.release();
+    }
+  }
+
+  /** A feed DTD from a GSA that accepts compressed feed uploads. */
+  private static final String ACL_DTD =
+      "<!ELEMENT gsafeed (header, group+)>\n"
+      + "<!ELEMENT acl (principal*)>\n";
+
+  /** Creates a stand-in GSA that serves the given feed DTD. */
+  private static HttpServer createServer(FeedHandler handler, String dtd)
+      throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+    server.createContext("/xmlfeed", handler);
+    server.createContext("/getdtd", new FeedHandler(200, dtd));
+    server.start();
+    return server;
+  }
+
+  /** Tests that the whole multipart upload is gzip compressed. */
+  public void testCompressedFeed() throws Exception {
+    FeedHandler handler =
+        new FeedHandler(200, GsaFeedConnection.SUCCESS_RESPONSE);
+    HttpServer server = createServer(handler, ACL_DTD);
+    try {
+      GsaFeedConnection feeder = new GsaFeedConnection("http", "localhost",
+          server.getAddress().getPort(), -1);
+      assertFalse(feeder.isCompressing());
+      assertEquals(GsaFeedConnection.SUCCESS_RESPONSE,
+                   sendFeed(feeder, FeedType.WEB));
+      String uncompressed = handler.lastBody;
+
+      feeder.setCompression(true);
+      assertTrue(feeder.isCompressing());
+      assertEquals(GsaFeedConnection.SUCCESS_RESPONSE,
+                   sendFeed(feeder, FeedType.WEB));
+      assertEquals("[null, gzip]", handler.contentEncodings.toString());
+      assertEquals(uncompressed, handler.lastBody);
+      assertTrue(handler.lastBody,
+                 handler.lastBody.contains("name=\"datasource\""));
+      assertTrue(feeder.isCompressing());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  private static class MockClock implements Clock {
+    long time = 1000L;
+
+    @Override
+    public long getTimeMillis() {
+      return time;
+    }
+  }
+
+  /**
+   * Tests that if the GSA rejects a compressed upload, the feed is resent
+   * uncompressed, and compression is retried after a growing back-off.
+   */
+  public void testCompressedFeedRejected() throws Exception {
+    FeedHandler handler =
+        new FeedHandler(200, GsaFeedConnection.SUCCESS_RESPONSE,
+            HttpURLConnection.HTTP_UNSUPPORTED_TYPE, "Unsupported");
+    HttpServer server = createServer(handler, ACL_DTD);
+    try {
+      GsaFeedConnection feeder = new GsaFeedConnection("http", "localhost",
+          server.getAddress().getPort(), -1);
+      MockClock clock = new MockClock();
+      feeder.setClock(clock);
+      feeder.setCompression(true);
+      assertEquals(GsaFeedConnection.SUCCESS_RESPONSE,
+                   sendFeed(feeder, FeedType.CONTENT));
+      assertFalse(feeder.isCompressing());
+      assertEquals(GsaFeedConnection.SUCCESS_RESPONSE,
+                   sendFeed(feeder, FeedType.CONTENT));
+      assertEquals("[gzip, null, null]", handler.contentEncodings.toString());
+
+      // Compression is retried after 15 minutes, then after 30 minutes.
+      clock.time += 15 * 60 * 1000L;
+      assertTrue(feeder.isCompressing());
+      assertEquals(GsaFeedConnection.SUCCESS_RESPONSE,
+                   sendFeed(feeder, FeedType.CONTENT));
+      assertEquals("[gzip, null, null, gzip, null]",
+                   handler.contentEncodings.toString());
+      clock.time += 15 * 60 * 1000L;
+      assertFalse(feeder.isCompressing());
+      clock.time += 15 * 60 * 1000L;
+      assertTrue(feeder.isCompressing());
+
+      // Reconfiguring the feed host renegotiates compression.
+      assertEquals(GsaFeedConnection.SUCCESS_RESPONSE,
+                   sendFeed(feeder, FeedType.CONTENT));
+      assertFalse(feeder.isCompressing());
+      feeder.setFeedHostAndPort("http", "localhost",
+          server.getAddress().getPort(), -1);
+      assertTrue(feeder.isCompressing());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** Tests that compressed feeds are not sent to a GSA older than 7.0. */
+  public void testCompressedFeedOlderGsa() throws Exception {
+    FeedHandler handler =
+        new FeedHandler(200, GsaFeedConnection.SUCCESS_RESPONSE);
+    HttpServer server =
+        createServer(handler, "<!ELEMENT gsafeed (header, group+)>\n");
+    try {
+      GsaFeedConnection feeder = new GsaFeedConnection("http", "localhost",
+          server.getAddress().getPort(), -1);
+      feeder.setCompression(true);
+      assertFalse(feeder.isCompressing());
+      assertEquals(GsaFeedConnection.SUCCESS_RESPONSE,
+                   sendFeed(feeder, FeedType.CONTENT));
+      assertEquals("[null]", handler.contentEncodings.toString());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Tests that a Bad Request, even one that names the content encoding,
+   * does not disable compression, since it is also returned for
+   * malformed feeds.
+   */
+  public void testCompressedFeedBadRequestEncoding() throws Exception {
+    FeedHandler handler =
+        new FeedHandler(200, GsaFeedConnection.SUCCESS_RESPONSE,
+            HttpURLConnection.HTTP_BAD_REQUEST,
+            "Unsupported Content-Encoding: gzip");
+    HttpServer server = createServer(handler, ACL_DTD);
+    try {
+      GsaFeedConnection feeder = new GsaFeedConnection("http", "localhost",
+          server.getAddress().getPort(), -1);
+      feeder.setCompression(true);
+      try {
+        sendFeed(feeder, FeedType.CONTENT);
+        fail("Expected FeedException");
+      } catch (FeedException expected) {
+        // Expected.
+      }
+      assertEquals("[gzip]", handler.contentEncodings.toString());
+      assertTrue(feeder.isCompressing());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Tests that any other Bad Request, such as for a malformed feed, does
+   * not disable compression.
+   */
+  public void testCompressedFeedBadRequest() throws Exception {
+    FeedHandler handler =
+        new FeedHandler(HttpURLConnection.HTTP_BAD_REQUEST, "Bad Request");
+    HttpServer server = createServer(handler, ACL_DTD);
+    try {
+      GsaFeedConnection feeder = new GsaFeedConnection("http", "localhost",
+          server.getAddress().getPort(), -1);
+      feeder.setCompression(true);
+      try {
+        sendFeed(feeder, FeedType.CONTENT);
+        fail("Expected FeedException");
+      } catch (FeedException expected) {
+        // Expected.
+      }
+      assertEquals("[gzip]", handler.contentEncodings.toString());
+      assertTrue(feeder.isCompressing());
+    } finally {
+      server.stop(0);
+    }
+  }
 }
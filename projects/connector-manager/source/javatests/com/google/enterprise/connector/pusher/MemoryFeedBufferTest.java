@@ -0,0 +1,107 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Charsets;
+import com.google.enterprise.connector.common.BufferPool;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Tests MemoryFeedBuffer.
+ */
+public class MemoryFeedBufferTest extends TestCase {
+  private BufferPool pool;
+  private MemoryFeedBuffer buffer;
+
+  @Override
+  protected void setUp() throws Exception {
+    // Use tiny chunks so that most writes span chunks.
+    pool = new BufferPool(4, 8, 64, 4);
+    buffer = new MemoryFeedBuffer(4, 8, pool);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    buffer.release();
+  }
+
+  private void write(String s) throws Exception {
+    byte[] bytes = s.getBytes(Charsets.UTF_8);
+    buffer.write(bytes, 0, bytes.length);
+  }
+
+  private String contents() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    buffer.writeTo(out);
+    return out.toString("UTF-8");
+  }
+
+  public void testEmpty() throws Exception {
+    assertEquals(0, buffer.size());
+    assertEquals("", contents());
+  }
+
+  public void testWrite() throws Exception {
+    write("abc");
+    buffer.write('d');
+    write("efghijklmnopqrstuvwxyz");
+    assertEquals(26, buffer.size());
+    assertEquals("abcdefghijklmnopqrstuvwxyz", contents());
+  }
+
+  public void testReset() throws Exception {
+    write("abcdefghijklmnopqrstuvwxyz");
+    buffer.reset(12);
+    assertEquals(12, buffer.size());
+    write("123");
+    assertEquals("abcdefghijkl123", contents());
+    buffer.reset(0);
+    write("xyz");
+    assertEquals("xyz", contents());
+  }
+
+  public void testResetTooBig() throws Exception {
+    write("abc");
+    try {
+      buffer.reset(4);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testReadFrom() throws Exception {
+    write("<content>");
+    buffer.readFrom(new ByteArrayInputStream(
+        "some document content".getBytes(Charsets.UTF_8)));
+    write("</content>");
+    assertEquals("<content>some document content</content>", contents());
+  }
+
+  public void testRelease() throws Exception {
+    write("abcdefghijklmnopqrstuvwxyz");
+    long allocated = pool.getAllocationCount();
+    buffer.release();
+    assertEquals(0, buffer.size());
+
+    // The released chunks are reused.
+    write("abcdefghijklmnopqrstuvwxyz");
+    assertEquals(allocated, pool.getAllocationCount());
+    assertEquals("abcdefghijklmnopqrstuvwxyz", contents());
+  }
+}
@@ -0,0 +1,255 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.enterprise.connector.pusher.Pusher.PusherStatus;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryDocumentException;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
+import com.google.enterprise.connector.util.UniqueIdGenerator;
+import com.google.enterprise.connector.util.UuidGenerator;
+import com.google.enterprise.connector.util.filter.DocumentFilterChain;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests {@link PipelinedPusher}.
+ */
+public class PipelinedPusherTest extends TestCase {
+  private FileSizeLimitInfo fsli;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    fsli = new FileSizeLimitInfo();
+    fsli.setMaxFeedSize(1024 * 1024);
+    fsli.setMaxDocumentSize(1024 * 1024);
+    executor = Executors.newFixedThreadPool(4);
+
+    // To ease comparisons, generate non-unique FeedIds.
+    XmlFeed.setUniqueIdGenerator(new UniqueIdGenerator() {
+        public String uniqueId() {
+          return "test";
+        }
+      });
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    executor.awaitTermination(5, TimeUnit.SECONDS);
+    XmlFeed.setUniqueIdGenerator(new UuidGenerator());
+  }
+
+  private DocPusher newDocPusher(FeedConnection connection) {
+    return new DocPusher(connection, "junit", fsli, new DocumentFilterChain());
+  }
+
+  /** Returns a mix of content and metadata-and-url documents. */
+  private List<Document> getDocuments(int count) {
+    List<Document> documents = new ArrayList<Document>();
+    for (int i = 0; i < count; i++) {
+      Map<String, Object> props =
+          ConnectorTestUtils.createSimpleDocumentBasicProperties("doc" + i);
+      if (i % 5 == 4) {
+        props.put(SpiConstants.PROPNAME_SEARCHURL,
+                  "http://www.example.com/doc" + i);
+        props.remove(SpiConstants.PROPNAME_CONTENT);
+      }
+      documents.add(ConnectorTestUtils.createSimpleDocument(props));
+    }
+    return documents;
+  }
+
+  /** Feeds the documents, skipping those rejected by the pusher. */
+  private String feed(Pusher pusher, MockFeedConnection connection,
+      List<Document> documents) throws Exception {
+    for (Document document : documents) {
+      try {
+        assertEquals(PusherStatus.OK, pusher.take(document));
+      } catch (RepositoryDocumentException e) {
+        // Skipped, as QueryTraverser would.
+      }
+    }
+    pusher.flush();
+    return connection.getFeed();
+  }
+
+  /** Tests that the pipelined feed is the same as the unpipelined feed. */
+  public void testSameFeed() throws Exception {
+    List<Document> documents = getDocuments(50);
+
+    MockFeedConnection expectedConnection = new MockFeedConnection();
+    String expected = feed(newDocPusher(expectedConnection),
+                           expectedConnection, documents);
+
+    MockFeedConnection connection = new MockFeedConnection();
+    String actual = feed(
+        new PipelinedPusher(newDocPusher(connection), executor, 4),
+        connection, documents);
+
+    assertTrue(expected, expected.contains("doc49"));
+    assertEquals(expected, actual);
+  }
+
+  /** Tests that documents that fail to encode are skipped. */
+  public void testSkippedDocument() throws Exception {
+    List<Document> documents = getDocuments(10);
+    documents.add(3, new Document() {
+        public Property findProperty(String name) {
+          throw new IllegalStateException("bad document");
+        }
+        public Set<String> getPropertyNames() {
+          throw new IllegalStateException("bad document");
+        }
+      });
+
+    MockFeedConnection expectedConnection = new MockFeedConnection();
+    String expected = feed(newDocPusher(expectedConnection),
+                           expectedConnection, documents);
+
+    MockFeedConnection connection = new MockFeedConnection();
+    String actual = feed(
+        new PipelinedPusher(newDocPusher(connection), executor, 2),
+        connection, documents);
+
+    assertTrue(expected, expected.contains("doc9"));
+    assertEquals(expected, actual);
+  }
+
+  /** Tests that canceling discards the pending documents. */
+  public void testCancel() throws Exception {
+    // An Executor that never runs the tasks.
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    Executor idle = new Executor() {
+        public void execute(Runnable task) {
+          tasks.add(task);
+        }
+      };
+    MockFeedConnection connection = new MockFeedConnection();
+    PipelinedPusher pusher =
+        new PipelinedPusher(newDocPusher(connection), idle, 4);
+    for (Document document : getDocuments(3)) {
+      assertEquals(PusherStatus.OK, pusher.take(document));
+    }
+    assertEquals(3, tasks.size());
+    assertEquals(3, pusher.getPendingCount());
+
+    pusher.cancel();
+    assertEquals(0, pusher.getPendingCount());
+    assertEquals("", connection.getFeed());
+    assertEquals(PusherStatus.DISABLED, pusher.take(getDocuments(1).get(0)));
+  }
+
+  /**
+   * Tests that a document still pending when the wait for it is
+   * interrupted is neither dropped nor committed twice.
+   */
+  public void testInterruptedWait() throws Exception {
+    // An Executor that runs the tasks only when asked.
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    Executor idle = new Executor() {
+        public void execute(Runnable task) {
+          tasks.add(task);
+        }
+      };
+    List<Document> documents = getDocuments(2);
+    MockFeedConnection expectedConnection = new MockFeedConnection();
+    String expected = feed(newDocPusher(expectedConnection),
+                           expectedConnection, documents);
+
+    MockFeedConnection connection = new MockFeedConnection();
+    PipelinedPusher pusher =
+        new PipelinedPusher(newDocPusher(connection), idle, 1);
+    assertEquals(PusherStatus.OK, pusher.take(documents.get(0)));
+    Thread.currentThread().interrupt();
+    try {
+      // Waits for the first document, which is never encoded.
+      assertEquals(PusherStatus.OK, pusher.take(documents.get(1)));
+    } finally {
+      assertTrue(Thread.interrupted());
+    }
+    assertEquals(2, pusher.getPendingCount());
+
+    for (Runnable task : tasks) {
+      task.run();
+    }
+    pusher.flush();
+    assertEquals(0, pusher.getPendingCount());
+    assertEquals(expected, connection.getFeed());
+  }
+
+  /**
+   * Tests that a document is encoded while the traversal goes on to take
+   * the next document.  The first document cannot finish encoding until
+   * the second one has been taken.
+   */
+  public void testEncodingOverlapsTraversal() throws Exception {
+    List<Document> documents = getDocuments(2);
+    final Document first = documents.get(0);
+    final CountDownLatch secondTaken = new CountDownLatch(1);
+    final AtomicBoolean overlapped = new AtomicBoolean(true);
+    Document blocking = new Document() {
+        public Property findProperty(String name)
+            throws RepositoryException {
+          try {
+            if (!secondTaken.await(10, TimeUnit.SECONDS)) {
+              overlapped.set(false);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return first.findProperty(name);
+        }
+        public Set<String> getPropertyNames() throws RepositoryException {
+          return first.getPropertyNames();
+        }
+      };
+
+    MockFeedConnection connection = new MockFeedConnection();
+    PipelinedPusher pusher =
+        new PipelinedPusher(newDocPusher(connection), executor, 4);
+    assertEquals(PusherStatus.OK, pusher.take(blocking));
+    assertEquals(PusherStatus.OK, pusher.take(documents.get(1)));
+    secondTaken.countDown();
+    pusher.flush();
+    assertTrue(overlapped.get());
+    String feed = connection.getFeed();
+    assertTrue(feed, feed.indexOf("doc0") < feed.indexOf("doc1"));
+  }
+
+  public void testInvalidDepth() {
+    try {
+      new PipelinedPusher(newDocPusher(new MockFeedConnection()), executor, 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Charsets;
+import com.google.enterprise.connector.spi.SpiConstants.FeedType;
+import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+/**
+ * Tests SpooledFeedBuffer and spooled XmlFeeds.
+ */
+public class SpooledFeedBufferTest extends TestCase {
+  private static final File SPOOL_DIR = new File("testdata/tmp/feedSpool");
+
+  private SpooledFeedBuffer buffer;
+
+  @Override
+  protected void setUp() throws Exception {
+    SPOOL_DIR.mkdirs();
+    // Use a tiny staging buffer so that most writes hit the spool file.
+    buffer = new SpooledFeedBuffer(SPOOL_DIR, 8);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    buffer.release();
+  }
+
+  private void write(String s) throws Exception {
+    byte[] bytes = s.getBytes(Charsets.UTF_8);
+    buffer.write(bytes, 0, bytes.length);
+  }
+
+  private String contents() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    buffer.writeTo(out);
+    return out.toString("UTF-8");
+  }
+
+  public void testWrite() throws Exception {
+    write("abc");
+    buffer.write('d');
+    write("efghijklmnopqrstuvwxyz");
+    assertEquals(26, buffer.size());
+    assertEquals("abcdefghijklmnopqrstuvwxyz", contents());
+  }
+
+  public void testResetStaged() throws Exception {
+    write("abcdefghijkl");
+    write("mno");
+    buffer.reset(13);
+    write("xyz");
+    assertEquals("abcdefghijklmxyz", contents());
+  }
+
+  public void testResetSpooled() throws Exception {
+    write("abcdefghijklmnopqrstuvwxyz");
+    buffer.reset(4);
+    assertEquals(4, buffer.size());
+    write("123");
+    assertEquals("abcd123", contents());
+  }
+
+  public void testResetTooBig() throws Exception {
+    write("abc");
+    try {
+      buffer.reset(4);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testReadFrom() throws Exception {
+    write("<content>");
+    buffer.readFrom(new ByteArrayInputStream(
+        "some document content".getBytes(Charsets.UTF_8)));
+    write("</content>");
+    assertEquals("<content>some document content</content>", contents());
+  }
+
+  public void testRelease() throws Exception {
+    write("abcdefghijklmnopqrstuvwxyz");
+    File file = buffer.getFile();
+    assertTrue(file.exists());
+    buffer.release();
+    assertFalse(file.exists());
+  }
+
+  /** Tests that a spooled XmlFeed matches an in-memory XmlFeed. */
+  public void testSpooledXmlFeed() throws Exception {
+    FileSizeLimitInfo limit = new FileSizeLimitInfo();
+    FeedConnection connection = new MockFeedConnection();
+    XmlFeed memoryFeed =
+        new XmlFeed("test", FeedType.CONTENT, limit, null, connection);
+    XmlFeed spooledFeed = new XmlFeed("test", FeedType.CONTENT, limit, null,
+        connection, SPOOL_DIR);
+    try {
+      for (XmlFeed feed : new XmlFeed[] { memoryFeed, spooledFeed }) {
+        feed.readFrom(new ByteArrayInputStream(
+            "some document content".getBytes(Charsets.UTF_8)));
+        feed.close();
+      }
+      assertEquals(memoryFeed.size(), spooledFeed.size());
+      assertEquals(memoryFeed.toString(), spooledFeed.toString());
+    } finally {
+      memoryFeed.release();
+      spooledFeed.release();
+    }
+  }
+}
@@ -99,6 +99,29 @@ public class HostLoadManagerTest extends TestCase {
     assertFalse(hostLoadManager.shouldDelay());
   }
 
+  /**
+   * Test that getDelayEndTime returns the time at which shouldDelay
+   * would stop delaying.
+   */
+  public void testGetDelayEndTime() {
+    HostLoadManager hostLoadManager = newHostLoadManager(60);
+    hostLoadManager.setPeriod(1); // 1 second.
+
+    long now = clock.getTimeMillis();
+    assertEquals(now, hostLoadManager.getDelayEndTime());
+
+    hostLoadManager.recordResult(newBatchResult(60));
+    long delayEnd = hostLoadManager.getDelayEndTime();
+    assertTrue(delayEnd > now);
+    assertTrue(delayEnd <= now + 1000);
+
+    clock.setTimeMillis(delayEnd - 1);
+    assertTrue(hostLoadManager.shouldDelay());
+    clock.setTimeMillis(delayEnd);
+    assertFalse(hostLoadManager.shouldDelay());
+    assertEquals(delayEnd, hostLoadManager.getDelayEndTime());
+  }
+
   /**
    * Test minimum batchSize.
    */
@@ -307,4 +307,48 @@ public class ScheduleTest extends TestCase {
     assertEquals((((5 * 60) + 40) * 60),
                  schedule.nextScheduledInterval(calendar));
   }
+
+  /** Returns today's date at the given time. */
+  private static long today(int hour, int minute) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.set(Calendar.HOUR_OF_DAY, hour);
+    calendar.set(Calendar.MINUTE, minute);
+    calendar.set(Calendar.SECOND, 30);
+    calendar.set(Calendar.MILLISECOND, 0);
+    return calendar.getTimeInMillis();
+  }
+
+  /** Test the start time of the next traversal interval. */
+  public void testNextScheduledIntervalStart() {
+    Schedule schedule = new Schedule("name", false, 500, 60, "2-3:5-7");
+    long now = today(1, 40);
+    assertEquals(today(2, 0) - 30000L,
+                 schedule.nextScheduledIntervalStart(now));
+    assertFalse(schedule.inScheduledInterval(now));
+
+    now = today(2, 50);
+    assertEquals(now, schedule.nextScheduledIntervalStart(now));
+    assertTrue(schedule.inScheduledInterval(now));
+
+    now = today(3, 10);
+    assertEquals(today(5, 0) - 30000L,
+                 schedule.nextScheduledIntervalStart(now));
+
+    // No interval is left today, so the next one starts tomorrow.
+    now = today(20, 20);
+    Calendar tomorrow = Calendar.getInstance();
+    tomorrow.setTimeInMillis(today(2, 0) - 30000L);
+    tomorrow.add(Calendar.DAY_OF_MONTH, 1);
+    assertEquals(tomorrow.getTimeInMillis(),
+                 schedule.nextScheduledIntervalStart(now));
+    assertFalse(schedule.inScheduledInterval(now));
+  }
+
+  /** Test a schedule with no traversal intervals. */
+  public void testNextScheduledIntervalStartNone() {
+    Schedule schedule = new Schedule("name", false, 500, 60, "");
+    assertEquals(Long.MAX_VALUE,
+                 schedule.nextScheduledIntervalStart(today(12, 0)));
+    assertFalse(schedule.inScheduledInterval(today(12, 0)));
+  }
 }
@@ -34,8 +34,11 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Tests the Scheduler.
@@ -199,4 +202,95 @@ public class TraversalSchedulerTest extends TestCase {
     schedules.addAll(getSchedules("connectorB"));
     runWithSchedules(schedules, createRealInstantiator());
   }
+
+  /**
+   * An Instantiator that records batch start attempts, and reports
+   * configurable next batch times.
+   */
+  private static class RecordingInstantiator extends MockInstantiator {
+    final Map<String, Long> nextBatchTimes = new HashMap<String, Long>();
+    final List<String> batches = new ArrayList<String>();
+
+    RecordingInstantiator() {
+      super(new ThreadPool(5, new SystemClock()));
+      setupTestTraversers();
+    }
+
+    @Override
+    public Set<String> getConnectorNames() {
+      return nextBatchTimes.keySet();
+    }
+
+    @Override
+    public synchronized void startBatch(String connectorName) {
+      batches.add(connectorName);
+      notifyAll();
+    }
+
+    @Override
+    public synchronized long getNextBatchTime(String connectorName) {
+      return nextBatchTimes.get(connectorName);
+    }
+
+    synchronized int countBatches(String connectorName) {
+      return Collections.frequency(batches, connectorName);
+    }
+
+    /** Waits for the number of batch start attempts to reach count. */
+    synchronized boolean awaitBatches(String connectorName, int count,
+        long timeoutMillis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (countBatches(connectorName) < count) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        wait(remaining);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Tests that a connector that cannot run is not polled, but runs
+   * promptly when it reports a change.
+   */
+  public void testBatchScheduleChanged() throws Exception {
+    RecordingInstantiator instantiator = new RecordingInstantiator();
+    instantiator.nextBatchTimes.put("idle", Long.MAX_VALUE);
+    TraversalScheduler scheduler = new TraversalScheduler(instantiator);
+    scheduler.init();
+    try {
+      assertTrue(instantiator.awaitBatches("idle", 1, 5000));
+      Thread.sleep(TraversalScheduler.RETRY_DELAY_MILLIS * 2);
+      assertEquals(1, instantiator.countBatches("idle"));
+      assertEquals(0, scheduler.getQueuedCount());
+
+      scheduler.batchScheduleChanged("idle");
+      assertTrue(instantiator.awaitBatches("idle", 2,
+          TraversalScheduler.RETRY_DELAY_MILLIS / 2));
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  /**
+   * Tests that a connector is woken when its next batch time arrives,
+   * and not before.
+   */
+  public void testNextBatchTime() throws Exception {
+    RecordingInstantiator instantiator = new RecordingInstantiator();
+    long start = System.currentTimeMillis();
+    long delay = TraversalScheduler.RETRY_DELAY_MILLIS * 2;
+    instantiator.nextBatchTimes.put("delayed", start + delay);
+    TraversalScheduler scheduler = new TraversalScheduler(instantiator);
+    scheduler.init();
+    try {
+      assertTrue(instantiator.awaitBatches("delayed", 1, 5000));
+      assertTrue(instantiator.awaitBatches("delayed", 2, delay + 5000));
+      assertTrue(System.currentTimeMillis() >= start + delay);
+    } finally {
+      scheduler.shutdown();
+    }
+  }
 }
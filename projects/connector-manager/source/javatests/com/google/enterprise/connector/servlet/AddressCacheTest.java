@@ -0,0 +1,166 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.servlet;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.net.InetAddresses;
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests {@link AddressCache}.
+ */
+public class AddressCacheTest extends TestCase {
+  /** A resolver that counts lookups, with configurable answers. */
+  private static class MockResolver implements AddressCache.Resolver {
+    final Map<String, String[]> hosts = new HashMap<String, String[]>();
+    int lookups = 0;
+
+    @Override
+    public InetAddress[] getAllByName(String host)
+        throws UnknownHostException {
+      lookups++;
+      String[] addrs = hosts.get(host);
+      if (addrs == null) {
+        throw new UnknownHostException(host);
+      }
+      InetAddress[] result = new InetAddress[addrs.length];
+      for (int i = 0; i < addrs.length; i++) {
+        result[i] = InetAddress.getByAddress(host,
+            InetAddresses.forString(addrs[i]).getAddress());
+      }
+      return result;
+    }
+
+    @Override
+    public InetAddress getLocalHost() throws UnknownHostException {
+      return getAllByName("myhost")[0];
+    }
+  }
+
+  /** An Executor that runs refreshes when told to. */
+  private static class QueuedExecutor implements Executor {
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      for (Runnable task : tasks) {
+        task.run();
+      }
+      tasks.clear();
+    }
+  }
+
+  private MockResolver resolver;
+  private QueuedExecutor executor;
+
+  @Override
+  protected void setUp() {
+    resolver = new MockResolver();
+    resolver.hosts.put("gsa", new String[] { "10.0.0.1", "fe80::1" });
+    resolver.hosts.put("myhost", new String[] { "192.168.1.5" });
+    executor = new QueuedExecutor();
+  }
+
+  private AddressCache newCache(boolean includeLocalHost, long ttl) {
+    return new AddressCache(ImmutableSet.of("gsa"), includeLocalHost, ttl,
+        resolver, executor);
+  }
+
+  public void testContains() {
+    AddressCache cache = newCache(false, 60000L);
+    assertTrue(cache.contains("10.0.0.1"));
+    assertTrue(cache.contains("fe80:0:0:0:0:0:0:1"));
+    assertFalse(cache.contains("10.0.0.2"));
+    assertFalse(cache.contains("127.0.0.1"));
+    assertFalse(cache.contains("192.168.1.5"));
+  }
+
+  public void testLocalHost() {
+    AddressCache cache = newCache(true, 60000L);
+    assertTrue(cache.contains("127.0.0.1"));
+    assertTrue(cache.contains("0:0:0:0:0:0:0:1"));
+    assertTrue(cache.contains("192.168.1.5"));
+    assertTrue(cache.contains("10.0.0.1"));
+  }
+
+  public void testInvalidAddress() {
+    AddressCache cache = newCache(true, 60000L);
+    assertFalse(cache.contains("gsa"));
+    assertFalse(cache.contains(""));
+  }
+
+  public void testNoLookupsWithinTtl() {
+    AddressCache cache = newCache(false, 60000L);
+    int lookups = resolver.lookups;
+    for (int i = 0; i < 100; i++) {
+      cache.contains("10.0.0.1");
+      cache.contains("10.0.0.2");
+    }
+    assertEquals(lookups, resolver.lookups);
+    assertTrue(executor.tasks.isEmpty());
+  }
+
+  public void testBackgroundRefresh() throws Exception {
+    AddressCache cache = newCache(false, 1L);
+    resolver.hosts.put("gsa", new String[] { "10.0.0.2" });
+    Thread.sleep(5);
+
+    // The expired addresses are still used until the refresh completes,
+    // and only one refresh is scheduled.
+    assertTrue(cache.contains("10.0.0.1"));
+    assertFalse(cache.contains("10.0.0.2"));
+    assertEquals(1, executor.tasks.size());
+
+    executor.runAll();
+    assertFalse(cache.contains("10.0.0.1"));
+    assertTrue(cache.contains("10.0.0.2"));
+  }
+
+  public void testFailedRefreshKeepsAddresses() throws Exception {
+    AddressCache cache = newCache(false, 1L);
+    resolver.hosts.remove("gsa");
+    Thread.sleep(5);
+    cache.contains("10.0.0.1");
+    executor.runAll();
+    assertTrue(cache.contains("10.0.0.1"));
+  }
+
+  public void testUnknownHost() {
+    AddressCache cache = new AddressCache(
+        ImmutableSet.of("unknown", "gsa"), false, 60000L, resolver, executor);
+    assertTrue(cache.contains("10.0.0.1"));
+  }
+
+  public void testNoHosts() {
+    AddressCache cache = new AddressCache(Collections.<String>emptySet(),
+        false, 60000L, resolver, executor);
+    assertFalse(cache.contains("10.0.0.1"));
+    assertTrue(cache.getHosts().isEmpty());
+  }
+}
@@ -21,6 +21,8 @@ import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
 
 import junit.framework.TestCase;
 
+import java.io.StringReader;
+
 /**
  * Tests the AuthorizationParser class
  */
@@ -338,4 +340,72 @@ public class AuthorizationParserTest extends TestCase {
     assertFalse(AuthorizationParser.matchesIdentity(nameDomainId,
         "user2", null, "domain2"));
   }
+
+  private static final String ESCAPED_RESOURCES_BEFORE_IDENTITY =
+      "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+          + "<AuthorizationQuery>\n"
+          + "<ConnectorQuery>\n"
+          + "  <Resource>googleconnector://connector1.localhost/"
+          + "doc?docid=doc1</Resource>\n"
+          + "  <Resource connectorname=\"connector2\">"
+          + "<![CDATA[http://example.com/doc?a=1&b=2]]></Resource>\n"
+          + "  <Identity source=\"connector\">user&lt;1&gt;</Identity>\n"
+          + "</ConnectorQuery>\n"
+          + "</AuthorizationQuery>\n";
+
+  public void testResourcesBeforeIdentity() {
+    AuthorizationParser ap = new AuthorizationParser(
+        new StringReader(ESCAPED_RESOURCES_BEFORE_IDENTITY));
+    assertTrue(ap.getStatus().isSuccess());
+    assertEquals(2, ap.getNumDocs());
+    assertEquals(1, ap.countParsedIdentities());
+    AuthenticationIdentity id = ap.getIdentities().iterator().next();
+    assertEquals("user<1>", id.getUsername());
+    ConnectorQueries queries = ap.getConnectorQueriesForIdentity(id);
+    assertNotNull(queries.getQueryResources("connector1").getResource("doc1"));
+    assertNotNull(queries.getQueryResources("connector2")
+        .getResource("http://example.com/doc?a=1&b=2"));
+  }
+
+  private static final String EMPTY_AND_MISSING_ATTRIBUTES =
+      "<AuthorizationQuery>\n"
+          + "<ConnectorQuery>\n"
+          + "  <Identity source=\"connector\">user1</Identity>\n"
+          + "  <Resource>googleconnector://connector1.localhost/"
+          + "doc?docid=doc1</Resource>\n"
+          + "</ConnectorQuery>\n"
+          + "<ConnectorQuery>\n"
+          + "  <Identity password=\"\" domain=\"\" source=\"connector\">"
+          + "user1</Identity>\n"
+          + "  <Resource>googleconnector://connector1.localhost/"
+          + "doc?docid=doc2</Resource>\n"
+          + "</ConnectorQuery>\n"
+          + "</AuthorizationQuery>\n";
+
+  /** Missing and empty attributes identify the same identity. */
+  public void testEmptyAndMissingAttributes() {
+    AuthorizationParser ap =
+        new AuthorizationParser(EMPTY_AND_MISSING_ATTRIBUTES);
+    assertEquals(1, ap.countParsedIdentities());
+    assertEquals(2,
+        countUrlsForUsernameConnectorPair(ap, "user1", "connector1"));
+  }
+
+  public void testNoRootElement() {
+    AuthorizationParser ap = new AuthorizationParser(
+        "<ConnectorQuery><Identity>user1</Identity></ConnectorQuery>");
+    assertEquals(ConnectorMessageCode.ERROR_PARSING_XML_REQUEST,
+                 ap.getStatus().getMessageId());
+    assertEquals(0, ap.countParsedIdentities());
+  }
+
+  public void testNullIdentity() {
+    AuthorizationParser ap = new AuthorizationParser(
+        "<AuthorizationQuery><ConnectorQuery><Identity/>"
+        + "<Resource>googleconnector://connector1.localhost/doc?docid=doc1"
+        + "</Resource></ConnectorQuery></AuthorizationQuery>");
+    assertEquals(ConnectorMessageCode.RESPONSE_NULL_IDENTITY,
+                 ap.getStatus().getMessageId());
+    assertEquals(0, ap.countParsedIdentities());
+  }
 }
@@ -15,12 +15,17 @@
 package com.google.enterprise.connector.servlet;
 
 import com.google.enterprise.connector.common.StringUtils;
+import com.google.enterprise.connector.manager.Manager;
 import com.google.enterprise.connector.manager.MockManager;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
 
 import junit.framework.TestCase;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Collection;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -79,6 +84,23 @@ public class AuthorizationTest extends TestCase {
           + "  <Identity source=\"gsa\">username</Identity>\n"
           + "</ConnectorQuery>\n" + "</AuthorizationQuery>";
 
+  private static final String TEST_XML1_EXPECTED_RESULT =
+      "<CmResponse>\n" + "  <AuthorizationResponse>\n" + "    <Answer>\n"
+          + "      <Resource connectorname=\"connector1\">"
+          + ServletUtil.PROTOCOL
+          + "connector1.localhost" + ServletUtil.DOCID + "foo1</Resource>\n"
+          + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+          + "    <Answer>\n" + "      <Resource connectorname=\"connector2\">"
+          + ServletUtil.PROTOCOL
+          + "connector2.localhost" + ServletUtil.DOCID + "foo2</Resource>\n"
+          + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+          + "    <Answer>\n" + "      <Resource connectorname=\"connector3\">"
+          + ServletUtil.PROTOCOL
+          + "connector3.localhost" + ServletUtil.DOCID + "foo3</Resource>\n"
+          + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+          + "  </AuthorizationResponse>\n" + "  <StatusId>0</StatusId>\n"
+          + "</CmResponse>\n";
+
   /** Test invalid (empty) XML request. */
   public void testInvalidRequest() throws Exception {
     String expectedResult = "<CmResponse>\n" + "  <StatusId>"
@@ -90,23 +112,7 @@ public class AuthorizationTest extends TestCase {
   /**
    */
   public void testHandleDoPost1() {
-    String expectedResult =
-        "<CmResponse>\n" + "  <AuthorizationResponse>\n" + "    <Answer>\n"
-            + "      <Resource connectorname=\"connector1\">"
-            + ServletUtil.PROTOCOL
-            + "connector1.localhost" + ServletUtil.DOCID + "foo1</Resource>\n"
-            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
-            + "    <Answer>\n" + "      <Resource connectorname=\"connector2\">"
-            + ServletUtil.PROTOCOL
-            + "connector2.localhost" + ServletUtil.DOCID + "foo2</Resource>\n"
-            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
-            + "    <Answer>\n" + "      <Resource connectorname=\"connector3\">"
-            + ServletUtil.PROTOCOL
-            + "connector3.localhost" + ServletUtil.DOCID + "foo3</Resource>\n"
-            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
-            + "  </AuthorizationResponse>\n" + "  <StatusId>0</StatusId>\n"
-            + "</CmResponse>\n";
-    doTest(TEST_XML1, expectedResult, false, null, null, null);
+    doTest(TEST_XML1, TEST_XML1_EXPECTED_RESULT, false, null, null, null);
   }
 
   private static final String NULL_CONNECTOR_NAME_RESPONSE = "<CmResponse>\n"
@@ -544,20 +550,79 @@ public class AuthorizationTest extends TestCase {
         false, null, null, null);
   }
 
+  /** Test that connectors queried in parallel return the same results. */
+  public void testParallelAuthorization() {
+    AuthorizationExecutor executor = new AuthorizationExecutor(4, 4, 0L);
+    try {
+      MockManager manager = MockManager.getInstance();
+      manager.setShouldVerifyIdentity(false);
+      doTest(TEST_XML1, TEST_XML1_EXPECTED_RESULT, manager, executor);
+    } finally {
+      executor.stop(true);
+    }
+  }
+
+  /** Test that connectors that do not answer in time are INDETERMINATE. */
+  public void testAuthorizationTimeout() {
+    String expectedResult =
+        "<CmResponse>\n" + "  <AuthorizationResponse>\n" + "    <Answer>\n"
+            + "      <Resource connectorname=\"connector1\">"
+            + ServletUtil.PROTOCOL
+            + "connector1.localhost" + ServletUtil.DOCID + "foo1</Resource>\n"
+            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+            + "    <Answer>\n" + "      <Resource connectorname=\"connector2\">"
+            + ServletUtil.PROTOCOL
+            + "connector2.localhost" + ServletUtil.DOCID + "foo2</Resource>\n"
+            + "      <Decision>INDETERMINATE</Decision>\n" + "    </Answer>\n"
+            + "    <Answer>\n" + "      <Resource connectorname=\"connector3\">"
+            + ServletUtil.PROTOCOL
+            + "connector3.localhost" + ServletUtil.DOCID + "foo3</Resource>\n"
+            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+            + "  </AuthorizationResponse>\n" + "  <StatusId>0</StatusId>\n"
+            + "</CmResponse>\n";
+    // Connector2 takes far longer than the request is willing to wait.
+    MockManager manager = new MockManager() {
+        @Override
+        public Collection<AuthorizationResponse> authorizeDocids(
+            String connectorName, List<String> docidList,
+            AuthenticationIdentity identity) {
+          if ("connector2".equals(connectorName)) {
+            try {
+              Thread.sleep(60 * 1000L);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          return super.authorizeDocids(connectorName, docidList, identity);
+        }
+      };
+    AuthorizationExecutor executor = new AuthorizationExecutor(4, 4, 500L);
+    try {
+      doTest(TEST_XML1, expectedResult, manager, executor);
+    } finally {
+      executor.stop(true);
+    }
+  }
+
   private void doTest(String xmlBody, String expectedResult,
       boolean verifyIdentity, String username, String password, String domain) {
-    LOGGER.info("Test: " + getName());
-    LOGGER.info("xmlBody:\n " + xmlBody);
     MockManager manager = MockManager.getInstance();
     manager.setShouldVerifyIdentity(verifyIdentity);
     if (verifyIdentity) {
       manager.setExpectedIdentity(domain, username, password, null);
     }
+    doTest(xmlBody, expectedResult, manager, null);
+  }
+
+  private void doTest(String xmlBody, String expectedResult, Manager manager,
+      AuthorizationExecutor executor) {
+    LOGGER.info("Test: " + getName());
+    LOGGER.info("xmlBody:\n " + xmlBody);
     StringWriter writer = new StringWriter();
     PrintWriter out = new PrintWriter(writer);
     AuthorizationHandler authorizationHandler =
         AuthorizationHandler.makeAuthorizationHandlerForTest(xmlBody, manager,
-            out);
+            out, executor);
     authorizationHandler.handleDoPost();
     out.flush();
     String result = writer.toString();
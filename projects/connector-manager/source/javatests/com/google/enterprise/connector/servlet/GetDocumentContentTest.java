@@ -62,6 +62,11 @@ public class GetDocumentContentTest extends TestCase {
     Value.setFeedTimeZone("GMT-08:00");
   }
 
+  @Override
+  protected void tearDown() {
+    GetDocumentContent.setAllowHeadRequests(false);
+  }
+
   /** Test basic servlet function against a MockManager. */
   public void testGetDocumentContentMockManager() throws Exception {
     Manager manager = MockManager.getInstance();
@@ -89,6 +94,62 @@ public class GetDocumentContentTest extends TestCase {
     assertEquals(0, buffer.size());
   }
 
+  /** Test retrieving part of the content against a MockManager. */
+  public void testGetDocumentContentRangeMockManager() throws Exception {
+    Manager manager = MockManager.getInstance();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    int status;
+
+    // Connector1 serves up document content equal to docid.
+    status = GetDocumentContent.handleDoGet(manager, "connector1",
+        "0123456789", buffer, 2L, 3L);
+    assertEquals(200, status);
+    assertEquals("234", buffer.toString());
+
+    buffer.reset();
+    status = GetDocumentContent.handleDoGet(manager, "connector1",
+        "0123456789", buffer, 8L, 100L);
+    assertEquals(200, status);
+    assertEquals("89", buffer.toString());
+
+    buffer.reset();
+    status = GetDocumentContent.handleDoGet(manager, "connector1",
+        "0123456789", buffer, 100L, 1L);
+    assertEquals(200, status);
+    assertEquals(0, buffer.size());
+  }
+
+  private void checkParseRange(String header, long first, long last) {
+    GetDocumentContent.ByteRange range =
+        GetDocumentContent.parseRange(header, 100L);
+    assertNotNull(header, range);
+    assertEquals(header, first, range.first);
+    assertEquals(header, last, range.last);
+  }
+
+  public void testParseRange() {
+    checkParseRange("bytes=0-0", 0L, 0L);
+    checkParseRange("bytes=10-19", 10L, 19L);
+    checkParseRange(" Bytes=10 - 19 ", 10L, 19L);
+    checkParseRange("bytes=90-", 90L, 99L);
+    checkParseRange("bytes=90-200", 90L, 99L);
+    checkParseRange("bytes=-10", 90L, 99L);
+    checkParseRange("bytes=-200", 0L, 99L);
+
+    assertSame(GetDocumentContent.UNSATISFIABLE_RANGE,
+               GetDocumentContent.parseRange("bytes=100-", 100L));
+    assertSame(GetDocumentContent.UNSATISFIABLE_RANGE,
+               GetDocumentContent.parseRange("bytes=-0", 100L));
+
+    // Ignored, so the whole document is returned.
+    assertNull(GetDocumentContent.parseRange("0-0", 100L));
+    assertNull(GetDocumentContent.parseRange("lines=0-1", 100L));
+    assertNull(GetDocumentContent.parseRange("bytes=0-1,5-6", 100L));
+    assertNull(GetDocumentContent.parseRange("bytes=5-1", 100L));
+    assertNull(GetDocumentContent.parseRange("bytes=a-b", 100L));
+    assertNull(GetDocumentContent.parseRange("bytes=", 100L));
+  }
+
   /** Test basic servlet function against a MockManager. */
   public void testGetLastModifiedMockManager() throws Exception {
     Manager manager = MockManager.getInstance();
@@ -438,6 +499,87 @@ public class GetDocumentContentTest extends TestCase {
     assertEquals(403, res.getStatus());
   }
 
+  /** Test ProductionManager getDocumentContent should deny SecMgr,
+      even when HEAD requests are allowed. */
+  public void testHeadFromSecMgrHeadRequestsAllowed() throws Exception {
+    patchRealProductionManager();
+    GetDocumentContent.setAllowHeadRequests(true);
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.setMethod("HEAD");
+    req.addHeader("User-Agent", "SecMgr");
+    MockHttpServletResponse res = new MockHttpServletResponse();
+    new GetDocumentContent().service(req, res);
+    assertEquals(403, res.getStatus());
+  }
+
+  /** Test HEAD is answered from the metadata, when allowed. */
+  public void testHeadRequestAllowed() throws Exception {
+    patchRealProductionManager();
+    GetDocumentContent.setAllowHeadRequests(true);
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.setMethod("HEAD");
+    req.addHeader("User-Agent", "gsa-crawler");
+    MockHttpServletResponse res = new MockHttpServletResponse();
+    new GetDocumentContent().service(req, res);
+    assertEquals(200, res.getStatus());
+    assertEquals(docid.length(), res.getContentLength());
+    assertTrue(res.getContentType().contains("text/plain"));
+    assertNotNull(res.getHeader("X-Gsa-External-Metadata"));
+    assertEquals("bytes", res.getHeader("Accept-Ranges"));
+    assertEquals(0, res.getContentAsByteArray().length);
+  }
+
+  /** Test the GSA's Range:0-0 is answered from the metadata, when allowed. */
+  public void testCookieHeadRequestAllowed() throws Exception {
+    patchRealProductionManager();
+    GetDocumentContent.setAllowHeadRequests(true);
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.addHeader("User-Agent", "gsa-crawler");
+    req.addHeader("Range", "0-0");
+    MockHttpServletResponse res = new MockHttpServletResponse();
+    new GetDocumentContent().service(req, res);
+    assertEquals(200, res.getStatus());
+    assertEquals(0, res.getContentLength());
+    assertNotNull(res.getHeader("X-Gsa-External-Metadata"));
+    assertEquals(0, res.getContentAsByteArray().length);
+  }
+
+  /** Test a byte-range request returns part of the content. */
+  public void testRangeRequest() throws Exception {
+    patchRealProductionManager();
+    GetDocumentContent.setAllowHeadRequests(true);
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.addHeader("Range", "bytes=1-3");
+    MockHttpServletResponse res = new MockHttpServletResponse();
+    new GetDocumentContent().service(req, res);
+    assertEquals(206, res.getStatus());
+    assertEquals("bytes 1-3/" + docid.length(),
+                 res.getHeader("Content-Range"));
+    assertEquals(3, res.getContentLength());
+    assertEquals(docid.substring(1, 4), res.getContentAsString());
+  }
+
+  /** Test a byte-range request beyond the end of the content. */
+  public void testRangeRequestNotSatisfiable() throws Exception {
+    patchRealProductionManager();
+    GetDocumentContent.setAllowHeadRequests(true);
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.addHeader("Range", "bytes=" + docid.length() + "-");
+    MockHttpServletResponse res = new MockHttpServletResponse();
+    new GetDocumentContent().service(req, res);
+    assertEquals(416, res.getStatus());
+    assertEquals("bytes */" + docid.length(), res.getHeader("Content-Range"));
+  }
+
+  /** Test multiple byte ranges are ignored, returning all the content. */
+  public void testMultipleRangeRequest() throws Exception {
+    patchRealProductionManager();
+    GetDocumentContent.setAllowHeadRequests(true);
+    MockHttpServletRequest req = createMockRequest(connectorName, docid);
+    req.addHeader("Range", "bytes=0-0,2-3");
+    getDocumentContent(req, docid);
+  }
+
   /** Test requiring GSA to use authentication for private doc. */
   public void testHttpBasicWithoutCredentials() throws Exception {
     MockHttpServletRequest req = createMockRequest();
@@ -23,6 +23,8 @@ import junit.framework.TestCase;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -621,6 +623,57 @@ public class ServletUtilTest extends TestCase {
     }
   }
 
+  /** Returns what the supplied writer writes to a PrintWriter. */
+  private static String write(Writing writing) {
+    StringWriter buffer = new StringWriter();
+    PrintWriter out = new PrintWriter(buffer);
+    writing.writeTo(out);
+    out.flush();
+    return buffer.toString();
+  }
+
+  private interface Writing {
+    void writeTo(PrintWriter out);
+  }
+
+  public void testWriteIndent() {
+    for (final int level : new int[] { 0, 1, 5, 29, 30, 31, 100 }) {
+      String indent = write(new Writing() {
+          public void writeTo(PrintWriter out) {
+            ServletUtil.writeIndent(out, level);
+          }
+        });
+      assertEquals("level " + level, ServletUtil.indentStr(level), indent);
+    }
+  }
+
+  public void testWriteXMLElementWithAttrs() {
+    String element = write(new Writing() {
+        public void writeTo(PrintWriter out) {
+          ServletUtil.writeXMLElementWithAttrs(out, 2, "Schedule",
+              "version=\"3\"", "name:100:0:1-2");
+        }
+      });
+    assertEquals(ServletUtil.indentStr(2)
+        + "<Schedule version=\"3\">name:100:0:1-2</Schedule>"
+        + System.getProperty("line.separator"), element);
+  }
+
+  /** Tests that null names and values are written as "null", as before. */
+  public void testWriteXMLNulls() {
+    String nulls = write(new Writing() {
+        public void writeTo(PrintWriter out) {
+          ServletUtil.writeXMLElementWithAttrs(out, 0, "elem", null, null);
+          ServletUtil.writeXMLTagWithAttrs(out, 0, null, null, true);
+          ServletUtil.writeXMLTag(out, 0, null, false);
+          ServletUtil.writeXMLElement(out, 0, null, null);
+        }
+      });
+    String eol = System.getProperty("line.separator");
+    assertEquals("<elem null>null</elem>" + eol + "<null null/>" + eol
+        + "<null>" + eol + "<null>null</null>" + eol, nulls);
+  }
+
   private void obfuscateValues(Map<String, String> clearConfig,
        Map<String, String> obfuscatedConfig) {
     for (Map.Entry<String, String> entry : clearConfig.entrySet()) {
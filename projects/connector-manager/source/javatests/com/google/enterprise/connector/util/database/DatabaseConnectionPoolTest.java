@@ -25,6 +25,10 @@ import junit.framework.TestCase;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import javax.sql.DataSource;
 
@@ -59,8 +63,7 @@ public class DatabaseConnectionPoolTest extends TestCase {
     Connection c4 = createMock(Connection.class);
     expect(ds.getConnection()).andReturn(c1).andReturn(c2).andReturn(c3)
         .andReturn(c4);
-    expect(c2.isValid(1)).andReturn(true);
-    expect(c3.isValid(1)).andReturn(true);
+    // Recently released connections are not validated.
     replay(ds, c1, c2, c3, c4);
 
     DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
@@ -113,6 +116,7 @@ public class DatabaseConnectionPoolTest extends TestCase {
     replay(ds, alive, deadAfterSomeTime);
     
     DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setValidationInterval(0);
     assertEquals(alive, pool.getConnection());
     assertEquals(deadAfterSomeTime, pool.getConnection());
    
@@ -149,4 +153,208 @@ public class DatabaseConnectionPoolTest extends TestCase {
     pool.closeConnections();    
     assertTrue(newOne.isClosed());
   }
+
+  private static DataSource getH2DataSource(String name) {
+    JdbcDataSource ds = new JdbcDataSource();
+    ds.setURL("jdbc:h2:mem:" + name);
+    ds.setUser("sa");
+    ds.setPassword("sa");
+    return ds;
+  }
+
+  public void testValidationAfterIdle() throws Exception {
+    DataSource ds = createMock(DataSource.class);
+    Connection alive = createMock(Connection.class);
+    Connection dead = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(alive).andReturn(dead);
+    expect(alive.isValid(1)).andReturn(true);
+    expect(dead.isValid(1)).andReturn(false);
+    dead.close();
+    replay(ds, alive, dead);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    assertEquals(alive, pool.getConnection());
+    assertEquals(dead, pool.getConnection());
+    // Set after borrowing, so that the background thread is not running.
+    pool.setValidationInterval(1);
+    pool.releaseConnection(alive);
+    pool.releaseConnection(dead);
+    Thread.sleep(10);
+
+    // The background validation closes the dead connection.
+    pool.maintain();
+    assertEquals(1, pool.getIdleCount());
+
+    // The alive connection was just validated, so is not validated again.
+    pool.setValidationInterval(60 * 1000L);
+    assertEquals(alive, pool.getConnection());
+    verify(ds, alive, dead);
+  }
+
+  public void testValidationKeepsOrder() throws Exception {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    Connection c2 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1).andReturn(c2);
+    expect(c1.isValid(1)).andReturn(true);
+    expect(c2.isValid(1)).andReturn(true);
+    replay(ds, c1, c2);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    assertEquals(c1, pool.getConnection());
+    assertEquals(c2, pool.getConnection());
+    // Set after borrowing, so that the background thread is not running.
+    pool.setValidationInterval(1);
+    pool.releaseConnection(c2);
+    pool.releaseConnection(c1);
+    Thread.sleep(10);
+
+    // The most recently released connection is still borrowed first.
+    pool.maintain();
+    assertEquals(2, pool.getIdleCount());
+    pool.setValidationInterval(60 * 1000L);
+    assertEquals(c1, pool.getConnection());
+    assertEquals(c2, pool.getConnection());
+    verify(ds, c1, c2);
+  }
+
+  public void testIdleTimeout() throws Exception {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    Connection c2 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1).andReturn(c2);
+    c2.close();
+    replay(ds, c1, c2);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    assertEquals(c1, pool.getConnection());
+    assertEquals(c2, pool.getConnection());
+    // Set after borrowing, so that the background thread is not running.
+    pool.setValidationInterval(0);
+    pool.setIdleTimeout(1);
+    pool.setMinimumIdleConnections(1);
+    pool.releaseConnection(c2);
+    pool.releaseConnection(c1);
+    Thread.sleep(10);
+
+    // The least recently used connection is closed.
+    pool.maintain();
+    assertEquals(1, pool.getIdleCount());
+    verify(ds, c1, c2);
+  }
+
+  public void testMinimumIdleConnections() throws Exception {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    Connection c2 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1).andReturn(c2);
+    replay(ds, c1, c2);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setMinimumIdleConnections(2);
+    pool.maintain();
+    assertEquals(2, pool.getIdleCount());
+    assertEquals(0, pool.getActiveCount());
+    verify(ds, c1, c2);
+  }
+
+  public void testBorrowTimeout() throws Exception {
+    DatabaseConnectionPool pool =
+        new DatabaseConnectionPool(getH2DataSource("timeout"));
+    pool.setMaximumConnections(1);
+    pool.setBorrowTimeout(50);
+    Connection c = pool.getConnection();
+    assertEquals(1, pool.getActiveCount());
+    try {
+      pool.getConnection();
+      fail("Expected an SQLException");
+    } catch (SQLException expected) {
+      assertTrue(expected.getMessage(),
+          expected.getMessage().startsWith("Timed out"));
+    }
+    assertEquals(1, pool.getWaitCount());
+    assertEquals(1, pool.getTimeoutCount());
+    assertTrue(pool.getWaitMillis() >= 40);
+
+    pool.releaseConnection(c);
+    assertEquals(0, pool.getActiveCount());
+    assertEquals(1, pool.getIdleCount());
+    assertEquals(c, pool.getConnection());
+    assertEquals(2, pool.getBorrowCount());
+    pool.releaseConnection(c);
+    pool.closeConnections();
+  }
+
+  /** Tests that waiting borrowers get connections in the order they asked. */
+  public void testFairWaiting() throws Exception {
+    final DatabaseConnectionPool pool =
+        new DatabaseConnectionPool(getH2DataSource("fair"));
+    pool.setMaximumConnections(1);
+    final List<Integer> order =
+        Collections.synchronizedList(new ArrayList<Integer>());
+    Connection c = pool.getConnection();
+
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 3; i++) {
+      final int borrower = i;
+      Thread thread = new Thread() {
+          @Override
+          public void run() {
+            try {
+              Connection conn = pool.getConnection();
+              order.add(borrower);
+              pool.releaseConnection(conn);
+            } catch (SQLException e) {
+              order.add(-1);
+            }
+          }
+        };
+      thread.start();
+      threads.add(thread);
+      // Wait for this borrower to be queued before starting the next.
+      for (int j = 0; j < 500 && pool.getWaitCount() <= i; j++) {
+        Thread.sleep(10);
+      }
+    }
+    assertTrue(order.isEmpty());
+
+    pool.releaseConnection(c);
+    for (Thread thread : threads) {
+      thread.join(5000);
+    }
+    assertEquals(Arrays.asList(0, 1, 2), order);
+    assertEquals(1, pool.getIdleCount());
+    pool.closeConnections();
+  }
+
+  public void testShrinkPool() throws Exception {
+    DatabaseConnectionPool pool =
+        new DatabaseConnectionPool(getH2DataSource("shrink"));
+    pool.setMaximumConnections(0);
+    Connection c1 = pool.getConnection();
+    Connection c2 = pool.getConnection();
+    Connection c3 = pool.getConnection();
+    pool.setMaximumConnections(1);
+    assertEquals(1, pool.getMaximumConnections());
+    assertEquals(3, pool.getActiveCount());
+
+    // Connections beyond the new maximum are closed when released.
+    pool.releaseConnection(c1);
+    pool.releaseConnection(c2);
+    pool.releaseConnection(c3);
+    assertEquals(1, pool.getIdleCount());
+    assertTrue(c2.isClosed());
+    assertTrue(c3.isClosed());
+
+    pool.setBorrowTimeout(10);
+    Connection c = pool.getConnection();
+    try {
+      pool.getConnection();
+      fail("Expected an SQLException");
+    } catch (SQLException expected) {
+      // Expected.
+    }
+    pool.releaseConnection(c);
+    pool.closeConnections();
+  }
 }
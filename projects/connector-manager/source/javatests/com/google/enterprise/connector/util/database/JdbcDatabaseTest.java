@@ -75,6 +75,29 @@ public class JdbcDatabaseTest extends TestCase {
     database.getConnectionPool().releaseConnection(connection);
   }
 
+  // Test adding an index to an existing Table.
+  public void testCreateIndex() throws SQLException {
+    String tableName = "test_indexed_table";
+    String[] createTableDdl = {
+        "CREATE TABLE IF NOT EXISTS " + tableName
+        + " ( foo INT IDENTITY PRIMARY KEY NOT NULL, bar INT )" };
+    assertTrue(database.verifyTableExists(tableName, createTableDdl));
+
+    // Assert the index does not yet exist.
+    assertFalse(database.verifyIndexExists(tableName, "bar", null));
+
+    String[] createIndexDdl = {
+        "CREATE INDEX " + tableName + "_bar_index ON " + tableName
+        + " ( bar )" };
+
+    // Verify that we can create the index.
+    assertTrue(database.verifyIndexExists(tableName, "bar", createIndexDdl));
+
+    // Assert the index does now exist, and is not created again.
+    assertTrue(database.verifyIndexExists(tableName, "bar", null));
+    assertTrue(database.verifyIndexExists(tableName, "bar", createIndexDdl));
+  }
+
   // Tests getting the maximum table name length.
   public void testGetMaxTableNameLength() {
     // H2 has no max table name length, so we expect the default 255.
@@ -0,0 +1,343 @@
+// Copyright 2014 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests {@link BinarySnapshotWriter} and {@link BinaryRecordReader}.
+ */
+public class BinarySnapshotWriterTest extends TestCase {
+  private File snapshotFile;
+
+  @Override
+  public void setUp() throws Exception {
+    TestDirectoryManager testDirectoryManager = new TestDirectoryManager(this);
+    File rootDir = testDirectoryManager.makeDirectory("rootDir");
+    snapshotFile = new File(rootDir, "snap.1");
+  }
+
+  private BinarySnapshotWriter newWriter(int syncRecords) throws Exception {
+    FileOutputStream os = new FileOutputStream(snapshotFile);
+    return new BinarySnapshotWriter(os, os.getFD(), snapshotFile.getPath(),
+        syncRecords, 0L);
+  }
+
+  private SnapshotReader newReader() throws SnapshotReaderException {
+    BinaryRecordReader recordReader = new BinaryRecordReader(snapshotFile);
+    return new SnapshotReader(recordReader, recordReader,
+        snapshotFile.getPath(), 1, new MockDocumentSnapshotFactory());
+  }
+
+  private static MockDocumentSnapshot getSnapshot(int k) {
+    return new MockDocumentSnapshot(String.format("/foo/bar/%08d", k),
+        "extra." + k);
+  }
+
+  private void writeRecords(SnapshotWriter writer, int count)
+      throws SnapshotWriterException {
+    for (int k = 0; k < count; k++) {
+      writer.write(getSnapshot(k));
+    }
+  }
+
+  private void assertRecords(SnapshotReader reader, int from, int to)
+      throws SnapshotReaderException {
+    for (int k = from; k < to; k++) {
+      assertEquals(getSnapshot(k), reader.read());
+    }
+  }
+
+  public void testIsBinarySnapshot() throws Exception {
+    assertFalse(BinaryRecordReader.isBinarySnapshot(snapshotFile));
+    FileOutputStream os = new FileOutputStream(snapshotFile);
+    os.write("12#{\"a\":\"b\"}\n".getBytes("UTF-8"));
+    os.close();
+    assertFalse(BinaryRecordReader.isBinarySnapshot(snapshotFile));
+
+    newWriter(1).close();
+    assertTrue(BinaryRecordReader.isBinarySnapshot(snapshotFile));
+  }
+
+  public void testEmpty() throws Exception {
+    newWriter(1).close();
+    SnapshotReader reader = newReader();
+    try {
+      assertNull(reader.read());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testWriteRead() throws Exception {
+    SnapshotWriter writer = newWriter(100);
+    writeRecords(writer, 5000);
+    writer.close();
+    assertEquals(5000, writer.getRecordCount());
+    assertEquals(5000, writer.getSyncedRecordCount());
+
+    SnapshotReader reader = newReader();
+    try {
+      assertRecords(reader, 0, 5000);
+      assertNull(reader.read());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testNonAscii() throws Exception {
+    MockDocumentSnapshot before =
+        new MockDocumentSnapshot("/f\u00f6\u00f6/\u4e2d\u6587",
+        "\ud834\udd1e");
+    SnapshotWriter writer = newWriter(1);
+    writer.write(before);
+    writer.close();
+
+    SnapshotReader reader = newReader();
+    try {
+      assertEquals(before, reader.read());
+      assertNull(reader.read());
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** Tests that records are compressed in blocks. */
+  public void testCompression() throws Exception {
+    SnapshotWriter writer = newWriter(Integer.MAX_VALUE);
+    writeRecords(writer, 10000);
+    writer.close();
+
+    File textFile = new File(snapshotFile.getParentFile(), "snap.2");
+    FileOutputStream os = new FileOutputStream(textFile);
+    SnapshotWriter textWriter = new SnapshotWriter(
+        new OutputStreamWriter(os, "UTF-8"), null, textFile.getPath());
+    writeRecords(textWriter, 10000);
+    textWriter.close();
+    assertTrue(snapshotFile.length() + " >= " + textFile.length(),
+        snapshotFile.length() < textFile.length() / 2);
+  }
+
+  public void testSkipRecords() throws Exception {
+    SnapshotWriter writer = newWriter(Integer.MAX_VALUE);
+    writeRecords(writer, 100000);
+    writer.close();
+
+    SnapshotReader reader = newReader();
+    try {
+      reader.skipRecords(77777);
+      assertRecords(reader, 77777, 77780);
+      // Within the current block.
+      reader.skipRecords(10);
+      assertRecords(reader, 77790, 77791);
+      // Exactly to the end of the snapshot.
+      reader.skipRecords(100000 - 77791);
+      assertNull(reader.read());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testSkipZeroRecords() throws Exception {
+    SnapshotWriter writer = newWriter(1);
+    writeRecords(writer, 10);
+    writer.close();
+
+    SnapshotReader reader = newReader();
+    try {
+      reader.skipRecords(0);
+      assertRecords(reader, 0, 10);
+      assertNull(reader.read());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testSkipTooManyRecords() throws Exception {
+    SnapshotWriter writer = newWriter(7);
+    writeRecords(writer, 100);
+    writer.close();
+
+    SnapshotReader reader = newReader();
+    try {
+      reader.skipRecords(101);
+      fail("Expected a SnapshotReaderException");
+    } catch (SnapshotReaderException expected) {
+      assertTrue(expected.getMessage(),
+          expected.getMessage().contains("contains only 100"));
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Tests reading a snapshot with no index, as left by a crash after
+   * some of the records were synced.
+   */
+  public void testUnfinishedSnapshot() throws Exception {
+    SnapshotWriter writer = newWriter(100);
+    try {
+      writeRecords(writer, 5050);
+      assertEquals(5000, writer.getSyncedRecordCount());
+
+      SnapshotReader reader = newReader();
+      try {
+        reader.skipRecords(3210);
+        assertRecords(reader, 3210, 5000);
+        assertNull(reader.read());
+      } finally {
+        reader.close();
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  public void testInterruptedSkip() throws Exception {
+    SnapshotWriter writer = newWriter(1);
+    writeRecords(writer, 10);
+    writer.close();
+
+    SnapshotReader reader = newReader();
+    try {
+      Thread.currentThread().interrupt();
+      reader.skipRecords(5);
+      fail("Expected an InterruptedException");
+    } catch (InterruptedException expected) {
+      assertFalse(Thread.interrupted());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testCorruptBlock() throws Exception {
+    SnapshotWriter writer = newWriter(Integer.MAX_VALUE);
+    writeRecords(writer, 100);
+    writer.close();
+
+    // Damage the compressed data of the only block.
+    corrupt(BinarySnapshotWriter.HEADER_LENGTH + 30);
+    SnapshotReader reader = newReader();
+    try {
+      reader.read();
+      fail("Expected a SnapshotReaderException");
+    } catch (SnapshotReaderException expected) {
+      // Expected.
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Tests reading a snapshot truncated at every offset, as left by a
+   * crash while writing a block. The records of the complete blocks
+   * must be readable, and nothing after them.
+   */
+  public void testTruncatedSnapshot() throws Exception {
+    SnapshotWriter writer = newWriter(10);
+    writeRecords(writer, 100);
+    writer.close();
+    byte[] contents = readFile();
+
+    int lastCount = 0;
+    for (int length = BinarySnapshotWriter.HEADER_LENGTH;
+         length < contents.length; length++) {
+      writeFile(contents, length);
+      SnapshotReader reader = newReader();
+      int count = 0;
+      try {
+        while (reader.read() != null) {
+          count++;
+        }
+      } finally {
+        reader.close();
+      }
+      assertEquals("length " + length, 0, count % 10);
+      assertTrue("length " + length, count >= lastCount);
+      lastCount = count;
+
+      reader = newReader();
+      try {
+        reader.skipRecords(count);
+        assertNull(reader.read());
+      } finally {
+        reader.close();
+      }
+      reader = newReader();
+      try {
+        reader.skipRecords(count + 1);
+        fail("Expected a SnapshotReaderException at length " + length);
+      } catch (SnapshotReaderException expected) {
+        assertTrue(expected.getMessage(),
+            expected.getMessage().contains("contains only " + count));
+      } finally {
+        reader.close();
+      }
+    }
+    assertEquals(100, lastCount);
+  }
+
+  private byte[] readFile() throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r");
+    try {
+      byte[] contents = new byte[(int) raf.length()];
+      raf.readFully(contents);
+      return contents;
+    } finally {
+      raf.close();
+    }
+  }
+
+  private void writeFile(byte[] contents, int length) throws IOException {
+    FileOutputStream os = new FileOutputStream(snapshotFile);
+    try {
+      os.write(contents, 0, length);
+    } finally {
+      os.close();
+    }
+  }
+
+  public void testUnsupportedVersion() throws Exception {
+    newWriter(1).close();
+    corrupt(BinarySnapshotWriter.MAGIC.length);
+    try {
+      newReader();
+      fail("Expected a SnapshotReaderException");
+    } catch (SnapshotReaderException expected) {
+      assertTrue(expected.getMessage(),
+          expected.getMessage().contains("version"));
+    }
+  }
+
+  private void corrupt(long offset) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(snapshotFile, "rw");
+    try {
+      raf.seek(offset);
+      int b = raf.read();
+      raf.seek(offset);
+      raf.write(b ^ 0x5a);
+    } finally {
+      raf.close();
+    }
+  }
+}
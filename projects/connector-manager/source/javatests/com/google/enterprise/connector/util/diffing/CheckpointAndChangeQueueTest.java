@@ -28,6 +28,7 @@ import junit.framework.TestCase;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
@@ -37,11 +38,15 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Logger;
 
 /**
  * Test for {@Link CheckpointAndChangeQueue}.
  */
 public class CheckpointAndChangeQueueTest extends TestCase {
+  private static final Logger LOG =
+      Logger.getLogger(CheckpointAndChangeQueueTest.class.getName());
+
   private File persistDir;
   private TestDirectoryManager testDirectoryManager;
   private DeleteDocumentHandleFactory internalFactory;
@@ -413,6 +418,195 @@ public class CheckpointAndChangeQueueTest extends TestCase {
     assertEquals(original, getRecoveryFile(q2));
   }
 
+  /** Tests that later resumes append to the same recovery file. */
+  public void testJournalAppends() throws Exception {
+    ChangeSource changeSource = new MockChangeSource(20);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.start(null);
+    List<CheckpointAndChange> batch = q.resume(null);
+    File recoveryFile = persistDir.listFiles()[0];
+    long length = recoveryFile.length();
+    String checkpoint = null;
+    for (int i = 0; i < 5; i++) {
+      checkpoint = batch.get(1).getCheckpoint().toString();
+      batch = q.resume(checkpoint);
+      assertEquals(1, persistDir.listFiles().length);
+      assertEquals(recoveryFile, persistDir.listFiles()[0]);
+      assertTrue(recoveryFile.length() > length);
+      length = recoveryFile.length();
+    }
+
+    // Resuming at the same checkpoint changes nothing.
+    List<CheckpointAndChange> sameBatch = q.resume(checkpoint);
+    assertEquals(batch, sameBatch);
+    assertEquals(length, recoveryFile.length());
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    q2.start(checkpoint);
+    assertEquals(sameBatch, q2.resume(checkpoint));
+    assertEquals(getRecoveryFile(q), getRecoveryFile(q2));
+  }
+
+  /** Tests recovery from a journal record that was not completely written. */
+  public void testRecoveryWithIncompleteJournalRecord() throws IOException {
+    ChangeSource changeSource = new MockChangeSource(10);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.start(null);
+    List<CheckpointAndChange> firstBatch = q.resume(null);
+    String checkpoint = firstBatch.get(1).getCheckpoint().toString();
+    // Copy the batch, which is a view of the queue.
+    List<CheckpointAndChange> secondBatch =
+        new ArrayList<CheckpointAndChange>(q.resume(checkpoint));
+    File recoveryFile = persistDir.listFiles()[0];
+    long length = recoveryFile.length();
+    q.resume(secondBatch.get(1).getCheckpoint().toString());
+
+    // Cut the last record short, as if we crashed while writing it.
+    RandomAccessFile raf = new RandomAccessFile(recoveryFile, "rw");
+    try {
+      raf.setLength(length + (raf.length() - length) / 2);
+    } finally {
+      raf.close();
+    }
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    q2.start(checkpoint);
+    assertEquals(secondBatch, q2.resume(checkpoint));
+  }
+
+  /** Tests that a large journal is compacted into a new recovery file. */
+  public void testJournalCompaction() throws IOException {
+    final int NUM_RESUME_CALLS = 2000;
+    ChangeSource changeSource = new MockChangeSource(NUM_RESUME_CALLS * 3);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    String checkpoint = null;
+    q.start(checkpoint);
+    List<CheckpointAndChange> batch = q.resume(checkpoint);
+    File recoveryFile = persistDir.listFiles()[0];
+    boolean compacted = false;
+    for (int i = 0; i < NUM_RESUME_CALLS && !compacted; i++) {
+      checkpoint = batch.get(1).getCheckpoint().toString();
+      batch = q.resume(checkpoint);
+      assertEquals(1, persistDir.listFiles().length);
+      compacted = !recoveryFile.equals(persistDir.listFiles()[0]);
+      assertTrue(persistDir.listFiles()[0].length()
+          <= 2 * CheckpointAndChangeQueue.MIN_COMPACTION_BYTES);
+    }
+    assertTrue(compacted);
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    q2.start(checkpoint);
+    assertEquals(batch, q2.resume(checkpoint));
+  }
+
+  /** Tests recovery from a recovery file without a checksum. */
+  public void testRecoveryFromLegacyFile() throws Exception {
+    ChangeSource changeSource = new MockChangeSource(6);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.start(null);
+    List<CheckpointAndChange> firstBatch = q.resume(null);
+    String checkpoint = firstBatch.get(1).getCheckpoint().toString();
+    List<CheckpointAndChange> secondBatch = q.resume(checkpoint);
+
+    // Replace the recovery file with one written in the older format.
+    File recoveryFile = persistDir.listFiles()[0];
+    FileWriter writer = new FileWriter(recoveryFile);
+    try {
+      q.writeJson(writer);
+    } finally {
+      writer.close();
+    }
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    q2.start(checkpoint);
+    assertEquals(secondBatch, q2.resume(checkpoint));
+  }
+
+  /** Tests that a recovery file that does not match its checksum fails. */
+  public void testRecoveryFromCorruptFile() throws IOException {
+    ChangeSource changeSource = new MockChangeSource(6);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.start(null);
+    List<CheckpointAndChange> firstBatch = q.resume(null);
+    String checkpoint = firstBatch.get(1).getCheckpoint().toString();
+
+    RandomAccessFile raf =
+        new RandomAccessFile(persistDir.listFiles()[0], "rw");
+    try {
+      raf.seek(20);
+      int b = raf.read();
+      raf.seek(20);
+      raf.write(b ^ 0x01);
+    } finally {
+      raf.close();
+    }
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    try {
+      q2.start(checkpoint);
+      fail("Should have failed on corrupt recovery file.");
+    } catch(IOException e) {
+      assertTrue(-1 != e.getMessage().indexOf("Found incomplete recovery file: "));
+    }
+  }
+
+  /**
+   * Compares the bytes written by the journal with those written by
+   * rewriting the whole queue on every resume.
+   */
+  public void testJournalBytesWritten() throws Exception {
+    final int NUM_RESUME_CALLS = 200;
+    final int QUEUE_SIZE = 500;
+    ChangeSource changeSource =
+        new MockChangeSource(NUM_RESUME_CALLS * 10 + QUEUE_SIZE);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(QUEUE_SIZE);
+    String checkpoint = null;
+    q.start(checkpoint);
+    List<CheckpointAndChange> batch = q.resume(checkpoint);
+
+    long journalBytes = 0;
+    long rewriteBytes = 0;
+    long previousLength = persistDir.listFiles()[0].length();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < NUM_RESUME_CALLS; i++) {
+      // Complete a few changes of each batch.
+      checkpoint = batch.get(9).getCheckpoint().toString();
+      batch = q.resume(checkpoint);
+      long length = persistDir.listFiles()[0].length();
+      journalBytes += (length > previousLength)
+          ? length - previousLength : length;
+      previousLength = length;
+      rewriteBytes += getRecoveryFile(q).length();
+    }
+    LOG.info("Journaled " + NUM_RESUME_CALLS + " resumes of a queue of "
+        + QUEUE_SIZE + " in " + (System.currentTimeMillis() - start)
+        + " ms: wrote " + journalBytes + " bytes, compared to "
+        + rewriteBytes + " bytes to rewrite the queue");
+    assertTrue(journalBytes < rewriteBytes / 2);
+  }
+
   public void testRecoveryStateCleanup() throws IOException {
     final int NUM_RESUME_CALLS = 20;
     ChangeSource changeSource = new MockChangeSource(NUM_RESUME_CALLS * 3);
@@ -14,15 +14,25 @@
 
 package com.google.enterprise.connector.util.diffing;
 
+import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.TraversalSchedule;
+import com.google.enterprise.connector.test.ConnectorTestUtils;
 import com.google.enterprise.connector.util.diffing.DocumentSnapshotRepositoryMonitor;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
 /**
  * Tests for {@link DocumentSnapshotRepositoryMonitor}.
  */
 public class DocumentSnapshotRepositoryMonitorTest extends TestCase {
+  private static final Logger LOG =
+      Logger.getLogger(DocumentSnapshotRepositoryMonitorTest.class.getName());
 
   // Borrowed from filesystem connector's  MockTraversalSchedule.java
   public class MockTraversalSchedule implements TraversalSchedule {
@@ -160,4 +170,344 @@ public class DocumentSnapshotRepositoryMonitorTest extends TestCase {
           "but got NullPointerException instead.");
     }
   }
+
+  private static final int SYNTHETIC_DOCUMENTS = 2000;
+  private static final int SYNC_RECORDS = 100;
+
+  /** A synthetic repository of sorted document snapshots. */
+  private static class SyntheticRepository
+      implements SnapshotRepository<SyntheticDocumentSnapshot> {
+    private final int size;
+
+    SyntheticRepository(int size) {
+      this.size = size;
+    }
+
+    @Override
+    public String getName() {
+      return "synthetic";
+    }
+
+    @Override
+    public Iterator<SyntheticDocumentSnapshot> iterator() {
+      List<SyntheticDocumentSnapshot> snapshots =
+          new ArrayList<SyntheticDocumentSnapshot>(size);
+      for (int i = 0; i < size; i++) {
+        String id = String.format("/share/dir%03d/file%08d", i / 100, i);
+        snapshots.add(new SyntheticDocumentSnapshot(id, "extra." + i));
+      }
+      return snapshots.iterator();
+    }
+  }
+
+  /** A snapshot that reports a change if it differs from the stored one. */
+  private static class SyntheticDocumentSnapshot extends MockDocumentSnapshot {
+    SyntheticDocumentSnapshot(String documentId, String extra) {
+      super(documentId, extra);
+    }
+
+    @Override
+    public DocumentHandle getUpdate(DocumentSnapshot onGsa) {
+      if (onGsa != null && onGsa.toString().equals(toString())) {
+        return null;
+      }
+      return new MockDocumentHandle(getDocumentId(), getExtra());
+    }
+  }
+
+  /** Records the reported checkpoints, and stops after one pass. */
+  private static class OnePassCallback
+      implements DocumentSnapshotRepositoryMonitor.Callback {
+    final List<MonitorCheckpoint> checkpoints =
+        new ArrayList<MonitorCheckpoint>();
+    MonitorCheckpoint passCheckpoint;
+
+    @Override
+    public void passBegin() {}
+
+    @Override
+    public void newDocument(DocumentHandle dh, MonitorCheckpoint mcp) {
+      checkpoints.add(mcp);
+    }
+
+    @Override
+    public void deletedDocument(DocumentHandle dh, MonitorCheckpoint mcp) {
+      checkpoints.add(mcp);
+    }
+
+    @Override
+    public void changedDocument(DocumentHandle dh, MonitorCheckpoint mcp) {
+      checkpoints.add(mcp);
+    }
+
+    @Override
+    public void passComplete(MonitorCheckpoint mcp)
+        throws InterruptedException {
+      passCheckpoint = mcp;
+      throw new InterruptedException();
+    }
+
+    @Override
+    public boolean hasEnqueuedAtLeastOneChangeThisPass() {
+      return true;
+    }
+
+    @Override
+    public void passPausing(int sleepms) {}
+  }
+
+  /** Runs a single monitor pass over a synthetic repository. */
+  private void runPass(SnapshotStore store, OnePassCallback callback) {
+    runPass(store, new SyntheticRepository(SYNTHETIC_DOCUMENTS), callback,
+        null, 1);
+    assertEquals(SYNTHETIC_DOCUMENTS, callback.passCheckpoint.getOffset2());
+  }
+
+  /**
+   * Runs a single monitor pass.
+   *
+   * @return the elapsed time of the pass, in milliseconds
+   */
+  private long runPass(SnapshotStore store,
+      SnapshotRepository<? extends DocumentSnapshot> repository,
+      OnePassCallback callback, DocumentSink documentSink,
+      int updateThreads) {
+    DocumentSnapshotRepositoryMonitor monitor =
+        new DocumentSnapshotRepositoryMonitor("synthetic", repository, store,
+            callback, documentSink, null, new MockDocumentSnapshotFactory(),
+            updateThreads);
+    long start = System.currentTimeMillis();
+    monitor.run();
+    long elapsed = System.currentTimeMillis() - start;
+    assertNotNull(callback.passCheckpoint);
+    return elapsed;
+  }
+
+  /**
+   * Runs an initial traversal and an unchanged pass over a synthetic
+   * repository, syncing every snapshot record or groups of records, and
+   * checks that the reported checkpoints only refer to synced records.
+   */
+  public void testGroupCommitPass() throws Exception {
+    File dir = new File("testdata/tmp/SnapshotGroupCommitTests");
+    ConnectorTestUtils.deleteAllFiles(dir);
+    try {
+      // Every record is synced as it is written.
+      int syncs = runPasses(new SnapshotStore(new File(dir, "single"),
+          new MockDocumentSnapshotFactory()), 1);
+      assertEquals(SYNTHETIC_DOCUMENTS, syncs);
+
+      // The checkpoints lag behind the records written, and catch up at
+      // each group commit.
+      syncs = runPasses(new SnapshotStore(new File(dir, "group"),
+          new MockDocumentSnapshotFactory(), SYNC_RECORDS, 0L), SYNC_RECORDS);
+      assertEquals(SYNTHETIC_DOCUMENTS / SYNC_RECORDS, syncs);
+    } finally {
+      ConnectorTestUtils.deleteAllFiles(dir);
+    }
+  }
+
+  /**
+   * Runs an initial and an unchanged pass, checking the checkpoints of
+   * the initial pass.
+   *
+   * @return the number of times the reported checkpoint advanced during
+   *         the initial pass, which is the number of group commits
+   */
+  private int runPasses(SnapshotStore store, int syncRecords) {
+    OnePassCallback callback = new OnePassCallback();
+    runPass(store, callback);
+    assertEquals(SYNTHETIC_DOCUMENTS, callback.checkpoints.size());
+    int syncs = 0;
+    long previous = 0;
+    for (int k = 0; k < SYNTHETIC_DOCUMENTS; k++) {
+      // Document k is the (k + 1)th record written, but the checkpoint
+      // only advances when the records are synced.
+      long offset = callback.checkpoints.get(k).getOffset2();
+      assertEquals("document " + k, ((k + 1) / syncRecords) * syncRecords,
+          offset);
+      if (offset != previous) {
+        syncs++;
+        previous = offset;
+      }
+    }
+
+    callback = new OnePassCallback();
+    runPass(store, callback);
+    assertTrue(callback.checkpoints.isEmpty());
+    return syncs;
+  }
+
+  /**
+   * A repository whose second generation deletes, changes, and adds
+   * documents, and fails to get updates for some of them.
+   */
+  private static class ChangingRepository
+      implements SnapshotRepository<SlowDocumentSnapshot> {
+    private final int size;
+    private final int generation;
+    private final long delayMillis;
+
+    ChangingRepository(int size, int generation, long delayMillis) {
+      this.size = size;
+      this.generation = generation;
+      this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public String getName() {
+      return "changing";
+    }
+
+    @Override
+    public Iterator<SlowDocumentSnapshot> iterator() {
+      List<SlowDocumentSnapshot> snapshots =
+          new ArrayList<SlowDocumentSnapshot>(size);
+      for (int i = 0; i < size; i++) {
+        String id = String.format("/share/file%08d", i);
+        if (generation > 0 && i % 7 == 3) {
+          continue;
+        }
+        String extra = (generation > 0 && i % 5 == 0)
+            ? "changed." + i : "extra." + i;
+        snapshots.add(new SlowDocumentSnapshot(id, extra,
+            generation > 0 && i % 11 == 0, delayMillis));
+        if (generation > 0 && i % 13 == 0) {
+          snapshots.add(new SlowDocumentSnapshot(id + "a", "added." + i,
+              i % 2 == 0, delayMillis));
+        }
+      }
+      return snapshots.iterator();
+    }
+  }
+
+  /** A snapshot whose getUpdate is slow, and may fail. */
+  private static class SlowDocumentSnapshot implements DocumentSnapshot {
+    private final MockDocumentSnapshot snapshot;
+    private final boolean failing;
+    private final long delayMillis;
+
+    SlowDocumentSnapshot(String documentId, String extra, boolean failing,
+        long delayMillis) {
+      this.snapshot = new MockDocumentSnapshot(documentId, extra);
+      this.failing = failing;
+      this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public String getDocumentId() {
+      return snapshot.getDocumentId();
+    }
+
+    @Override
+    public DocumentHandle getUpdate(DocumentSnapshot onGsa)
+        throws RepositoryException {
+      if (delayMillis > 0) {
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (failing) {
+        throw new RepositoryException("Failed to read " + getDocumentId());
+      }
+      if (onGsa != null && onGsa.toString().equals(toString())) {
+        return null;
+      }
+      return new MockDocumentHandle(getDocumentId(), snapshot.getExtra());
+    }
+
+    @Override
+    public String toString() {
+      return snapshot.toString();
+    }
+  }
+
+  /** Records the changes and filtered documents in the order reported. */
+  private static class RecordingCallback extends OnePassCallback
+      implements DocumentSink {
+    final List<String> events = new ArrayList<String>();
+
+    @Override
+    public void newDocument(DocumentHandle dh, MonitorCheckpoint mcp) {
+      super.newDocument(dh, mcp);
+      events.add("new " + dh.getDocumentId() + " " + mcp);
+    }
+
+    @Override
+    public void deletedDocument(DocumentHandle dh, MonitorCheckpoint mcp) {
+      super.deletedDocument(dh, mcp);
+      events.add("deleted " + dh.getDocumentId() + " " + mcp);
+    }
+
+    @Override
+    public void changedDocument(DocumentHandle dh, MonitorCheckpoint mcp) {
+      super.changedDocument(dh, mcp);
+      events.add("changed " + dh.getDocumentId() + " " + mcp);
+    }
+
+    @Override
+    public void add(String documentId, FilterReason reason) {
+      events.add("filtered " + documentId + " " + reason);
+    }
+  }
+
+  /** Runs an initial and a changing pass, returning the changes. */
+  private List<String> runChangingPasses(File dir, int updateThreads)
+      throws Exception {
+    SnapshotStore store = new SnapshotStore(dir,
+        new MockDocumentSnapshotFactory(), 10, 0L);
+    RecordingCallback callback = new RecordingCallback();
+    runPass(store, new ChangingRepository(500, 0, 0L), callback, callback,
+        updateThreads);
+    callback = new RecordingCallback();
+    runPass(store, new ChangingRepository(500, 1, 0L), callback, callback,
+        updateThreads);
+    return callback.events;
+  }
+
+  /**
+   * Tests that changes are reported in the same order, with the same
+   * checkpoints, whether the updates are computed by one thread or many.
+   */
+  public void testParallelUpdates() throws Exception {
+    File dir = new File("testdata/tmp/ParallelMonitorTests");
+    ConnectorTestUtils.deleteAllFiles(dir);
+    try {
+      List<String> sequential = runChangingPasses(new File(dir, "single"), 1);
+      List<String> parallel = runChangingPasses(new File(dir, "parallel"), 4);
+      assertTrue(sequential.size() > 100);
+      assertEquals(sequential, parallel);
+    } finally {
+      ConnectorTestUtils.deleteAllFiles(dir);
+    }
+  }
+
+  /**
+   * Compares the time of an initial traversal whose updates are slow,
+   * using one and several update threads.
+   */
+  public void testParallelUpdatePassTime() throws Exception {
+    final int documents = 500;
+    final int threads = 8;
+    File dir = new File("testdata/tmp/ParallelMonitorTests");
+    ConnectorTestUtils.deleteAllFiles(dir);
+    try {
+      long[] elapsed = new long[2];
+      for (int i = 0; i < 2; i++) {
+        SnapshotStore store = new SnapshotStore(new File(dir, "pass" + i),
+            new MockDocumentSnapshotFactory(), SYNC_RECORDS, 0L);
+        OnePassCallback callback = new OnePassCallback();
+        elapsed[i] = runPass(store, new ChangingRepository(documents, 0, 1L),
+            callback, null, (i == 0) ? 1 : threads);
+        assertEquals(documents, callback.checkpoints.size());
+      }
+      LOG.info(documents + " documents with 1 ms updates: " + elapsed[0]
+          + " ms with 1 update thread, " + elapsed[1] + " ms with "
+          + threads + " update threads");
+    } finally {
+      ConnectorTestUtils.deleteAllFiles(dir);
+    }
+  }
 }
@@ -23,8 +23,12 @@ import junit.framework.TestCase;
 import java.io.File;
 import java.io.IOException;
 import java.util.Set;
+import java.util.logging.Logger;
 
 public class SnapshotStoreTest extends TestCase {
+  private static final Logger LOGGER =
+      Logger.getLogger(SnapshotStoreTest.class.getName());
+
   private File snapshotDir;
   private SnapshotStore store;
 
@@ -212,6 +216,134 @@ public class SnapshotStoreTest extends TestCase {
     }
   }
 
+  /** Tests that binary snapshots can be written and read. */
+  public void testBinaryWriteRead() throws Exception {
+    SnapshotStore binaryStore = new SnapshotStore(snapshotDir,
+        new MockDocumentSnapshotFactory(), 10, 0L, true);
+    SnapshotWriter out = binaryStore.openNewSnapshotWriter();
+    writeRecords(out, "12345");
+    binaryStore.close(null, out);
+    assertTrue(BinaryRecordReader.isBinarySnapshot(new File(out.getPath())));
+
+    SnapshotReader in = binaryStore.openMostRecentSnapshot();
+    for (int k = 0; k < 100; ++k) {
+      assertTrue(in.read().getDocumentId().endsWith("12345"));
+    }
+    assertNull(in.read());
+    binaryStore.close(in, null);
+  }
+
+  /** Tests recovery from binary snapshots. */
+  public void testBinaryRecovery() throws Exception {
+    SnapshotStore binaryStore = new SnapshotStore(snapshotDir,
+        new MockDocumentSnapshotFactory(), 10, 0L, true);
+    SnapshotWriter ss1 = binaryStore.openNewSnapshotWriter();
+    writeRecords(ss1, "12345");
+    binaryStore.close(null, ss1);
+
+    // Simulate a crash part way through the second snapshot.
+    SnapshotWriter ss2 = binaryStore.openNewSnapshotWriter();
+    for (int k = 0; k < 25; ++k) {
+      ss2.write(new MockDocumentSnapshot(k + ".23456", "extra.k"));
+    }
+    assertEquals(20, ss2.getSyncedRecordCount());
+
+    MonitorCheckpoint cp = new MonitorCheckpoint("foo", 1, 17, 17);
+    SnapshotStore.stitch(snapshotDir, cp, new MockDocumentSnapshotFactory());
+    ss2.close();
+    assertStitched(3, 17);
+    assertTrue(BinaryRecordReader.isBinarySnapshot(
+        new File(snapshotDir, "snap.3")));
+  }
+
+  /**
+   * Tests that a binary store reads existing text snapshots, and that the
+   * recovery snapshot is written in the format of the older snapshot.
+   */
+  public void testMixedFormatRecovery() throws Exception {
+    SnapshotWriter ss1 = store.openNewSnapshotWriter();
+    writeRecords(ss1, "12345");
+    store.close(null, ss1);
+
+    SnapshotStore binaryStore = new SnapshotStore(snapshotDir,
+        new MockDocumentSnapshotFactory(), 10, 0L, true);
+    SnapshotReader in = binaryStore.openMostRecentSnapshot();
+    assertEquals(1, in.getSnapshotNumber());
+    assertTrue(in.read().getDocumentId().endsWith("12345"));
+    binaryStore.close(in, null);
+
+    SnapshotWriter ss2 = binaryStore.openNewSnapshotWriter();
+    writeRecords(ss2, "23456");
+    binaryStore.close(null, ss2);
+
+    MonitorCheckpoint cp = new MonitorCheckpoint("foo", 1, 7, 7);
+    SnapshotStore.stitch(snapshotDir, cp, new MockDocumentSnapshotFactory());
+    assertStitched(3, 7);
+    assertFalse(BinaryRecordReader.isBinarySnapshot(
+        new File(snapshotDir, "snap.3")));
+  }
+
+  /**
+   * Asserts that the most recent snapshot contains the first {@code offset}
+   * records from snapshot 2 and the rest from snapshot 1.
+   */
+  private void assertStitched(long snapshotNumber, int offset)
+      throws Exception {
+    SnapshotStore after = new SnapshotStore(snapshotDir,
+        new MockDocumentSnapshotFactory());
+    SnapshotReader reader = after.openMostRecentSnapshot();
+    assertEquals(snapshotNumber, reader.getSnapshotNumber());
+    for (int k = 0; k < 100; ++k) {
+      DocumentSnapshot rec = reader.read();
+      assertNotNull(rec);
+      String suffix = (k < offset) ? "23456" : "12345";
+      assertTrue(rec.getDocumentId(), rec.getDocumentId().endsWith(suffix));
+    }
+    assertNull(reader.read());
+    after.close(reader, null);
+  }
+
+  /** Measures recovery from large text and binary snapshots. */
+  public void testStitchTime() throws Exception {
+    final int records = 100000;
+    long textMillis = timeStitch(false, records);
+    long binaryMillis = timeStitch(true, records);
+    LOGGER.info("Recovering " + records + " records took " + textMillis
+        + " ms from text snapshots, and " + binaryMillis
+        + " ms from binary snapshots.");
+  }
+
+  private long timeStitch(boolean binaryFormat, int records)
+      throws Exception {
+    File dir = new File(snapshotDir, binaryFormat ? "binary" : "text");
+    SnapshotStore timedStore = new SnapshotStore(dir,
+        new MockDocumentSnapshotFactory(), Integer.MAX_VALUE, 0L,
+        binaryFormat);
+    for (int i = 0; i < 2; i++) {
+      SnapshotWriter out = timedStore.openNewSnapshotWriter();
+      for (int k = 0; k < records; ++k) {
+        out.write(new MockDocumentSnapshot(
+            String.format("/foo/bar/%08d", k), "extra." + i));
+      }
+      timedStore.close(null, out);
+    }
+
+    // Recover near the end of the pass, which skips most of snapshot 1.
+    MonitorCheckpoint cp =
+        new MonitorCheckpoint("foo", 1, records - 10, records - 10);
+    long start = System.currentTimeMillis();
+    SnapshotStore.stitch(dir, cp, new MockDocumentSnapshotFactory());
+    long elapsed = System.currentTimeMillis() - start;
+
+    SnapshotReader reader = timedStore.openMostRecentSnapshot();
+    assertEquals(3, reader.getSnapshotNumber());
+    reader.skipRecords(records - 1);
+    assertEquals("extra.0", ((MockDocumentSnapshot) reader.read()).getExtra());
+    assertNull(reader.read());
+    timedStore.close(reader, null);
+    return elapsed;
+  }
+
   public void testTwoWriters() throws SnapshotStoreException {
     store.openNewSnapshotWriter();
     try {
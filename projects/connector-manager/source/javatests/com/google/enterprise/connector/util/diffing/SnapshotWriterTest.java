@@ -145,4 +145,43 @@ public class SnapshotWriterTest extends TestCase {
     }
     assertEquals(100, writer.getRecordCount());
   }
+
+  public void testGroupCommit() throws Exception {
+    writer = new SnapshotWriter(sw, null, "string", 10, 0L);
+    try {
+      for (int k = 0; k < 25; ++k) {
+        writer.write(new MockDocumentSnapshot(Integer.toString(k),
+            "extra." + k));
+        assertEquals(k + 1, writer.getRecordCount());
+        assertEquals(((k + 1) / 10) * 10, writer.getSyncedRecordCount());
+      }
+      // Unsynced records are still buffered.
+      SnapshotReader reader = new SnapshotReader(
+          new BufferedReader(new StringReader(sw.toString())),
+          "test", 2, new MockDocumentSnapshotFactory());
+      reader.skipRecords(20);
+      assertNull(reader.read());
+    } finally {
+      writer.close();
+    }
+    assertEquals(25, writer.getSyncedRecordCount());
+
+    SnapshotReader reader =
+        new SnapshotReader(new BufferedReader(new StringReader(sw.toString())),
+            "test", 2, new MockDocumentSnapshotFactory());
+    reader.skipRecords(24);
+    assertEquals(new MockDocumentSnapshot("24", "extra.24"), reader.read());
+    assertNull(reader.read());
+  }
+
+  public void testSync() throws SnapshotStoreException {
+    writer = new SnapshotWriter(sw, null, "string", 10, 0L);
+    writer.write(new MockDocumentSnapshot("0", "extra.0"));
+    assertEquals(0, writer.getSyncedRecordCount());
+    assertEquals(0, sw.getBuffer().length());
+    writer.sync();
+    assertEquals(1, writer.getSyncedRecordCount());
+    assertTrue(sw.getBuffer().length() > 0);
+    writer.close();
+  }
 }